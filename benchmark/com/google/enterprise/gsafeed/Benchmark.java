@@ -0,0 +1,63 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+/**
+ * A single measured operation, run repeatedly by {@link
+ * BenchmarkRunner}.
+ */
+abstract class Benchmark {
+  private final String name;
+  private final String params;
+
+  /**
+   * @param name the name of the benchmark
+   * @param params a description of the parameters, such as
+   *     "records=100", or the empty string
+   */
+  Benchmark(String name, String params) {
+    this.name = name;
+    this.params = params;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getParams() {
+    return params;
+  }
+
+  /** Returns the name and parameters, for matching and display. */
+  String getId() {
+    return params.isEmpty() ? name : name + "[" + params + "]";
+  }
+
+  /** Prepares the input before the benchmark is run. */
+  void setUp() throws Exception {
+  }
+
+  /**
+   * Runs the operation once.
+   *
+   * @return the result, which the runner consumes so that the work
+   *     cannot be optimized away
+   */
+  abstract Object run() throws Exception;
+
+  /** Releases anything created by setUp. */
+  void tearDown() throws Exception {
+  }
+}
@@ -0,0 +1,272 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks in {@link FeedBenchmarks}, {@link
+ * SendBenchmarks} and {@link DateBenchmarks}. Each benchmark is
+ * warmed up, then run for a number of timed iterations; the result is
+ * the mean time per operation and its standard deviation across
+ * iterations.
+ *
+ * <p>Results are written as CSV, one line per benchmark, so that runs
+ * on different commits can be compared:
+ *
+ * <pre>
+ * ant benchmark -Dbenchmark.args="-results before.csv"
+ * (change the code)
+ * ant benchmark -Dbenchmark.args="-results after.csv -baseline before.csv"
+ * </pre>
+ *
+ * <p>Options:
+ * <dl>
+ * <dt>-filter regex</dt><dd>run only the benchmarks whose name and
+ *     parameters contain a match</dd>
+ * <dt>-results file</dt><dd>the CSV output file; the default is
+ *     build/benchmark-results.csv</dd>
+ * <dt>-baseline file</dt><dd>a CSV file from an earlier run, to
+ *     compare against</dd>
+ * <dt>-warmup ms</dt><dd>the warm-up time per benchmark; the default
+ *     is 2000</dd>
+ * <dt>-iterations n</dt><dd>the number of timed iterations; the
+ *     default is 5</dd>
+ * <dt>-time ms</dt><dd>the time per iteration; the default is 1000</dd>
+ * </dl>
+ */
+public class BenchmarkRunner {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String CSV_HEADER =
+      "benchmark,params,iterations,operations,ns_per_op,stddev_ns_per_op";
+
+  private Pattern filter = Pattern.compile("");
+  private File results = new File("build/benchmark-results.csv");
+  private File baseline;
+  private long warmupMillis = 2000;
+  private int iterations = 5;
+  private long iterationMillis = 1000;
+
+  /** Consumes benchmark results so the JIT cannot discard them. */
+  private volatile int sink;
+
+  /** The measurements of one benchmark. */
+  static class Result {
+    final String name;
+    final String params;
+    final int iterations;
+    final long operations;
+    final double nanosPerOp;
+    final double stddev;
+
+    Result(String name, String params, int iterations, long operations,
+        double nanosPerOp, double stddev) {
+      this.name = name;
+      this.params = params;
+      this.iterations = iterations;
+      this.operations = operations;
+      this.nanosPerOp = nanosPerOp;
+      this.stddev = stddev;
+    }
+
+    String getId() {
+      return params.isEmpty() ? name : name + "[" + params + "]";
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    Logger.getLogger("com.google.enterprise.gsafeed").setLevel(Level.WARNING);
+    BenchmarkRunner runner = new BenchmarkRunner();
+    runner.parseArgs(args);
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.addAll(FeedBenchmarks.all());
+    benchmarks.addAll(SendBenchmarks.all());
+    benchmarks.addAll(DateBenchmarks.all());
+    runner.runAll(benchmarks);
+  }
+
+  private void parseArgs(String... args) {
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("Missing value for " + option);
+      }
+      String value = args[++i];
+      if ("-filter".equals(option)) {
+        filter = Pattern.compile(value);
+      } else if ("-results".equals(option)) {
+        results = new File(value);
+      } else if ("-baseline".equals(option)) {
+        baseline = new File(value);
+      } else if ("-warmup".equals(option)) {
+        warmupMillis = Long.parseLong(value);
+      } else if ("-iterations".equals(option)) {
+        iterations = Integer.parseInt(value);
+      } else if ("-time".equals(option)) {
+        iterationMillis = Long.parseLong(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + option);
+      }
+    }
+    if (iterations < 1) {
+      throw new IllegalArgumentException("iterations must be positive");
+    }
+  }
+
+  private void runAll(List<Benchmark> benchmarks) throws Exception {
+    Map<String, Result> baselineResults = (baseline == null)
+        ? new HashMap<String, Result>() : readResults(baseline);
+    List<Result> all = new ArrayList<Result>();
+    for (Benchmark benchmark : benchmarks) {
+      if (!filter.matcher(benchmark.getId()).find()) {
+        continue;
+      }
+      Result result = measure(benchmark);
+      all.add(result);
+      String line = String.format(Locale.US, "%-64s %14.1f ns/op +- %5.1f%%",
+          result.getId(), result.nanosPerOp,
+          100 * result.stddev / result.nanosPerOp);
+      Result before = baselineResults.get(result.getId());
+      if (before != null) {
+        line += String.format(Locale.US, "  %+6.1f%% vs baseline",
+            100 * (result.nanosPerOp / before.nanosPerOp - 1));
+      }
+      System.out.println(line);
+    }
+    writeResults(results, all);
+    System.out.println("Results written to " + results);
+  }
+
+  private Result measure(Benchmark benchmark) throws Exception {
+    benchmark.setUp();
+    try {
+      runFor(benchmark, warmupMillis * 1000000);
+      double[] nanosPerOp = new double[iterations];
+      long totalOps = 0;
+      double sum = 0;
+      for (int i = 0; i < iterations; i++) {
+        long start = System.nanoTime();
+        long ops = runFor(benchmark, iterationMillis * 1000000);
+        nanosPerOp[i] = (double) (System.nanoTime() - start) / ops;
+        totalOps += ops;
+        sum += nanosPerOp[i];
+      }
+      double mean = sum / iterations;
+      double squares = 0;
+      for (double value : nanosPerOp) {
+        squares += (value - mean) * (value - mean);
+      }
+      double stddev = (iterations > 1)
+          ? Math.sqrt(squares / (iterations - 1)) : 0;
+      return new Result(benchmark.getName(), benchmark.getParams(),
+          iterations, totalOps, mean, stddev);
+    } finally {
+      benchmark.tearDown();
+    }
+  }
+
+  /**
+   * Runs the benchmark until the given time has passed, and at least
+   * once.
+   *
+   * @return the number of operations run
+   */
+  private long runFor(Benchmark benchmark, long nanos) throws Exception {
+    long deadline = System.nanoTime() + nanos;
+    long ops = 0;
+    int hash = 0;
+    do {
+      Object result = benchmark.run();
+      hash ^= System.identityHashCode(result);
+      ops++;
+    } while (System.nanoTime() < deadline);
+    sink = hash;
+    return ops;
+  }
+
+  private static void writeResults(File file, List<Result> all)
+      throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(file), UTF_8));
+    try {
+      out.println(CSV_HEADER);
+      for (Result result : all) {
+        out.println(String.format(Locale.US, "%s,%s,%d,%d,%.1f,%.1f",
+            result.name, quote(result.params), result.iterations,
+            result.operations, result.nanosPerOp, result.stddev));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Reads results written by an earlier run, keyed by id. */
+  static Map<String, Result> readResults(File file) throws IOException {
+    Map<String, Result> results = new HashMap<String, Result>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), UTF_8));
+    try {
+      String line = in.readLine();
+      if (!CSV_HEADER.equals(line)) {
+        throw new IOException("Not a benchmark results file: " + file);
+      }
+      while ((line = in.readLine()) != null) {
+        // Only the params column may contain commas, and it is quoted.
+        String[] fields;
+        int open = line.indexOf(",\"");
+        if (open >= 0) {
+          int close = line.indexOf("\",", open + 2);
+          String params = line.substring(open + 2, close);
+          String[] rest = line.substring(close + 2).split(",");
+          fields = new String[] { line.substring(0, open), params,
+              rest[0], rest[1], rest[2], rest[3] };
+        } else {
+          fields = line.split(",", -1);
+        }
+        Result result = new Result(fields[0], fields[1],
+            Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+            Double.parseDouble(fields[4]), Double.parseDouble(fields[5]));
+        results.put(result.getId(), result);
+      }
+    } finally {
+      in.close();
+    }
+    return results;
+  }
+
+  private static String quote(String value) {
+    return (value.indexOf(',') >= 0) ? "\"" + value + "\"" : value;
+  }
+}
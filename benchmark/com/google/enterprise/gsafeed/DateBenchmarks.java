@@ -0,0 +1,135 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Benchmarks of formatting and parsing last-modified dates with
+ * {@link DateAdapter}, compared with SimpleDateFormat. Each operation
+ * converts 1000 dates, which share the given number of distinct
+ * seconds.
+ */
+class DateBenchmarks {
+  private static final int DATES = 1000;
+
+  private DateBenchmarks() {
+  }
+
+  static List<Benchmark> all() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (int distinct : new int[] { 10, 1000 }) {
+      for (boolean adapter : new boolean[] { true, false }) {
+        benchmarks.add(new FormatDates(distinct, adapter));
+        benchmarks.add(new ParseDates(distinct, adapter));
+      }
+    }
+    return benchmarks;
+  }
+
+  private static DateFormat simpleDateFormat() {
+    DateFormat df = new SimpleDateFormat(DateAdapter.FORMAT, Locale.ENGLISH);
+    df.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return df;
+  }
+
+  /** Returns dates with the given number of distinct seconds. */
+  private static Date[] createDates(int distinct) {
+    Random random = new Random(0);
+    Date[] dates = new Date[DATES];
+    for (int i = 0; i < dates.length; i++) {
+      dates[i] = new Date(1500000000000L
+          + random.nextInt(distinct) * 1000L + random.nextInt(1000));
+    }
+    return dates;
+  }
+
+  private static String params(int distinct, boolean adapter) {
+    return "distinct=" + distinct
+        + ",impl=" + (adapter ? "DateAdapter" : "SimpleDateFormat");
+  }
+
+  private static class FormatDates extends Benchmark {
+    private final int distinct;
+    private final boolean adapter;
+    private final DateAdapter dateAdapter = new DateAdapter();
+    private final DateFormat dateFormat = simpleDateFormat();
+    private Date[] dates;
+
+    FormatDates(int distinct, boolean adapter) {
+      super("formatDates", params(distinct, adapter));
+      this.distinct = distinct;
+      this.adapter = adapter;
+    }
+
+    @Override
+    void setUp() {
+      dates = createDates(distinct);
+    }
+
+    @Override
+    Object run() {
+      int length = 0;
+      for (Date date : dates) {
+        String value = adapter
+            ? dateAdapter.marshal(date) : dateFormat.format(date);
+        length += value.length();
+      }
+      return length;
+    }
+  }
+
+  private static class ParseDates extends Benchmark {
+    private final int distinct;
+    private final boolean adapter;
+    private final DateAdapter dateAdapter = new DateAdapter();
+    private final DateFormat dateFormat = simpleDateFormat();
+    private String[] values;
+
+    ParseDates(int distinct, boolean adapter) {
+      super("parseDates", params(distinct, adapter));
+      this.distinct = distinct;
+      this.adapter = adapter;
+    }
+
+    @Override
+    void setUp() {
+      Date[] dates = createDates(distinct);
+      values = new String[dates.length];
+      for (int i = 0; i < dates.length; i++) {
+        // New strings, as an unmarshaller would create.
+        values[i] = new String(dateFormat.format(dates[i]).toCharArray());
+      }
+    }
+
+    @Override
+    Object run() throws Exception {
+      long sum = 0;
+      for (String value : values) {
+        Date date = adapter
+            ? dateAdapter.unmarshal(value) : dateFormat.parse(value);
+        sum += date.getTime();
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of marshalling and unmarshalling feeds with {@link
+ * GsafeedHelper} and {@link XmlgroupsHelper}, and of reading feeds
+ * with {@link GsafeedReader}.
+ */
+class FeedBenchmarks {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private FeedBenchmarks() {
+  }
+
+  static List<Benchmark> all() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (int records : new int[] { 10, 1000 }) {
+      benchmarks.add(new MarshalGsafeed(records, 0, 0));
+      benchmarks.add(new MarshalGsafeed(records, 10, 0));
+      benchmarks.add(new MarshalGsafeed(records, 0, 10240));
+    }
+    for (boolean validate : new boolean[] { true, false }) {
+      benchmarks.add(new UnmarshalGsafeed(1000, 10, validate));
+      benchmarks.add(new UnmarshalXmlgroups(1000, 10, validate));
+    }
+    benchmarks.add(new UnmarshalGsafeed(1000, 50, false));
+    benchmarks.add(new ReadGsafeed(1000, 10));
+    benchmarks.add(new ReadGsafeed(1000, 50));
+    benchmarks.add(new MarshalXmlgroups(1000, 10));
+    return benchmarks;
+  }
+
+  /**
+   * Builds a feed of records with the given number of metas each, and
+   * content of the given length if it is not zero.
+   */
+  static Gsafeed createGsafeed(int records, int metas, int contentLength) {
+    return new FeedGenerator(0)
+        .setDatasource("benchmark")
+        .setRecords(records)
+        .setMetas(metas, metas)
+        .setAclFraction(0)
+        .setContentFraction((contentLength > 0) ? 1 : 0)
+        .setContentSize(contentLength, contentLength)
+        .createGsafeed();
+  }
+
+  /**
+   * Builds a groups feed of memberships with the given number of
+   * members each.
+   */
+  static Xmlgroups createXmlgroups(int memberships, int members) {
+    return new FeedGenerator(0)
+        .setGroups(memberships)
+        .setMembers(members, members)
+        .createXmlgroups();
+  }
+
+  private static String params(int records, int metas, int contentLength) {
+    return "records=" + records + ",metas=" + metas
+        + ",content=" + contentLength;
+  }
+
+  private static class MarshalGsafeed extends Benchmark {
+    private final int records;
+    private final int metas;
+    private final int contentLength;
+    private GsafeedHelper helper;
+    private Gsafeed feed;
+
+    MarshalGsafeed(int records, int metas, int contentLength) {
+      super("marshalGsafeed", params(records, metas, contentLength));
+      this.records = records;
+      this.metas = metas;
+      this.contentLength = contentLength;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      helper = new GsafeedHelper();
+      feed = createGsafeed(records, metas, contentLength);
+    }
+
+    @Override
+    Object run() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      helper.marshal(feed, out);
+      return out;
+    }
+  }
+
+  private static class UnmarshalGsafeed extends Benchmark {
+    private final int records;
+    private final int metas;
+    private final boolean validate;
+    private GsafeedHelper helper;
+    private String xml;
+
+    UnmarshalGsafeed(int records, int metas, boolean validate) {
+      super(validate ? "unmarshalGsafeedWithDtd" : "unmarshalGsafeedWithoutDtd",
+          params(records, metas, 0));
+      this.records = records;
+      this.metas = metas;
+      this.validate = validate;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      helper = new GsafeedHelper();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      helper.marshal(createGsafeed(records, metas, 0), out);
+      xml = new String(out.toByteArray(), UTF_8);
+    }
+
+    @Override
+    Object run() throws Exception {
+      return validate
+          ? helper.unmarshalWithDtd(xml) : helper.unmarshalWithoutDtd(xml);
+    }
+  }
+
+  private static class ReadGsafeed extends Benchmark {
+    private final int records;
+    private final int metas;
+    private byte[] xml;
+
+    ReadGsafeed(int records, int metas) {
+      super("readGsafeed", params(records, metas, 0));
+      this.records = records;
+      this.metas = metas;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new GsafeedHelper().marshal(createGsafeed(records, metas, 0), out);
+      xml = out.toByteArray();
+    }
+
+    @Override
+    Object run() throws Exception {
+      // Touches each meta, as a caller routing on metadata would.
+      GsafeedReader reader = new GsafeedReader(new ByteArrayInputStream(xml));
+      int count = 0;
+      GsafeedReader.Event event;
+      while ((event = reader.next()) != null) {
+        if (event == GsafeedReader.Event.RECORD) {
+          MutableRecord record = reader.getRecord();
+          for (int i = 0; i < record.getMetaCount(); i++) {
+            count += record.getMetaContent(i).length();
+          }
+        }
+      }
+      reader.close();
+      return count;
+    }
+  }
+
+  private static class MarshalXmlgroups extends Benchmark {
+    private final int memberships;
+    private final int members;
+    private XmlgroupsHelper helper;
+    private Xmlgroups groups;
+
+    MarshalXmlgroups(int memberships, int members) {
+      super("marshalXmlgroups",
+          "memberships=" + memberships + ",members=" + members);
+      this.memberships = memberships;
+      this.members = members;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      helper = new XmlgroupsHelper();
+      groups = createXmlgroups(memberships, members);
+    }
+
+    @Override
+    Object run() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      helper.marshal(groups, out);
+      return out;
+    }
+  }
+
+  private static class UnmarshalXmlgroups extends Benchmark {
+    private final int memberships;
+    private final int members;
+    private final boolean validate;
+    private XmlgroupsHelper helper;
+    private String xml;
+
+    UnmarshalXmlgroups(int memberships, int members, boolean validate) {
+      super(validate
+          ? "unmarshalXmlgroupsWithDtd" : "unmarshalXmlgroupsWithoutDtd",
+          "memberships=" + memberships + ",members=" + members);
+      this.memberships = memberships;
+      this.members = members;
+      this.validate = validate;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      helper = new XmlgroupsHelper();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      helper.marshal(createXmlgroups(memberships, members), out);
+      xml = new String(out.toByteArray(), UTF_8);
+    }
+
+    @Override
+    Object run() throws Exception {
+      return validate
+          ? helper.unmarshalWithDtd(xml) : helper.unmarshalWithoutDtd(xml);
+    }
+  }
+}
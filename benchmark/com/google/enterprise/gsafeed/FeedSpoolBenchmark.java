@@ -0,0 +1,68 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Measures how many small feeds a {@link FeedSpool} takes per second,
+ * with and without compression, for several sync batch sizes.
+ *
+ * <p>Usage: {@code ant benchmark -Dbenchmark.class=FeedSpoolBenchmark
+ *     -Dbenchmark.args="[feeds] [records per feed]"}
+ */
+public class FeedSpoolBenchmark {
+  public static void main(String... args) throws Exception {
+    int feeds = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+    int records = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new FeedGenerator(0).setRecords(records).setContentSize(100, 1000)
+        .writeGsafeed(new GsafeedHelper(), out);
+    byte[] xml = out.toByteArray();
+    System.out.printf("%d feeds of %d bytes%n", feeds, xml.length);
+
+    for (boolean compression : new boolean[] {false, true}) {
+      for (int batch : new int[] {1, 16, 256}) {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+            "gsafeed-spool-benchmark");
+        FeedSpool spool = new FeedSpool(directory)
+            .setCompression(compression)
+            .setSyncBatchSize(batch);
+        long start = System.nanoTime();
+        for (int i = 0; i < feeds; i++) {
+          spool.addGsaFeed("docs", "incremental", xml);
+        }
+        spool.sync();
+        long addNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        FeedSpool.Entry entry;
+        while ((entry = spool.peek()) != null) {
+          spool.acknowledge(entry);
+        }
+        spool.sync();
+        long ackNanos = System.nanoTime() - start;
+        spool.close();
+        System.out.printf("compression=%-5b batch=%3d: add %7.0f/s,"
+            + " acknowledge %7.0f/s%n", compression, batch,
+            feeds * 1e9 / addNanos, feeds * 1e9 / ackNanos);
+        for (File file : directory.listFiles()) {
+          file.delete();
+        }
+        directory.delete();
+      }
+    }
+  }
+}
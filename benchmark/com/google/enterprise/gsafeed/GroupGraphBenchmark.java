@@ -0,0 +1,66 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+/**
+ * Measures the heap retained by a groups feed held as {@link
+ * Xmlgroups} objects and as a {@link GroupGraph}, and the time to
+ * look up the members and parents of every node.
+ *
+ * <p>Usage: {@code ant benchmark -Dbenchmark.class=GroupGraphBenchmark
+ *     -Dbenchmark.args="[groups] [members per group]"}
+ */
+public class GroupGraphBenchmark {
+  public static void main(String... args) throws Exception {
+    int groups = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    int members = (args.length > 1) ? Integer.parseInt(args[1]) : 40;
+    FeedGenerator generator = new FeedGenerator(0)
+        .setGroups(groups)
+        .setUsers(groups * 5)
+        .setMembers(members / 2, members * 3 / 2)
+        .setNestedGroupFraction(0.1);
+
+    long before = usedHeap();
+    Xmlgroups feed = generator.createXmlgroups();
+    long feedBytes = usedHeap() - before;
+    GroupGraph graph = GroupGraph.fromXmlgroups(feed);
+    feed = null;
+    long graphBytes = usedHeap() - before;
+    System.out.println(graph);
+    System.out.printf("Xmlgroups  retained %7d KB%n", feedBytes / 1024);
+    System.out.printf("GroupGraph retained %7d KB%n", graphBytes / 1024);
+
+    for (int run = 0; run < 3; run++) {
+      long start = System.nanoTime();
+      long sum = 0;
+      for (int node = 0; node < graph.getPrincipalCount(); node++) {
+        sum += graph.getMembers(node).length + graph.getParents(node).length;
+      }
+      System.out.printf("members and parents of every node: %d ms (%d)%n",
+          (System.nanoTime() - start) / 1000000, sum);
+    }
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
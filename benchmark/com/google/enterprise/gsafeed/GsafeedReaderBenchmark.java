@@ -0,0 +1,116 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compares the time and memory taken to read a metadata-heavy feed
+ * with {@link GsafeedReader} and with {@link
+ * GsafeedHelper#unmarshalWithoutDtd}. Memory is the number of bytes
+ * allocated by the reading thread, where the JVM reports it.
+ *
+ * <p>Usage: {@code ant benchmark -Dbenchmark.class=GsafeedReaderBenchmark
+ *     -Dbenchmark.args="[records] [metas per record] [iterations]"}
+ */
+public class GsafeedReaderBenchmark {
+  private interface Reader {
+    int read(byte[] xml) throws Exception;
+  }
+
+  public static void main(String... args) throws Exception {
+    int records = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+    int metas = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+    int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+    final GsafeedHelper helper = new GsafeedHelper();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    helper.marshal(FeedBenchmarks.createGsafeed(records, metas, 0), out);
+    byte[] xml = out.toByteArray();
+    System.out.printf("%d records with %d metas, %d bytes%n",
+        records, metas, xml.length);
+
+    run("unmarshalWithoutDtd", xml, iterations, new Reader() {
+        @Override
+        public int read(byte[] xml) throws Exception {
+          Gsafeed feed =
+              helper.unmarshalWithoutDtd(new ByteArrayInputStream(xml));
+          int count = 0;
+          for (Group group : feed.getGroup()) {
+            for (Object element : group.getAclOrRecord()) {
+              if (element instanceof Record) {
+                for (Metadata metadata : ((Record) element).getMetadata()) {
+                  for (Meta meta : metadata.getMeta()) {
+                    count += meta.getContent().length();
+                  }
+                }
+              }
+            }
+          }
+          return count;
+        }
+      });
+    run("GsafeedReader", xml, iterations, new Reader() {
+        @Override
+        public int read(byte[] xml) throws Exception {
+          GsafeedReader reader =
+              new GsafeedReader(new ByteArrayInputStream(xml));
+          int count = 0;
+          GsafeedReader.Event event;
+          while ((event = reader.next()) != null) {
+            if (event == GsafeedReader.Event.RECORD) {
+              MutableRecord record = reader.getRecord();
+              for (int i = 0; i < record.getMetaCount(); i++) {
+                count += record.getMetaContent(i).length();
+              }
+            }
+          }
+          reader.close();
+          return count;
+        }
+      });
+  }
+
+  private static void run(String name, byte[] xml, int iterations,
+      Reader reader) throws Exception {
+    for (int i = 0; i < iterations; i++) {
+      reader.read(xml);
+    }
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    int count = 0;
+    for (int i = 0; i < iterations; i++) {
+      count += reader.read(xml);
+    }
+    long nanos = System.nanoTime() - start;
+    bytes = allocatedBytes() - bytes;
+    System.out.printf("%-20s %8.2f ms/feed %10.0f KB allocated/feed"
+        + " (%d)%n", name, nanos / 1e6 / iterations,
+        bytes / 1024.0 / iterations, count);
+  }
+
+  /** Returns the bytes allocated by this thread, or 0 if unknown. */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      long bytes = ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+      return Math.max(bytes, 0);
+    }
+    return 0;
+  }
+}
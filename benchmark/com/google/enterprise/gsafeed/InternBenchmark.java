@@ -0,0 +1,80 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Measures the heap retained by an unmarshalled ACL-heavy feed, and
+ * the time to unmarshal it, with and without a {@link StringInterner}.
+ *
+ * <p>Usage: {@code ant benchmark -Dbenchmark.class=InternBenchmark
+ *     -Dbenchmark.args="[records]"}
+ */
+public class InternBenchmark {
+  public static void main(String... args) throws Exception {
+    int records = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    byte[] xml = createFeed(records);
+    System.out.println("Feed of " + records + " records, "
+        + xml.length / 1024 + " KB");
+    for (boolean intern : new boolean[] { false, true, false, true }) {
+      measure(xml, intern);
+    }
+  }
+
+  /** Builds a feed where every record has an acl with 5 to 20 users. */
+  private static byte[] createFeed(int records) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new FeedGenerator(0)
+        .setRecords(records)
+        .setMetas(2, 5)
+        .setAclFraction(1)
+        .setPrincipals(5, 20)
+        .setUsers(1000)
+        .setGroups(100)
+        .writeGsafeed(new GsafeedHelper(), out);
+    return out.toByteArray();
+  }
+
+  private static void measure(byte[] xml, boolean intern) throws Exception {
+    GsafeedHelper helper = new GsafeedHelper();
+    StringInterner interner = new StringInterner();
+    if (intern) {
+      helper.setStringInterner(interner);
+    }
+    long before = usedHeap();
+    long start = System.nanoTime();
+    Gsafeed feed = helper.unmarshalWithoutDtd(new ByteArrayInputStream(xml));
+    long millis = (System.nanoTime() - start) / 1000000;
+    long retained = usedHeap() - before;
+    System.out.printf("%-12s retained %6d KB, unmarshal %5d ms%s%n",
+        intern ? "interned" : "not interned", retained / 1024, millis,
+        intern ? String.format(", hit rate %.1f%% of %d lookups",
+            interner.getHitRate() * 100, interner.getLookups()) : "");
+    if (feed.getGroup().isEmpty()) {
+      throw new AssertionError("empty feed");
+    }
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
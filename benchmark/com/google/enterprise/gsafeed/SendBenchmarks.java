@@ -0,0 +1,174 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Benchmarks of {@link GsaFeedFileSender}: building and writing the
+ * multipart message, and sending it to a mock GSA on the loopback
+ * interface.
+ */
+class SendBenchmarks {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] SUCCESS = "Success".getBytes(UTF_8);
+
+  private SendBenchmarks() {
+  }
+
+  static List<Benchmark> all() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    for (boolean useCompression : new boolean[] { false, true }) {
+      benchmarks.add(new BuildMessage(100, false, useCompression));
+      benchmarks.add(new BuildMessage(100, true, useCompression));
+    }
+    benchmarks.add(new SendLoopback(100));
+    return benchmarks;
+  }
+
+  /** Reads the request body and discards it. */
+  private static class DiscardingTransport implements FeedTransport {
+    @Override
+    public Response post(URL url, Map<String, String> headers,
+        long contentLength, RequestBody body) throws IOException {
+      body.writeTo(new OutputStream() {
+          @Override
+          public void write(int b) {
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+          }
+        });
+      return new Response(200, SUCCESS);
+    }
+  }
+
+  /** Replies Success to every request. */
+  private static class SuccessHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+      ex.sendResponseHeaders(200, SUCCESS.length);
+      ex.getResponseBody().write(SUCCESS);
+      ex.close();
+    }
+  }
+
+  /**
+   * Sends a feed, either as a String or as a Gsafeed object, to a
+   * transport that discards it. This measures building the multipart
+   * message, including marshalling and compression, without the
+   * network.
+   */
+  private static class BuildMessage extends Benchmark {
+    private final int records;
+    private final boolean marshal;
+    private final boolean useCompression;
+    private GsaFeedFileSender sender;
+    private Gsafeed feed;
+    private String xml;
+
+    BuildMessage(int records, boolean marshal, boolean useCompression) {
+      super(marshal ? "buildMessageFromGsafeed" : "buildMessageFromString",
+          "records=" + records + ",compression=" + useCompression);
+      this.records = records;
+      this.marshal = marshal;
+      this.useCompression = useCompression;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      URL url = new URL("http://localhost/xmlfeed");
+      sender = new GsaFeedFileSender(url, url, UTF_8);
+      sender.setTransport(new DiscardingTransport());
+      feed = FeedBenchmarks.createGsafeed(records, 10, 0);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new GsafeedHelper().marshal(feed, out);
+      xml = new String(out.toByteArray(), UTF_8);
+    }
+
+    @Override
+    Object run() throws Exception {
+      if (marshal) {
+        sender.sendGsaFeed(feed, useCompression);
+      } else {
+        sender.sendGsaFeed("benchmark", "incremental", xml, useCompression);
+      }
+      return sender;
+    }
+  }
+
+  /** Sends a feed to a mock GSA on the loopback interface. */
+  private static class SendLoopback extends Benchmark {
+    private final int records;
+    private ExecutorService executor;
+    private HttpServer server;
+    private GsaFeedFileSender sender;
+    private String xml;
+
+    SendLoopback(int records) {
+      super("sendLoopback", "records=" + records);
+      this.records = records;
+    }
+
+    @Override
+    void setUp() throws Exception {
+      // Otherwise the server's separate writes of the response headers
+      // and body wait on delayed ACKs from kept-alive clients.
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      executor = Executors.newSingleThreadExecutor();
+      server = HttpServer.create(
+          new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+      server.setExecutor(executor);
+      server.createContext("/xmlfeed", new SuccessHandler());
+      server.start();
+      URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+          + "/xmlfeed");
+      sender = new GsaFeedFileSender(url, url, UTF_8);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new GsafeedHelper().marshal(
+          FeedBenchmarks.createGsafeed(records, 10, 0), out);
+      xml = new String(out.toByteArray(), UTF_8);
+    }
+
+    @Override
+    Object run() throws Exception {
+      sender.sendGsaFeed("benchmark", "incremental", xml, false);
+      return sender;
+    }
+
+    @Override
+    void tearDown() {
+      server.stop(0);
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Compares sending small feeds over kept-alive connections with
+ * opening a new connection for every feed, against a local HTTP and
+ * HTTPS server that replies immediately.
+ *
+ * <p>Usage: {@code ant benchmark -Dbenchmark.class=TransportBenchmark
+ *     -Dbenchmark.args="[requests]"}
+ */
+public class TransportBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Replies Success, and records the client ports used. */
+  private static class SuccessHandler implements HttpHandler {
+    final Set<Integer> clientPorts = new HashSet<Integer>();
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      synchronized (this) {
+        clientPorts.add(ex.getRemoteAddress().getPort());
+      }
+      IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+      byte[] response = "Success".getBytes(UTF_8);
+      ex.sendResponseHeaders(200, response.length);
+      ex.getResponseBody().write(response);
+      ex.close();
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+    Logger.getLogger(GsaFeedFileSender.class.getName()).setLevel(Level.WARNING);
+    useTestKeystores();
+    // Otherwise the server's separate writes of the response headers and
+    // body wait on delayed ACKs from kept-alive clients.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+
+    StringBuilder feed = new StringBuilder("<gsafeed><group>");
+    for (int i = 0; i < 20; i++) {
+      feed.append("<record url=\"http://example.com/").append(i)
+          .append("\" mimetype=\"text/plain\"/>");
+    }
+    String xml = feed.append("</group></gsafeed>").toString();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    HttpServer http = HttpServer.create(new InetSocketAddress(0), 0);
+    HttpsServer https = HttpsServer.create(new InetSocketAddress(0), 0);
+    https.setHttpsConfigurator(new HttpsConfigurator(SSLContext.getDefault()));
+    try {
+      for (HttpServer server : new HttpServer[] { http, https }) {
+        server.setExecutor(executor);
+        server.start();
+        String scheme = (server == https) ? "https" : "http";
+        URL url = new URL(scheme + "://localhost:"
+            + server.getAddress().getPort() + "/xmlfeed");
+        for (boolean keepAlive : new boolean[] { false, true }) {
+          SuccessHandler handler = new SuccessHandler();
+          server.createContext("/xmlfeed", handler);
+          HttpFeedTransport transport = new HttpFeedTransport();
+          transport.setKeepAlive(keepAlive);
+          GsaFeedFileSender sender = new GsaFeedFileSender(url, url, UTF_8);
+          sender.setTransport(transport);
+
+          // Warm up, then measure.
+          send(sender, xml, requests / 10);
+          handler.clientPorts.clear();
+          long start = System.nanoTime();
+          send(sender, xml, requests);
+          long elapsed = System.nanoTime() - start;
+          System.out.printf("%-5s %-13s %6d requests %8.1f ms %8.1f us/request"
+              + " %6d connections%n", scheme,
+              keepAlive ? "keep-alive" : "per-request", requests,
+              elapsed / 1e6, elapsed / 1e3 / requests,
+              handler.clientPorts.size());
+          server.removeContext("/xmlfeed");
+        }
+      }
+    } finally {
+      http.stop(0);
+      https.stop(0);
+      executor.shutdown();
+    }
+  }
+
+  private static void send(GsaFeedFileSender sender, String xml, int count)
+      throws IOException {
+    for (int i = 0; i < count; i++) {
+      sender.sendGsaFeed("benchmark", "incremental", xml, false);
+    }
+  }
+
+  /** Trusts the self-signed certificate used by the tests. */
+  private static void useTestKeystores() {
+    System.setProperty("javax.net.ssl.keyStore",
+        TransportBenchmark.class.getResource("/test-keys.jks").getPath());
+    System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+    System.setProperty("javax.net.ssl.trustStore",
+        TransportBenchmark.class.getResource("/test-cacerts.jks").getPath());
+    System.setProperty("javax.net.ssl.trustStorePassword", "changeit");
+  }
+}
@@ -0,0 +1,361 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, compact copy of an {@link Acl}, for holding many
+ * acls with many principals in memory. Each principal takes one byte
+ * for its scope, access, case sensitivity and principal type, and two
+ * indexes into a table of the acl's distinct namespaces and names,
+ * rather than a Principal object.
+ *
+ * <p>A view can be converted back to an Acl with {@link #toAcl}, and
+ * written to a feed with {@link GsafeedWriter#write(AclView)}, which
+ * produces the same output as writing the Acl, without using JAXB.
+ */
+public final class AclView {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int INDENT = 4;
+
+  /*
+   * Each principal's flags hold four two-bit fields, each either 0
+   * for null or one more than the ordinal of the enum value.
+   */
+  private static final int SCOPE_SHIFT = 0;
+  private static final int ACCESS_SHIFT = 2;
+  private static final int CASE_SHIFT = 4;
+  private static final int TYPE_SHIFT = 6;
+  private static final Principal.Scope[] SCOPES =
+      Principal.Scope.values();
+  private static final Principal.Access[] ACCESSES =
+      Principal.Access.values();
+  private static final Principal.CaseSensitivityType[] CASE_TYPES =
+      Principal.CaseSensitivityType.values();
+  private static final Principal.PrincipalType[] PRINCIPAL_TYPES =
+      Principal.PrincipalType.values();
+
+  static {
+    for (Object[] values : new Object[][] {
+        SCOPES, ACCESSES, CASE_TYPES, PRINCIPAL_TYPES }) {
+      if (values.length > 3) {
+        throw new AssertionError("Too many values to pack in two bits");
+      }
+    }
+  }
+
+  private final String url;
+  private final Acl.InheritanceType inheritanceType;
+  private final String inheritFrom;
+  private final byte[] flags;
+  /** Indexes into strings, or -1 for null. */
+  private final int[] namespaces;
+  private final int[] names;
+  private final String[] strings;
+
+  private AclView(Acl acl, StringInterner interner) {
+    url = intern(interner, acl.getUrl());
+    inheritanceType = acl.getInheritanceType();
+    inheritFrom = intern(interner, acl.getInheritFrom());
+    List<Principal> principals = acl.getPrincipal();
+    int size = principals.size();
+    flags = new byte[size];
+    namespaces = new int[size];
+    names = new int[size];
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    List<String> table = new ArrayList<String>();
+    for (int i = 0; i < size; i++) {
+      Principal principal = principals.get(i);
+      // The fields, rather than the getters, which supply a default
+      // namespace that is not marshalled.
+      flags[i] = (byte) (pack(principal.scope, SCOPE_SHIFT)
+          | pack(principal.access, ACCESS_SHIFT)
+          | pack(principal.caseSensitivityType, CASE_SHIFT)
+          | pack(principal.principalType, TYPE_SHIFT));
+      namespaces[i] = index(principal.namespace, indexes, table, interner);
+      names[i] = index(principal.value, indexes, table, interner);
+    }
+    strings = table.toArray(new String[table.size()]);
+  }
+
+  /**
+   * Creates a view of the acl. Later changes to the acl are not
+   * reflected in the view.
+   *
+   * @param acl the acl
+   * @return the view
+   */
+  public static AclView fromAcl(Acl acl) {
+    return new AclView(acl, null);
+  }
+
+  /**
+   * Creates a view of the acl, passing its strings through the given
+   * interner so that views of many acls can share them.
+   *
+   * @param acl the acl
+   * @param interner the interner, or null
+   * @return the view
+   */
+  public static AclView fromAcl(Acl acl, StringInterner interner) {
+    return new AclView(acl, interner);
+  }
+
+  private static String intern(StringInterner interner, String value) {
+    return (interner == null) ? value : interner.intern(value);
+  }
+
+  private static int pack(Enum<?> value, int shift) {
+    return (value == null) ? 0 : (value.ordinal() + 1) << shift;
+  }
+
+  private static int index(String value, Map<String, Integer> indexes,
+      List<String> table, StringInterner interner) {
+    if (value == null) {
+      return -1;
+    }
+    Integer index = indexes.get(value);
+    if (index == null) {
+      index = table.size();
+      indexes.put(value, index);
+      table.add(intern(interner, value));
+    }
+    return index;
+  }
+
+  private static <T> T unpack(T[] values, int flags, int shift) {
+    int value = (flags >> shift) & 3;
+    return (value == 0) ? null : values[value - 1];
+  }
+
+  /** Creates a new Acl with the same attributes and principals. */
+  public Acl toAcl() {
+    Acl acl = new Acl()
+        .setUrl(url)
+        .setInheritanceType(inheritanceType)
+        .setInheritFrom(inheritFrom);
+    List<Principal> principals = acl.getPrincipal();
+    for (int i = 0; i < flags.length; i++) {
+      principals.add(getPrincipal(i));
+    }
+    return acl;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public Acl.InheritanceType getInheritanceType() {
+    return inheritanceType;
+  }
+
+  public String getInheritFrom() {
+    return inheritFrom;
+  }
+
+  /** Returns the number of principals. */
+  public int size() {
+    return flags.length;
+  }
+
+  /**
+   * Creates a new Principal for the principal at the given index.
+   *
+   * @throws IndexOutOfBoundsException if the index is not less than
+   *     {@link #size}
+   */
+  public Principal getPrincipal(int index) {
+    // Scope and access may be null, which their setters reject.
+    Principal principal = new Principal();
+    principal.scope = getScope(index);
+    principal.access = getAccess(index);
+    principal.namespace = string(namespaces[index]);
+    principal.caseSensitivityType = getCaseSensitivityType(index);
+    principal.principalType = getPrincipalType(index);
+    principal.value = getName(index);
+    return principal;
+  }
+
+  public Principal.Scope getScope(int index) {
+    return unpack(SCOPES, flags[index], SCOPE_SHIFT);
+  }
+
+  public Principal.Access getAccess(int index) {
+    return unpack(ACCESSES, flags[index], ACCESS_SHIFT);
+  }
+
+  /**
+   * Returns the namespace of the principal, which is "Default" if it
+   * was not set, as for {@link Principal#getNamespace}.
+   */
+  public String getNamespace(int index) {
+    int namespace = namespaces[index];
+    return (namespace == -1) ? "Default" : strings[namespace];
+  }
+
+  public Principal.CaseSensitivityType getCaseSensitivityType(int index) {
+    return unpack(CASE_TYPES, flags[index], CASE_SHIFT);
+  }
+
+  public Principal.PrincipalType getPrincipalType(int index) {
+    return unpack(PRINCIPAL_TYPES, flags[index], TYPE_SHIFT);
+  }
+
+  /** Returns the name of the principal, its element's text. */
+  public String getName(int index) {
+    return string(names[index]);
+  }
+
+  private String string(int index) {
+    return (index == -1) ? null : strings[index];
+  }
+
+  /**
+   * Writes the acl element as {@link FeedWriter} would marshal the
+   * Acl, starting with a newline and indented to the given depth, and
+   * without a trailing newline.
+   */
+  byte[] marshal(int depth) throws IOException {
+    ByteArrayOutputStream buffer =
+        new ByteArrayOutputStream(128 + 64 * flags.length);
+    Writer out = new OutputStreamWriter(buffer, UTF_8);
+    newline(out, depth);
+    out.write("<acl");
+    attribute(out, "url", url);
+    attribute(out, "inheritance-type", inheritanceType);
+    attribute(out, "inherit-from", inheritFrom);
+    if (flags.length == 0) {
+      out.write("/>");
+    } else {
+      out.write('>');
+      for (int i = 0; i < flags.length; i++) {
+        newline(out, depth + 1);
+        out.write("<principal");
+        attribute(out, "scope", getScope(i));
+        attribute(out, "access", getAccess(i));
+        attribute(out, "namespace", string(namespaces[i]));
+        attribute(out, "case-sensitivity-type", getCaseSensitivityType(i));
+        attribute(out, "principal-type", getPrincipalType(i));
+        String name = getName(i);
+        if (name == null) {
+          out.write("/>");
+        } else {
+          out.write('>');
+          text(out, name);
+          out.write("</principal>");
+        }
+      }
+      newline(out, depth);
+      out.write("</acl>");
+    }
+    out.close();
+    return buffer.toByteArray();
+  }
+
+  private static void newline(Writer out, int depth) throws IOException {
+    out.write('\n');
+    for (int i = 0; i < depth * INDENT; i++) {
+      out.write(' ');
+    }
+  }
+
+  /** Writes an attribute, escaped as JAXB does, unless it is null. */
+  private static void attribute(Writer out, String name, Object value)
+      throws IOException {
+    if (value == null) {
+      return;
+    }
+    out.write(' ');
+    out.write(name);
+    out.write("=\"");
+    String s = value.toString();
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      String escaped;
+      switch (s.charAt(i)) {
+        case '&':
+          escaped = "&amp;";
+          break;
+        case '<':
+          escaped = "&lt;";
+          break;
+        case '>':
+          escaped = "&gt;";
+          break;
+        case '"':
+          escaped = "&quot;";
+          break;
+        case '\t':
+          escaped = "&#x9;";
+          break;
+        case '\n':
+          escaped = "&#xA;";
+          break;
+        case '\r':
+          escaped = "&#xD;";
+          break;
+        default:
+          continue;
+      }
+      out.write(s, start, i - start);
+      out.write(escaped);
+      start = i + 1;
+    }
+    out.write(s, start, s.length() - start);
+    out.write('"');
+  }
+
+  /** Writes element text, escaped as JAXB does. */
+  private static void text(Writer out, String s) throws IOException {
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      String escaped;
+      switch (s.charAt(i)) {
+        case '&':
+          escaped = "&amp;";
+          break;
+        case '<':
+          escaped = "&lt;";
+          break;
+        case '>':
+          escaped = "&gt;";
+          break;
+        case '\r':
+          escaped = "&#xD;";
+          break;
+        default:
+          continue;
+      }
+      out.write(s, start, i - start);
+      out.write(escaped);
+      start = i + 1;
+    }
+    out.write(s, start, s.length() - start);
+  }
+
+  @Override
+  public String toString() {
+    return "AclView(url=" + url + ", principals=" + flags.length + ")";
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes base64 text that arrives in pieces. Like {@code
+ * DatatypeConverter.parseBase64Binary}, characters outside the base64
+ * alphabet, such as line breaks, are ignored.
+ */
+class Base64Decoder {
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+    String alphabet =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
+  /** The sextets read since the last complete group of four. */
+  private int bits;
+  private int count;
+
+  /**
+   * Returns the largest number of bytes that decoding the given
+   * number of characters can produce.
+   */
+  static int maxDecodedLength(int chars) {
+    return (chars / 4 + 1) * 3;
+  }
+
+  /**
+   * Decodes characters into the output array, which must have room
+   * for {@link #maxDecodedLength} bytes.
+   *
+   * @return the number of bytes written
+   */
+  int decode(char[] in, int off, int len, byte[] out, int outOff) {
+    int o = outOff;
+    for (int i = off; i < off + len; i++) {
+      char c = in[i];
+      if (c == '=') {
+        o += finish(out, o);
+        continue;
+      }
+      int value = (c < 128) ? VALUES[c] : -1;
+      if (value < 0) {
+        continue;
+      }
+      bits = (bits << 6) | value;
+      if (++count == 4) {
+        out[o++] = (byte) (bits >> 16);
+        out[o++] = (byte) (bits >> 8);
+        out[o++] = (byte) bits;
+        bits = 0;
+        count = 0;
+      }
+    }
+    return o - outOff;
+  }
+
+  /**
+   * Writes the bytes of an incomplete final group, which had its
+   * padding left off, and starts over.
+   *
+   * @return the number of bytes written, up to 2
+   */
+  int finish(byte[] out, int outOff) {
+    int written = 0;
+    if (count == 2) {
+      out[outOff] = (byte) (bits >> 4);
+      written = 1;
+    } else if (count == 3) {
+      out[outOff] = (byte) (bits >> 10);
+      out[outOff + 1] = (byte) (bits >> 2);
+      written = 2;
+    }
+    bits = 0;
+    count = 0;
+    return written;
+  }
+
+  /** Decodes a string as it is read. */
+  static class DecodingInputStream extends InputStream {
+    private final String text;
+    private final Base64Decoder decoder = new Base64Decoder();
+    private final char[] chars = new char[4096];
+    private final byte[] buffer = new byte[maxDecodedLength(chars.length)];
+    private int position;
+    private int limit;
+    private int textPosition;
+    private boolean finished;
+
+    DecodingInputStream(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position == limit) {
+        if (finished) {
+          return -1;
+        }
+        fill();
+      }
+      int count = Math.min(len, limit - position);
+      System.arraycopy(buffer, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    private void fill() {
+      position = 0;
+      int end = Math.min(text.length(), textPosition + chars.length);
+      if (textPosition == end) {
+        limit = decoder.finish(buffer, 0);
+        finished = true;
+        return;
+      }
+      text.getChars(textPosition, end, chars, 0);
+      limit = decoder.decode(chars, 0, end - textPosition, buffer, 0);
+      textPosition = end;
+    }
+  }
+}
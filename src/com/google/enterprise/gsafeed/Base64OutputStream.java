@@ -0,0 +1,119 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the bytes written to it as base64, without line breaks, the
+ * same as {@code DatatypeConverter.printBase64Binary}. {@link #finish}
+ * writes the final padded block without closing the underlying
+ * stream.
+ */
+class Base64OutputStream extends FilterOutputStream {
+  private static final byte[] ALPHABET =
+      ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/")
+      .getBytes();
+
+  /** The encoded bytes, written when full. A multiple of 4 bytes. */
+  private final byte[] buffer = new byte[4096];
+  private int buffered;
+  /** Up to two bytes not yet encoded. */
+  private final byte[] held = new byte[2];
+  private int heldCount;
+  private boolean finished;
+
+  Base64OutputStream(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (finished) {
+      throw new IOException("The stream has been finished");
+    }
+    int end = off + len;
+    int i = off;
+    // Complete a block with the held bytes.
+    while (heldCount > 0 && i < end) {
+      if (heldCount == 2) {
+        encode(held[0], held[1], b[i++]);
+        heldCount = 0;
+      } else {
+        held[heldCount++] = b[i++];
+      }
+    }
+    for (; i + 3 <= end; i += 3) {
+      encode(b[i], b[i + 1], b[i + 2]);
+    }
+    while (i < end) {
+      held[heldCount++] = b[i++];
+    }
+  }
+
+  private void encode(byte b0, byte b1, byte b2) throws IOException {
+    if (buffered == buffer.length) {
+      out.write(buffer, 0, buffered);
+      buffered = 0;
+    }
+    int bits = ((b0 & 0xff) << 16) | ((b1 & 0xff) << 8) | (b2 & 0xff);
+    buffer[buffered++] = ALPHABET[bits >>> 18];
+    buffer[buffered++] = ALPHABET[(bits >>> 12) & 0x3f];
+    buffer[buffered++] = ALPHABET[(bits >>> 6) & 0x3f];
+    buffer[buffered++] = ALPHABET[bits & 0x3f];
+  }
+
+  /**
+   * Writes any remaining bytes with padding. The underlying stream is
+   * not flushed or closed.
+   */
+  void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (heldCount > 0) {
+      byte b1 = (heldCount == 2) ? held[1] : 0;
+      encode(held[0], b1, (byte) 0);
+      buffer[buffered - 1] = '=';
+      if (heldCount == 1) {
+        buffer[buffered - 2] = '=';
+      }
+    }
+    out.write(buffer, 0, buffered);
+    buffered = 0;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // Only whole blocks are flushed; held bytes wait for finish.
+    out.write(buffer, 0, buffered);
+    buffered = 0;
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    out.close();
+  }
+}
@@ -14,12 +14,18 @@
 
 package com.google.enterprise.gsafeed;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.InflaterInputStream;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlEnum;
 import javax.xml.bind.annotation.XmlEnumValue;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
 import javax.xml.bind.annotation.XmlValue;
 
@@ -32,11 +38,14 @@ import javax.xml.bind.annotation.XmlValue;
 })
 @XmlRootElement(name = "content")
 public class Content {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
 
   @XmlAttribute(name = "encoding")
   protected Encoding encoding;
   @XmlValue
   protected String value;
+  @XmlTransient
+  private ContentSource source;
 
   /** Encoding types. */
   @XmlType(name = "content-encoding")
@@ -94,20 +103,91 @@ public class Content {
   /**
    * Gets the value of the value property.
    *
-   * @return possible object is {@link String}
+   * @return possible object is {@link String}, or null if the
+   *     content has a source
    */
   public String getvalue() {
-    return value;
+    return (source == null) ? value : null;
   }
 
   /**
-   * Sets the value of the value property.
+   * Sets the value of the value property, replacing any source.
    *
    * @param value allowed object is {@link String}
    * @return this object
    */
   public Content setvalue(String value) {
     this.value = value;
+    this.source = null;
     return this;
   }
+
+  /**
+   * Gets the source of the content.
+   *
+   * @return the source, or null if the content is held in the value
+   */
+  public ContentSource getSource() {
+    return source;
+  }
+
+  /**
+   * Sets the source of the content, replacing any value. The content
+   * is read from the source, encoded in blocks, and written while the
+   * feed is marshalled by {@link GsafeedHelper}, {@link
+   * GsafeedWriter} or {@link GsaFeedFileSender}, so the encoded
+   * content is never held in memory. The source supplies the
+   * unencoded bytes: the raw data for {@code BASE64_BINARY} and
+   * {@code BASE64_COMPRESSED}, or UTF-8 text if there is no encoding.
+   *
+   * @param source the source of the content
+   * @return this object
+   */
+  public Content setSource(ContentSource source) {
+    if (source == null) {
+      throw new NullPointerException("source must not be null");
+    }
+    this.source = source;
+    this.value = StreamedContentOutputStream.newMarker();
+    return this;
+  }
+
+  /**
+   * Opens a stream over the decoded content: base64 is decoded, and
+   * {@code BASE64_COMPRESSED} content is also inflated, as the stream
+   * is read. Content without an encoding is returned as UTF-8. This
+   * works for content held in the value, content from a source, and
+   * content that was spilled to a file when the feed was read (see
+   * {@link GsafeedHelper#setContentSpillThreshold}).
+   *
+   * @return a new stream, which the caller closes
+   * @throws IOException if the source cannot be opened
+   */
+  public InputStream openDecodedStream() throws IOException {
+    if (source != null) {
+      return source.openStream();
+    }
+    if (value == null) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    if (encoding == null) {
+      return new ByteArrayInputStream(value.getBytes(UTF_8));
+    }
+    InputStream decoded = new Base64Decoder.DecodingInputStream(value);
+    if (encoding == Encoding.BASE64_COMPRESSED) {
+      decoded = new InflaterInputStream(decoded);
+    }
+    return decoded;
+  }
+
+  /**
+   * Deletes the temporary file holding this content, if it was
+   * spilled to a file when the feed was read. The content cannot be
+   * read afterwards.
+   */
+  public void deleteSpillFile() {
+    if (source instanceof ContentSpiller.SpilledContent) {
+      ((ContentSpiller.SpilledContent) source).delete();
+    }
+  }
 }
@@ -0,0 +1,48 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Supplies the unencoded body of a {@link Content} element that is
+ * encoded while the feed is marshalled, rather than held in memory.
+ * {@link #openStream} is called each time the content is marshalled,
+ * and must return the same bytes each time.
+ */
+public abstract class ContentSource {
+  /**
+   * Opens a new stream over the content. The caller closes it.
+   */
+  public abstract InputStream openStream() throws IOException;
+
+  /** Returns a source that reads the given file. */
+  public static ContentSource fromFile(final File file) {
+    return new ContentSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return new FileInputStream(file);
+      }
+
+      @Override
+      public String toString() {
+        return file.toString();
+      }
+    };
+  }
+}
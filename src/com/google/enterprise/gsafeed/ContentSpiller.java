@@ -0,0 +1,275 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * Moves the bodies of large content elements to temporary files
+ * while a feed is unmarshalled. Events are passed on to the next
+ * handler unchanged, except that the text of a content element
+ * longer than the threshold is written to a file instead, and the
+ * unmarshalled {@link Content} reads it from there.
+ *
+ * <p>Base64 content is decoded as it is written, so the file holds
+ * the raw bytes, still deflated for base64compressed content. Other
+ * content is written as UTF-8.
+ */
+class ContentSpiller extends XMLFilterImpl {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final int threshold;
+  private final File directory;
+
+  private boolean inContent;
+  private Content.Encoding encoding;
+  private final StringBuilder text = new StringBuilder();
+  private File file;
+  private OutputStream fileOut;
+  private Writer textOut;
+  private Base64Decoder decoder;
+  private byte[] decoded = new byte[0];
+  /** A finished file, waiting for its Content to be unmarshalled. */
+  private SpilledContent pending;
+  /** Every file attached to a Content. */
+  private final List<SpilledContent> spilled = new ArrayList<SpilledContent>();
+
+  private final Unmarshaller.Listener listener = new Unmarshaller.Listener() {
+      @Override
+      public void afterUnmarshal(Object target, Object parent) {
+        if (pending != null && target instanceof Content) {
+          ((Content) target).setSource(pending);
+          spilled.add(pending);
+          pending = null;
+        }
+      }
+    };
+
+  /**
+   * @param next the handler to pass events to
+   * @param threshold the largest number of characters of content
+   *     kept in memory
+   * @param directory the directory for the files, or null for the
+   *     default temporary directory
+   */
+  ContentSpiller(ContentHandler next, int threshold, File directory) {
+    this.threshold = threshold;
+    this.directory = directory;
+    setContentHandler(next);
+  }
+
+  /** Returns the listener to set on the unmarshaller. */
+  Unmarshaller.Listener getListener() {
+    return listener;
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName,
+      Attributes atts) throws SAXException {
+    if ("content".equals(getName(localName, qName))) {
+      inContent = true;
+      text.setLength(0);
+      String value = atts.getValue("encoding");
+      try {
+        encoding = Content.Encoding.fromString(value);
+      } catch (IllegalArgumentException e) {
+        // Unmarshalled as no encoding; keep the text as it is.
+        encoding = null;
+      }
+    }
+    super.startElement(uri, localName, qName, atts);
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length)
+      throws SAXException {
+    if (!inContent) {
+      super.characters(ch, start, length);
+      return;
+    }
+    try {
+      if (fileOut == null) {
+        if (text.length() + length <= threshold) {
+          text.append(ch, start, length);
+          return;
+        }
+        startFile();
+        char[] held = new char[text.length()];
+        text.getChars(0, held.length, held, 0);
+        text.setLength(0);
+        write(held, 0, held.length);
+      }
+      write(ch, start, length);
+    } catch (IOException e) {
+      abort();
+      throw new SAXException("Unable to write content to " + file, e);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName)
+      throws SAXException {
+    if (!inContent) {
+      super.endElement(uri, localName, qName);
+      return;
+    }
+    inContent = false;
+    if (fileOut == null) {
+      if (text.length() > 0) {
+        char[] held = new char[text.length()];
+        text.getChars(0, held.length, held, 0);
+        text.setLength(0);
+        super.characters(held, 0, held.length);
+      }
+      super.endElement(uri, localName, qName);
+      return;
+    }
+    try {
+      finishFile();
+    } catch (IOException e) {
+      abort();
+      throw new SAXException("Unable to write content to " + file, e);
+    }
+    super.endElement(uri, localName, qName);
+    if (pending != null) {
+      // The content was not unmarshalled, so nothing can read the file.
+      pending.delete();
+      pending = null;
+    }
+  }
+
+  private void startFile() throws IOException {
+    file = File.createTempFile("gsafeed-content", ".tmp", directory);
+    fileOut = new BufferedOutputStream(new FileOutputStream(file));
+    if (encoding == null) {
+      textOut = new OutputStreamWriter(fileOut, UTF_8);
+    } else {
+      decoder = new Base64Decoder();
+    }
+  }
+
+  private void write(char[] ch, int start, int length) throws IOException {
+    if (textOut != null) {
+      textOut.write(ch, start, length);
+    } else {
+      int maxLength = Base64Decoder.maxDecodedLength(length);
+      if (decoded.length < maxLength) {
+        decoded = new byte[Math.max(maxLength, 8192)];
+      }
+      fileOut.write(decoded, 0, decoder.decode(ch, start, length, decoded, 0));
+    }
+  }
+
+  private void finishFile() throws IOException {
+    if (textOut != null) {
+      textOut.close();
+    } else {
+      fileOut.write(decoded, 0, decoder.finish(decoded, 0));
+      fileOut.close();
+    }
+    pending = new SpilledContent(file, encoding);
+    file = null;
+    fileOut = null;
+    textOut = null;
+    decoder = null;
+  }
+
+  /** Deletes any file being written, after a failure. */
+  void abort() {
+    if (fileOut != null) {
+      try {
+        fileOut.close();
+      } catch (IOException e) {
+        // Deleting the file anyway.
+      }
+      file.delete();
+      file = null;
+      fileOut = null;
+      textOut = null;
+    }
+    if (pending != null) {
+      pending.delete();
+      pending = null;
+    }
+  }
+
+  /**
+   * Deletes every file, including those attached to Contents, when
+   * the unmarshalled feed will not be returned.
+   */
+  void deleteAll() {
+    abort();
+    for (SpilledContent content : spilled) {
+      content.delete();
+    }
+    spilled.clear();
+  }
+
+  private static String getName(String localName, String qName) {
+    return (localName == null || localName.isEmpty()) ? qName : localName;
+  }
+
+  /** Reads spilled content back, decoding it as it is read. */
+  static class SpilledContent extends ContentSource {
+    private final File file;
+    private final Content.Encoding encoding;
+
+    SpilledContent(File file, Content.Encoding encoding) {
+      this.file = file;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      if (encoding == Content.Encoding.BASE64_COMPRESSED) {
+        in = new InflaterInputStream(in);
+      }
+      return in;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    boolean delete() {
+      return file.delete();
+    }
+
+    @Override
+    public String toString() {
+      return file.toString();
+    }
+  }
+}
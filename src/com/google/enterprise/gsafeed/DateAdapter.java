@@ -25,6 +25,12 @@ import javax.xml.bind.annotation.adapters.XmlAdapter;
 /**
  * Converts between XML string representation of dates in RFC 822
  * format and java.util.Date objects during marshal/unmarshal.
+ *
+ * <p>Dates from 1600 through 9999 in the exact form written by
+ * {@link #FORMAT} are formatted and parsed directly, and recently
+ * used values are cached, since many records in a feed share a
+ * timestamp. Anything else goes through SimpleDateFormat, so the
+ * results are always the same as SimpleDateFormat's.
  */
 class DateAdapter extends XmlAdapter<String, Date> {
   public static final String FORMAT = "EEE, dd MMM yyyy HH:mm:ss z";
@@ -41,12 +47,68 @@ class DateAdapter extends XmlAdapter<String, Date> {
         }
       };
 
+  private static final String[] DAYS =
+      { "Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed" };
+  private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr",
+      "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+  /** The length of "Tue, 06 Nov 2007 12:45:26 GMT". */
+  private static final int LENGTH = 29;
+
+  /** 1600-01-01T00:00:00Z, after the Gregorian cutover. */
+  private static final long MIN_SECONDS = -11676096000L;
+  /** 9999-12-31T23:59:59Z, the last date with a four digit year. */
+  private static final long MAX_SECONDS = 253402300799L;
+  private static final long SECONDS_PER_DAY = 86400;
+
+  /*
+   * The caches are direct-mapped. Entries are immutable, so a thread
+   * that reads an entry written by another sees all of it; a lost
+   * update only costs a miss.
+   */
+  private static final int CACHE_SIZE = 256;
+  private static final Formatted[] formatted = new Formatted[CACHE_SIZE];
+  private static final Parsed[] parsed = new Parsed[CACHE_SIZE];
+
+  private static class Formatted {
+    final long seconds;
+    final String value;
+
+    Formatted(long seconds, String value) {
+      this.seconds = seconds;
+      this.value = value;
+    }
+  }
+
+  private static class Parsed {
+    final String value;
+    final long millis;
+
+    Parsed(String value, long millis) {
+      this.value = value;
+      this.millis = millis;
+    }
+  }
+
   @Override
   public String marshal(Date value) {
     if (value == null) {
       return null;
     }
-    return rfc822Format.get().format(value);
+    long millis = value.getTime();
+    long seconds = millis / 1000;
+    if (millis % 1000 < 0) {
+      seconds--;
+    }
+    if (seconds < MIN_SECONDS || seconds > MAX_SECONDS) {
+      return rfc822Format.get().format(value);
+    }
+    int index = (int) (seconds ^ (seconds >>> 32)) & (CACHE_SIZE - 1);
+    Formatted entry = formatted[index];
+    if (entry == null || entry.seconds != seconds) {
+      entry = new Formatted(seconds, format(seconds));
+      formatted[index] = entry;
+    }
+    return entry.value;
   }
 
   @Override
@@ -54,6 +116,160 @@ class DateAdapter extends XmlAdapter<String, Date> {
     if (value == null) {
       return null;
     }
-    return rfc822Format.get().parse(value);
+    int index = value.hashCode() & (CACHE_SIZE - 1);
+    Parsed entry = parsed[index];
+    if (entry == null || !entry.value.equals(value)) {
+      long seconds = parse(value);
+      if (seconds == Long.MIN_VALUE) {
+        return rfc822Format.get().parse(value);
+      }
+      entry = new Parsed(value, seconds * 1000);
+      parsed[index] = entry;
+    }
+    return new Date(entry.millis);
+  }
+
+  /** Formats a time between MIN_SECONDS and MAX_SECONDS. */
+  private static String format(long seconds) {
+    long days = floorDiv(seconds, SECONDS_PER_DAY);
+    int secondOfDay = (int) (seconds - days * SECONDS_PER_DAY);
+    int[] date = toCivil(days);
+    char[] buf = new char[LENGTH];
+    DAYS[(int) floorMod(days, 7)].getChars(0, 3, buf, 0);
+    buf[3] = ',';
+    buf[4] = ' ';
+    twoDigits(buf, 5, date[2]);
+    buf[7] = ' ';
+    MONTHS[date[1] - 1].getChars(0, 3, buf, 8);
+    buf[11] = ' ';
+    twoDigits(buf, 12, date[0] / 100);
+    twoDigits(buf, 14, date[0] % 100);
+    buf[16] = ' ';
+    twoDigits(buf, 17, secondOfDay / 3600);
+    buf[19] = ':';
+    twoDigits(buf, 20, secondOfDay / 60 % 60);
+    buf[22] = ':';
+    twoDigits(buf, 23, secondOfDay % 60);
+    " GMT".getChars(0, 4, buf, 25);
+    return new String(buf);
+  }
+
+  /**
+   * Parses a date in exactly the form that {@link #format} writes.
+   *
+   * @return the seconds since the epoch, or Long.MIN_VALUE if the
+   *     value must be parsed by SimpleDateFormat
+   */
+  private static long parse(String value) {
+    if (value.length() != LENGTH
+        || value.charAt(3) != ',' || value.charAt(4) != ' '
+        || value.charAt(7) != ' ' || value.charAt(11) != ' '
+        || value.charAt(16) != ' ' || value.charAt(19) != ':'
+        || value.charAt(22) != ':' || !value.endsWith(" GMT")) {
+      return Long.MIN_VALUE;
+    }
+    int day = digits(value, 5, 2);
+    int year = digits(value, 12, 4);
+    int hour = digits(value, 17, 2);
+    int minute = digits(value, 20, 2);
+    int second = digits(value, 23, 2);
+    int month = indexOf(MONTHS, value, 8) + 1;
+    if (day < 1 || year < 1600 || hour < 0 || hour > 23
+        || minute < 0 || minute > 59 || second < 0 || second > 59
+        || month < 1 || day > daysInMonth(year, month)) {
+      return Long.MIN_VALUE;
+    }
+    long days = fromCivil(year, month, day);
+    // SimpleDateFormat ignores a wrong day of the week in some cases
+    // and not others, so leave those to it.
+    if (indexOf(DAYS, value, 0) != floorMod(days, 7)) {
+      return Long.MIN_VALUE;
+    }
+    return days * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+  }
+
+  private static void twoDigits(char[] buf, int offset, int value) {
+    buf[offset] = (char) ('0' + value / 10);
+    buf[offset + 1] = (char) ('0' + value % 10);
+  }
+
+  /** Returns the value of the decimal digits, or -1. */
+  private static int digits(String value, int offset, int count) {
+    int result = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  private static int indexOf(String[] names, String value, int offset) {
+    for (int i = 0; i < names.length; i++) {
+      if (value.startsWith(names[i], offset)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        return leap ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /*
+   * The conversions between days since the epoch and proleptic
+   * Gregorian dates use years starting in March, so that the leap day
+   * is the last day of the year.
+   */
+
+  /** Returns { year, month (1-12), day (1-31) }. */
+  private static int[] toCivil(long epochDays) {
+    long z = epochDays + 719468;
+    long era = floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra =
+        (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096)
+        / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4
+        - yearOfEra / 100);
+    int mp = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+    int month = (mp < 10) ? mp + 3 : mp - 9;
+    int year = (int) (yearOfEra + era * 400) + ((month <= 2) ? 1 : 0);
+    return new int[] { year, month, day };
+  }
+
+  private static long fromCivil(int year, int month, int day) {
+    int y = (month <= 2) ? year - 1 : year;
+    long era = floorDiv(y, 400);
+    int yearOfEra = (int) (y - era * 400);
+    int dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5
+        + day - 1;
+    int dayOfEra =
+        yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    return (x % y < 0) ? q - 1 : q;
+  }
+
+  private static long floorMod(long x, long y) {
+    return x - floorDiv(x, y) * y;
   }
 }
@@ -0,0 +1,548 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.bind.JAXBException;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Compares two full feeds and writes an incremental feed holding only
+ * what changed: the records that are new or different in the new
+ * feed, and a delete record for each url that is no longer in it.
+ * Records are matched by url, and compared by a fingerprint of their
+ * attributes, acl, metadata and decoded content. Standalone acl
+ * elements are matched and compared the same way, and written if they
+ * are new or changed; there is no way to delete one in a feed, so acls
+ * that were dropped are not mentioned. Example:
+ *
+ * <pre>
+ * FeedDiff.Summary summary = new FeedDiff(helper)
+ *     .diff(oldFeed, newFeed, out);
+ * </pre>
+ *
+ * <p>Neither feed is held in memory. Both are read with {@link
+ * GsafeedHelper#unmarshalWithoutDtd(InputStream, GsafeedHandler)}
+ * and split by a hash of the url into temporary files: the url,
+ * fingerprint and mimetype of each old record, and the url,
+ * fingerprint and marshalled form of each new record. The files are
+ * then compared one pair at a time, so only the old entries of one
+ * partition are held in memory. The temporary files take about as
+ * much disk space as the new feed.
+ *
+ * <p>The output has the new feed's header, with a feedtype of
+ * "incremental" in place of "full", and one group holding the
+ * records in no particular order. A group's feedrank and pagerank are
+ * copied to those of its records that have none, and records in a
+ * group with a delete action, or with a delete action of their own,
+ * count as absent. As for the GSA, only the last record or acl with
+ * a url in a feed counts. A diff object is not thread-safe.
+ */
+public class FeedDiff {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte RECORD = 'R';
+  private static final byte ACL = 'A';
+  /** A deleted record, which is only its url. */
+  private static final byte DELETED = 'D';
+
+  private final GsafeedHelper helper;
+  private int partitions = 64;
+  private File tempDirectory;
+
+  /**
+   * @param helper the helper used to read both feeds and write the
+   *     result; its content spill settings apply while reading
+   */
+  public FeedDiff(GsafeedHelper helper) {
+    if (helper == null) {
+      throw new NullPointerException("helper must not be null");
+    }
+    this.helper = helper;
+  }
+
+  /**
+   * Sets the number of partitions the feeds are split into. Each
+   * partition of the old feed is held in memory in turn, so more
+   * partitions suit larger feeds, at the cost of more open files. The
+   * default is 64.
+   *
+   * @param partitions the number of partitions, from 1 to 4096
+   * @return this object
+   * @throws IllegalArgumentException if partitions is out of range
+   */
+  public FeedDiff setPartitions(int partitions) {
+    if (partitions < 1 || partitions > 4096) {
+      throw new IllegalArgumentException(
+          "partitions must be from 1 to 4096: " + partitions);
+    }
+    this.partitions = partitions;
+    return this;
+  }
+
+  /**
+   * Sets the directory for the temporary files, or null to use the
+   * system's default temporary directory, which is the default.
+   *
+   * @param directory the directory, or null
+   * @return this object
+   */
+  public FeedDiff setTempDirectory(File directory) {
+    this.tempDirectory = directory;
+    return this;
+  }
+
+  /**
+   * Writes an incremental feed with the differences between the old
+   * and new feeds. The streams are not closed.
+   *
+   * @param oldFeed the feed that was last sent
+   * @param newFeed the feed to send
+   * @param out the stream to write the incremental feed to
+   * @return the number of records of each kind
+   */
+  public Summary diff(InputStream oldFeed, InputStream newFeed,
+      OutputStream out) throws IOException, JAXBException,
+      ParserConfigurationException, SAXException {
+    File[] oldFiles = new File[partitions];
+    File[] newFiles = new File[partitions];
+    try {
+      for (int i = 0; i < partitions; i++) {
+        oldFiles[i] = createTempFile("old");
+        newFiles[i] = createTempFile("new");
+      }
+      OldPartitionWriter oldWriter = new OldPartitionWriter(oldFiles);
+      try {
+        helper.unmarshalWithoutDtd(oldFeed, oldWriter);
+      } finally {
+        oldWriter.close();
+      }
+      NewPartitionWriter newWriter = new NewPartitionWriter(newFiles, out);
+      try {
+        helper.unmarshalWithoutDtd(newFeed, newWriter);
+      } finally {
+        newWriter.close();
+      }
+      FeedWriter writer = newWriter.getWriter();
+      Summary summary = new Summary();
+      for (int i = 0; i < partitions; i++) {
+        compare(oldFiles[i], newFiles[i], writer, summary);
+      }
+      writer.finish();
+      return summary;
+    } finally {
+      for (File file : oldFiles) {
+        delete(file);
+      }
+      for (File file : newFiles) {
+        delete(file);
+      }
+    }
+  }
+
+  private File createTempFile(String prefix) throws IOException {
+    return File.createTempFile("gsafeed-diff-" + prefix, ".tmp",
+        tempDirectory);
+  }
+
+  private static void delete(File file) {
+    if (file != null) {
+      file.delete();
+    }
+  }
+
+  /** Compares one partition, writing the differences. */
+  private static void compare(File oldFile, File newFile, FeedWriter writer,
+      Summary summary) throws IOException, JAXBException {
+    Map<String, OldEntry> old = new HashMap<String, OldEntry>();
+    DataInputStream in = open(oldFile);
+    try {
+      while (true) {
+        byte kind;
+        try {
+          kind = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        String url = readString(in);
+        if (kind == DELETED) {
+          old.remove(key(RECORD, url));
+          continue;
+        }
+        byte[] fingerprint = readFingerprint(in);
+        String mimetype = readString(in);
+        old.put(key(kind, url), new OldEntry(fingerprint, mimetype));
+      }
+    } finally {
+      in.close();
+    }
+    // The position of the last new entry for each url, so that the
+    // earlier ones can be skipped.
+    Map<String, Integer> last = new HashMap<String, Integer>();
+    in = open(newFile);
+    try {
+      for (int position = 0; ; position++) {
+        byte kind;
+        try {
+          kind = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        String url = readString(in);
+        if (kind == DELETED) {
+          kind = RECORD;
+        } else {
+          skip(in, Fingerprint.LENGTH);
+          skip(in, in.readInt());
+        }
+        last.put(key(kind, url), position);
+      }
+    } finally {
+      in.close();
+    }
+    in = open(newFile);
+    try {
+      for (int position = 0; ; position++) {
+        byte kind;
+        try {
+          kind = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        String url = readString(in);
+        if (kind == DELETED) {
+          // If it is the last, the old record, if any, is deleted.
+          continue;
+        }
+        String key = key(kind, url);
+        if (last.get(key) != position) {
+          skip(in, Fingerprint.LENGTH);
+          skip(in, in.readInt());
+          continue;
+        }
+        byte[] fingerprint = readFingerprint(in);
+        byte[] marshalled = new byte[in.readInt()];
+        in.readFully(marshalled);
+        OldEntry entry = old.remove(key);
+        if (entry != null && Arrays.equals(entry.fingerprint, fingerprint)) {
+          if (kind == RECORD) {
+            summary.unchanged++;
+          }
+          continue;
+        }
+        writer.writeMarshalled(marshalled);
+        if (kind == RECORD) {
+          if (entry == null) {
+            summary.added++;
+          } else {
+            summary.changed++;
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    for (Map.Entry<String, OldEntry> entry : old.entrySet()) {
+      String key = entry.getKey();
+      if (key.charAt(0) == RECORD) {
+        writer.writeElement(new Record()
+            .setUrl(key.substring(1))
+            .setAction(Record.Action.DELETE)
+            .setMimetype(entry.getValue().mimetype));
+        summary.deleted++;
+      }
+    }
+  }
+
+  private static String key(byte kind, String url) {
+    return (char) kind + url;
+  }
+
+  private static DataInputStream open(File file) throws IOException {
+    return new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+  }
+
+  private static void skip(DataInputStream in, int length)
+      throws IOException {
+    while (length > 0) {
+      int skipped = in.skipBytes(length);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      length -= skipped;
+    }
+  }
+
+  private static byte[] readFingerprint(DataInputStream in)
+      throws IOException {
+    byte[] fingerprint = new byte[Fingerprint.LENGTH];
+    in.readFully(fingerprint);
+    return fingerprint;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /** The fingerprint and mimetype of an old record or acl. */
+  private static class OldEntry {
+    final byte[] fingerprint;
+    final String mimetype;
+
+    OldEntry(byte[] fingerprint, String mimetype) {
+      this.fingerprint = fingerprint;
+      this.mimetype = mimetype;
+    }
+  }
+
+  /**
+   * Writes the records and acls of a feed to partition files by url.
+   * Records are adjusted for their group's attributes first, and
+   * deleted ones are skipped.
+   */
+  private abstract static class PartitionWriter implements GsafeedHandler {
+    private final DataOutputStream[] outs;
+    private Group group;
+
+    PartitionWriter(File[] files) throws IOException {
+      outs = new DataOutputStream[files.length];
+      for (int i = 0; i < files.length; i++) {
+        outs[i] = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(files[i])));
+      }
+    }
+
+    @Override
+    public void header(Header header) throws IOException {
+    }
+
+    @Override
+    public void startGroup(Group group) {
+      this.group = group;
+    }
+
+    @Override
+    public void acl(Acl acl) throws IOException {
+      if (acl.getUrl() != null) {
+        DataOutputStream out = partition(acl.getUrl());
+        out.writeByte(ACL);
+        writeString(out, acl.getUrl());
+        out.write(Fingerprint.of(acl));
+        write(out, acl, null);
+      }
+    }
+
+    @Override
+    public void record(Record record) throws IOException {
+      try {
+        boolean deleted = (record.getAction() == null)
+            ? group.getAction() == Group.Action.DELETE
+            : record.getAction() == Record.Action.DELETE;
+        if (record.getUrl() == null) {
+          return;
+        }
+        if (deleted) {
+          DataOutputStream out = partition(record.getUrl());
+          out.writeByte(DELETED);
+          writeString(out, record.getUrl());
+          return;
+        }
+        if (record.getFeedrank() == null) {
+          record.setFeedrank(group.getFeedrank());
+        }
+        if (record.getPagerank() == null) {
+          record.setPagerank(group.getPagerank());
+        }
+        DataOutputStream out = partition(record.getUrl());
+        out.writeByte(RECORD);
+        writeString(out, record.getUrl());
+        out.write(Fingerprint.of(record));
+        write(out, record, record.getMimetype());
+      } finally {
+        if (record.content != null) {
+          for (Content content : record.content) {
+            content.deleteSpillFile();
+          }
+        }
+      }
+    }
+
+    @Override
+    public void endGroup(Group group) {
+      this.group = null;
+    }
+
+    /** Writes the rest of an entry after the kind, url and fingerprint. */
+    abstract void write(DataOutputStream out, Object element,
+        String mimetype) throws IOException;
+
+    private DataOutputStream partition(String url) {
+      int hash = url.hashCode();
+      hash ^= hash >>> 16;
+      return outs[(hash & 0x7fffffff) % outs.length];
+    }
+
+    void close() throws IOException {
+      IOException failure = null;
+      for (DataOutputStream out : outs) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /** Writes the url, fingerprint and mimetype of each old element. */
+  private static class OldPartitionWriter extends PartitionWriter {
+    OldPartitionWriter(File[] files) throws IOException {
+      super(files);
+    }
+
+    @Override
+    void write(DataOutputStream out, Object element, String mimetype)
+        throws IOException {
+      writeString(out, mimetype);
+    }
+  }
+
+  /**
+   * Writes the url, fingerprint and marshalled form of each new
+   * element, and starts the output with the new feed's header.
+   */
+  private class NewPartitionWriter extends PartitionWriter {
+    private final OutputStream output;
+    private FeedWriter writer;
+
+    NewPartitionWriter(File[] files, OutputStream output) throws IOException {
+      super(files);
+      this.output = output;
+    }
+
+    @Override
+    public void header(Header header) throws IOException {
+      String feedtype = header.getFeedtype();
+      startWriter(new Header()
+          .setDatasource(header.getDatasource())
+          .setFeedtype("full".equals(feedtype) ? "incremental" : feedtype));
+    }
+
+    @Override
+    void write(DataOutputStream out, Object element, String mimetype)
+        throws IOException {
+      try {
+        byte[] marshalled = getWriter().marshalChild(element);
+        out.writeInt(marshalled.length);
+        out.write(marshalled);
+      } catch (JAXBException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /** Returns the writer, started without a header if there was none. */
+    FeedWriter getWriter() throws IOException {
+      if (writer == null) {
+        startWriter(null);
+      }
+      return writer;
+    }
+
+    private void startWriter(Header header) throws IOException {
+      try {
+        writer = new FeedWriter(helper, output, new Gsafeed(), "gsafeed");
+        if (header != null) {
+          writer.writeElement(header);
+        }
+        writer.startElement(new Group(), "group");
+      } catch (JAXBException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /** The number of records of each kind found by a diff. */
+  public static final class Summary {
+    private long added;
+    private long changed;
+    private long deleted;
+    private long unchanged;
+
+    Summary() {
+    }
+
+    /** Returns the number of records only in the new feed. */
+    public long getAdded() {
+      return added;
+    }
+
+    /** Returns the number of records that differ between the feeds. */
+    public long getChanged() {
+      return changed;
+    }
+
+    /** Returns the number of records only in the old feed. */
+    public long getDeleted() {
+      return deleted;
+    }
+
+    /** Returns the number of records that are the same in both feeds. */
+    public long getUnchanged() {
+      return unchanged;
+    }
+
+    @Override
+    public String toString() {
+      return "Summary(added=" + added + ", changed=" + changed
+          + ", deleted=" + deleted + ", unchanged=" + unchanged + ")";
+    }
+  }
+}
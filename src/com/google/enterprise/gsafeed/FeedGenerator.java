@@ -0,0 +1,486 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Members;
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.Deflater;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Generates synthetic feeds of any size, for load tests and
+ * benchmarks. The output depends only on the seed and the settings,
+ * so a run can be reproduced exactly. Feeds are written one record or
+ * membership at a time, so they can be much larger than memory.
+ * Example:
+ *
+ * <pre>
+ * FeedGenerator generator = new FeedGenerator(42)
+ *     .setRecords(1000000)
+ *     .setMetas(0, 10)
+ *     .setAclFraction(0.3)
+ *     .setContentFraction(0.1)
+ *     .setContentEncodingFractions(0.5, 0.5);
+ * generator.writeGsafeed(new GsafeedHelper(), out);
+ * </pre>
+ *
+ * <p>Record acls and groups feeds draw their principals from the
+ * same pools: users "user0" to "user{users - 1}", and groups "group0"
+ * to "group{groups - 1}". A groups feed has one membership for each
+ * group. A group's nested groups always have higher numbers than the
+ * group itself, so memberships never form a cycle.
+ */
+public class FeedGenerator {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final long START_DATE = 1500000000000L;
+  private static final String[] WORDS = {
+    "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf",
+    "hotel", "india", "juliet", "kilo", "lima", "mike", "november",
+    "oscar", "papa", "quebec", "romeo", "sierra", "tango", "uniform",
+    "victor", "whiskey", "xray", "yankee", "zulu", "report", "budget",
+    "meeting", "project", "quarterly", "review", "draft", "final",
+    "summary", "customer", "contract", "invoice", "policy", "release",
+  };
+
+  private final long seed;
+  private String datasource = "generated";
+  private String feedtype = "incremental";
+  private long records = 1000;
+  private int recordsPerGroup = 1000;
+  private int minMetas = 0;
+  private int maxMetas = 5;
+  private double aclFraction = 0.5;
+  private int minPrincipals = 1;
+  private int maxPrincipals = 5;
+  private double contentFraction = 0;
+  private int minContentSize = 1024;
+  private int maxContentSize = 8192;
+  private double base64Fraction = 0;
+  private double base64CompressedFraction = 0;
+  private int users = 10000;
+  private int groups = 1000;
+  private int minMembers = 1;
+  private int maxMembers = 20;
+  private double nestedGroupFraction = 0.1;
+
+  /**
+   * @param seed the seed for the random choices; the same seed and
+   *     settings always give the same feed
+   */
+  public FeedGenerator(long seed) {
+    this.seed = seed;
+  }
+
+  /** Sets the feed datasource. The default is "generated". */
+  public FeedGenerator setDatasource(String datasource) {
+    this.datasource = datasource;
+    return this;
+  }
+
+  /** Sets the feed type. The default is "incremental". */
+  public FeedGenerator setFeedtype(String feedtype) {
+    this.feedtype = feedtype;
+    return this;
+  }
+
+  /** Sets the number of records in the feed. The default is 1000. */
+  public FeedGenerator setRecords(long records) {
+    if (records < 0) {
+      throw new IllegalArgumentException("records must not be negative");
+    }
+    this.records = records;
+    return this;
+  }
+
+  /**
+   * Sets the largest number of records in each group. The default is
+   * 1000.
+   */
+  public FeedGenerator setRecordsPerGroup(int recordsPerGroup) {
+    if (recordsPerGroup < 1) {
+      throw new IllegalArgumentException("recordsPerGroup must be positive");
+    }
+    this.recordsPerGroup = recordsPerGroup;
+    return this;
+  }
+
+  /**
+   * Sets the range of the number of metas in each record, chosen
+   * uniformly. The default is 0 to 5. Records with no metas have no
+   * metadata element.
+   */
+  public FeedGenerator setMetas(int min, int max) {
+    checkRange("metas", min, max);
+    this.minMetas = min;
+    this.maxMetas = max;
+    return this;
+  }
+
+  /** Sets the fraction of records with an acl. The default is 0.5. */
+  public FeedGenerator setAclFraction(double aclFraction) {
+    checkFraction("aclFraction", aclFraction);
+    this.aclFraction = aclFraction;
+    return this;
+  }
+
+  /**
+   * Sets the range of the number of principals in each acl, chosen
+   * uniformly. The default is 1 to 5.
+   */
+  public FeedGenerator setPrincipals(int min, int max) {
+    checkRange("principals", min, max);
+    this.minPrincipals = min;
+    this.maxPrincipals = max;
+    return this;
+  }
+
+  /**
+   * Sets the fraction of records with content. The default is 0,
+   * which gives a metadata-and-url style feed.
+   */
+  public FeedGenerator setContentFraction(double contentFraction) {
+    checkFraction("contentFraction", contentFraction);
+    this.contentFraction = contentFraction;
+    return this;
+  }
+
+  /**
+   * Sets the range of the size of the content in bytes, before any
+   * encoding, chosen uniformly. The default is 1024 to 8192.
+   */
+  public FeedGenerator setContentSize(int min, int max) {
+    checkRange("contentSize", min, max);
+    this.minContentSize = min;
+    this.maxContentSize = max;
+    return this;
+  }
+
+  /**
+   * Sets the fractions of content that is base64binary and
+   * base64compressed encoded. The rest is text. The default is all
+   * text.
+   */
+  public FeedGenerator setContentEncodingFractions(double base64,
+      double base64Compressed) {
+    checkFraction("base64", base64);
+    checkFraction("base64Compressed", base64Compressed);
+    if (base64 + base64Compressed > 1) {
+      throw new IllegalArgumentException("fractions must not exceed 1");
+    }
+    this.base64Fraction = base64;
+    this.base64CompressedFraction = base64Compressed;
+    return this;
+  }
+
+  /** Sets the number of users to choose from. The default is 10000. */
+  public FeedGenerator setUsers(int users) {
+    if (users < 1) {
+      throw new IllegalArgumentException("users must be positive");
+    }
+    this.users = users;
+    return this;
+  }
+
+  /**
+   * Sets the number of groups to choose from, which is also the number
+   * of memberships in a groups feed. The default is 1000.
+   */
+  public FeedGenerator setGroups(int groups) {
+    if (groups < 1) {
+      throw new IllegalArgumentException("groups must be positive");
+    }
+    this.groups = groups;
+    return this;
+  }
+
+  /**
+   * Sets the range of the number of members in each group, chosen
+   * uniformly. The default is 1 to 20.
+   */
+  public FeedGenerator setMembers(int min, int max) {
+    checkRange("members", min, max);
+    this.minMembers = min;
+    this.maxMembers = max;
+    return this;
+  }
+
+  /**
+   * Sets the fraction of members that are groups rather than users.
+   * The default is 0.1. The last group has no nested groups, since
+   * there is no group with a higher number.
+   */
+  public FeedGenerator setNestedGroupFraction(double nestedGroupFraction) {
+    checkFraction("nestedGroupFraction", nestedGroupFraction);
+    this.nestedGroupFraction = nestedGroupFraction;
+    return this;
+  }
+
+  /**
+   * Writes a GSA feed file to the stream. The stream is not closed.
+   */
+  public void writeGsafeed(GsafeedHelper helper, OutputStream out)
+      throws IOException, JAXBException {
+    Random random = new Random(seed);
+    GsafeedWriter writer = new GsafeedWriter(helper, out, createHeader());
+    for (long i = 0; i < records; i++) {
+      if (i % recordsPerGroup == 0) {
+        if (i > 0) {
+          writer.endGroup();
+        }
+        writer.startGroup(new Group());
+      }
+      writer.write(createRecord(random, i));
+    }
+    writer.finish();
+  }
+
+  /**
+   * Returns the same feed that {@link #writeGsafeed} writes, built in
+   * memory.
+   */
+  public Gsafeed createGsafeed() {
+    Random random = new Random(seed);
+    Gsafeed feed = new Gsafeed().setHeader(createHeader());
+    Group group = null;
+    for (long i = 0; i < records; i++) {
+      if (i % recordsPerGroup == 0) {
+        group = new Group();
+        feed.getGroup().add(group);
+      }
+      group.getAclOrRecord().add(createRecord(random, i));
+    }
+    return feed;
+  }
+
+  /**
+   * Writes a groups feed to the stream. The stream is not closed.
+   */
+  public void writeXmlgroups(XmlgroupsHelper helper, OutputStream out)
+      throws IOException, JAXBException {
+    Random random = new Random(seed);
+    FeedWriter writer = new FeedWriter(helper, out, new Xmlgroups(),
+        "xmlgroups");
+    for (int i = 0; i < groups; i++) {
+      writer.writeElement(createMembership(random, i));
+    }
+    writer.finish();
+  }
+
+  /**
+   * Returns the same groups feed that {@link #writeXmlgroups} writes,
+   * built in memory.
+   */
+  public Xmlgroups createXmlgroups() {
+    Random random = new Random(seed);
+    Xmlgroups feed = new Xmlgroups();
+    for (int i = 0; i < groups; i++) {
+      feed.getMembership().add(createMembership(random, i));
+    }
+    return feed;
+  }
+
+  private Header createHeader() {
+    return new Header().setDatasource(datasource).setFeedtype(feedtype);
+  }
+
+  private Record createRecord(Random random, long index) {
+    Record record = new Record()
+        .setUrl("http://example.com/doc/" + index)
+        .setMimetype("text/plain")
+        .setLastModified(
+            new Date(START_DATE + index * 1000 + random.nextInt(1000)));
+    if (random.nextDouble() < aclFraction) {
+      Acl acl = new Acl();
+      int principals = between(random, minPrincipals, maxPrincipals);
+      for (int i = 0; i < principals; i++) {
+        boolean isGroup = random.nextBoolean();
+        acl.getPrincipal().add(new Principal()
+            .setScope(isGroup ? Principal.Scope.GROUP : Principal.Scope.USER)
+            .setAccess(random.nextInt(10) == 0
+                ? Principal.Access.DENY : Principal.Access.PERMIT)
+            .setvalue(isGroup
+                ? "group" + random.nextInt(groups)
+                : "user" + random.nextInt(users)));
+      }
+      record.setAcl(acl);
+    }
+    int metas = between(random, minMetas, maxMetas);
+    if (metas > 0) {
+      Metadata metadata = new Metadata();
+      for (int i = 0; i < metas; i++) {
+        metadata.getMeta().add(new Meta()
+            .setName("meta" + i)
+            .setContent(words(random, 1 + random.nextInt(5))));
+      }
+      record.getMetadata().add(metadata);
+    }
+    if (random.nextDouble() < contentFraction) {
+      record.getContent().add(createContent(random));
+    }
+    return record;
+  }
+
+  private Content createContent(Random random) {
+    int size = between(random, minContentSize, maxContentSize);
+    StringBuilder text = new StringBuilder(size + 16);
+    while (text.length() < size) {
+      text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+    }
+    text.setLength(size);
+    double encoding = random.nextDouble();
+    if (encoding < base64Fraction) {
+      return new Content()
+          .setEncoding(Content.Encoding.BASE64_BINARY)
+          .setvalue(DatatypeConverter.printBase64Binary(
+              text.toString().getBytes(UTF_8)));
+    } else if (encoding < base64Fraction + base64CompressedFraction) {
+      return new Content()
+          .setEncoding(Content.Encoding.BASE64_COMPRESSED)
+          .setvalue(DatatypeConverter.printBase64Binary(
+              deflate(text.toString().getBytes(UTF_8))));
+    } else {
+      return new Content().setvalue(text.toString());
+    }
+  }
+
+  private Membership createMembership(Random random, int index) {
+    Members members = new Members();
+    int count = between(random, minMembers, maxMembers);
+    int higherGroups = groups - index - 1;
+    for (int i = 0; i < count; i++) {
+      if (higherGroups > 0 && random.nextDouble() < nestedGroupFraction) {
+        members.getPrincipal().add(groupPrincipal(
+            com.google.enterprise.gsafeed.groups.Principal.Scope.GROUP,
+            "group" + (index + 1 + random.nextInt(higherGroups))));
+      } else {
+        members.getPrincipal().add(groupPrincipal(
+            com.google.enterprise.gsafeed.groups.Principal.Scope.USER,
+            "user" + random.nextInt(users)));
+      }
+    }
+    return new Membership()
+        .setPrincipal(groupPrincipal(
+            com.google.enterprise.gsafeed.groups.Principal.Scope.GROUP,
+            "group" + index))
+        .setMembers(members);
+  }
+
+  private static com.google.enterprise.gsafeed.groups.Principal
+      groupPrincipal(
+          com.google.enterprise.gsafeed.groups.Principal.Scope scope,
+          String name) {
+    return new com.google.enterprise.gsafeed.groups.Principal()
+        .setScope(scope)
+        .setNamespace("Default")
+        .setCaseSensitivityType(com.google.enterprise.gsafeed.groups.Principal
+            .CaseSensitivityType.EVERYTHING_CASE_SENSITIVE)
+        .setvalue(name);
+  }
+
+  private static String words(Random random, int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(' ');
+      }
+      builder.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return builder.toString();
+  }
+
+  private static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      byte[] buffer = new byte[bytes.length + 64];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          byte[] larger = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, larger, 0, length);
+          buffer = larger;
+        }
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      byte[] result = new byte[length];
+      System.arraycopy(buffer, 0, result, 0, length);
+      return result;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static int between(Random random, int min, int max) {
+    return min + random.nextInt(max - min + 1);
+  }
+
+  private static void checkRange(String name, int min, int max) {
+    if (min < 0 || max < min) {
+      throw new IllegalArgumentException(
+          name + " must be a range of non-negative numbers");
+    }
+  }
+
+  private static void checkFraction(String name, double fraction) {
+    if (!(fraction >= 0 && fraction <= 1)) {
+      throw new IllegalArgumentException(name + " must be from 0 to 1");
+    }
+  }
+
+  /**
+   * Writes a generated feed to a file.
+   *
+   * <p>Usage: {@code FeedGenerator (gsafeed|xmlgroups) file count [seed]}
+   * where count is the number of records or groups.
+   */
+  public static void main(String... args) throws Exception {
+    if (args.length < 3) {
+      System.err.println(
+          "Usage: FeedGenerator (gsafeed|xmlgroups) file count [seed]");
+      System.exit(1);
+    }
+    long count = Long.parseLong(args[2]);
+    long seed = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+    FeedGenerator generator = new FeedGenerator(seed);
+    OutputStream out =
+        new BufferedOutputStream(new FileOutputStream(args[1]));
+    try {
+      if ("gsafeed".equals(args[0])) {
+        generator.setRecords(count).writeGsafeed(new GsafeedHelper(), out);
+      } else if ("xmlgroups".equals(args[0])) {
+        if (count > Integer.MAX_VALUE) {
+          throw new IllegalArgumentException("Too many groups: " + count);
+        }
+        generator.setGroups((int) count)
+            .writeXmlgroups(new XmlgroupsHelper(), out);
+      } else {
+        throw new IllegalArgumentException("Unknown feed type: " + args[0]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
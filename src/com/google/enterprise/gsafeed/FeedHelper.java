@@ -14,17 +14,25 @@
 
 package com.google.enterprise.gsafeed;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.XMLConstants;
@@ -36,6 +44,7 @@ import javax.xml.bind.UnmarshallerHandler;
 import javax.xml.bind.ValidationEvent;
 import javax.xml.bind.ValidationEventHandler;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 /**
@@ -48,17 +57,45 @@ class FeedHelper {
 
   enum Validation { FALSE, TRUE }
 
+  /*
+   * Creating a JAXBContext takes a noticeable amount of time, and
+   * contexts are thread-safe, so each one is created the first time
+   * it is needed and shared by all helpers.
+   */
+  private static final ConcurrentMap<String, JAXBContext> jaxbContexts =
+      new ConcurrentHashMap<String, JAXBContext>();
+
   private String rootElementName;
   private JAXBContext jaxbContext;
   private EntityResolver entityResolver;
   ErrorHandler errorHandler;
   ValidationEventHandler validationEventHandler;
+  volatile boolean reuseParsers = true;
+  /** Content longer than this many characters is spilled; -1 for never. */
+  volatile int contentSpillThreshold = -1;
+  volatile File contentSpillDirectory;
+  /** Interns repeated attribute values if not null. */
+  volatile StringInterner stringInterner;
+
+  /*
+   * Parsers, unmarshallers and marshallers are not thread-safe, and
+   * are expensive to create and configure compared to parsing a
+   * small feed. When reuseParsers is set, each thread keeps one of
+   * each for reuse. An object is removed from the cache while it is
+   * in use, so a handler that unmarshals another feed from within a
+   * streaming unmarshal gets its own objects.
+   */
+  private final ThreadLocal<Cache> cache = new ThreadLocal<Cache>() {
+      @Override
+      protected Cache initialValue() {
+        return new Cache();
+      }
+    };
 
   FeedHelper(Class<?> rootElementClass, String rootElementName,
       final String dtdPath) throws JAXBException {
     this.rootElementName = rootElementName;
-    this.jaxbContext =
-        JAXBContext.newInstance(rootElementClass.getPackage().getName());
+    this.jaxbContext = getJaxbContext(rootElementClass);
     this.entityResolver = new EntityResolver() {
         @Override
         public InputSource resolveEntity(String publicId,
@@ -118,9 +155,176 @@ class FeedHelper {
       };
   }
 
+  /**
+   * Gets the shared JAXBContext for the package containing the given
+   * class, creating it if needed.
+   */
+  static JAXBContext getJaxbContext(Class<?> rootElementClass)
+      throws JAXBException {
+    String packageName = rootElementClass.getPackage().getName();
+    JAXBContext jaxbContext = jaxbContexts.get(packageName);
+    if (jaxbContext == null) {
+      synchronized (jaxbContexts) {
+        jaxbContext = jaxbContexts.get(packageName);
+        if (jaxbContext == null) {
+          long start = System.nanoTime();
+          jaxbContext = JAXBContext.newInstance(packageName);
+          log.log(Level.FINE, "Created JAXBContext for {0} in {1} ms",
+              new Object[] { packageName,
+                  (System.nanoTime() - start) / 1000000 });
+          jaxbContexts.put(packageName, jaxbContext);
+        }
+      }
+    }
+    return jaxbContext;
+  }
+
   Object unmarshal(InputStream inputStream, Validation validation)
       throws JAXBException, IOException, ParserConfigurationException,
       SAXException {
+    SAXParser saxParser = takeSaxParser(validation);
+    CachedUnmarshaller cached = takeUnmarshaller(validation);
+    try {
+      XMLReader xmlReader = getXmlReader(saxParser);
+      UnmarshallerHandler unmarshallerHandler =
+          cached.unmarshaller.getUnmarshallerHandler();
+      parse(xmlReader, cached.unmarshaller, unmarshallerHandler, inputStream,
+          false);
+      return unmarshallerHandler.getResult();
+    } finally {
+      releaseSaxParser(validation, saxParser);
+      releaseUnmarshaller(cached);
+    }
+  }
+
+  /**
+   * Reads the document one element at a time. The elements chosen
+   * by the splitter are unmarshalled separately and passed to the
+   * splitter as soon as they have been read, so only one such
+   * element is held in memory at a time.
+   */
+  void unmarshal(InputStream inputStream, Validation validation,
+      Splitter splitter) throws JAXBException, IOException,
+      ParserConfigurationException, SAXException {
+    SAXParser saxParser = takeSaxParser(validation);
+    CachedUnmarshaller cached = takeUnmarshaller(validation);
+    try {
+      XMLReader xmlReader = getXmlReader(saxParser);
+      parse(xmlReader, cached.unmarshaller,
+          new SplittingHandler(cached.unmarshaller, splitter), inputStream,
+          true);
+    } catch (WrappedException e) {
+      if (e.getException() instanceof IOException) {
+        throw (IOException) e.getException();
+      }
+      throw (JAXBException) e.getException();
+    } finally {
+      releaseSaxParser(validation, saxParser);
+      releaseUnmarshaller(cached);
+    }
+  }
+
+  /**
+   * Parses the document, passing events to the handler through a
+   * ContentSpiller if spilling is enabled, and interning strings if
+   * there is an interner.
+   *
+   * @param split whether elements are passed to a handler as they are
+   *     read; if so, their spilled content is kept after a failure
+   */
+  private void parse(XMLReader xmlReader, Unmarshaller unmarshaller,
+      ContentHandler handler, InputStream inputStream, boolean split)
+      throws IOException, SAXException {
+    int threshold = contentSpillThreshold;
+    StringInterner interner = stringInterner;
+    ContentSpiller spiller = null;
+    Unmarshaller.Listener listener = null;
+    if (threshold >= 0) {
+      spiller = new ContentSpiller(handler, threshold, contentSpillDirectory);
+      handler = spiller;
+      listener = spiller.getListener();
+    }
+    if (interner != null) {
+      listener = new InterningListener(interner, listener);
+    }
+    xmlReader.setContentHandler(handler);
+    unmarshaller.setListener(listener);
+    boolean succeeded = false;
+    try {
+      xmlReader.parse(new InputSource(inputStream));
+      succeeded = true;
+    } finally {
+      unmarshaller.setListener(null);
+      if (!succeeded && spiller != null) {
+        if (split) {
+          spiller.abort();
+        } else {
+          spiller.deleteAll();
+        }
+      }
+    }
+  }
+
+  private SAXParser takeSaxParser(Validation validation)
+      throws ParserConfigurationException, SAXException {
+    if (reuseParsers) {
+      SAXParser[] saxParsers = cache.get().saxParsers;
+      SAXParser saxParser = saxParsers[validation.ordinal()];
+      if (saxParser != null) {
+        saxParsers[validation.ordinal()] = null;
+        return saxParser;
+      }
+    }
+    return createSaxParser(validation);
+  }
+
+  private void releaseSaxParser(Validation validation, SAXParser saxParser) {
+    if (reuseParsers) {
+      // Restores the settings from the SAXParserFactory and drops
+      // the references to the handlers.
+      saxParser.reset();
+      cache.get().saxParsers[validation.ordinal()] = saxParser;
+    }
+  }
+
+  private CachedUnmarshaller takeUnmarshaller(Validation validation)
+      throws JAXBException {
+    CachedUnmarshaller cached = null;
+    if (reuseParsers) {
+      Cache threadCache = cache.get();
+      cached = threadCache.unmarshaller;
+      threadCache.unmarshaller = null;
+    }
+    if (cached == null) {
+      cached = new CachedUnmarshaller(jaxbContext.createUnmarshaller());
+    }
+    if (validation == Validation.TRUE && validationEventHandler != null) {
+      cached.unmarshaller.setEventHandler(validationEventHandler);
+    } else {
+      cached.unmarshaller.setEventHandler(cached.defaultEventHandler);
+    }
+    return cached;
+  }
+
+  private void releaseUnmarshaller(CachedUnmarshaller cached) {
+    if (reuseParsers) {
+      // The unmarshaller keeps a reference to the last object it
+      // read until it starts another document. Unmarshal an empty
+      // document so a large feed can be garbage collected.
+      UnmarshallerHandler handler =
+          cached.unmarshaller.getUnmarshallerHandler();
+      try {
+        handler.startDocument();
+        handler.endDocument();
+      } catch (SAXException e) {
+        return;
+      }
+      cache.get().unmarshaller = cached;
+    }
+  }
+
+  private SAXParser createSaxParser(Validation validation)
+      throws ParserConfigurationException, SAXException {
     SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
     saxParserFactory.setValidating(validation == Validation.TRUE);
     saxParserFactory.setXIncludeAware(false);
@@ -132,18 +336,14 @@ class FeedHelper {
     saxParserFactory.setFeature(
         "http://apache.org/xml/features/nonvalidating/load-external-dtd",
         validation == Validation.TRUE);
-    XMLReader xmlReader = saxParserFactory.newSAXParser().getXMLReader();
+    return saxParserFactory.newSAXParser();
+  }
+
+  private XMLReader getXmlReader(SAXParser saxParser) throws SAXException {
+    XMLReader xmlReader = saxParser.getXMLReader();
     xmlReader.setEntityResolver(entityResolver);
     xmlReader.setErrorHandler(errorHandler);
-    Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-    if (validation == Validation.TRUE && validationEventHandler != null) {
-      unmarshaller.setEventHandler(validationEventHandler);
-    }
-    UnmarshallerHandler unmarshallerHandler =
-        unmarshaller.getUnmarshallerHandler();
-    xmlReader.setContentHandler(unmarshallerHandler);
-    xmlReader.parse(new InputSource(inputStream));
-    return unmarshallerHandler.getResult();
+    return xmlReader;
   }
 
   /**
@@ -151,21 +351,256 @@ class FeedHelper {
    */
   void marshal(Object feed, OutputStream out)
       throws IOException, JAXBException {
+    Marshaller marshaller = null;
+    if (reuseParsers) {
+      Cache threadCache = cache.get();
+      marshaller = threadCache.marshaller;
+      threadCache.marshaller = null;
+    }
+    if (marshaller == null) {
+      marshaller = createMarshaller();
+      // TODO(aptls): check use of this property in Java 7, 8;
+      // those versions might use com.sun.xml.bind.xmlHeaders.
+      // Compare this with using a Transformer + JAXBSource for
+      // marshalling.
+      marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders",
+          getXmlHeaders());
+    }
+    StreamedContentOutputStream.marshal(marshaller, feed, out);
+    if (reuseParsers) {
+      cache.get().marshaller = marshaller;
+    }
+  }
+
+  /**
+   * Creates a marshaller for formatted output without an XML
+   * declaration.
+   */
+  Marshaller createMarshaller() throws JAXBException {
     Marshaller marshaller = jaxbContext.createMarshaller();
     marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
     // By default, we get the XML declaration including
     // "standalone='yes'". This is one way to avoid that since
     // it's not part of the GSA's usual feeds.
     marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
-    // TODO(aptls): check use of this property in Java 7, 8;
-    // those versions might use com.sun.xml.bind.xmlHeaders.
-    // Compare this with using a Transformer + JAXBSource for
-    // marshalling.
-    marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders",
-        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+    return marshaller;
+  }
+
+  /** Gets the XML declaration and DOCTYPE written before the feed. */
+  String getXmlHeaders() {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
         + System.getProperty("line.separator")
         + "<!DOCTYPE " + rootElementName
-        + " PUBLIC \"" + PUBLIC_ID + "\" \"\">");
-    marshaller.marshal(feed, out);
+        + " PUBLIC \"" + PUBLIC_ID + "\" \"\">";
+  }
+
+  /** How an element is handled when a document is split. */
+  enum Split {
+    /** Keep reading; the element's children may be split out. */
+    NONE,
+    /** Unmarshal the element and its attributes, but not its children. */
+    START_TAG,
+    /** Unmarshal the whole element, including its children. */
+    ELEMENT
+  }
+
+  /**
+   * Chooses which elements of a document are unmarshalled separately
+   * and receives the results.
+   */
+  interface Splitter {
+    /**
+     * Returns how to handle the named element.
+     *
+     * @param parent the name of the parent element, or null for the
+     *     root element
+     * @param name the name of the element
+     */
+    Split split(String parent, String name);
+
+    /**
+     * Receives an element that was split out of the document. For
+     * {@link Split#START_TAG} elements, this is called before any of
+     * the element's children are handled.
+     */
+    void handle(Object element) throws IOException;
+
+    /**
+     * Receives a {@link Split#START_TAG} element again after all of
+     * its children have been handled.
+     */
+    void end(Object element) throws IOException;
+  }
+
+  /** The parsers, unmarshaller and marshaller kept by one thread. */
+  private static class Cache {
+    final SAXParser[] saxParsers = new SAXParser[Validation.values().length];
+    CachedUnmarshaller unmarshaller;
+    Marshaller marshaller;
+  }
+
+  /** An unmarshaller and the event handler it was created with. */
+  private static class CachedUnmarshaller {
+    final Unmarshaller unmarshaller;
+    final ValidationEventHandler defaultEventHandler;
+
+    CachedUnmarshaller(Unmarshaller unmarshaller) throws JAXBException {
+      this.unmarshaller = unmarshaller;
+      this.defaultEventHandler = unmarshaller.getEventHandler();
+    }
+  }
+
+  /** Carries a checked exception out of a ContentHandler. */
+  private static class WrappedException extends SAXException {
+    private static final long serialVersionUID = 1L;
+
+    WrappedException(Exception e) {
+      super(e);
+    }
+  }
+
+  /**
+   * Splits the SAX events for a document into separate documents
+   * for each selected element, and unmarshals each of those.
+   */
+  private static class SplittingHandler extends DefaultHandler {
+    private final Unmarshaller unmarshaller;
+    private final Splitter splitter;
+    private final List<String> names = new ArrayList<String>();
+    private final List<Object> startTags = new ArrayList<Object>();
+    private UnmarshallerHandler current;
+    private int currentDepth;
+
+    SplittingHandler(Unmarshaller unmarshaller, Splitter splitter) {
+      this.unmarshaller = unmarshaller;
+      this.splitter = splitter;
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri)
+        throws SAXException {
+      if (current != null) {
+        current.startPrefixMapping(prefix, uri);
+      }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+      if (current != null) {
+        current.endPrefixMapping(prefix);
+      }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes atts) throws SAXException {
+      String name = getName(localName, qName);
+      if (current == null) {
+        String parent = names.isEmpty() ? null : names.get(names.size() - 1);
+        switch (splitter.split(parent, name)) {
+          case ELEMENT:
+            current = unmarshaller.getUnmarshallerHandler();
+            currentDepth = names.size();
+            current.startDocument();
+            break;
+          case START_TAG:
+            UnmarshallerHandler startTag =
+                unmarshaller.getUnmarshallerHandler();
+            startTag.startDocument();
+            startTag.startElement(uri, localName, qName, atts);
+            startTag.endElement(uri, localName, qName);
+            startTag.endDocument();
+            Object element = getResult(startTag);
+            startTags.add(element);
+            handle(element);
+            break;
+          default:
+            startTags.add(null);
+            break;
+        }
+      }
+      names.add(name);
+      if (current != null) {
+        current.startElement(uri, localName, qName, atts);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName)
+        throws SAXException {
+      names.remove(names.size() - 1);
+      if (current != null) {
+        current.endElement(uri, localName, qName);
+        if (names.size() == currentDepth) {
+          current.endDocument();
+          Object element = getResult(current);
+          current = null;
+          handle(element);
+        }
+      } else {
+        Object element = startTags.remove(startTags.size() - 1);
+        if (element != null) {
+          try {
+            splitter.end(element);
+          } catch (IOException e) {
+            throw new WrappedException(e);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length)
+        throws SAXException {
+      if (current != null) {
+        current.characters(ch, start, length);
+      }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length)
+        throws SAXException {
+      if (current != null) {
+        current.ignorableWhitespace(ch, start, length);
+      }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data)
+        throws SAXException {
+      if (current != null) {
+        current.processingInstruction(target, data);
+      }
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+      if (current != null) {
+        current.skippedEntity(name);
+      }
+    }
+
+    private void handle(Object element) throws SAXException {
+      try {
+        splitter.handle(element);
+      } catch (IOException e) {
+        throw new WrappedException(e);
+      }
+    }
+
+    private static Object getResult(UnmarshallerHandler handler)
+        throws SAXException {
+      try {
+        return handler.getResult();
+      } catch (JAXBException e) {
+        throw new WrappedException(e);
+      }
+    }
+
+    // Without namespace support, parsers only report the qName.
+    private static String getName(String localName, String qName) {
+      return (localName == null || localName.length() == 0)
+          ? qName : localName;
+    }
   }
 }
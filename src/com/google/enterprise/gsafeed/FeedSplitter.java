@@ -0,0 +1,243 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Splits a feed into smaller feeds, each no larger than a given
+ * number of bytes, and sends them in order. Every chunk has the
+ * feed's header, and records and acls keep the attributes of their
+ * group. Since no single chunk replaces the whole data source, full
+ * feeds are sent as incremental feeds.
+ *
+ * <p>A feed can be split from a {@link Gsafeed}, or while it is being
+ * read by passing the splitter to {@link
+ * GsafeedHelper#unmarshalWithDtd(java.net.URL, GsafeedHandler)} and
+ * then calling {@link #finish}. Example:
+ *
+ * <pre>
+ * FeedSplitter splitter = new FeedSplitter(helper, sender,
+ *     FeedSplitter.COMPRESSIBLE_SIZE, true);
+ * helper.unmarshalWithDtd(url, splitter);
+ * splitter.finish();
+ * </pre>
+ *
+ * <p>Instances are not thread-safe.
+ */
+public class FeedSplitter implements GsafeedHandler {
+  private static final Logger log
+      = Logger.getLogger(FeedSplitter.class.getName());
+
+  /**
+   * A feed size that leaves room for the multipart message within the
+   * 1 MB that the GSA allows to be compressed.
+   */
+  public static final long COMPRESSIBLE_SIZE = 1024 * 1024 - 4096;
+
+  private final GsafeedHelper helper;
+  private final GsaFeedFileSender sender;
+  private final long maxBytes;
+  private final boolean useCompression;
+
+  private Header header;
+  private Group group;
+  private ChunkBuffer buffer;
+  private FeedWriter writer;
+  private boolean chunkHasElements;
+  private boolean groupHasElements;
+  private int chunkCount;
+
+  /**
+   * Exposes its array, so that a chunk can be sent without a copy,
+   * and still be sent again if the first attempt fails.
+   */
+  private static class ChunkBuffer extends ByteArrayOutputStream {
+    byte[] array() {
+      return buf;
+    }
+  }
+
+  /**
+   * @param helper the helper used to marshal the chunks
+   * @param sender the sender used to send the chunks
+   * @param maxBytes the largest size of a chunk's XML document; a
+   *     record or acl too large to fit is sent in a chunk by itself
+   * @param useCompression whether to compress chunks small enough
+   *     for the GSA to accept compressed
+   */
+  public FeedSplitter(GsafeedHelper helper, GsaFeedFileSender sender,
+      long maxBytes, boolean useCompression) {
+    if (helper == null || sender == null) {
+      throw new NullPointerException();
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive");
+    }
+    this.helper = helper;
+    this.sender = sender;
+    this.maxBytes = maxBytes;
+    this.useCompression = useCompression;
+  }
+
+  /**
+   * Splits and sends a feed.
+   *
+   * @throws IllegalArgumentException if the feed has no header
+   */
+  public void send(Gsafeed feed) throws IOException, JAXBException {
+    if (feed.getHeader() == null) {
+      throw new IllegalArgumentException("Feed has no header");
+    }
+    try {
+      header(feed.getHeader());
+      for (Group feedGroup : feed.getGroup()) {
+        startGroup(feedGroup);
+        for (Object aclOrRecord : feedGroup.getAclOrRecord()) {
+          add(aclOrRecord);
+        }
+        endGroup(feedGroup);
+      }
+      finish();
+    } catch (MarshalException e) {
+      throw (JAXBException) e.getCause();
+    }
+  }
+
+  @Override
+  public void header(Header header) {
+    if (this.header != null) {
+      throw new IllegalStateException("The feed already has a header");
+    }
+    String feedtype = header.getFeedtype();
+    this.header = new Header()
+        .setDatasource(header.getDatasource())
+        .setFeedtype("full".equals(feedtype) ? "incremental" : feedtype);
+  }
+
+  @Override
+  public void startGroup(Group group) throws IOException {
+    if (this.group != null) {
+      throw new IllegalStateException("A group has already been started");
+    }
+    this.group = new Group()
+        .setAction(group.getAction())
+        .setFeedrank(group.getFeedrank())
+        .setPagerank(group.getPagerank());
+  }
+
+  @Override
+  public void acl(Acl acl) throws IOException {
+    add(acl);
+  }
+
+  @Override
+  public void record(Record record) throws IOException {
+    add(record);
+  }
+
+  @Override
+  public void endGroup(Group group) throws IOException {
+    if (this.group == null) {
+      throw new IllegalStateException("No group has been started");
+    }
+    if (writer != null && writer.getDepth() == 2) {
+      writer.endElement();
+    }
+    this.group = null;
+  }
+
+  /**
+   * Sends the last chunk, if it has any records or acls. Call this
+   * after the whole feed has been passed to the handler methods.
+   */
+  public void finish() throws IOException {
+    if (chunkHasElements) {
+      sendChunk();
+    }
+  }
+
+  /** Returns the number of chunks sent so far. */
+  public int getChunkCount() {
+    return chunkCount;
+  }
+
+  private void add(Object aclOrRecord) throws IOException {
+    if (group == null) {
+      throw new IllegalStateException("No group has been started");
+    }
+    try {
+      if (writer == null) {
+        startChunk();
+      }
+      if (writer.getDepth() == 1) {
+        writer.startElement(group, "group");
+        groupHasElements = false;
+      }
+      byte[] child = writer.marshalChild(aclOrRecord);
+      if (buffer.size() + writer.getLengthWith(child) > maxBytes) {
+        if (chunkHasElements) {
+          if (!groupHasElements) {
+            writer.cancelElement();
+          }
+          sendChunk();
+          startChunk();
+          writer.startElement(group, "group");
+          groupHasElements = false;
+        } else {
+          log.warning("Sending a " + child.length + " byte element that "
+              + "is larger than the chunk size of " + maxBytes + " bytes");
+        }
+      }
+      writer.writeMarshalled(child);
+      chunkHasElements = true;
+      groupHasElements = true;
+    } catch (JAXBException e) {
+      throw new MarshalException(e);
+    }
+  }
+
+  private void startChunk() throws IOException, JAXBException {
+    if (header == null) {
+      throw new IllegalStateException("The feed has no header");
+    }
+    buffer = new ChunkBuffer();
+    writer = new FeedWriter(helper, buffer, new Gsafeed(), "gsafeed");
+    writer.writeElement(header);
+  }
+
+  private void sendChunk() throws IOException {
+    writer.finish();
+    sender.sendGsaFeed(header.getDatasource(), header.getFeedtype(),
+        buffer.array(), 0, buffer.size(), useCompression);
+    chunkCount++;
+    log.fine("Sent chunk " + chunkCount + " of " + buffer.size() + " bytes");
+    buffer = null;
+    writer = null;
+    chunkHasElements = false;
+  }
+
+  /** Carries a JAXBException out of the handler methods. */
+  private static class MarshalException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MarshalException(JAXBException cause) {
+      super(cause);
+    }
+  }
+}
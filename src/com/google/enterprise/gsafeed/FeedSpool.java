@@ -0,0 +1,835 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A directory of feeds waiting to be sent to the GSA, kept on disk so
+ * that they are not lost if the process stops before the GSA has
+ * accepted them. Feeds are added by any thread, and sent in the order
+ * they were added by a {@link FeedSpoolSender}. Example:
+ *
+ * <pre>
+ * FeedSpool spool = new FeedSpool(directory).setCompression(true);
+ * FeedSpoolSender spoolSender = new FeedSpoolSender(spool, sender);
+ * spoolSender.start();
+ * for (byte[] chunk : chunks) {
+ *   spool.addGsaFeed("docs", "incremental", chunk);
+ * }
+ * spool.sync();
+ * </pre>
+ *
+ * <p>The XML of each feed is appended to a segment file, gzipped if
+ * compression is on, and a record of it is appended to a manifest.
+ * When a feed has been sent, an acknowledgement is appended to the
+ * manifest. Both files are written sequentially and flushed to disk
+ * together: by {@link #sync}, by {@link #close}, and after every
+ * {@link #setSyncBatchSize batch} of changes. A feed is only sure to
+ * survive a crash once it has been synced. An acknowledgement that
+ * was not synced is lost in a crash, and the feed is sent again.
+ *
+ * <p>When the spool is opened, the manifest is read up to the first
+ * incomplete record, and each feed that was not acknowledged is
+ * checked against the checksum of its data and queued again. The
+ * manifest is then rewritten with only those feeds. It is rewritten
+ * the same way once many feeds have been acknowledged, and segment
+ * files are deleted once all of their feeds have been.
+ *
+ * <p>Feeds that the GSA rejects can be set aside by {@link #reject},
+ * which moves their XML to a "failed" file in the directory. Ids keep
+ * increasing across restarts, and a failed file is never overwritten.
+ *
+ * <p>This class is thread-safe. Only one process may use a directory
+ * at a time.
+ */
+public class FeedSpool implements Closeable {
+  private static final Logger log
+      = Logger.getLogger(FeedSpool.class.getName());
+
+  private static final String MANIFEST = "manifest";
+  private static final String MANIFEST_TEMP = "manifest.tmp";
+  private static final Pattern SEGMENT_NAME =
+      Pattern.compile("segment-(\\d{10})");
+
+  private static final byte ADD = 'A';
+  private static final byte ACK = 'K';
+  /** Records the next id, so that ids are not reused once acknowledged. */
+  private static final byte NEXT_ID = 'N';
+
+  /** Rewrite the manifest after at least this many acknowledgements. */
+  private static final int COMPACT_THRESHOLD = 10000;
+
+  private final File directory;
+  private boolean compression;
+  private int syncBatchSize = 256;
+  private long segmentSize = 64L * 1024 * 1024;
+
+  // Guarded by this.
+  private final LinkedHashMap<Long, Entry> pending =
+      new LinkedHashMap<Long, Entry>();
+  /** The number of pending feeds in each segment. */
+  private final Map<Integer, Integer> segmentCounts =
+      new HashMap<Integer, Integer>();
+  private long nextId = 1;
+  private int segment;
+  private FileOutputStream segmentFile;
+  private CountingOutputStream segmentOut;
+  private FileOutputStream manifestFile;
+  private DataOutputStream manifestOut;
+  private int unsynced;
+  private int acknowledged;
+  private boolean closed;
+
+  /**
+   * Opens the spool in the directory, creating the directory if it
+   * does not exist, and queues again the feeds that were not
+   * acknowledged.
+   *
+   * @param directory the spool directory
+   * @throws IOException if the directory cannot be read or written
+   */
+  public FeedSpool(File directory) throws IOException {
+    if (directory == null) {
+      throw new NullPointerException("directory must not be null");
+    }
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    recover();
+  }
+
+  /**
+   * Sets whether to gzip the XML of feeds added from now on. The
+   * default is false.
+   *
+   * @param compression whether to gzip feeds on disk
+   * @return this object
+   */
+  public synchronized FeedSpool setCompression(boolean compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * Sets the number of feeds added or acknowledged after which the
+   * spool is synced. The default is 256; use 1 to sync every change.
+   *
+   * @param syncBatchSize the number of changes
+   * @return this object
+   */
+  public synchronized FeedSpool setSyncBatchSize(int syncBatchSize) {
+    if (syncBatchSize <= 0) {
+      throw new IllegalArgumentException("syncBatchSize must be positive");
+    }
+    this.syncBatchSize = syncBatchSize;
+    return this;
+  }
+
+  /**
+   * Sets the size in bytes after which a new segment file is
+   * started. The default is 64 MB.
+   *
+   * @param segmentSize the size of a segment file
+   * @return this object
+   */
+  public synchronized FeedSpool setSegmentSize(long segmentSize) {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("segmentSize must be positive");
+    }
+    this.segmentSize = segmentSize;
+    return this;
+  }
+
+  /**
+   * Adds a feed with provided datasource name and feedtype.
+   *
+   * @return the feed's id
+   */
+  public long addGsaFeed(String datasource, String feedtype, byte[] xml)
+      throws IOException {
+    return add(false, datasource, feedtype, new ByteArrayInputStream(xml));
+  }
+
+  /**
+   * Adds a feed with provided datasource name and feedtype, read from
+   * the stream. The stream is not closed.
+   *
+   * @return the feed's id
+   */
+  public long addGsaFeed(String datasource, String feedtype,
+      InputStream xmlStream) throws IOException {
+    return add(false, datasource, feedtype, xmlStream);
+  }
+
+  /**
+   * Adds groups with provided groupsource name and feedtype.
+   *
+   * @return the feed's id
+   */
+  public long addGroups(String groupsource, String feedtype, byte[] xml)
+      throws IOException {
+    return add(true, groupsource, feedtype, new ByteArrayInputStream(xml));
+  }
+
+  /**
+   * Adds groups with provided groupsource name and feedtype, read
+   * from the stream. The stream is not closed.
+   *
+   * @return the feed's id
+   */
+  public long addGroups(String groupsource, String feedtype,
+      InputStream xmlStream) throws IOException {
+    return add(true, groupsource, feedtype, xmlStream);
+  }
+
+  private synchronized long add(boolean groups, String source,
+      String feedtype, InputStream xmlStream) throws IOException {
+    if (source == null || feedtype == null) {
+      throw new NullPointerException();
+    }
+    checkOpen();
+    if (segmentOut.getCount() >= segmentSize) {
+      startSegment(segment + 1);
+    }
+    long offset = segmentOut.getCount();
+    segmentOut.resetChecksum();
+    long xmlLength = 0;
+    OutputStream out = compression
+        ? new GZIPOutputStream(new NonClosingOutputStream(segmentOut))
+        : new NonClosingOutputStream(segmentOut);
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = xmlStream.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+      xmlLength += count;
+    }
+    out.close();
+    Entry entry = new Entry(nextId++, groups, source, feedtype, compression,
+        segment, offset, segmentOut.getCount() - offset, xmlLength,
+        segmentOut.getChecksum());
+    writeAdd(manifestOut, entry);
+    addPending(entry);
+    notifyAll();
+    changed();
+    return entry.id;
+  }
+
+  /** Returns the number of feeds not yet acknowledged. */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Returns the oldest feed not yet acknowledged, waiting for one to
+   * be added if there is none.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   * @throws IllegalStateException if the spool is closed
+   */
+  public synchronized Entry awaitNext() throws InterruptedException {
+    while (!closed && pending.isEmpty()) {
+      wait();
+    }
+    checkOpen();
+    return pending.values().iterator().next();
+  }
+
+  /**
+   * Returns the oldest feed not yet acknowledged, or null if there is
+   * none.
+   */
+  public synchronized Entry peek() {
+    checkOpen();
+    return pending.isEmpty() ? null : pending.values().iterator().next();
+  }
+
+  /**
+   * Opens the XML of the feed, uncompressed.
+   *
+   * @throws IllegalArgumentException if the feed has been acknowledged
+   */
+  public InputStream open(Entry entry) throws IOException {
+    InputStream in = openStored(entry);
+    return entry.compressed ? new GZIPInputStream(in) : in;
+  }
+
+  private InputStream openStored(Entry entry) throws IOException {
+    File file;
+    synchronized (this) {
+      checkOpen();
+      if (pending.get(entry.id) != entry) {
+        throw new IllegalArgumentException("Not pending: " + entry);
+      }
+      if (entry.segment == segment) {
+        segmentOut.flush();
+      }
+      file = segmentFile(entry.segment);
+    }
+    return openRange(file, entry.offset, entry.length);
+  }
+
+  private static InputStream openRange(File file, long offset, long length)
+      throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    boolean opened = false;
+    try {
+      long skipped = 0;
+      while (skipped < offset) {
+        long n = in.skip(offset - skipped);
+        if (n <= 0) {
+          throw new EOFException("Segment is truncated: " + file);
+        }
+        skipped += n;
+      }
+      opened = true;
+      return new BufferedInputStream(new RangeInputStream(in, length));
+    } finally {
+      if (!opened) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Removes a feed that has been sent. Acknowledging a feed that is
+   * not pending does nothing.
+   */
+  public synchronized void acknowledge(Entry entry) throws IOException {
+    checkOpen();
+    if (pending.remove(entry.id) == null) {
+      return;
+    }
+    writeIdRecord(manifestOut, ACK, entry.id);
+    int left = segmentCounts.get(entry.segment) - 1;
+    if (left == 0) {
+      segmentCounts.remove(entry.segment);
+      if (entry.segment != segment) {
+        // The acknowledgement must be on disk before the data is gone.
+        sync();
+        deleteSegment(entry.segment);
+      }
+    } else {
+      segmentCounts.put(entry.segment, left);
+    }
+    acknowledged++;
+    changed();
+    if (acknowledged >= COMPACT_THRESHOLD
+        && acknowledged >= pending.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Moves the XML of a feed that cannot be sent to a file in the
+   * spool directory, and acknowledges the feed. The file is named
+   * after the feed's id and source; an existing file is never
+   * overwritten.
+   *
+   * @return the file holding the feed's XML, gzipped if its name ends
+   *     with ".gz"
+   */
+  public File reject(Entry entry) throws IOException {
+    String name = "failed-" + entry.id + "-"
+        + (entry.groups ? "xmlgroups-" : "xmlfeed-") + entry.source;
+    String extension = entry.compressed ? ".xml.gz" : ".xml";
+    File failed = new File(directory, name + extension);
+    // Spools from before ids were kept across restarts reused them.
+    for (int i = 2; !failed.createNewFile(); i++) {
+      failed = new File(directory, name + "-" + i + extension);
+    }
+    boolean copied = false;
+    try {
+      InputStream in = openStored(entry);
+      try {
+        FileOutputStream out = new FileOutputStream(failed);
+        try {
+          IOHelper.copyStream(in, out);
+          out.getFD().sync();
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+      copied = true;
+    } finally {
+      if (!copied) {
+        failed.delete();
+      }
+    }
+    acknowledge(entry);
+    return failed;
+  }
+
+  /**
+   * Writes all feeds and acknowledgements to disk.
+   *
+   * @throws IOException if the spool cannot be written
+   */
+  public synchronized void sync() throws IOException {
+    checkOpen();
+    // The data first, so that the manifest never refers to data that
+    // is not on disk.
+    segmentOut.flush();
+    segmentFile.getFD().sync();
+    manifestOut.flush();
+    manifestFile.getFD().sync();
+    unsynced = 0;
+  }
+
+  /** Syncs the spool and closes its files. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      sync();
+    } finally {
+      closed = true;
+      notifyAll();
+      try {
+        segmentOut.close();
+      } finally {
+        manifestOut.close();
+      }
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Spool is closed");
+    }
+  }
+
+  private void changed() throws IOException {
+    if (++unsynced >= syncBatchSize) {
+      sync();
+    }
+  }
+
+  private void addPending(Entry entry) {
+    pending.put(entry.id, entry);
+    Integer count = segmentCounts.get(entry.segment);
+    segmentCounts.put(entry.segment, (count == null) ? 1 : count + 1);
+  }
+
+  private synchronized void recover() throws IOException {
+    File manifest = new File(directory, MANIFEST);
+    File temp = new File(directory, MANIFEST_TEMP);
+    if (!manifest.exists() && temp.exists()) {
+      // The process stopped while compact() was replacing the
+      // manifest, after deleting the old one. The new one was synced
+      // before then, so it is complete.
+      log.log(Level.WARNING, "Restoring {0} from {1}",
+          new Object[] {manifest, temp});
+      if (!temp.renameTo(manifest)) {
+        throw new IOException("Cannot rename " + temp + " to " + manifest);
+      }
+    }
+    if (manifest.exists()) {
+      readManifest(manifest);
+    }
+    int lastSegment = 0;
+    String[] names = directory.list();
+    for (String name : names) {
+      Matcher matcher = SEGMENT_NAME.matcher(name);
+      if (matcher.matches()) {
+        lastSegment = Math.max(lastSegment,
+            Integer.parseInt(matcher.group(1)));
+      }
+    }
+    for (Iterator<Entry> it = pending.values().iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (!isIntact(entry)) {
+        log.log(Level.WARNING, "Dropping spooled feed {0}, whose data was "
+            + "not completely written", entry);
+        it.remove();
+      }
+    }
+    for (Entry entry : new ArrayList<Entry>(pending.values())) {
+      addPending(entry);
+    }
+    startSegment(lastSegment + 1);
+    compact();
+    for (String name : names) {
+      Matcher matcher = SEGMENT_NAME.matcher(name);
+      if (matcher.matches()) {
+        int number = Integer.parseInt(matcher.group(1));
+        if (!segmentCounts.containsKey(number)) {
+          deleteSegment(number);
+        }
+      }
+    }
+    if (!pending.isEmpty()) {
+      log.log(Level.INFO, "Recovered {0} spooled feeds", pending.size());
+    }
+  }
+
+  /** Reads the manifest up to the first incomplete record. */
+  private void readManifest(File manifest) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(manifest)));
+    try {
+      while (true) {
+        byte[] body;
+        try {
+          int length = in.readInt();
+          if (length <= 0 || length > 1 << 16) {
+            break;
+          }
+          body = new byte[length];
+          in.readFully(body);
+          if (in.readInt() != checksum(body, 0, body.length)) {
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+        DataInputStream record =
+            new DataInputStream(new ByteArrayInputStream(body));
+        byte type = record.readByte();
+        long id = record.readLong();
+        if (type == NEXT_ID) {
+          nextId = Math.max(nextId, id);
+          continue;
+        }
+        nextId = Math.max(nextId, id + 1);
+        if (type == ADD) {
+          pending.put(id, new Entry(id, record.readBoolean(),
+              record.readUTF(), record.readUTF(), record.readBoolean(),
+              record.readInt(), record.readLong(), record.readLong(),
+              record.readLong(), record.readInt()));
+        } else if (type == ACK) {
+          pending.remove(id);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Returns whether the feed's data matches its checksum. */
+  private boolean isIntact(Entry entry) throws IOException {
+    File file = segmentFile(entry.segment);
+    if (file.length() < entry.offset + entry.length) {
+      return false;
+    }
+    InputStream in = openRange(file, entry.offset, entry.length);
+    try {
+      CRC32 crc = new CRC32();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, count);
+      }
+      return (int) crc.getValue() == entry.checksum;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Rewrites the manifest with the next id and the pending feeds,
+   * replacing it once the new one is on disk.
+   */
+  private void compact() throws IOException {
+    if (manifestOut != null) {
+      sync();
+      manifestOut.close();
+    }
+    File temp = new File(directory, MANIFEST_TEMP);
+    FileOutputStream file = new FileOutputStream(temp);
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(file));
+      writeIdRecord(out, NEXT_ID, nextId);
+      for (Entry entry : pending.values()) {
+        writeAdd(out, entry);
+      }
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+    File manifest = new File(directory, MANIFEST);
+    if (!temp.renameTo(manifest)) {
+      // File.renameTo does not replace an existing file on Windows.
+      // The manifest is closed, so it can be deleted first; if the
+      // process stops before the rename, recover() restores the
+      // synced manifest.tmp.
+      if (!manifest.delete() || !temp.renameTo(manifest)) {
+        throw new IOException("Cannot replace " + manifest);
+      }
+    }
+    manifestFile = new FileOutputStream(manifest, true);
+    manifestOut = new DataOutputStream(
+        new BufferedOutputStream(manifestFile, 65536));
+    acknowledged = 0;
+  }
+
+  private void startSegment(int number) throws IOException {
+    if (segmentOut != null) {
+      sync();
+      segmentOut.close();
+      if (!segmentCounts.containsKey(segment)) {
+        deleteSegment(segment);
+      }
+    }
+    segment = number;
+    segmentFile = new FileOutputStream(segmentFile(number));
+    segmentOut = new CountingOutputStream(
+        new BufferedOutputStream(segmentFile, 65536));
+  }
+
+  private File segmentFile(int number) {
+    return new File(directory, String.format("segment-%010d", number));
+  }
+
+  private void deleteSegment(int number) {
+    File file = segmentFile(number);
+    if (file.exists() && !file.delete()) {
+      log.log(Level.WARNING, "Cannot delete {0}", file);
+    }
+  }
+
+  private static void writeAdd(DataOutputStream out, Entry entry)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(ADD);
+    record.writeLong(entry.id);
+    record.writeBoolean(entry.groups);
+    record.writeUTF(entry.source);
+    record.writeUTF(entry.feedtype);
+    record.writeBoolean(entry.compressed);
+    record.writeInt(entry.segment);
+    record.writeLong(entry.offset);
+    record.writeLong(entry.length);
+    record.writeLong(entry.xmlLength);
+    record.writeInt(entry.checksum);
+    record.flush();
+    byte[] body = bytes.toByteArray();
+    out.writeInt(body.length);
+    out.write(body);
+    out.writeInt(checksum(body, 0, body.length));
+  }
+
+  /** Writes an acknowledgement or next id record. */
+  private static void writeIdRecord(DataOutputStream out, byte type,
+      long id) throws IOException {
+    byte[] body = new byte[9];
+    body[0] = type;
+    for (int i = 0; i < 8; i++) {
+      body[1 + i] = (byte) (id >>> (56 - 8 * i));
+    }
+    out.writeInt(body.length);
+    out.write(body);
+    out.writeInt(checksum(body, 0, body.length));
+  }
+
+  private static int checksum(byte[] bytes, int off, int len) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, off, len);
+    return (int) crc.getValue();
+  }
+
+  /** A feed in the spool. */
+  public static final class Entry {
+    private final long id;
+    private final boolean groups;
+    private final String source;
+    private final String feedtype;
+    private final boolean compressed;
+    private final int segment;
+    private final long offset;
+    private final long length;
+    private final long xmlLength;
+    private final int checksum;
+
+    Entry(long id, boolean groups, String source, String feedtype,
+        boolean compressed, int segment, long offset, long length,
+        long xmlLength, int checksum) {
+      this.id = id;
+      this.groups = groups;
+      this.source = source;
+      this.feedtype = feedtype;
+      this.compressed = compressed;
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.xmlLength = xmlLength;
+      this.checksum = checksum;
+    }
+
+    /** Returns the id, which increases with each feed added. */
+    public long getId() {
+      return id;
+    }
+
+    /** Returns whether this is a groups feed. */
+    public boolean isGroups() {
+      return groups;
+    }
+
+    /** Returns the datasource or groupsource name. */
+    public String getSource() {
+      return source;
+    }
+
+    /** Returns the feedtype. */
+    public String getFeedtype() {
+      return feedtype;
+    }
+
+    /** Returns the length of the XML in bytes, uncompressed. */
+    public long getXmlLength() {
+      return xmlLength;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry(" + id + ", " + (groups ? "xmlgroups " : "xmlfeed ")
+          + source + ", " + feedtype + ", " + xmlLength + " bytes)";
+    }
+  }
+
+  /** Counts the bytes written and computes their checksum. */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+    private final CRC32 crc = new CRC32();
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    void resetChecksum() {
+      crc.reset();
+    }
+
+    int getChecksum() {
+      return (int) crc.getValue();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      crc.update(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      crc.update(b, off, len);
+      count += len;
+    }
+  }
+
+  /** Keeps the segment open when a feed's stream is closed. */
+  private static class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() {
+      // The segment is flushed when it is read or synced.
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /** Reads up to a given number of bytes. */
+  private static class RangeInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    RangeInputStream(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("Spooled feed is truncated");
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int count = in.read(b, off, (int) Math.min(len, remaining));
+      if (count == -1) {
+        throw new EOFException("Spooled feed is truncated");
+      }
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,253 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the feeds in a {@link FeedSpool} to the GSA, one at a time in
+ * the order they were added, and acknowledges each one once the GSA
+ * has accepted it. Feeds left in the spool by an earlier process are
+ * sent first.
+ *
+ * <p>A feed that fails with an IOException, such as when the GSA
+ * cannot be reached or the feed cannot be read from the spool, is
+ * tried again after a delay from the retry policy, for as long as it
+ * takes. A feed that the GSA rejects, which the sender reports with
+ * an IllegalStateException, is tried up to the policy's maximum
+ * number of attempts, and then moved aside with {@link
+ * FeedSpool#reject}, so that it does not hold up the feeds after it.
+ *
+ * <p>Only one sender may drain a spool.
+ */
+public class FeedSpoolSender {
+  private static final Logger log
+      = Logger.getLogger(FeedSpoolSender.class.getName());
+
+  private final FeedSpool spool;
+  private final GsaFeedFileSender sender;
+  private final Random random = new Random();
+  private volatile RetryPolicy retryPolicy = new RetryPolicy();
+  private volatile boolean useCompression;
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+
+  // Guarded by this.
+  private Thread thread;
+
+  /**
+   * @param spool the spool to drain
+   * @param sender the sender to send the feeds with
+   */
+  public FeedSpoolSender(FeedSpool spool, GsaFeedFileSender sender) {
+    if (spool == null || sender == null) {
+      throw new NullPointerException();
+    }
+    this.spool = spool;
+    this.sender = sender;
+  }
+
+  /**
+   * Sets the policy for the delays between attempts to send a feed,
+   * and the number of times a rejected feed is tried. The default
+   * policy moves a rejected feed aside the first time.
+   *
+   * @param retryPolicy the retry policy
+   * @return this object
+   */
+  public FeedSpoolSender setRetryPolicy(RetryPolicy retryPolicy) {
+    if (retryPolicy == null) {
+      throw new NullPointerException("retryPolicy must not be null");
+    }
+    this.retryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * Sets whether to gzip feeds when sending them. The default is
+   * false. This is separate from whether they are gzipped on disk.
+   *
+   * @param useCompression whether to compress feeds sent
+   * @return this object
+   */
+  public FeedSpoolSender setCompression(boolean useCompression) {
+    this.useCompression = useCompression;
+    return this;
+  }
+
+  /**
+   * Starts a daemon thread that sends feeds as they are added, until
+   * {@link #stop} is called.
+   *
+   * @throws IllegalStateException if the thread has already been
+   *     started, and has not yet finished after being stopped
+   */
+  public synchronized void start() {
+    if (thread != null) {
+      throw new IllegalStateException("Already started");
+    }
+    thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              send(spool.awaitNext());
+            }
+          } catch (InterruptedException e) {
+            // Stopped.
+          } catch (IllegalStateException e) {
+            // The spool was closed.
+          } catch (IOException e) {
+            log.log(Level.SEVERE, "Cannot update the spool", e);
+          } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Stopped sending spooled feeds", e);
+          }
+        }
+      }, "gsafeed-spool-sender");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Interrupts the thread and waits up to the timeout for it to
+   * finish. An interrupt does not end a send that is waiting for the
+   * GSA, so the thread may still be running when the timeout elapses;
+   * it then finishes once that send returns, which the transport's
+   * timeouts bound, without sending another feed. A feed being sent
+   * is sent again the next time, unless the GSA had accepted it.
+   *
+   * @param timeout the longest time to wait
+   * @param unit the unit of the timeout
+   * @return true if the thread has finished, or was not started
+   */
+  public boolean stop(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    Thread stopping;
+    synchronized (this) {
+      stopping = thread;
+    }
+    if (stopping == null) {
+      return true;
+    }
+    stopping.interrupt();
+    unit.timedJoin(stopping, timeout);
+    if (stopping.isAlive()) {
+      return false;
+    }
+    synchronized (this) {
+      if (thread == stopping) {
+        thread = null;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sends the feeds in the spool in the calling thread, without
+   * retrying, until it is empty or a feed fails.
+   *
+   * @return the number of feeds sent
+   * @throws IOException if a feed cannot be sent, or the spool
+   *     cannot be updated
+   * @throws IllegalStateException if the GSA rejects a feed
+   */
+  public int drain() throws IOException {
+    int count = 0;
+    FeedSpool.Entry entry;
+    while ((entry = spool.peek()) != null) {
+      sendOnce(entry);
+      spool.acknowledge(entry);
+      sentCount.incrementAndGet();
+      count++;
+    }
+    return count;
+  }
+
+  /** Returns the number of feeds sent. */
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  /** Returns the number of feeds rejected and moved aside. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Sends the feed, retrying failures, and acknowledges it. Closing
+   * the spool ends the retries with an IllegalStateException.
+   */
+  private void send(FeedSpool.Entry entry)
+      throws IOException, InterruptedException {
+    int rejections = 0;
+    for (int attempt = 1; ; attempt++) {
+      boolean rejected = false;
+      InputStream in = null;
+      try {
+        in = spool.open(entry);
+        send(entry, in);
+        break;
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Failed to send spooled feed " + entry, e);
+      } catch (IllegalStateException e) {
+        if (in == null) {
+          // The spool was closed.
+          throw e;
+        }
+        log.log(Level.WARNING, "GSA rejected spooled feed " + entry, e);
+        rejected = ++rejections >= retryPolicy.getMaxAttempts();
+      } finally {
+        if (in != null) {
+          in.close();
+        }
+      }
+      if (rejected) {
+        log.log(Level.SEVERE, "Moved rejected feed {0} to {1}",
+            new Object[] {entry, spool.reject(entry)});
+        rejectedCount.incrementAndGet();
+        return;
+      }
+      Thread.sleep(retryPolicy.getDelay(attempt, random));
+    }
+    spool.acknowledge(entry);
+    sentCount.incrementAndGet();
+  }
+
+  private void sendOnce(FeedSpool.Entry entry) throws IOException {
+    InputStream in = spool.open(entry);
+    try {
+      send(entry, in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void send(FeedSpool.Entry entry, InputStream in)
+      throws IOException {
+    if (entry.isGroups()) {
+      sender.sendGroups(entry.getSource(), entry.getFeedtype(), in,
+          entry.getXmlLength(), useCompression);
+    } else {
+      sender.sendGsaFeed(entry.getSource(), entry.getFeedtype(), in,
+          entry.getXmlLength(), useCompression);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Posts the HTTP requests made by {@link GsaFeedFileSender}.
+ * Implementations must be thread-safe. The default is {@link
+ * HttpFeedTransport}.
+ */
+public interface FeedTransport {
+  /**
+   * Posts a request and reads the whole response.
+   *
+   * @param url the URL to post to
+   * @param headers the request headers
+   * @param contentLength the length of the body in bytes, or -1 if it
+   *     is not known
+   * @param body writes the request body
+   * @return the response
+   * @throws IOException if the request cannot be sent or the response
+   *     cannot be read
+   */
+  Response post(URL url, Map<String, String> headers, long contentLength,
+      RequestBody body) throws IOException;
+
+  /** Writes the body of a request. */
+  interface RequestBody {
+    /**
+     * Writes the body to the stream. The stream is closed by the
+     * transport.
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** The status and body of a response. */
+  class Response {
+    private final int responseCode;
+    private final byte[] body;
+
+    /**
+     * @param responseCode the HTTP response code
+     * @param body the response body, or null if there was none
+     */
+    public Response(int responseCode, byte[] body) {
+      this.responseCode = responseCode;
+      this.body = body;
+    }
+
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    /** Returns the response body, or null if there was none. */
+    public byte[] getBody() {
+      return body;
+    }
+  }
+}
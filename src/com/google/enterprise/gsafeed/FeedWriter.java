@@ -0,0 +1,330 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Writes a feed to a stream one element at a time. The output is
+ * the same as marshalling the whole feed with {@link
+ * FeedHelper#marshal}.
+ */
+/*
+ * Each element is marshalled as a JAXB fragment. The formatted
+ * fragment is indented as if it were at the top level, so it is
+ * passed through an IndentingOutputStream that shifts it to its depth
+ * in the document.
+ */
+class FeedWriter {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** The indentation used by the JAXB formatted output. */
+  private static final int INDENT = 4;
+
+  private final OutputStream out;
+  private final Marshaller marshaller;
+  private final List<OpenElement> openElements = new ArrayList<OpenElement>();
+  private boolean finished;
+
+  /** An element whose end tag has not been written yet. */
+  private static class OpenElement {
+    final String name;
+    final byte[] emptyElement;
+    boolean started;
+
+    OpenElement(String name, byte[] emptyElement) {
+      this.name = name;
+      this.emptyElement = emptyElement;
+    }
+  }
+
+  /**
+   * Writes the XML declaration and DOCTYPE, and starts the root
+   * element.
+   *
+   * @param root an empty root element
+   * @param rootName the name of the root element
+   */
+  FeedWriter(FeedHelper helper, OutputStream out, Object root,
+      String rootName) throws IOException, JAXBException {
+    this.out = out;
+    this.marshaller = helper.createMarshaller();
+    out.write(helper.getXmlHeaders().getBytes(UTF_8));
+    startElement(root, rootName);
+  }
+
+  /**
+   * Starts an element. Elements written before the matching call to
+   * {@link #endElement} are its children.
+   *
+   * @param element an element with no children; only its attributes
+   *     are written
+   * @param name the name of the element
+   */
+  void startElement(Object element, String name)
+      throws IOException, JAXBException {
+    checkNotFinished();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    marshal(element, buffer);
+    openElements.add(new OpenElement(name, buffer.toByteArray()));
+  }
+
+  /** Writes a complete element as a child of the current element. */
+  void writeElement(Object element) throws IOException, JAXBException {
+    checkNotFinished();
+    startParents();
+    marshal(element, out);
+  }
+
+  /**
+   * Marshals an element as a child of the current element, without
+   * writing it. The result can be passed to {@link #writeMarshalled}
+   * at the same depth.
+   */
+  byte[] marshalChild(Object element) throws IOException, JAXBException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    marshal(element, buffer);
+    return buffer.toByteArray();
+  }
+
+  /** Writes an element returned by {@link #marshalChild}. */
+  void writeMarshalled(byte[] child) throws IOException {
+    checkNotFinished();
+    startParents();
+    out.write(child);
+  }
+
+  /**
+   * Returns the number of bytes that writing the marshalled child and
+   * then finishing the document would add to the stream.
+   */
+  long getLengthWith(byte[] child) {
+    long length = child.length + 1;
+    for (int i = 0; i < openElements.size(); i++) {
+      OpenElement element = openElements.get(i);
+      if (!element.started) {
+        length += element.emptyElement.length - 1;
+      }
+      // A newline, the indentation and the end tag.
+      length += 1 + i * INDENT + element.name.length() + 3;
+    }
+    return length;
+  }
+
+  /**
+   * Ends the current element without writing anything for it.
+   *
+   * @throws IllegalStateException if a child has been written
+   */
+  void cancelElement() {
+    OpenElement element = openElements.get(openElements.size() - 1);
+    if (element.started) {
+      throw new IllegalStateException("The element has been started");
+    }
+    openElements.remove(openElements.size() - 1);
+  }
+
+  /** Ends the current element. */
+  void endElement() throws IOException {
+    OpenElement element = openElements.remove(openElements.size() - 1);
+    if (element.started) {
+      out.write('\n');
+      writeIndent(out, openElements.size());
+      out.write(("</" + element.name + ">").getBytes(UTF_8));
+    } else {
+      out.write(element.emptyElement);
+    }
+  }
+
+  /** Returns the number of elements that have not been ended. */
+  int getDepth() {
+    return openElements.size();
+  }
+
+  /**
+   * Ends all open elements, including the root element, and flushes
+   * the stream. The stream is not closed.
+   */
+  void finish() throws IOException {
+    checkNotFinished();
+    while (!openElements.isEmpty()) {
+      endElement();
+    }
+    out.write('\n');
+    out.flush();
+    finished = true;
+  }
+
+  private void checkNotFinished() {
+    if (finished) {
+      throw new IllegalStateException("The feed has been finished");
+    }
+  }
+
+  private void marshal(Object element, OutputStream stream)
+      throws IOException, JAXBException {
+    IndentingOutputStream indenting =
+        new IndentingOutputStream(stream, openElements.size());
+    StreamedContentOutputStream.marshal(marshaller, element, indenting);
+    indenting.finish();
+  }
+
+  /** Writes the start tags of any open elements with no children yet. */
+  private void startParents() throws IOException {
+    for (OpenElement element : openElements) {
+      if (!element.started) {
+        // Turn <name .../> into <name ...>.
+        byte[] bytes = element.emptyElement;
+        out.write(bytes, 0, bytes.length - 2);
+        out.write('>');
+        element.started = true;
+      }
+    }
+  }
+
+  private static void writeIndent(OutputStream stream, int depth)
+      throws IOException {
+    for (int i = 0; i < depth * INDENT; i++) {
+      stream.write(' ');
+    }
+  }
+
+  /**
+   * Adds indentation to formatted JAXB output. The formatter starts
+   * each tag on a new line, unless the tag follows text, and ends
+   * the output with a newline. Feed elements never contain both text
+   * and child elements, so a newline followed by spaces is
+   * indentation if it comes before a start tag or after an end tag,
+   * and is text otherwise. The trailing newline is dropped.
+   */
+  static class IndentingOutputStream extends FilterOutputStream {
+    private final byte[] indent;
+    // Held newline and spaces that may be indentation.
+    private final ByteArrayOutputStream whitespace =
+        new ByteArrayOutputStream();
+    private boolean heldLessThan;
+    private boolean inTag;
+    private boolean inQuote;
+    private boolean tagFirstByte;
+    private boolean endTag;
+    private byte previous;
+    private boolean afterStartTag;
+    private boolean inText;
+
+    IndentingOutputStream(OutputStream out, int depth) {
+      super(out);
+      indent = new byte[depth * INDENT];
+      Arrays.fill(indent, (byte) ' ');
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int end = off + len;
+      // Bytes from start to i are passed through unchanged.
+      int start = off;
+      for (int i = off; i < end; i++) {
+        byte c = b[i];
+        if (inTag) {
+          tagByte(c);
+        } else if (heldLessThan) {
+          // Text can only be followed by an end tag.
+          writeWhitespace(!(afterStartTag && c == '/'));
+          out.write('<');
+          heldLessThan = false;
+          startTag();
+          tagByte(c);
+          start = i;
+        } else if (whitespace.size() > 0) {
+          if (c == ' ') {
+            whitespace.write(c);
+            start = i + 1;
+          } else if (c == '<') {
+            heldLessThan = true;
+            start = i + 1;
+          } else {
+            writeWhitespace(false);
+            inText = true;
+            start = i;
+          }
+        } else if (inText) {
+          if (c == '<') {
+            startTag();
+          }
+        } else if (c == '\n') {
+          out.write(b, start, i - start);
+          whitespace.write(c);
+          start = i + 1;
+        } else if (c == '<') {
+          startTag();
+        } else {
+          inText = true;
+        }
+      }
+      out.write(b, start, end - start);
+    }
+
+    /** Drops the trailing newline. */
+    void finish() throws IOException {
+      whitespace.reset();
+      out.flush();
+    }
+
+    private void startTag() {
+      inTag = true;
+      inText = false;
+      tagFirstByte = true;
+    }
+
+    private void tagByte(byte c) {
+      if (tagFirstByte) {
+        endTag = (c == '/');
+        tagFirstByte = false;
+      }
+      if (c == '"') {
+        inQuote = !inQuote;
+      } else if (c == '>' && !inQuote) {
+        inTag = false;
+        afterStartTag = !endTag && previous != '/';
+      }
+      previous = c;
+    }
+
+    private void writeWhitespace(boolean isIndent) throws IOException {
+      byte[] bytes = whitespace.toByteArray();
+      whitespace.reset();
+      if (isIndent) {
+        out.write(bytes, 0, 1);
+        out.write(indent);
+        out.write(bytes, 1, bytes.length - 1);
+      } else {
+        out.write(bytes);
+      }
+    }
+  }
+}
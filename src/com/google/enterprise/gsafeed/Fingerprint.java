@@ -0,0 +1,174 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Computes SHA-1 digests of records and acls, so that two versions of
+ * a document can be compared without keeping either one. Two records
+ * have the same fingerprint if their attributes, acl, metadata and
+ * decoded content are the same; the url and action are not included,
+ * and neither is the encoding of the content, so re-encoding a record
+ * does not change it.
+ */
+class Fingerprint {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** The length of a fingerprint in bytes. */
+  static final int LENGTH = 20;
+
+  private Fingerprint() {
+  }
+
+  /**
+   * Returns the fingerprint of the record. Content that was spilled
+   * to a file when the feed was read is read from the file.
+   *
+   * @throws IOException if content cannot be read
+   */
+  static byte[] of(Record record) throws IOException {
+    MessageDigest digest = newDigest();
+    DataOutputStream out = new DataOutputStream(
+        new DigestOutputStream(new NullOutputStream(), digest));
+    writeString(out, record.displayurl);
+    writeString(out, record.mimetype);
+    out.writeLong(record.lastModified == null
+        ? Long.MIN_VALUE : record.lastModified.getTime());
+    writeObject(out, record.lock);
+    writeObject(out, record.authmethod);
+    writeString(out, record.feedrank);
+    writeString(out, record.pagerank);
+    writeObject(out, record.crawlImmediately);
+    writeObject(out, record.crawlOnce);
+    writeObject(out, record.scoring);
+    out.writeBoolean(record.acl != null);
+    if (record.acl != null) {
+      write(out, record.acl);
+    }
+    List<Metadata> metadata = record.metadata;
+    out.writeInt(metadata == null ? 0 : metadata.size());
+    for (int i = 0; metadata != null && i < metadata.size(); i++) {
+      Metadata m = metadata.get(i);
+      writeObject(out, m.overwriteAcls);
+      out.writeInt(m.meta == null ? 0 : m.meta.size());
+      for (int j = 0; m.meta != null && j < m.meta.size(); j++) {
+        Meta meta = m.meta.get(j);
+        writeString(out, meta.name);
+        writeString(out, meta.content);
+        writeObject(out, meta.encoding);
+      }
+    }
+    List<Content> contents = record.content;
+    out.writeInt(contents == null ? 0 : contents.size());
+    for (int i = 0; contents != null && i < contents.size(); i++) {
+      // The decoded bytes followed by their length, so that where one
+      // content ends is part of the digest, but how the stream
+      // happens to split its reads is not.
+      InputStream in = contents.get(i).openDecodedStream();
+      try {
+        byte[] buffer = new byte[8192];
+        long length = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          out.write(buffer, 0, count);
+          length += count;
+        }
+        out.writeLong(length);
+      } finally {
+        in.close();
+      }
+    }
+    out.flush();
+    return digest.digest();
+  }
+
+  /** Returns the fingerprint of the acl, including its url. */
+  static byte[] of(Acl acl) {
+    MessageDigest digest = newDigest();
+    DataOutputStream out = new DataOutputStream(
+        new DigestOutputStream(new NullOutputStream(), digest));
+    try {
+      writeString(out, acl.url);
+      write(out, acl);
+      out.flush();
+    } catch (IOException e) {
+      // The stream does not throw.
+      throw new AssertionError(e);
+    }
+    return digest.digest();
+  }
+
+  private static void write(DataOutputStream out, Acl acl)
+      throws IOException {
+    writeObject(out, acl.inheritanceType);
+    writeString(out, acl.inheritFrom);
+    List<Principal> principals = acl.principal;
+    out.writeInt(principals == null ? 0 : principals.size());
+    for (int i = 0; principals != null && i < principals.size(); i++) {
+      Principal principal = principals.get(i);
+      writeObject(out, principal.scope);
+      writeObject(out, principal.access);
+      // As the DTD does, treat a missing namespace as "Default".
+      writeString(out, principal.getNamespace());
+      writeObject(out, principal.caseSensitivityType);
+      writeObject(out, principal.principalType);
+      writeString(out, principal.value);
+    }
+  }
+
+  private static void writeObject(DataOutputStream out, Object value)
+      throws IOException {
+    writeString(out, (value == null) ? null : value.toString());
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+}
@@ -0,0 +1,721 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Members;
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the effective groups of each principal in a groups feed:
+ * the groups that list it as a member, the groups that list those
+ * groups, and so on. Example:
+ *
+ * <pre>
+ * GroupExpander expander = new GroupExpander(xmlgroups);
+ * for (Principal group : expander.getGroups(user)) {
+ *   ...
+ * }
+ * </pre>
+ *
+ * <p>The groups of a principal are computed when first asked for, and
+ * remembered, along with those of every group they depend on. A group
+ * that is, through other groups, a member of itself forms a cycle with
+ * those groups; each principal in a cycle belongs to every group in
+ * it, including itself, and {@link #getCycles} lists them. {@link
+ * #expandAll(ExecutorService)} computes the groups of every principal
+ * up front, spreading the work over an executor.
+ *
+ * <p>The members of a group can be changed with {@link #setMembers}
+ * or {@link #add}. Only the remembered groups of principals below the
+ * changed group are discarded, so a small change to a large directory
+ * costs little.
+ *
+ * <p>Principals are compared as in {@link GroupGraph}, by scope,
+ * namespace, case sensitivity, principal type and name. An expander is
+ * not thread-safe.
+ */
+public class GroupExpander {
+  private static final int[] NONE = new int[0];
+  /** The number of components expanded by one task in expandAll. */
+  private static final int CHUNK = 256;
+
+  private final Map<Key, Integer> nodes = new HashMap<Key, Integer>();
+  private Key[] keys = new Key[64];
+  /** The direct members of each group, or null if it has none. */
+  private int[][] members = new int[64][];
+  /** The groups that list each node as a direct member, or null. */
+  private IntArray[] parents = new IntArray[64];
+  /** The effective groups of each node, sorted, or null if unknown. */
+  private int[][] groups = new int[64][];
+  private int size;
+
+  /*
+   * Scratch space for finding components, all zero between calls.
+   * While a node is being visited, order holds its visit number; once
+   * its component is found, it holds minus one more than the index of
+   * the component.
+   */
+  private int[] order = new int[64];
+  private int[] lowlink = new int[64];
+  private boolean[] onStack = new boolean[64];
+
+  /** Creates an expander with no memberships. */
+  public GroupExpander() {
+  }
+
+  /**
+   * Creates an expander for the memberships of the feed. A group with
+   * several memberships has the members of all of them.
+   */
+  public GroupExpander(Xmlgroups feed) {
+    for (Membership membership : feed.getMembership()) {
+      add(membership);
+    }
+  }
+
+  /** Creates an expander for the memberships of the graph. */
+  public GroupExpander(GroupGraph graph) {
+    int count = graph.getPrincipalCount();
+    for (int node = 0; node < count; node++) {
+      node(graph.getPrincipal(node));
+    }
+    for (int node = 0; node < count; node++) {
+      if (graph.isGroup(node)) {
+        addMembers(node, graph.getMembers(node));
+      }
+    }
+  }
+
+  /**
+   * Adds the members of the membership to those its group already has.
+   *
+   * @param membership the membership
+   * @return this expander
+   * @throws IllegalArgumentException if the membership has no
+   *     principal
+   */
+  public GroupExpander add(Membership membership) {
+    addMembers(group(membership), nodes(membership));
+    return this;
+  }
+
+  /**
+   * Replaces the members of the membership's group with the members of
+   * the membership. A membership without members leaves the group with
+   * none.
+   *
+   * @param membership the membership
+   * @return this expander
+   * @throws IllegalArgumentException if the membership has no
+   *     principal
+   */
+  public GroupExpander setMembers(Membership membership) {
+    int group = group(membership);
+    int[] updated = distinct(nodes(membership));
+    int[] old = (members[group] == null) ? NONE : members[group];
+    int[] removed = difference(old, updated);
+    int[] added = difference(updated, old);
+    // Discard what depended on the removed edges while they are still
+    // in place, and what depends on the added ones once they are.
+    invalidate(removed);
+    for (int member : removed) {
+      parents[member].remove(group);
+    }
+    for (int member : added) {
+      parents(member).add(group);
+    }
+    members[group] = (updated.length == 0) ? null : updated;
+    invalidate(added);
+    return this;
+  }
+
+  /** Returns the number of distinct principals. */
+  public int getPrincipalCount() {
+    return size;
+  }
+
+  /** Returns the number of principals whose groups are remembered. */
+  public int getExpandedCount() {
+    int count = 0;
+    for (int node = 0; node < size; node++) {
+      if (groups[node] != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the groups that the principal belongs to directly or
+   * through other groups, in the order they were first seen. A
+   * principal that does not occur in any membership belongs to none.
+   *
+   * @param principal the principal
+   * @return new Principal objects for the groups
+   */
+  public List<Principal> getGroups(Principal principal) {
+    Integer node = nodes.get(new Key(principal));
+    if (node == null) {
+      return new ArrayList<Principal>();
+    }
+    return principals(expand(node));
+  }
+
+  /**
+   * Returns whether the principal belongs to the group directly or
+   * through other groups.
+   */
+  public boolean isMember(Principal principal, Principal group) {
+    Integer node = nodes.get(new Key(principal));
+    Integer groupNode = nodes.get(new Key(group));
+    if (node == null || groupNode == null) {
+      return false;
+    }
+    return Arrays.binarySearch(expand(node), groupNode) >= 0;
+  }
+
+  /**
+   * Returns the cycles among the groups: each list holds the groups
+   * that are, through each other, members of themselves. A group that
+   * lists itself as a member is a cycle of one.
+   */
+  public List<List<Principal>> getCycles() {
+    int[] all = new int[size];
+    for (int node = 0; node < size; node++) {
+      all[node] = node;
+    }
+    List<int[]> components = findComponents(all, false);
+    List<List<Principal>> cycles = new ArrayList<List<Principal>>();
+    for (int[] component : components) {
+      if (isCycle(component)) {
+        int[] sorted = component.clone();
+        Arrays.sort(sorted);
+        cycles.add(principals(sorted));
+      }
+    }
+    clearScratch(components);
+    return cycles;
+  }
+
+  /** Computes the groups of every principal in this thread. */
+  public void expandAll() {
+    for (int node = 0; node < size; node++) {
+      expand(node);
+    }
+  }
+
+  /**
+   * Computes the groups of every principal, running the work in
+   * parallel on the executor. Principals are expanded in waves: those
+   * whose groups are already known, or that belong to no group, come
+   * first, and each later wave only needs the groups computed by the
+   * waves before it. The executor is not shut down.
+   *
+   * @param executor the executor to run the work on
+   * @throws InterruptedException if interrupted while waiting for the
+   *     work to finish, in which case some groups may not be computed
+   */
+  public void expandAll(ExecutorService executor)
+      throws InterruptedException {
+    int[] pending = new int[size];
+    int count = 0;
+    for (int node = 0; node < size; node++) {
+      if (groups[node] == null) {
+        pending[count++] = node;
+      }
+    }
+    final List<int[]> components =
+        findComponents(Arrays.copyOf(pending, count), true);
+    try {
+      // A component's wave is one more than the latest wave of the
+      // components holding its parents, all of which were found first.
+      int[] waves = new int[components.size()];
+      int waveCount = 0;
+      for (int c = 0; c < components.size(); c++) {
+        int wave = 0;
+        for (int node : components.get(c)) {
+          IntArray up = parents[node];
+          for (int i = 0; up != null && i < up.size(); i++) {
+            int other = -order[up.get(i)] - 1;
+            if (other >= 0 && other != c) {
+              wave = Math.max(wave, waves[other] + 1);
+            }
+          }
+        }
+        waves[c] = wave;
+        waveCount = Math.max(waveCount, wave + 1);
+      }
+      int[] starts = new int[waveCount + 1];
+      for (int wave : waves) {
+        starts[wave + 1]++;
+      }
+      for (int w = 0; w < waveCount; w++) {
+        starts[w + 1] += starts[w];
+      }
+      int[] byWave = new int[waves.length];
+      int[] next = starts.clone();
+      for (int c = 0; c < waves.length; c++) {
+        byWave[next[waves[c]]++] = c;
+      }
+      for (int w = 0; w < waveCount; w++) {
+        runWave(executor, components, byWave, starts[w], starts[w + 1]);
+      }
+    } finally {
+      clearScratch(components);
+    }
+  }
+
+  private void runWave(ExecutorService executor,
+      final List<int[]> components, final int[] byWave, int start,
+      int end) throws InterruptedException {
+    if (end - start <= CHUNK) {
+      for (int i = start; i < end; i++) {
+        expandComponent(components.get(byWave[i]));
+      }
+      return;
+    }
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = start; i < end; i += CHUNK) {
+      final int from = i;
+      final int to = Math.min(i + CHUNK, end);
+      tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int j = from; j < to; j++) {
+              expandComponent(components.get(byWave[j]));
+            }
+            return null;
+          }
+        });
+    }
+    // invokeAll waits for every task, so the next wave sees the groups
+    // computed by this one.
+    for (Future<Void> future : executor.invokeAll(tasks)) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "GroupExpander(principals=" + size
+        + ", expanded=" + getExpandedCount() + ")";
+  }
+
+  /** Returns the node's groups, computing them if need be. */
+  private int[] expand(int node) {
+    if (groups[node] == null) {
+      List<int[]> components = findComponents(new int[] { node }, true);
+      try {
+        for (int[] component : components) {
+          expandComponent(component);
+        }
+      } finally {
+        clearScratch(components);
+      }
+    }
+    return groups[node];
+  }
+
+  /**
+   * Computes the groups of the nodes in a component, which are the
+   * same for all of them, from the groups of its parents. Must be
+   * called after findComponents and before clearScratch.
+   */
+  private void expandComponent(int[] component) {
+    int id = order[component[0]];
+    IntArray result = new IntArray(16);
+    boolean cycle = component.length > 1;
+    for (int node : component) {
+      IntArray up = parents[node];
+      for (int i = 0; up != null && i < up.size(); i++) {
+        int parent = up.get(i);
+        if (order[parent] == id) {
+          cycle = true;
+          continue;
+        }
+        result.add(parent);
+        for (int group : groups[parent]) {
+          result.add(group);
+        }
+      }
+    }
+    if (cycle) {
+      for (int node : component) {
+        result.add(node);
+      }
+    }
+    int[] sorted = NONE;
+    if (result.size() > 0) {
+      sorted = result.toArray();
+      Arrays.sort(sorted);
+      int distinct = 1;
+      for (int i = 1; i < sorted.length; i++) {
+        if (sorted[i] != sorted[distinct - 1]) {
+          sorted[distinct++] = sorted[i];
+        }
+      }
+      sorted = Arrays.copyOf(sorted, distinct);
+    }
+    for (int node : component) {
+      groups[node] = sorted;
+    }
+  }
+
+  /**
+   * Finds the strongly connected components of the graph of parent
+   * links reachable from the given nodes, using Tarjan's algorithm
+   * without recursion. Each component comes after the components of
+   * all of its parents. The caller must call clearScratch with the
+   * result.
+   *
+   * @param starts the nodes to start from
+   * @param skipExpanded whether to pass over nodes whose groups are
+   *     already known, rather than visit them
+   */
+  private List<int[]> findComponents(int[] starts, boolean skipExpanded) {
+    List<int[]> components = new ArrayList<int[]>();
+    IntArray stack = new IntArray(16);
+    IntArray path = new IntArray(16);
+    IntArray edges = new IntArray(16);
+    int visits = 0;
+    for (int start : starts) {
+      if (order[start] != 0 || (skipExpanded && groups[start] != null)) {
+        continue;
+      }
+      order[start] = lowlink[start] = ++visits;
+      stack.add(start);
+      onStack[start] = true;
+      path.add(start);
+      edges.add(0);
+      while (path.size() > 0) {
+        int top = path.size() - 1;
+        int node = path.get(top);
+        int edge = edges.get(top);
+        IntArray up = parents[node];
+        if (up != null && edge < up.size()) {
+          edges.set(top, edge + 1);
+          int parent = up.get(edge);
+          if (order[parent] == 0) {
+            if (skipExpanded && groups[parent] != null) {
+              continue;
+            }
+            order[parent] = lowlink[parent] = ++visits;
+            stack.add(parent);
+            onStack[parent] = true;
+            path.add(parent);
+            edges.add(0);
+          } else if (onStack[parent]) {
+            lowlink[node] = Math.min(lowlink[node], order[parent]);
+          }
+          continue;
+        }
+        path.removeLast();
+        edges.removeLast();
+        if (path.size() > 0) {
+          int caller = path.get(path.size() - 1);
+          lowlink[caller] = Math.min(lowlink[caller], lowlink[node]);
+        }
+        if (lowlink[node] == order[node]) {
+          int id = -components.size() - 1;
+          IntArray component = new IntArray(1);
+          int member;
+          do {
+            member = stack.removeLast();
+            onStack[member] = false;
+            order[member] = id;
+            component.add(member);
+          } while (member != node);
+          components.add(component.toArray());
+        }
+      }
+    }
+    return components;
+  }
+
+  private void clearScratch(List<int[]> components) {
+    for (int[] component : components) {
+      for (int node : component) {
+        order[node] = 0;
+        lowlink[node] = 0;
+      }
+    }
+  }
+
+  /** Must be called after findComponents and before clearScratch. */
+  private boolean isCycle(int[] component) {
+    if (component.length > 1) {
+      return true;
+    }
+    int node = component[0];
+    IntArray up = parents[node];
+    for (int i = 0; up != null && i < up.size(); i++) {
+      if (up.get(i) == node) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Forgets the groups of the given nodes and of every node below them.
+   * A node's groups are only known if those of all the groups above it
+   * are, so there is no need to look below a node whose groups are not
+   * known.
+   */
+  private void invalidate(int[] starts) {
+    IntArray pending = new IntArray(16);
+    for (int start : starts) {
+      pending.add(start);
+    }
+    while (pending.size() > 0) {
+      int node = pending.removeLast();
+      if (groups[node] == null) {
+        continue;
+      }
+      groups[node] = null;
+      if (members[node] != null) {
+        for (int member : members[node]) {
+          pending.add(member);
+        }
+      }
+    }
+  }
+
+  private void addMembers(int group, int[] added) {
+    int[] old = (members[group] == null) ? NONE : members[group];
+    added = difference(distinct(added), old);
+    if (added.length == 0) {
+      return;
+    }
+    int[] updated = Arrays.copyOf(old, old.length + added.length);
+    System.arraycopy(added, 0, updated, old.length, added.length);
+    members[group] = updated;
+    for (int member : added) {
+      parents(member).add(group);
+    }
+    invalidate(added);
+  }
+
+  private int group(Membership membership) {
+    Principal principal = membership.getPrincipal();
+    if (principal == null) {
+      throw new IllegalArgumentException("membership has no principal");
+    }
+    return node(principal);
+  }
+
+  private int[] nodes(Membership membership) {
+    Members list = membership.getMembers();
+    if (list == null) {
+      return NONE;
+    }
+    List<Principal> principals = list.getPrincipal();
+    int[] result = new int[principals.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = node(principals.get(i));
+    }
+    return result;
+  }
+
+  /** Returns the principal's node, adding it if it is new. */
+  private int node(Principal principal) {
+    Key key = new Key(principal);
+    Integer node = nodes.get(key);
+    if (node != null) {
+      return node;
+    }
+    if (size == keys.length) {
+      int capacity = size + (size >> 1);
+      keys = Arrays.copyOf(keys, capacity);
+      members = Arrays.copyOf(members, capacity);
+      parents = Arrays.copyOf(parents, capacity);
+      groups = Arrays.copyOf(groups, capacity);
+      order = Arrays.copyOf(order, capacity);
+      lowlink = Arrays.copyOf(lowlink, capacity);
+      onStack = Arrays.copyOf(onStack, capacity);
+    }
+    keys[size] = key;
+    nodes.put(key, size);
+    // A new node is in no group yet, which is known.
+    groups[size] = NONE;
+    return size++;
+  }
+
+  private IntArray parents(int node) {
+    if (parents[node] == null) {
+      parents[node] = new IntArray(2);
+    }
+    return parents[node];
+  }
+
+  private List<Principal> principals(int[] nodeList) {
+    List<Principal> result = new ArrayList<Principal>(nodeList.length);
+    for (int node : nodeList) {
+      result.add(keys[node].toPrincipal());
+    }
+    return result;
+  }
+
+  /** Returns the values in order without repeats. */
+  private static int[] distinct(int[] values) {
+    if (values.length < 2) {
+      return values;
+    }
+    Map<Integer, Boolean> seen = new HashMap<Integer, Boolean>();
+    IntArray result = new IntArray(values.length);
+    for (int value : values) {
+      if (seen.put(value, Boolean.TRUE) == null) {
+        result.add(value);
+      }
+    }
+    return result.toArray();
+  }
+
+  /** Returns the values in a that are not in b, in order. */
+  private static int[] difference(int[] a, int[] b) {
+    if (b.length == 0) {
+      return a;
+    }
+    int[] sorted = b.clone();
+    Arrays.sort(sorted);
+    IntArray result = new IntArray(a.length);
+    for (int value : a) {
+      if (Arrays.binarySearch(sorted, value) < 0) {
+        result.add(value);
+      }
+    }
+    return result.toArray();
+  }
+
+  /** The attributes that identify a principal. */
+  private static final class Key {
+    private final Principal.Scope scope;
+    private final String namespace;
+    private final Principal.CaseSensitivityType caseSensitivityType;
+    private final Principal.PrincipalType principalType;
+    private final String name;
+
+    Key(Principal principal) {
+      scope = principal.getScope();
+      namespace = principal.getNamespace();
+      caseSensitivityType = principal.getCaseSensitivityType();
+      principalType = principal.getPrincipalType();
+      name = principal.getvalue();
+    }
+
+    Principal toPrincipal() {
+      Principal principal = new Principal()
+          .setNamespace(namespace)
+          .setCaseSensitivityType(caseSensitivityType)
+          .setPrincipalType(principalType)
+          .setvalue(name);
+      if (scope != null) {
+        // The setter rejects null.
+        principal.setScope(scope);
+      }
+      return principal;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return scope == other.scope
+          && namespace.equals(other.namespace)
+          && caseSensitivityType == other.caseSensitivityType
+          && principalType == other.principalType
+          && (name == null ? other.name == null : name.equals(other.name));
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new Object[] {
+          scope, namespace, caseSensitivityType, principalType, name });
+    }
+  }
+
+  /** A growable array of ints. */
+  private static class IntArray {
+    private int[] values;
+    private int size;
+
+    IntArray(int capacity) {
+      values = new int[Math.max(capacity, 1)];
+    }
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size + (size >> 1) + 1);
+      }
+      values[size++] = value;
+    }
+
+    /** Removes the first occurrence of the value, if any. */
+    void remove(int value) {
+      for (int i = 0; i < size; i++) {
+        if (values[i] == value) {
+          System.arraycopy(values, i + 1, values, i, size - i - 1);
+          size--;
+          return;
+        }
+      }
+    }
+
+    int removeLast() {
+      return values[--size];
+    }
+
+    int get(int index) {
+      return values[index];
+    }
+
+    void set(int index, int value) {
+      values[index] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,475 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Members;
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.JAXBException;
+
+/**
+ * An immutable, compact form of the memberships in a groups feed, for
+ * directories too large to hold as {@link Xmlgroups} objects.
+ *
+ * <p>Each distinct principal is a node, numbered from 0, which is
+ * stored as a name, an index into a table of namespaces, and one byte
+ * of flags. The members of each membership are stored together in
+ * one int array, indexed by an array of offsets, and so are the
+ * groups that each node belongs to, so a lookup in either direction
+ * costs no more than reading the array.
+ *
+ * <p>A graph is built from memberships one at a time with a {@link
+ * Builder}, so the memberships can come from a streaming parse with
+ * an {@link XmlgroupsHandler}, and can be written back to a feed with
+ * {@link #write}.
+ *
+ * <p>Principals are compared by scope, namespace, case sensitivity,
+ * principal type and name. As with {@link Principal#getNamespace}, a
+ * principal without a namespace is in the "Default" namespace, and
+ * it is written with that namespace. The source attribute of each
+ * membership is not kept, since it is not used when uploading.
+ */
+public final class GroupGraph {
+  private static final int SCOPE_SHIFT = 0;
+  private static final int CASE_SHIFT = 2;
+  private static final int TYPE_SHIFT = 4;
+  private static final Principal.Scope[] SCOPES = Principal.Scope.values();
+  private static final Principal.CaseSensitivityType[] CASE_TYPES =
+      Principal.CaseSensitivityType.values();
+  private static final Principal.PrincipalType[] PRINCIPAL_TYPES =
+      Principal.PrincipalType.values();
+  private static final int[] NONE = new int[0];
+
+  // The nodes.
+  private final String[] names;
+  private final int[] namespaces;
+  private final String[] namespaceTable;
+  private final byte[] flags;
+  /** An open-addressing hash table of node + 1, or 0 for empty. */
+  private final int[] nodeTable;
+
+  // The memberships, in the order they were added.
+  private final int[] groups;
+  private final int[] memberOffsets;
+  private final int[] members;
+  /** The first membership of each node, or -1. */
+  private final int[] firstMembership;
+  /** The next membership of the same group, or -1. */
+  private final int[] nextMembership;
+
+  // The groups each node is a direct member of, sorted.
+  private final int[] parentOffsets;
+  private final int[] parents;
+
+  private GroupGraph(Builder builder) {
+    int nodeCount = builder.nodeCount;
+    names = Arrays.copyOf(builder.names, nodeCount);
+    namespaces = Arrays.copyOf(builder.namespaces, nodeCount);
+    namespaceTable = builder.namespaceTable.toArray(
+        new String[builder.namespaceTable.size()]);
+    flags = Arrays.copyOf(builder.flags, nodeCount);
+    nodeTable = builder.nodeTable.clone();
+    groups = builder.groups.toArray();
+    memberOffsets = builder.memberOffsets.toArray();
+    members = builder.members.toArray();
+
+    firstMembership = new int[nodeCount];
+    Arrays.fill(firstMembership, -1);
+    nextMembership = new int[groups.length];
+    for (int m = groups.length - 1; m >= 0; m--) {
+      nextMembership[m] = firstMembership[groups[m]];
+      firstMembership[groups[m]] = m;
+    }
+
+    // Count each node's parents, then fill in the ranges.
+    parentOffsets = new int[nodeCount + 1];
+    for (int member : members) {
+      parentOffsets[member + 1]++;
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      parentOffsets[i + 1] += parentOffsets[i];
+    }
+    parents = new int[members.length];
+    int[] next = Arrays.copyOf(parentOffsets, nodeCount);
+    for (int m = 0; m < groups.length; m++) {
+      for (int i = memberOffsets[m]; i < memberOffsets[m + 1]; i++) {
+        parents[next[members[i]]++] = groups[m];
+      }
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      Arrays.sort(parents, parentOffsets[i], parentOffsets[i + 1]);
+    }
+  }
+
+  /** Builds a graph of all the memberships in the feed. */
+  public static GroupGraph fromXmlgroups(Xmlgroups feed) {
+    Builder builder = new Builder();
+    for (Membership membership : feed.getMembership()) {
+      builder.add(membership);
+    }
+    return builder.build();
+  }
+
+  /** Returns the number of distinct principals. */
+  public int getPrincipalCount() {
+    return names.length;
+  }
+
+  /** Returns the number of memberships. */
+  public int getMembershipCount() {
+    return groups.length;
+  }
+
+  /** Returns the number of member entries in all memberships. */
+  public int getEdgeCount() {
+    return members.length;
+  }
+
+  /**
+   * Returns the node number of the principal, or -1 if it does not
+   * occur in the graph.
+   */
+  public int indexOf(Principal principal) {
+    int namespace = namespaceTable.length;
+    String name = principal.getNamespace();
+    for (int i = 0; i < namespaceTable.length; i++) {
+      if (namespaceTable[i].equals(name)) {
+        namespace = i;
+        break;
+      }
+    }
+    if (namespace == namespaceTable.length) {
+      return -1;
+    }
+    return find(nodeTable, names, namespaces, flags, principal.getvalue(),
+        namespace, pack(principal));
+  }
+
+  /** Creates a new Principal for the node. */
+  public Principal getPrincipal(int node) {
+    int bits = flags[node];
+    Principal principal = new Principal()
+        .setNamespace(getNamespace(node))
+        .setCaseSensitivityType(unpack(CASE_TYPES, bits, CASE_SHIFT))
+        .setPrincipalType(unpack(PRINCIPAL_TYPES, bits, TYPE_SHIFT))
+        .setvalue(names[node]);
+    Principal.Scope scope = getScope(node);
+    if (scope != null) {
+      // The setter rejects null.
+      principal.setScope(scope);
+    }
+    return principal;
+  }
+
+  public String getName(int node) {
+    return names[node];
+  }
+
+  public String getNamespace(int node) {
+    return namespaceTable[namespaces[node]];
+  }
+
+  public Principal.Scope getScope(int node) {
+    return unpack(SCOPES, flags[node], SCOPE_SHIFT);
+  }
+
+  /** Returns whether the node has at least one membership. */
+  public boolean isGroup(int node) {
+    return firstMembership[node] != -1;
+  }
+
+  /**
+   * Returns the direct members of the group, in the order they were
+   * added, from all of its memberships.
+   */
+  public int[] getMembers(int node) {
+    int m = firstMembership[node];
+    if (m == -1) {
+      return NONE;
+    }
+    if (nextMembership[m] == -1) {
+      return Arrays.copyOfRange(members, memberOffsets[m],
+          memberOffsets[m + 1]);
+    }
+    IntArray result = new IntArray(16);
+    for (; m != -1; m = nextMembership[m]) {
+      for (int i = memberOffsets[m]; i < memberOffsets[m + 1]; i++) {
+        result.add(members[i]);
+      }
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Returns the groups that list the node as a direct member, in
+   * increasing order. A group with several memberships listing the
+   * node appears more than once.
+   */
+  public int[] getParents(int node) {
+    return Arrays.copyOfRange(parents, parentOffsets[node],
+        parentOffsets[node + 1]);
+  }
+
+  /** Returns whether the group lists the node as a direct member. */
+  public boolean isMember(int group, int node) {
+    return Arrays.binarySearch(parents, parentOffsets[node],
+        parentOffsets[node + 1], group) >= 0;
+  }
+
+  /** Returns the group of the membership. */
+  public int getGroup(int membership) {
+    return groups[membership];
+  }
+
+  /** Returns the members of one membership, in order. */
+  public int[] getMembershipMembers(int membership) {
+    return Arrays.copyOfRange(members, memberOffsets[membership],
+        memberOffsets[membership + 1]);
+  }
+
+  /** Creates a new Membership object for the membership. */
+  public Membership getMembership(int membership) {
+    Members list = new Members();
+    List<Principal> principals = list.getPrincipal();
+    for (int i = memberOffsets[membership];
+        i < memberOffsets[membership + 1]; i++) {
+      principals.add(getPrincipal(members[i]));
+    }
+    return new Membership()
+        .setPrincipal(getPrincipal(groups[membership]))
+        .setMembers(list);
+  }
+
+  /**
+   * Returns, for each node, the node for the same principal in the
+   * other graph, or -1 if the principal does not occur there.
+   */
+  int[] mapTo(GroupGraph other) {
+    int[] namespaceMap = new int[namespaceTable.length];
+    for (int i = 0; i < namespaceTable.length; i++) {
+      namespaceMap[i] = -1;
+      for (int j = 0; j < other.namespaceTable.length; j++) {
+        if (namespaceTable[i].equals(other.namespaceTable[j])) {
+          namespaceMap[i] = j;
+          break;
+        }
+      }
+    }
+    int[] result = new int[names.length];
+    for (int node = 0; node < names.length; node++) {
+      int namespace = namespaceMap[namespaces[node]];
+      result[node] = (namespace == -1) ? -1 : find(other.nodeTable,
+          other.names, other.namespaces, other.flags, names[node],
+          namespace, flags[node]);
+    }
+    return result;
+  }
+
+  /** Creates an Xmlgroups holding all of the memberships. */
+  public Xmlgroups toXmlgroups() {
+    Xmlgroups feed = new Xmlgroups();
+    for (int m = 0; m < groups.length; m++) {
+      feed.getMembership().add(getMembership(m));
+    }
+    return feed;
+  }
+
+  /**
+   * Writes the memberships as a groups feed, creating one Membership
+   * object at a time. The output is the same as marshalling {@link
+   * #toXmlgroups} with the helper. The stream is not closed.
+   */
+  public void write(XmlgroupsHelper helper, OutputStream out)
+      throws IOException, JAXBException {
+    FeedWriter writer =
+        new FeedWriter(helper, out, new Xmlgroups(), "xmlgroups");
+    for (int m = 0; m < groups.length; m++) {
+      writer.writeElement(getMembership(m));
+    }
+    writer.finish();
+  }
+
+  @Override
+  public String toString() {
+    return "GroupGraph(principals=" + names.length
+        + ", memberships=" + groups.length
+        + ", edges=" + members.length + ")";
+  }
+
+  private static int pack(Principal principal) {
+    return pack(principal.getScope(), SCOPE_SHIFT)
+        | pack(principal.getCaseSensitivityType(), CASE_SHIFT)
+        | pack(principal.getPrincipalType(), TYPE_SHIFT);
+  }
+
+  private static int pack(Enum<?> value, int shift) {
+    return (value == null) ? 0 : (value.ordinal() + 1) << shift;
+  }
+
+  private static <T> T unpack(T[] values, int bits, int shift) {
+    int value = (bits >> shift) & 3;
+    return (value == 0) ? null : values[value - 1];
+  }
+
+  private static int hash(String name, int namespace, int bits) {
+    int h = (name == null) ? 0 : name.hashCode();
+    h = h * 31 + namespace;
+    h = h * 31 + bits;
+    return h ^ (h >>> 16);
+  }
+
+  /** Returns the node, or -1. */
+  private static int find(int[] table, String[] names, int[] namespaces,
+      byte[] flags, String name, int namespace, int bits) {
+    int mask = table.length - 1;
+    for (int i = hash(name, namespace, bits) & mask; ; i = (i + 1) & mask) {
+      int entry = table[i];
+      if (entry == 0) {
+        return -1;
+      }
+      int node = entry - 1;
+      if (flags[node] == (byte) bits && namespaces[node] == namespace
+          && (name == null ? names[node] == null : name.equals(names[node]))) {
+        return node;
+      }
+    }
+  }
+
+  /**
+   * Collects memberships for a {@link GroupGraph}. A builder is not
+   * thread-safe.
+   */
+  public static final class Builder {
+    private String[] names = new String[64];
+    private int[] namespaces = new int[64];
+    private byte[] flags = new byte[64];
+    private int nodeCount;
+    private int[] nodeTable = new int[128];
+    private final List<String> namespaceTable = new ArrayList<String>();
+    private final Map<String, Integer> namespaceIndexes =
+        new HashMap<String, Integer>();
+    private final IntArray groups = new IntArray(64);
+    private final IntArray memberOffsets = new IntArray(64);
+    private final IntArray members = new IntArray(256);
+
+    public Builder() {
+      memberOffsets.add(0);
+    }
+
+    /**
+     * Adds a membership.
+     *
+     * @throws IllegalArgumentException if the membership has no
+     *     principal
+     */
+    public Builder add(Membership membership) {
+      if (membership.getPrincipal() == null) {
+        throw new IllegalArgumentException("membership has no principal");
+      }
+      groups.add(node(membership.getPrincipal()));
+      if (membership.getMembers() != null) {
+        for (Principal member : membership.getMembers().getPrincipal()) {
+          members.add(node(member));
+        }
+      }
+      memberOffsets.add(members.size());
+      return this;
+    }
+
+    /** Builds the graph. The builder may be used again afterwards. */
+    public GroupGraph build() {
+      return new GroupGraph(this);
+    }
+
+    private int node(Principal principal) {
+      String namespaceName = principal.getNamespace();
+      Integer namespace = namespaceIndexes.get(namespaceName);
+      if (namespace == null) {
+        namespace = namespaceTable.size();
+        namespaceTable.add(namespaceName);
+        namespaceIndexes.put(namespaceName, namespace);
+      }
+      String name = principal.getvalue();
+      int bits = pack(principal);
+      int node =
+          find(nodeTable, names, namespaces, flags, name, namespace, bits);
+      if (node != -1) {
+        return node;
+      }
+      if (nodeCount == names.length) {
+        int length = names.length * 2;
+        names = Arrays.copyOf(names, length);
+        namespaces = Arrays.copyOf(namespaces, length);
+        flags = Arrays.copyOf(flags, length);
+      }
+      node = nodeCount++;
+      names[node] = name;
+      namespaces[node] = namespace;
+      flags[node] = (byte) bits;
+      if (nodeCount * 2 > nodeTable.length) {
+        nodeTable = new int[nodeTable.length * 2];
+        for (int i = 0; i < nodeCount; i++) {
+          insert(i);
+        }
+      } else {
+        insert(node);
+      }
+      return node;
+    }
+
+    private void insert(int node) {
+      int mask = nodeTable.length - 1;
+      int i = hash(names[node], namespaces[node], flags[node]) & mask;
+      while (nodeTable[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      nodeTable[i] = node + 1;
+    }
+  }
+
+  /** A growable array of ints. */
+  private static class IntArray {
+    private int[] values;
+    private int size;
+
+    IntArray(int capacity) {
+      values = new int[capacity];
+    }
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size + (size >> 1) + 1);
+      }
+      values[size++] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
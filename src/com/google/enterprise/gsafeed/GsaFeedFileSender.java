@@ -17,22 +17,31 @@ package com.google.enterprise.gsafeed;
 import static java.util.Locale.US;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.SSLException;
+import javax.xml.bind.JAXBException;
 
 /** Takes an XML feed file for the GSA, sends it to GSA and
   then reads reply from GSA. */
@@ -51,9 +60,19 @@ public class GsaFeedFileSender {
   // Another frequently used constant of sent message.
   private static final String CRLF = "\r\n";
 
+  // GSA only allows request content up to 1 MB to be compressed.
+  private static final long COMPRESSION_LIMIT = 1 * 1024 * 1024;
+
   private Charset gsaCharEncoding;
   private URL feedDest;
   private URL groupsDest;
+  private GsafeedHelper gsafeedHelper;
+  private XmlgroupsHelper xmlgroupsHelper;
+  private volatile FeedTransport transport = new HttpFeedTransport();
+  private volatile RetryPolicy retryPolicy = new RetryPolicy();
+  private final Random random = new Random();
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong retryFailureCount = new AtomicLong();
 
   private static URL makeHandlerUrl(String host, boolean secure, String path) {
     if (null == host || null == path) {
@@ -90,115 +109,328 @@ public class GsaFeedFileSender {
     return s.getBytes(gsaCharEncoding);
   }
 
+  /** The XML document sent in the data parameter of a message. */
+  private abstract static class Payload {
+    /** Returns the length in bytes, or -1 if it is not known. */
+    abstract long length();
+
+    /** Writes the document to the stream. */
+    abstract void writeTo(OutputStream out) throws IOException;
+
+    /** Returns whether the document can be written more than once. */
+    abstract boolean isRepeatable();
+  }
+
+  private static class BytesPayload extends Payload {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    BytesPayload(byte[] bytes) {
+      this(bytes, 0, bytes.length);
+    }
+
+    BytesPayload(byte[] bytes, int offset, int length) {
+      if (offset < 0 || length < 0 || offset + length > bytes.length) {
+        throw new IndexOutOfBoundsException("offset: " + offset
+            + ", length: " + length + ", array length: " + bytes.length);
+      }
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void writeTo(OutputStream out) throws IOException {
+      // Use copyStream(), because using a single write() prevents errors
+      // from propagating during writing and causes them to be discovered
+      // at read time. Using copyStream() isn't perfect either though, in
+      // that if buffered data eventually causes an error, then that will
+      // still be discovered at read time.
+      IOHelper.copyStream(
+          new ByteArrayInputStream(bytes, offset, length), out);
+    }
+
+    @Override
+    boolean isRepeatable() {
+      return true;
+    }
+  }
+
+  private static class FilePayload extends Payload {
+    private final File file;
+
+    FilePayload(File file) {
+      this.file = file;
+    }
+
+    @Override
+    long length() {
+      return file.length();
+    }
+
+    @Override
+    void writeTo(OutputStream out) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+        IOHelper.copyStream(in, out);
+      } finally {
+        in.close();
+      }
+    }
+
+    @Override
+    boolean isRepeatable() {
+      return true;
+    }
+  }
+
+  private static class StreamPayload extends Payload {
+    private final InputStream in;
+    private final long length;
+
+    StreamPayload(InputStream in, long length) {
+      this.in = in;
+      this.length = length;
+    }
+
+    @Override
+    long length() {
+      return length;
+    }
+
+    @Override
+    void writeTo(OutputStream out) throws IOException {
+      IOHelper.copyStream(in, out);
+    }
+
+    @Override
+    boolean isRepeatable() {
+      return false;
+    }
+  }
+
+  /** Marshals a feed while it is being sent. */
+  private static class MarshalPayload extends Payload {
+    private final FeedHelper helper;
+    private final Object feed;
+
+    MarshalPayload(FeedHelper helper, Object feed) {
+      this.helper = helper;
+      this.feed = feed;
+    }
+
+    @Override
+    long length() {
+      return -1;
+    }
+
+    @Override
+    void writeTo(OutputStream out) throws IOException {
+      try {
+        helper.marshal(feed, out);
+      } catch (JAXBException e) {
+        // Errors writing to the connection are reported as they
+        // would be for any other payload.
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new MarshalException(e);
+      }
+    }
+
+    @Override
+    boolean isRepeatable() {
+      return true;
+    }
+  }
+
+  /** Carries a JAXBException out of {@link Payload#writeTo}. */
+  private static class MarshalException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MarshalException(JAXBException cause) {
+      super(cause);
+    }
+  }
+
+  /** Counts the bytes written, up to a limit. */
+  private static class CountingOutputStream extends OutputStream {
+    private final long limit;
+    private long count;
+
+    CountingOutputStream(long limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(null, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count += len;
+      if (count >= limit) {
+        throw new LimitExceededException();
+      }
+    }
+  }
+
+  /** Stops writing to a {@link CountingOutputStream}. */
+  private static class LimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * A multipart/form-data message. The parameters are built in
+   * memory, but the XML document is streamed from its source when
+   * the message is written.
+   */
+  private static class Message {
+    private final byte[] head;
+    private final Payload data;
+    private final byte[] tail;
+
+    /**
+     * @param head the encoded parameters before the XML document
+     * @param data the XML document, or null if there is none
+     * @param tail the encoded end of the message
+     */
+    Message(byte[] head, Payload data, byte[] tail) {
+      this.head = head;
+      this.data = data;
+      this.tail = tail;
+    }
+
+    /** Returns the length in bytes, or -1 if it is not known. */
+    long length() {
+      if (data == null) {
+        return head.length + tail.length;
+      }
+      long dataLength = data.length();
+      return (dataLength < 0) ? -1 : head.length + dataLength + tail.length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(head);
+      if (data != null) {
+        data.writeTo(out);
+      }
+      out.write(tail);
+    }
+
+    /** Returns whether the message can be written more than once. */
+    boolean isRepeatable() {
+      return data == null || data.isRepeatable();
+    }
+
+    /**
+     * Writes the message without sending it to find its length.
+     *
+     * @return the length in bytes, or -1 if it is at least
+     *     {@code limit} bytes
+     */
+    long measure(long limit) throws IOException {
+      CountingOutputStream out = new CountingOutputStream(limit);
+      try {
+        writeTo(out);
+      } catch (LimitExceededException e) {
+        return -1;
+      }
+      return out.count;
+    }
+  }
+
   /** Helper method for creating a multipart/form-data HTTP post.
     Creates a post parameter made of a name and value. */
   private void buildPostParameter(StringBuilder sb, String name,
       String mimetype, String value) {
+    buildPostParameterHeader(sb, name, mimetype);
+    sb.append(value).append(CRLF);
+  }
+
+  /** Creates the start of a post parameter, up to its value. */
+  private void buildPostParameterHeader(StringBuilder sb, String name,
+      String mimetype) {
     sb.append("--").append(BOUNDARY).append(CRLF);
     sb.append("Content-Disposition: form-data;");
     sb.append(" name=\"").append(name).append("\"").append(CRLF);
     sb.append("Content-Type: ").append(mimetype).append(CRLF);
-    sb.append(CRLF).append(value).append(CRLF);
+    sb.append(CRLF);
+  }
+
+  /** Creates a message whose last parameter is the XML document. */
+  private Message buildMessage(StringBuilder sb, Payload xmlDocument) {
+    buildPostParameterHeader(sb, "data", "text/xml");
+    return new Message(toEncodedBytes("" + sb), xmlDocument,
+        toEncodedBytes(CRLF + "--" + BOUNDARY + "--" + CRLF));
   }
 
-  private byte[] buildGsaFeedMessage(String datasource,
-      String feedtype, String xmlDocument) {
+  private Message buildGsaFeedMessage(String datasource,
+      String feedtype, Payload xmlDocument) {
     StringBuilder sb = new StringBuilder();
     buildPostParameter(sb, "datasource", "text/plain", datasource);
     buildPostParameter(sb, "feedtype", "text/plain", feedtype);
-    buildPostParameter(sb, "data", "text/xml", xmlDocument);
-    sb.append("--").append(BOUNDARY).append("--").append(CRLF);
-    return toEncodedBytes("" + sb);
+    return buildMessage(sb, xmlDocument);
   }
 
   /**
    * Builds the multipart HTTP message for uploading group definitions.
    * @throws NullPointerException if feedtype is null.
    */
-  private byte[] buildGroupsXmlMessage(String groupsource, String feedtype,
-      String xmlDocument) {
+  private Message buildGroupsXmlMessage(String groupsource, String feedtype,
+      Payload xmlDocument) {
     StringBuilder sb = new StringBuilder();
     String ft = feedtype.toLowerCase(US);
     if (ft.equals("full") || ft.equals("incremental")) {
       buildPostParameter(sb, "groupsource", "text/plain", groupsource);
       buildPostParameter(sb, "feedtype", "text/plain", feedtype);
-      buildPostParameter(sb, "data", "text/xml", xmlDocument);
+      return buildMessage(sb, xmlDocument);
     } else if (ft.equals("cleanup")) {
       buildPostParameter(sb, "cleanup", "text/plain", groupsource);
+      sb.append("--").append(BOUNDARY).append("--").append(CRLF);
+      return new Message(toEncodedBytes("" + sb), null, new byte[0]);
     } else if (ft.equals("replace")) {
       buildPostParameter(sb, "replace", "text/plain", groupsource);
-      buildPostParameter(sb, "data", "text/xml", xmlDocument);
+      return buildMessage(sb, xmlDocument);
     } else {
       throw new IllegalArgumentException("invalid feedtype: " + feedtype);
     }
-    sb.append("--").append(BOUNDARY).append("--").append(CRLF);
-    return toEncodedBytes("" + sb);
   }
 
-  /** Tries to get in touch with our GSA. */
-  private HttpURLConnection setupConnection(URL url, int len,
-                                            boolean useCompression)
-      throws IOException {
-    HttpURLConnection uc = (HttpURLConnection) url.openConnection();
-    uc.setDoInput(true);
-    uc.setDoOutput(true);
+  /** Posts the message and returns the GSA's reply. */
+  private FeedTransport.Response post(URL destUrl, final Message msg,
+      long len, final boolean useCompression) throws IOException {
+    Map<String, String> headers = new LinkedHashMap<String, String>();
     if (useCompression) {
-      uc.setChunkedStreamingMode(0);
       // GSA can handle gziped content, although there isn't a way to find out
       // other than just trying
-      uc.setRequestProperty("Content-Encoding", "gzip");
-    } else {
-      uc.setFixedLengthStreamingMode(len);
-    }
-    uc.setRequestProperty("Content-Type",
-        "multipart/form-data; boundary=" + BOUNDARY);
-    return uc;
-  }
-
-  /** Put bytes onto output stream. */
-  private void writeToGsa(HttpURLConnection uc, byte msgbytes[],
-                          boolean useCompression)
-      throws IOException {
-    OutputStream outputStream = uc.getOutputStream();
-    try {
-      if (useCompression) {
-        // setupConnection set Content-Encoding: gzip
-        outputStream = new GZIPOutputStream(outputStream);
-      }
-      // Use copyStream(), because using a single write() prevents errors from
-      // propagating during writing and causes them to be discovered at read
-      // time. Using copyStream() isn't perfect either though, in that if
-      // buffered data eventually causes an error, then that will still be
-      // discovered at read time.
-      IOHelper.copyStream(new ByteArrayInputStream(msgbytes), outputStream);
-      outputStream.flush();
-    } finally {
-      outputStream.close();
+      headers.put("Content-Encoding", "gzip");
     }
-  }
-
-  /** Get GSA's response. */
-  private String readGsaReply(HttpURLConnection uc) throws IOException {
-    InputStream inputStream;
-    try {
-      inputStream = uc.getInputStream();
-    } catch (IOException ioe) {
-      inputStream = uc.getErrorStream();
-    }
-    if (null == inputStream) {
-      return null;
-    }
-    String reply;
-    try {
-      reply = IOHelper.readInputStreamToString(inputStream, gsaCharEncoding);
-    } finally {
-      inputStream.close();
-    }
-    return reply;
+    headers.put("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+    return transport.post(destUrl, headers, useCompression ? -1 : len,
+        new FeedTransport.RequestBody() {
+          @Override
+          public void writeTo(OutputStream out) throws IOException {
+            if (useCompression) {
+              GZIPOutputStream gzip = new GZIPOutputStream(out);
+              msg.writeTo(gzip);
+              gzip.finish();
+            } else {
+              msg.writeTo(out);
+            }
+          }
+        });
   }
 
   private void handleGsaReply(String reply, int responseCode) {
-    if ("Success".equals(reply) || "success".equals(reply)) {
+    if (isSuccess(reply)) {
       log.info("success message received. code:" + responseCode);
     } else if ("Error - Unauthorized Request".equals(reply)) {
       throw new IllegalStateException("Unauthorized request. "
@@ -217,16 +449,93 @@ public class GsaFeedFileSender {
    */
   public void sendGsaFeed(String datasource, String feedtype, String xmlString,
       boolean useCompression) throws IOException {
+    sendGsaFeed(datasource, feedtype,
+        new BytesPayload(toEncodedBytes(xmlString)), useCompression);
+  }
+
+  /**
+   * Sends the XML in part of the array with provided datasource name
+   * and feedtype. The bytes are sent without a copy, so they must not
+   * be changed until this method returns, and must already be in the
+   * communication's encoding.
+   * Datasource name is limited to [a-zA-Z_][a-zA-Z0-9_-]*.
+   */
+  public void sendGsaFeed(String datasource, String feedtype, byte[] xml,
+      int offset, int length, boolean useCompression) throws IOException {
+    sendGsaFeed(datasource, feedtype,
+        new BytesPayload(xml, offset, length), useCompression);
+  }
+
+  /**
+   * Sends the XML in the file with provided datasource name and
+   * feedtype. The file is streamed to the GSA rather than read into
+   * memory, and must already be in the communication's encoding.
+   * Datasource name is limited to [a-zA-Z_][a-zA-Z0-9_-]*.
+   */
+  public void sendGsaFeed(String datasource, String feedtype, File xmlFile,
+      boolean useCompression) throws IOException {
+    sendGsaFeed(datasource, feedtype, new FilePayload(xmlFile),
+        useCompression);
+  }
+
+  /**
+   * Sends the XML read from the stream with provided datasource name
+   * and feedtype. The stream is copied to the GSA rather than read
+   * into memory, and must already be in the communication's
+   * encoding. It is not closed, and the message is not retried. If
+   * the length is not known, pass -1; the message is then sent
+   * uncompressed, using chunked encoding.
+   * Datasource name is limited to [a-zA-Z_][a-zA-Z0-9_-]*.
+   */
+  public void sendGsaFeed(String datasource, String feedtype,
+      InputStream xmlStream, long length, boolean useCompression)
+      throws IOException {
+    sendGsaFeed(datasource, feedtype, new StreamPayload(xmlStream, length),
+        useCompression);
+  }
+
+  /**
+   * Sends the feed, using the datasource name and feedtype in its
+   * header. The feed is marshalled as UTF-8 while it is being sent,
+   * rather than being built in memory first. If compression is
+   * requested, the feed is marshalled once beforehand, without being
+   * kept, to check that it is small enough to be compressed.
+   * Datasource name is limited to [a-zA-Z_][a-zA-Z0-9_-]*.
+   *
+   * @throws IllegalArgumentException if the feed has no header
+   * @throws JAXBException if the feed cannot be marshalled
+   */
+  public void sendGsaFeed(Gsafeed feed, boolean useCompression)
+      throws IOException, JAXBException {
+    Header header = feed.getHeader();
+    if (header == null) {
+      throw new IllegalArgumentException("Feed has no header");
+    }
+    try {
+      sendGsaFeed(header.getDatasource(), header.getFeedtype(),
+          new MarshalPayload(getGsafeedHelper(), feed), useCompression);
+    } catch (MarshalException e) {
+      throw (JAXBException) e.getCause();
+    }
+  }
+
+  private synchronized GsafeedHelper getGsafeedHelper()
+      throws JAXBException {
+    if (gsafeedHelper == null) {
+      gsafeedHelper = new GsafeedHelper();
+    }
+    return gsafeedHelper;
+  }
+
+  private void sendGsaFeed(String datasource, String feedtype,
+      Payload xmlDocument, boolean useCompression) throws IOException {
     if (!DATASOURCE_FORMAT.matcher(datasource).matches()) {
       throw new IllegalArgumentException("Data source contains illegal "
           + "characters: " + datasource);
     }
-    byte msg[] = buildGsaFeedMessage(datasource, feedtype, xmlString);
-    // GSA only allows request content up to 1 MB to be compressed
-    if (msg.length >= 1 * 1024 * 1024) {
-      useCompression = false;
-    }
-    sendMessage(feedDest, msg, useCompression);
+    sendMessage(feedDest,
+        buildGsaFeedMessage(datasource, feedtype, xmlDocument),
+        useCompression);
   }
 
   /**
@@ -235,35 +544,187 @@ public class GsaFeedFileSender {
    */
   public void sendGroups(String groupsource, String feedtype, String xmlString,
       boolean useCompression) throws IOException {
+    sendGroups(groupsource, feedtype,
+        new BytesPayload(toEncodedBytes(xmlString)), useCompression);
+  }
+
+  /**
+   * Sends the XML in the file with provided groupsource name to
+   * xmlgroups recipient. The file is streamed to the GSA rather than
+   * read into memory, and must already be in the communication's
+   * encoding. Groupsource name is limited to [a-zA-Z_][a-zA-Z0-9_-]*.
+   */
+  public void sendGroups(String groupsource, String feedtype, File xmlFile,
+      boolean useCompression) throws IOException {
+    sendGroups(groupsource, feedtype, new FilePayload(xmlFile),
+        useCompression);
+  }
+
+  /**
+   * Sends the XML read from the stream with provided groupsource name
+   * to xmlgroups recipient. The stream is copied to the GSA rather
+   * than read into memory, and must already be in the communication's
+   * encoding. It is not closed, and the message is not retried. If
+   * the length is not known, pass -1; the message is then sent
+   * uncompressed, using chunked encoding.
+   * Groupsource name is limited to [a-zA-Z_][a-zA-Z0-9_-]*.
+   */
+  public void sendGroups(String groupsource, String feedtype,
+      InputStream xmlStream, long length, boolean useCompression)
+      throws IOException {
+    sendGroups(groupsource, feedtype, new StreamPayload(xmlStream, length),
+        useCompression);
+  }
+
+  /**
+   * Sends the groups with provided groupsource name to xmlgroups
+   * recipient. The groups are marshalled as UTF-8 while they are
+   * being sent, rather than being built in memory first. If
+   * compression is requested, they are marshalled once beforehand,
+   * without being kept, to check that they are small enough to be
+   * compressed. Groupsource name is limited to
+   * [a-zA-Z_][a-zA-Z0-9_-]*.
+   *
+   * @throws JAXBException if the groups cannot be marshalled
+   */
+  public void sendGroups(String groupsource, String feedtype,
+      Xmlgroups groups, boolean useCompression)
+      throws IOException, JAXBException {
+    try {
+      sendGroups(groupsource, feedtype,
+          new MarshalPayload(getXmlgroupsHelper(), groups), useCompression);
+    } catch (MarshalException e) {
+      throw (JAXBException) e.getCause();
+    }
+  }
+
+  private synchronized XmlgroupsHelper getXmlgroupsHelper()
+      throws JAXBException {
+    if (xmlgroupsHelper == null) {
+      xmlgroupsHelper = new XmlgroupsHelper();
+    }
+    return xmlgroupsHelper;
+  }
+
+  private void sendGroups(String groupsource, String feedtype,
+      Payload xmlDocument, boolean useCompression) throws IOException {
     if (!GROUPSOURCE_FORMAT.matcher(groupsource).matches()) {
       throw new IllegalArgumentException("Group source is invalid: "
           + groupsource);
     }
-    byte msg[] = buildGroupsXmlMessage(groupsource, feedtype, xmlString);
-    // GSA only allows request content up to 1 MB to be compressed
-    if (msg.length >= 1 * 1024 * 1024) {
+    sendMessage(groupsDest,
+        buildGroupsXmlMessage(groupsource, feedtype, xmlDocument),
+        useCompression);
+  }
+
+  private void sendMessage(URL destUrl, Message msg, boolean useCompression)
+      throws IOException {
+    long len = msg.length();
+    if (useCompression && len < 0 && msg.isRepeatable()) {
+      len = msg.measure(COMPRESSION_LIMIT);
+    }
+    if (len < 0 || len >= COMPRESSION_LIMIT) {
       useCompression = false;
     }
-    sendMessage(groupsDest, msg, useCompression);
+    RetryPolicy policy = retryPolicy;
+    for (int attempt = 1; ; attempt++) {
+      boolean lastAttempt =
+          attempt >= policy.getMaxAttempts() || !msg.isRepeatable();
+      String reply;
+      int responseCode;
+      try {
+        FeedTransport.Response response;
+        try {
+          response = post(destUrl, msg, len, useCompression);
+        } catch (IOException ioe) {
+          throw (ioe instanceof MarshalException)
+              ? ioe : handleGsaException(destUrl.toString(), ioe);
+        }
+        byte[] body = response.getBody();
+        reply = (body == null) ? null : new String(body, gsaCharEncoding);
+        responseCode = response.getResponseCode();
+      } catch (IOException ioe) {
+        if (lastAttempt || ioe instanceof MarshalException
+            || !policy.isRetryable(ioe)) {
+          countFailure(attempt);
+          throw ioe;
+        }
+        log.log(Level.WARNING, "Failed to send to " + destUrl
+            + " on attempt " + attempt + ", will retry", ioe);
+        backOff(policy, attempt);
+        continue;
+      }
+      if (!isSuccess(reply) && !lastAttempt
+          && policy.isRetryable(reply, responseCode)) {
+        log.warning("GSA at " + destUrl + " replied " + reply + " (HTTP "
+            + responseCode + ") on attempt " + attempt + ", will retry");
+        backOff(policy, attempt);
+        continue;
+      }
+      try {
+        handleGsaReply(reply, responseCode);
+      } catch (IllegalStateException e) {
+        countFailure(attempt);
+        throw e;
+      }
+      return;
+    }
   }
 
-  private void sendMessage(URL destUrl, byte msg[], boolean useCompression)
-      throws IOException {
-    HttpURLConnection uc;
-    try {
-      uc = setupConnection(destUrl, msg.length, useCompression);
-      uc.connect();
-    } catch (IOException ioe) {
-      throw handleGsaException(destUrl.toString(), ioe);
+  private static boolean isSuccess(String reply) {
+    return "Success".equals(reply) || "success".equals(reply);
+  }
+
+  private void countFailure(int attempt) {
+    if (attempt > 1) {
+      retryFailureCount.incrementAndGet();
     }
+  }
+
+  /** Waits before the retry that follows the given attempt. */
+  private void backOff(RetryPolicy policy, int attempt) throws IOException {
+    retryCount.incrementAndGet();
     try {
-      writeToGsa(uc, msg, useCompression);
-      String reply = readGsaReply(uc);
-      handleGsaReply(reply, uc.getResponseCode());
-    } catch (IOException ioe) {
-      uc.disconnect();
-      throw ioe;
+      Thread.sleep(policy.getDelay(attempt, random));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry");
+    }
+  }
+
+  /**
+   * Sets the transport used to post messages. The default is an
+   * {@link HttpFeedTransport}.
+   */
+  public void setTransport(FeedTransport transport) {
+    if (transport == null) {
+      throw new NullPointerException();
     }
+    this.transport = transport;
+  }
+
+  /**
+   * Sets the policy for retrying messages after transient failures.
+   * By default, messages are not retried.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    if (retryPolicy == null) {
+      throw new NullPointerException();
+    }
+    this.retryPolicy = retryPolicy;
+  }
+
+  /** Returns the number of times a message has been sent again. */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * Returns the number of messages that failed even though they were
+   * sent more than once.
+   */
+  public long getRetryFailureCount() {
+    return retryFailureCount.get();
   }
 
   /** Wrap certain GSA communication problems with more descriptive messages. */
@@ -0,0 +1,67 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.IOException;
+
+/**
+ * Receives the parts of a feed, in document order, as they are read
+ * by {@link GsafeedHelper#unmarshalWithDtd(java.io.InputStream,
+ * GsafeedHandler)} or {@link GsafeedHelper#unmarshalWithoutDtd(
+ * java.io.InputStream, GsafeedHandler)}.
+ */
+public interface GsafeedHandler {
+  /**
+   * Receives the feed header.
+   *
+   * @param header the header
+   * @throws IOException if the header cannot be handled
+   */
+  void header(Header header) throws IOException;
+
+  /**
+   * Receives the start of a group. Only the group's attributes are
+   * set; its acls and records are passed to {@link #acl} and
+   * {@link #record}, followed by a call to {@link #endGroup}.
+   *
+   * @param group the group, with an empty acl and record list
+   * @throws IOException if the group cannot be handled
+   */
+  void startGroup(Group group) throws IOException;
+
+  /**
+   * Receives an acl element in the current group.
+   *
+   * @param acl the acl
+   * @throws IOException if the acl cannot be handled
+   */
+  void acl(Acl acl) throws IOException;
+
+  /**
+   * Receives a record in the current group.
+   *
+   * @param record the record
+   * @throws IOException if the record cannot be handled
+   */
+  void record(Record record) throws IOException;
+
+  /**
+   * Receives the end of a group.
+   *
+   * @param group the same object passed to {@link #startGroup}
+   * @throws IOException if the group cannot be handled
+   */
+  void endGroup(Group group) throws IOException;
+}
@@ -18,6 +18,7 @@ import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,6 +38,19 @@ public class GsafeedHelper extends FeedHelper {
     super(Gsafeed.class, "gsafeed", "/gsafeed.dtd");
   }
 
+  /**
+   * Creates the JAXB context used for feeds, if it hasn't been
+   * created yet. The context is shared by all helper instances and
+   * is otherwise created by the first constructor call; calling this
+   * early, for example from a background thread at startup, moves
+   * that cost out of the first request.
+   *
+   * @throws JAXBException if the context cannot be created
+   */
+  public static void warmUp() throws JAXBException {
+    getJaxbContext(Gsafeed.class);
+  }
+
   public void setErrorHandler(ErrorHandler errorHandler) {
     this.errorHandler = errorHandler;
   }
@@ -45,6 +59,57 @@ public class GsafeedHelper extends FeedHelper {
     this.validationEventHandler = eventHandler;
   }
 
+  /**
+   * Whether to keep a SAX parser, unmarshaller and marshaller in
+   * each thread for reuse by later calls, rather than creating new
+   * ones each time. The default is true.
+   */
+  public void setReuseParsers(boolean reuseParsers) {
+    this.reuseParsers = reuseParsers;
+  }
+
+  /**
+   * Moves the text of content elements longer than the given number
+   * of characters to temporary files while a feed is read, so large
+   * documents are not held in memory. Base64 content is decoded as it
+   * is written. A spilled {@link Content} has a null value; read it
+   * with {@link Content#openDecodedStream}, and call {@link
+   * Content#deleteSpillFile} when it is no longer needed. Such a
+   * Content can be marshalled again, which reads the file. The
+   * default is -1, which keeps all content in memory.
+   *
+   * @param threshold the largest number of characters kept in memory,
+   *     or -1 to never spill content
+   */
+  public void setContentSpillThreshold(int threshold) {
+    if (threshold < -1) {
+      throw new IllegalArgumentException("threshold must be -1 or more");
+    }
+    this.contentSpillThreshold = threshold;
+  }
+
+  /**
+   * Sets the directory for content spilled to temporary files. The
+   * default is null, which uses the system temporary directory.
+   */
+  public void setContentSpillDirectory(File directory) {
+    this.contentSpillDirectory = directory;
+  }
+
+  /**
+   * Passes values that repeat throughout a feed, such as meta names,
+   * mimetypes and ACL principals, through the given interner while a
+   * feed is read, so that equal values share one String. This reduces
+   * the memory held by ACL-heavy feeds, at a small cost in time. The
+   * interner's statistics report how many values were shared. The
+   * default is null, which does not intern values.
+   *
+   * @param interner the interner, or null
+   */
+  public void setStringInterner(StringInterner interner) {
+    this.stringInterner = interner;
+  }
+
   /**
    * Use the DTD to check for errors in the feed being read.
    */
@@ -99,6 +164,60 @@ public class GsafeedHelper extends FeedHelper {
     return unmarshalWithoutDtd(new ByteArrayInputStream(xml.getBytes(UTF_8)));
   }
 
+  /**
+   * Use the DTD to check for errors in the feed being read. The
+   * parts of the feed are passed to the handler as they are read,
+   * rather than building the whole feed in memory.
+   */
+  public void unmarshalWithDtd(URL url, GsafeedHandler handler)
+      throws JAXBException, IOException, ParserConfigurationException,
+      SAXException {
+    InputStream inputStream = url.openStream();
+    try {
+      unmarshalWithDtd(inputStream, handler);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Use the DTD to check for errors in the feed being read. The
+   * parts of the feed are passed to the handler as they are read,
+   * rather than building the whole feed in memory.
+   */
+  public void unmarshalWithDtd(InputStream inputStream,
+      GsafeedHandler handler) throws JAXBException, IOException,
+      ParserConfigurationException, SAXException {
+    unmarshal(inputStream, Validation.TRUE, new GsafeedSplitter(handler));
+  }
+
+  /**
+   * Avoid reading the DTD. No validation will happen. The parts of
+   * the feed are passed to the handler as they are read, rather
+   * than building the whole feed in memory.
+   */
+  public void unmarshalWithoutDtd(URL url, GsafeedHandler handler)
+      throws JAXBException, IOException, ParserConfigurationException,
+      SAXException {
+    InputStream inputStream = url.openStream();
+    try {
+      unmarshalWithoutDtd(inputStream, handler);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Avoid reading the DTD. No validation will happen. The parts of
+   * the feed are passed to the handler as they are read, rather
+   * than building the whole feed in memory.
+   */
+  public void unmarshalWithoutDtd(InputStream inputStream,
+      GsafeedHandler handler) throws JAXBException, IOException,
+      ParserConfigurationException, SAXException {
+    unmarshal(inputStream, Validation.FALSE, new GsafeedSplitter(handler));
+  }
+
   /**
    * Write the feed to the given stream.
    */
@@ -106,4 +225,47 @@ public class GsafeedHelper extends FeedHelper {
       throws IOException, JAXBException {
     super.marshal(feed, out);
   }
+
+  /** Splits header, group, acl, and record elements out of a feed. */
+  private static class GsafeedSplitter implements Splitter {
+    private final GsafeedHandler handler;
+
+    GsafeedSplitter(GsafeedHandler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public Split split(String parent, String name) {
+      if ("gsafeed".equals(parent)) {
+        if ("header".equals(name)) {
+          return Split.ELEMENT;
+        } else if ("group".equals(name)) {
+          return Split.START_TAG;
+        }
+      } else if ("group".equals(parent)) {
+        if ("acl".equals(name) || "record".equals(name)) {
+          return Split.ELEMENT;
+        }
+      }
+      return Split.NONE;
+    }
+
+    @Override
+    public void handle(Object element) throws IOException {
+      if (element instanceof Header) {
+        handler.header((Header) element);
+      } else if (element instanceof Group) {
+        handler.startGroup((Group) element);
+      } else if (element instanceof Acl) {
+        handler.acl((Acl) element);
+      } else if (element instanceof Record) {
+        handler.record((Record) element);
+      }
+    }
+
+    @Override
+    public void end(Object element) throws IOException {
+      handler.endGroup((Group) element);
+    }
+  }
 }
@@ -0,0 +1,322 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a GSA feed file one part at a time with a StAX parser, without
+ * JAXB and without the DTD, for code that only needs to route or
+ * count records. Example:
+ *
+ * <pre>
+ * GsafeedReader reader = new GsafeedReader(in);
+ * GsafeedReader.Event event;
+ * while ((event = reader.next()) != null) {
+ *   if (event == GsafeedReader.Event.RECORD) {
+ *     MutableRecord record = reader.getRecord();
+ *     ...
+ *   }
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * <p>Records and acls are read into a {@link MutableRecord} and a
+ * {@link MutableAcl} that are filled again for each one, so reading a
+ * feed creates few objects besides the strings of the attribute
+ * values. The feed is not validated: unknown elements and attributes
+ * are skipped, and elements are accepted in any order. Only malformed
+ * XML is an error.
+ *
+ * <p>A reader is not thread-safe.
+ */
+public class GsafeedReader implements Closeable {
+  /** The parts of a feed, as returned by {@link #next}. */
+  public static enum Event {
+    /** The header; see {@link #getHeader}. */
+    HEADER,
+    /** The start of a group; see {@link #getGroup}. */
+    START_GROUP,
+    /** An acl element in a group; see {@link #getAcl}. */
+    ACL,
+    /** A record in a group; see {@link #getRecord}. */
+    RECORD,
+    /** The end of a group. */
+    END_GROUP
+  }
+
+  /*
+   * Factories are not specified to be thread-safe, and are costly to
+   * create, so each thread keeps one.
+   */
+  private static final ThreadLocal<XMLInputFactory> factories =
+      new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+          XMLInputFactory factory = XMLInputFactory.newInstance();
+          factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+          factory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+          factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+          factory.setProperty(
+              XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+          factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+          return factory;
+        }
+      };
+
+  private final XMLStreamReader reader;
+  private final MutableRecord record = new MutableRecord();
+  private final MutableAcl acl = new MutableAcl();
+  private Header header;
+  private Group group;
+  private boolean inGroup;
+
+  /**
+   * @param in the stream to read the feed from, which is not closed
+   *     by {@link #close}
+   * @throws XMLStreamException if the parser cannot be created
+   */
+  public GsafeedReader(InputStream in) throws XMLStreamException {
+    if (in == null) {
+      throw new NullPointerException("in must not be null");
+    }
+    reader = factories.get().createXMLStreamReader(in);
+  }
+
+  /**
+   * Reads the next part of the feed.
+   *
+   * @return the part read, or null at the end of the feed
+   * @throws XMLStreamException if the XML is malformed
+   */
+  public Event next() throws XMLStreamException {
+    // Elements below gsafeed other than the header and groups, and
+    // below groups other than acls and records, are skipped whole.
+    while (reader.hasNext()) {
+      int type = reader.next();
+      if (type == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        if (inGroup) {
+          if ("record".equals(name)) {
+            readRecord();
+            return Event.RECORD;
+          } else if ("acl".equals(name)) {
+            acl.clear();
+            readAcl(acl);
+            return Event.ACL;
+          }
+          skipElement();
+        } else if ("gsafeed".equals(name)) {
+          continue;
+        } else if ("header".equals(name)) {
+          readHeader();
+          return Event.HEADER;
+        } else if ("group".equals(name)) {
+          readGroup();
+          inGroup = true;
+          return Event.START_GROUP;
+        } else {
+          skipElement();
+        }
+      } else if (type == XMLStreamConstants.END_ELEMENT && inGroup) {
+        inGroup = false;
+        return Event.END_GROUP;
+      }
+    }
+    return null;
+  }
+
+  /** Returns the header, after {@link Event#HEADER}. */
+  public Header getHeader() {
+    return header;
+  }
+
+  /**
+   * Returns the current group, with only its attributes set, after
+   * {@link Event#START_GROUP}. A new Group is created for each group.
+   */
+  public Group getGroup() {
+    return group;
+  }
+
+  /** Returns the acl, after {@link Event#ACL}. */
+  public MutableAcl getAcl() {
+    return acl;
+  }
+
+  /** Returns the record, after {@link Event#RECORD}. */
+  public MutableRecord getRecord() {
+    return record;
+  }
+
+  /**
+   * Closes the parser, but not the underlying stream.
+   *
+   * @throws IOException if the parser cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      reader.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Unable to close the parser", e);
+    }
+  }
+
+  private void readHeader() throws XMLStreamException {
+    header = new Header();
+    while (nextElement()) {
+      String name = reader.getLocalName();
+      if ("datasource".equals(name)) {
+        header.datasource = reader.getElementText();
+      } else if ("feedtype".equals(name)) {
+        header.feedtype = reader.getElementText();
+      } else {
+        skipElement();
+      }
+    }
+  }
+
+  private void readGroup() {
+    group = new Group();
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String name = reader.getAttributeLocalName(i);
+      String value = reader.getAttributeValue(i);
+      if ("action".equals(name)) {
+        try {
+          group.action = Group.Action.fromString(value);
+        } catch (IllegalArgumentException e) {
+          // Unmarshalled as no action.
+        }
+      } else if ("feedrank".equals(name)) {
+        group.feedrank = value;
+      } else if ("pagerank".equals(name)) {
+        group.pagerank = value;
+      }
+    }
+  }
+
+  private void readRecord() throws XMLStreamException {
+    record.clear();
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      record.setAttribute(
+          reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+    }
+    while (nextElement()) {
+      String name = reader.getLocalName();
+      if ("metadata".equals(name)) {
+        record.addMetadata(reader.getAttributeValue(null, "overwrite-acls"));
+        while (nextElement()) {
+          if ("meta".equals(reader.getLocalName())) {
+            record.addMeta(reader.getAttributeValue(null, "name"),
+                reader.getAttributeValue(null, "content"),
+                reader.getAttributeValue(null, "encoding"));
+          }
+          skipElement();
+        }
+      } else if ("content".equals(name)) {
+        StringBuilder text =
+            record.addContent(reader.getAttributeValue(null, "encoding"));
+        readText(text);
+        record.endContent();
+      } else if ("acl".equals(name)) {
+        readAcl(record.startAcl());
+      } else {
+        skipElement();
+      }
+    }
+  }
+
+  private void readAcl(MutableAcl acl) throws XMLStreamException {
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      acl.setAttribute(
+          reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+    }
+    while (nextElement()) {
+      if ("principal".equals(reader.getLocalName())) {
+        int index = acl.addPrincipal();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+          acl.setPrincipalAttribute(index,
+              reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        acl.setName(index, reader.getElementText());
+      } else {
+        skipElement();
+      }
+    }
+  }
+
+  /**
+   * Moves to the next child element of the current element, skipping
+   * any text, and returns true, or moves to the end of the current
+   * element and returns false.
+   */
+  private boolean nextElement() throws XMLStreamException {
+    while (true) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          return true;
+        case XMLStreamConstants.END_ELEMENT:
+          return false;
+        default:
+          break;
+      }
+    }
+  }
+
+  /** Appends the text of the current element, skipping any children. */
+  private void readText(StringBuilder text) throws XMLStreamException {
+    while (true) {
+      switch (reader.next()) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          text.append(reader.getTextCharacters(), reader.getTextStart(),
+              reader.getTextLength());
+          break;
+        case XMLStreamConstants.START_ELEMENT:
+          skipElement();
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          return;
+        default:
+          break;
+      }
+    }
+  }
+
+  /** Moves to the end of the current element. */
+  private void skipElement() throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Writes a GSA feed file one group or record at a time, without
+ * holding the whole feed in memory. The output is the same as
+ * {@link GsafeedHelper#marshal} would produce for the same feed.
+ * Example:
+ *
+ * <pre>
+ * GsafeedWriter writer = new GsafeedWriter(helper, out, header);
+ * writer.startGroup(new Group());
+ * for (Record record : records) {
+ *   writer.write(record);
+ * }
+ * writer.endGroup();
+ * writer.finish();
+ * </pre>
+ */
+public class GsafeedWriter {
+  private final FeedWriter writer;
+
+  /**
+   * Writes the XML declaration, the DOCTYPE, and the header.
+   *
+   * @param helper the helper used to marshal the feed
+   * @param out the stream to write to
+   * @param header the feed header, or null
+   * @throws IOException if writing fails
+   * @throws JAXBException if marshalling fails
+   */
+  public GsafeedWriter(GsafeedHelper helper, OutputStream out, Header header)
+      throws IOException, JAXBException {
+    writer = new FeedWriter(helper, out, new Gsafeed(), "gsafeed");
+    if (header != null) {
+      writer.writeElement(header);
+    }
+  }
+
+  /**
+   * Writes a complete group, including its acls and records.
+   *
+   * @param group the group
+   * @throws IllegalStateException if a group has been started
+   */
+  public void write(Group group) throws IOException, JAXBException {
+    checkGroupStarted(false);
+    writer.writeElement(group);
+  }
+
+  /**
+   * Starts a group. Acls and records written before the next call to
+   * {@link #endGroup} are added to this group. Any acls and records
+   * already in the given group are written first.
+   *
+   * @param group the group
+   * @throws IllegalStateException if a group has already been started
+   */
+  public void startGroup(Group group) throws IOException, JAXBException {
+    checkGroupStarted(false);
+    Group startTag = new Group()
+        .setAction(group.getAction())
+        .setFeedrank(group.getFeedrank())
+        .setPagerank(group.getPagerank());
+    writer.startElement(startTag, "group");
+    for (Object aclOrRecord : group.getAclOrRecord()) {
+      writer.writeElement(aclOrRecord);
+    }
+  }
+
+  /**
+   * Writes an acl in the current group.
+   *
+   * @param acl the acl
+   * @throws IllegalStateException if no group has been started
+   */
+  public void write(Acl acl) throws IOException, JAXBException {
+    checkGroupStarted(true);
+    writer.writeElement(acl);
+  }
+
+  /**
+   * Writes an acl in the current group from its compact view. The
+   * output is the same as for the Acl, but JAXB is not used.
+   *
+   * @param acl the acl
+   * @throws IllegalStateException if no group has been started
+   */
+  public void write(AclView acl) throws IOException {
+    checkGroupStarted(true);
+    writer.writeMarshalled(acl.marshal(writer.getDepth()));
+  }
+
+  /**
+   * Writes a record in the current group.
+   *
+   * @param record the record
+   * @throws IllegalStateException if no group has been started
+   */
+  public void write(Record record) throws IOException, JAXBException {
+    checkGroupStarted(true);
+    writer.writeElement(record);
+  }
+
+  /**
+   * Ends the current group.
+   *
+   * @throws IllegalStateException if no group has been started
+   */
+  public void endGroup() throws IOException {
+    checkGroupStarted(true);
+    writer.endElement();
+  }
+
+  /**
+   * Ends the current group, if any, and the feed, and flushes the
+   * stream. The stream is not closed.
+   */
+  public void finish() throws IOException {
+    writer.finish();
+  }
+
+  private void checkGroupStarted(boolean expected) {
+    boolean started = writer.getDepth() == 2;
+    if (started != expected) {
+      throw new IllegalStateException(
+          expected ? "No group has been started" : "A group has been started");
+    }
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Posts requests with {@link HttpURLConnection}, keeping connections
+ * open between requests. After a response has been read in full, the
+ * connection is returned to the JVM's keep-alive cache and reused by
+ * the next request to the same host, so the TCP and TLS handshakes
+ * are not repeated. All HTTPS requests use the same SSLSocketFactory,
+ * which lets TLS sessions be resumed when a new connection is needed.
+ * Connections are only closed after an error.
+ *
+ * <p>At most {@code maxConnections} requests are in progress at once;
+ * further requests wait. The JVM keeps up to {@code http.maxConnections}
+ * idle connections per host (5 by default), so set that system
+ * property at least as high as {@code maxConnections} to reuse every
+ * connection.
+ */
+public class HttpFeedTransport implements FeedTransport {
+  /** The default limit on requests in progress at once. */
+  public static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Semaphore connections;
+  private volatile int connectTimeout;
+  private volatile int readTimeout;
+  private volatile boolean keepAlive = true;
+  private volatile SSLSocketFactory sslSocketFactory;
+
+  public HttpFeedTransport() {
+    this(DEFAULT_MAX_CONNECTIONS);
+  }
+
+  /**
+   * @param maxConnections the largest number of requests in progress
+   *     at once
+   */
+  public HttpFeedTransport(int maxConnections) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections must be positive");
+    }
+    connections = new Semaphore(maxConnections, true);
+  }
+
+  /**
+   * Sets the timeout for opening a connection, in milliseconds. The
+   * default is 0, which means no timeout.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative");
+    }
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Sets the timeout for reading the response, in milliseconds. The
+   * default is 0, which means no timeout. The GSA does not reply until
+   * it has received the whole feed.
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative");
+    }
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Sets whether connections are kept open between requests. The
+   * default is true. If false, every request uses a new connection,
+   * which is closed after the response.
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Sets the factory for HTTPS connections. The default is the JVM's
+   * default factory.
+   */
+  public void setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+    this.sslSocketFactory = sslSocketFactory;
+  }
+
+  @Override
+  public Response post(URL url, Map<String, String> headers,
+      long contentLength, RequestBody body) throws IOException {
+    try {
+      connections.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a connection");
+    }
+    try {
+      HttpURLConnection uc = setupConnection(url, headers, contentLength);
+      try {
+        uc.connect();
+        // The connection's stream is not buffered, and messages are
+        // written in small pieces.
+        OutputStream out =
+            new BufferedOutputStream(uc.getOutputStream(), BUFFER_SIZE);
+        try {
+          body.writeTo(out);
+          out.flush();
+        } finally {
+          out.close();
+        }
+        byte[] reply = readResponse(uc);
+        return new Response(uc.getResponseCode(), reply);
+      } catch (IOException e) {
+        // The connection is in an unknown state, so don't reuse it.
+        uc.disconnect();
+        throw e;
+      }
+    } finally {
+      connections.release();
+    }
+  }
+
+  private HttpURLConnection setupConnection(URL url,
+      Map<String, String> headers, long contentLength) throws IOException {
+    HttpURLConnection uc = (HttpURLConnection) url.openConnection();
+    SSLSocketFactory factory = sslSocketFactory;
+    if (factory != null && uc instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) uc).setSSLSocketFactory(factory);
+    }
+    uc.setConnectTimeout(connectTimeout);
+    uc.setReadTimeout(readTimeout);
+    uc.setDoInput(true);
+    uc.setDoOutput(true);
+    if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+      uc.setFixedLengthStreamingMode((int) contentLength);
+    } else {
+      uc.setChunkedStreamingMode(0);
+    }
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      uc.setRequestProperty(header.getKey(), header.getValue());
+    }
+    return uc;
+  }
+
+  /**
+   * Reads the whole response. Closing the stream then returns the
+   * connection to the keep-alive cache, unless it has been
+   * disconnected first.
+   *
+   * @return the response body, or null if there is none
+   */
+  private byte[] readResponse(HttpURLConnection uc) throws IOException {
+    InputStream inputStream;
+    try {
+      inputStream = uc.getInputStream();
+    } catch (IOException ioe) {
+      inputStream = uc.getErrorStream();
+    }
+    if (null == inputStream) {
+      if (!keepAlive) {
+        uc.disconnect();
+      }
+      return null;
+    }
+    try {
+      return IOHelper.readInputStreamToByteArray(inputStream);
+    } finally {
+      if (!keepAlive) {
+        uc.disconnect();
+      }
+      inputStream.close();
+    }
+  }
+}
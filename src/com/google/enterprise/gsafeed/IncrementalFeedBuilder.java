@@ -0,0 +1,220 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Writes a feed file holding only the records that changed since they
+ * were last sent, as recorded in a {@link RecordStateIndex}, and
+ * updates the index once the feed has been sent. Example:
+ *
+ * <pre>
+ * IncrementalFeedBuilder builder =
+ *     new IncrementalFeedBuilder(index, helper, header, feedFile);
+ * for (Record record : records) {
+ *   builder.add(record);
+ * }
+ * builder.send(sender, true);
+ * </pre>
+ *
+ * <p>A record is written if the index has no record with its url, or
+ * one with a different fingerprint. A record with the delete action
+ * is written if the index has its url. The index is not changed until
+ * {@link #send} succeeds, so if sending fails, the same records are
+ * seen as changed the next time.
+ *
+ * <p>The records are written in one group. Since unchanged records
+ * are left out, the feedtype must not be "full".
+ */
+public class IncrementalFeedBuilder {
+  private final RecordStateIndex index;
+  private final Header header;
+  private final File feedFile;
+  private final OutputStream out;
+  private final GsafeedWriter writer;
+
+  /** The state to store for each url written, or null to remove it. */
+  private final Map<String, State> pending =
+      new LinkedHashMap<String, State>();
+  private int writtenCount;
+  private int skippedCount;
+  private boolean finished;
+  private boolean sent;
+
+  /**
+   * Starts writing the feed to the file.
+   *
+   * @param index the records last sent
+   * @param helper the helper used to marshal the records
+   * @param header the feed header, giving the datasource and feedtype
+   * @param feedFile the file to write the feed to
+   * @throws IllegalArgumentException if the feedtype is "full"
+   */
+  public IncrementalFeedBuilder(RecordStateIndex index, GsafeedHelper helper,
+      Header header, File feedFile) throws IOException, JAXBException {
+    if (index == null) {
+      throw new NullPointerException("index must not be null");
+    }
+    if (header == null) {
+      throw new NullPointerException("header must not be null");
+    }
+    if ("full".equals(header.getFeedtype())) {
+      throw new IllegalArgumentException(
+          "A full feed would delete the unchanged records");
+    }
+    this.index = index;
+    this.header = header;
+    this.feedFile = feedFile;
+    this.out = new BufferedOutputStream(new FileOutputStream(feedFile));
+    boolean started = false;
+    try {
+      writer = new GsafeedWriter(helper, out, header);
+      writer.startGroup(new Group());
+      started = true;
+    } finally {
+      if (!started) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the record if it has changed.
+   *
+   * @param record the record
+   * @return whether the record was written
+   * @throws IllegalStateException if the feed has been finished
+   * @throws IOException if the record's content cannot be read, or
+   *     the file cannot be written
+   */
+  public boolean add(Record record) throws IOException, JAXBException {
+    if (finished) {
+      throw new IllegalStateException("The feed has been finished");
+    }
+    String url = record.getUrl();
+    State state;
+    boolean changed;
+    if (record.getAction() == Record.Action.DELETE) {
+      state = null;
+      changed = pending.containsKey(url)
+          ? pending.get(url) != null : index.contains(url);
+    } else {
+      state = new State(Fingerprint.of(record), record.getLastModified());
+      changed = pending.containsKey(url)
+          ? !state.equals(pending.get(url))
+          : !index.isUnchanged(url, state.fingerprint);
+    }
+    if (!changed) {
+      skippedCount++;
+      return false;
+    }
+    writer.write(record);
+    pending.put(url, state);
+    writtenCount++;
+    return true;
+  }
+
+  /** Returns the number of records written. */
+  public int getWrittenCount() {
+    return writtenCount;
+  }
+
+  /** Returns the number of unchanged records left out. */
+  public int getSkippedCount() {
+    return skippedCount;
+  }
+
+  /**
+   * Ends the feed and closes the file. Call this if the feed will be
+   * sent some other way, or not at all; the index is then not
+   * updated.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    try {
+      writer.finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Ends the feed, sends the file, and once the GSA has accepted it,
+   * stores the records that were written in the index and flushes
+   * it. If sending fails, the index is unchanged and this can be
+   * called again.
+   *
+   * @param sender the sender
+   * @param useCompression whether to compress the feed
+   * @throws IllegalStateException if the feed has already been sent
+   * @throws IOException if the feed cannot be sent, or the index
+   *     cannot be written
+   */
+  public void send(GsaFeedFileSender sender, boolean useCompression)
+      throws IOException {
+    if (sent) {
+      throw new IllegalStateException("The feed has already been sent");
+    }
+    finish();
+    sender.sendGsaFeed(header.getDatasource(), header.getFeedtype(),
+        feedFile, useCompression);
+    sent = true;
+    for (Map.Entry<String, State> entry : pending.entrySet()) {
+      State state = entry.getValue();
+      if (state == null) {
+        index.remove(entry.getKey());
+      } else {
+        index.put(entry.getKey(), state.fingerprint, state.lastModified);
+      }
+    }
+    pending.clear();
+    index.flush();
+  }
+
+  private static class State {
+    final byte[] fingerprint;
+    final Date lastModified;
+
+    State(byte[] fingerprint, Date lastModified) {
+      this.fingerprint = fingerprint;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      // The fingerprint includes the last-modified date.
+      return o instanceof State
+          && Arrays.equals(fingerprint, ((State) o).fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(fingerprint);
+    }
+  }
+}
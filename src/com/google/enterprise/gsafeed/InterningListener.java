@@ -0,0 +1,77 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * Passes the attributes that repeat throughout a feed through a
+ * {@link StringInterner} as each element is unmarshalled: meta names,
+ * mimetypes, ACL inherit-from URLs, and principal names and
+ * namespaces in both gsafeed and xmlgroups feeds.
+ */
+class InterningListener extends Unmarshaller.Listener {
+  private final StringInterner interner;
+  private final Unmarshaller.Listener next;
+
+  /**
+   * @param interner the interner
+   * @param next a listener to call after each element is interned,
+   *     or null
+   */
+  InterningListener(StringInterner interner, Unmarshaller.Listener next) {
+    this.interner = interner;
+    this.next = next;
+  }
+
+  @Override
+  public void afterUnmarshal(Object target, Object parent) {
+    if (target instanceof Principal) {
+      Principal principal = (Principal) target;
+      principal.namespace = interner.intern(principal.namespace);
+      principal.value = interner.intern(principal.value);
+    } else if (target instanceof Meta) {
+      Meta meta = (Meta) target;
+      meta.name = interner.intern(meta.name);
+    } else if (target instanceof Record) {
+      Record record = (Record) target;
+      record.mimetype = interner.intern(record.mimetype);
+    } else if (target instanceof Acl) {
+      Acl acl = (Acl) target;
+      acl.inheritFrom = interner.intern(acl.inheritFrom);
+    } else if (target
+        instanceof com.google.enterprise.gsafeed.groups.Principal) {
+      com.google.enterprise.gsafeed.groups.Principal principal =
+          (com.google.enterprise.gsafeed.groups.Principal) target;
+      // getNamespace returns "Default" in place of null, and setting
+      // that would add a namespace attribute, so leave it alone.
+      String namespace = principal.getNamespace();
+      if (!namespace.equals("Default")) {
+        principal.setNamespace(interner.intern(namespace));
+      }
+      principal.setvalue(interner.intern(principal.getvalue()));
+    }
+    if (next != null) {
+      next.afterUnmarshal(target, parent);
+    }
+  }
+
+  @Override
+  public void beforeUnmarshal(Object target, Object parent) {
+    if (next != null) {
+      next.beforeUnmarshal(target, parent);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.util.Arrays;
+
+/**
+ * An acl read by {@link GsafeedReader}. The reader fills the same
+ * object again for each acl, so it is only valid until the next call
+ * to {@link GsafeedReader#next}; use {@link #toAcl} to keep a copy.
+ *
+ * <p>Attributes are held as the strings in the feed, and converted
+ * when they are read. As when a feed is unmarshalled without the DTD,
+ * an attribute with a value that is not allowed reads as null.
+ */
+public final class MutableAcl {
+  private static final int PRINCIPAL_ATTRIBUTES = 5;
+  private static final int SCOPE = 0;
+  private static final int ACCESS = 1;
+  private static final int NAMESPACE = 2;
+  private static final int CASE_SENSITIVITY_TYPE = 3;
+  private static final int PRINCIPAL_TYPE = 4;
+
+  private String url;
+  private String inheritanceType;
+  private String inheritFrom;
+  private int size;
+  /** Each principal's attributes, in the order of the indexes above. */
+  private String[] attributes = new String[8 * PRINCIPAL_ATTRIBUTES];
+  private String[] names = new String[8];
+
+  MutableAcl() {
+  }
+
+  void clear() {
+    url = null;
+    inheritanceType = null;
+    inheritFrom = null;
+    Arrays.fill(attributes, 0, size * PRINCIPAL_ATTRIBUTES, null);
+    Arrays.fill(names, 0, size, null);
+    size = 0;
+  }
+
+  /** Adds a principal with no attributes, and returns its index. */
+  int addPrincipal() {
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      attributes = Arrays.copyOf(attributes, size * 2 * PRINCIPAL_ATTRIBUTES);
+    }
+    return size++;
+  }
+
+  /**
+   * Sets an attribute of a principal, ignoring unknown attributes.
+   */
+  void setPrincipalAttribute(int index, String name, String value) {
+    int offset = index * PRINCIPAL_ATTRIBUTES;
+    if ("scope".equals(name)) {
+      attributes[offset + SCOPE] = value;
+    } else if ("access".equals(name)) {
+      attributes[offset + ACCESS] = value;
+    } else if ("namespace".equals(name)) {
+      attributes[offset + NAMESPACE] = value;
+    } else if ("case-sensitivity-type".equals(name)) {
+      attributes[offset + CASE_SENSITIVITY_TYPE] = value;
+    } else if ("principal-type".equals(name)) {
+      attributes[offset + PRINCIPAL_TYPE] = value;
+    }
+  }
+
+  /** Sets an attribute of the acl, ignoring unknown attributes. */
+  void setAttribute(String name, String value) {
+    if ("url".equals(name)) {
+      url = value;
+    } else if ("inheritance-type".equals(name)) {
+      inheritanceType = value;
+    } else if ("inherit-from".equals(name)) {
+      inheritFrom = value;
+    }
+  }
+
+  void setName(int index, String name) {
+    names[index] = name;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public Acl.InheritanceType getInheritanceType() {
+    try {
+      return Acl.InheritanceType.fromString(inheritanceType);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  public String getInheritFrom() {
+    return inheritFrom;
+  }
+
+  /** Returns the number of principals. */
+  public int size() {
+    return size;
+  }
+
+  public Principal.Scope getScope(int index) {
+    try {
+      return Principal.Scope.fromString(attribute(index, SCOPE));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  public Principal.Access getAccess(int index) {
+    try {
+      return Principal.Access.fromString(attribute(index, ACCESS));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the namespace of the principal, which is "Default" if it
+   * was not set, as for {@link Principal#getNamespace}.
+   */
+  public String getNamespace(int index) {
+    String namespace = attribute(index, NAMESPACE);
+    return (namespace == null) ? "Default" : namespace;
+  }
+
+  public Principal.CaseSensitivityType getCaseSensitivityType(int index) {
+    try {
+      return Principal.CaseSensitivityType.fromString(
+          attribute(index, CASE_SENSITIVITY_TYPE));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  public Principal.PrincipalType getPrincipalType(int index) {
+    try {
+      return Principal.PrincipalType.fromString(
+          attribute(index, PRINCIPAL_TYPE));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Returns the name of the principal, its element's text. */
+  public String getName(int index) {
+    checkIndex(index);
+    return names[index];
+  }
+
+  private String attribute(int index, int attribute) {
+    checkIndex(index);
+    return attributes[index * PRINCIPAL_ATTRIBUTES + attribute];
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(
+          "Index: " + index + ", Size: " + size);
+    }
+  }
+
+  /** Creates a new Acl with the same attributes and principals. */
+  public Acl toAcl() {
+    Acl acl = new Acl();
+    acl.url = url;
+    acl.inheritanceType = getInheritanceType();
+    acl.inheritFrom = inheritFrom;
+    for (int i = 0; i < size; i++) {
+      // Scope and access may be null, which their setters reject.
+      Principal principal = new Principal();
+      principal.scope = getScope(i);
+      principal.access = getAccess(i);
+      principal.namespace = attribute(i, NAMESPACE);
+      principal.caseSensitivityType = getCaseSensitivityType(i);
+      principal.principalType = getPrincipalType(i);
+      principal.value = names[i];
+      acl.getPrincipal().add(principal);
+    }
+    return acl;
+  }
+}
@@ -0,0 +1,376 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.nio.CharBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * A record read by {@link GsafeedReader}. The reader fills the same
+ * object again for each record, reusing its arrays, so it is only
+ * valid until the next call to {@link GsafeedReader#next}; use {@link
+ * #toRecord} to keep a copy.
+ *
+ * <p>The metas of all of the record's metadata elements are numbered
+ * together, in document order, and {@link #getMetaMetadata} gives the
+ * metadata element each one belongs to. The text of the content
+ * elements is kept in one buffer, and is not decoded.
+ *
+ * <p>Attributes are held as the strings in the feed, and converted
+ * when they are read. As when a feed is unmarshalled without the DTD,
+ * an attribute with a value that is not allowed reads as null.
+ */
+public final class MutableRecord {
+  private static final DateAdapter dateAdapter = new DateAdapter();
+
+  private String url;
+  private String displayurl;
+  private String action;
+  private String mimetype;
+  private String lastModified;
+  private String lock;
+  private String authmethod;
+  private String feedrank;
+  private String pagerank;
+  private String crawlImmediately;
+  private String crawlOnce;
+  private String scoring;
+
+  private final MutableAcl acl = new MutableAcl();
+  private boolean hasAcl;
+
+  private int metadataCount;
+  private String[] overwriteAcls = new String[2];
+
+  private int metaCount;
+  private String[] metaNames = new String[16];
+  private String[] metaContents = new String[16];
+  private String[] metaEncodings = new String[16];
+  private int[] metaMetadata = new int[16];
+
+  private int contentCount;
+  private String[] contentEncodings = new String[2];
+  /** The end of each content's text in the buffer. */
+  private int[] contentEnds = new int[2];
+  private final StringBuilder contentText = new StringBuilder();
+
+  MutableRecord() {
+  }
+
+  void clear() {
+    url = null;
+    displayurl = null;
+    action = null;
+    mimetype = null;
+    lastModified = null;
+    lock = null;
+    authmethod = null;
+    feedrank = null;
+    pagerank = null;
+    crawlImmediately = null;
+    crawlOnce = null;
+    scoring = null;
+    hasAcl = false;
+    Arrays.fill(overwriteAcls, 0, metadataCount, null);
+    metadataCount = 0;
+    Arrays.fill(metaNames, 0, metaCount, null);
+    Arrays.fill(metaContents, 0, metaCount, null);
+    Arrays.fill(metaEncodings, 0, metaCount, null);
+    metaCount = 0;
+    Arrays.fill(contentEncodings, 0, contentCount, null);
+    contentCount = 0;
+    contentText.setLength(0);
+  }
+
+  /** Sets an attribute of the record, ignoring unknown attributes. */
+  void setAttribute(String name, String value) {
+    if ("url".equals(name)) {
+      url = value;
+    } else if ("mimetype".equals(name)) {
+      mimetype = value;
+    } else if ("last-modified".equals(name)) {
+      lastModified = value;
+    } else if ("action".equals(name)) {
+      action = value;
+    } else if ("displayurl".equals(name)) {
+      displayurl = value;
+    } else if ("lock".equals(name)) {
+      lock = value;
+    } else if ("authmethod".equals(name)) {
+      authmethod = value;
+    } else if ("feedrank".equals(name)) {
+      feedrank = value;
+    } else if ("pagerank".equals(name)) {
+      pagerank = value;
+    } else if ("crawl-immediately".equals(name)) {
+      crawlImmediately = value;
+    } else if ("crawl-once".equals(name)) {
+      crawlOnce = value;
+    } else if ("scoring".equals(name)) {
+      scoring = value;
+    }
+  }
+
+  /** Clears and returns the acl, which the record now has. */
+  MutableAcl startAcl() {
+    acl.clear();
+    hasAcl = true;
+    return acl;
+  }
+
+  void addMetadata(String overwriteAcls) {
+    if (metadataCount == this.overwriteAcls.length) {
+      this.overwriteAcls =
+          Arrays.copyOf(this.overwriteAcls, metadataCount * 2);
+    }
+    this.overwriteAcls[metadataCount++] = overwriteAcls;
+  }
+
+  /** Adds a meta to the last metadata element. */
+  void addMeta(String name, String content, String encoding) {
+    if (metaCount == metaNames.length) {
+      int length = metaCount * 2;
+      metaNames = Arrays.copyOf(metaNames, length);
+      metaContents = Arrays.copyOf(metaContents, length);
+      metaEncodings = Arrays.copyOf(metaEncodings, length);
+      metaMetadata = Arrays.copyOf(metaMetadata, length);
+    }
+    metaNames[metaCount] = name;
+    metaContents[metaCount] = content;
+    metaEncodings[metaCount] = encoding;
+    metaMetadata[metaCount] = metadataCount - 1;
+    metaCount++;
+  }
+
+  /**
+   * Starts a content element. Its text is appended to the buffer
+   * returned, until the next content element is started.
+   */
+  StringBuilder addContent(String encoding) {
+    if (contentCount == contentEncodings.length) {
+      contentEncodings = Arrays.copyOf(contentEncodings, contentCount * 2);
+      contentEnds = Arrays.copyOf(contentEnds, contentCount * 2);
+    }
+    contentEncodings[contentCount++] = encoding;
+    return contentText;
+  }
+
+  /** Records the end of the last content element's text. */
+  void endContent() {
+    contentEnds[contentCount - 1] = contentText.length();
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getDisplayurl() {
+    return displayurl;
+  }
+
+  public Record.Action getAction() {
+    try {
+      return Record.Action.fromString(action);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  public String getMimetype() {
+    return mimetype;
+  }
+
+  /**
+   * Returns a new Date for the last-modified attribute, or null if it
+   * is missing or cannot be parsed.
+   */
+  public Date getLastModified() {
+    try {
+      return dateAdapter.unmarshal(lastModified);
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  public Boolean getLock() {
+    return parseBoolean(lock);
+  }
+
+  public Record.AuthMethod getAuthmethod() {
+    try {
+      return Record.AuthMethod.fromString(authmethod);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  public String getFeedrank() {
+    return feedrank;
+  }
+
+  public String getPagerank() {
+    return pagerank;
+  }
+
+  public Boolean getCrawlImmediately() {
+    return parseBoolean(crawlImmediately);
+  }
+
+  public Boolean getCrawlOnce() {
+    return parseBoolean(crawlOnce);
+  }
+
+  public Record.Scoring getScoring() {
+    try {
+      return Record.Scoring.fromString(scoring);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Returns the record's acl, or null if it does not have one. */
+  public MutableAcl getAcl() {
+    return hasAcl ? acl : null;
+  }
+
+  /** Returns the number of metadata elements. */
+  public int getMetadataCount() {
+    return metadataCount;
+  }
+
+  /** Returns the overwrite-acls attribute of a metadata element. */
+  public Boolean getOverwriteAcls(int metadata) {
+    checkIndex(metadata, metadataCount);
+    return parseBoolean(overwriteAcls[metadata]);
+  }
+
+  /** Returns the number of metas in all of the metadata elements. */
+  public int getMetaCount() {
+    return metaCount;
+  }
+
+  public String getMetaName(int index) {
+    checkIndex(index, metaCount);
+    return metaNames[index];
+  }
+
+  public String getMetaContent(int index) {
+    checkIndex(index, metaCount);
+    return metaContents[index];
+  }
+
+  public Meta.Encoding getMetaEncoding(int index) {
+    checkIndex(index, metaCount);
+    try {
+      return Meta.Encoding.fromString(metaEncodings[index]);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Returns the index of the metadata element holding the meta. */
+  public int getMetaMetadata(int index) {
+    checkIndex(index, metaCount);
+    return metaMetadata[index];
+  }
+
+  /** Returns the number of content elements. */
+  public int getContentCount() {
+    return contentCount;
+  }
+
+  public Content.Encoding getContentEncoding(int index) {
+    checkIndex(index, contentCount);
+    try {
+      return Content.Encoding.fromString(contentEncodings[index]);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the text of a content element, still encoded, without
+   * copying it.
+   */
+  public CharSequence getContent(int index) {
+    checkIndex(index, contentCount);
+    int start = (index == 0) ? 0 : contentEnds[index - 1];
+    return CharBuffer.wrap(contentText, start, contentEnds[index]);
+  }
+
+  private static void checkIndex(int index, int size) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(
+          "Index: " + index + ", Size: " + size);
+    }
+  }
+
+  /** Parses an xsd:boolean, returning null if it is not one. */
+  private static Boolean parseBoolean(String value) {
+    if (value == null) {
+      return null;
+    }
+    value = value.trim();
+    if ("true".equals(value) || "1".equals(value)) {
+      return Boolean.TRUE;
+    } else if ("false".equals(value) || "0".equals(value)) {
+      return Boolean.FALSE;
+    } else {
+      return null;
+    }
+  }
+
+  /** Creates a new Record with the same attributes and elements. */
+  public Record toRecord() {
+    Record record = new Record();
+    record.url = url;
+    record.displayurl = displayurl;
+    record.action = getAction();
+    record.mimetype = mimetype;
+    record.lastModified = getLastModified();
+    record.lock = getLock();
+    record.authmethod = getAuthmethod();
+    record.feedrank = feedrank;
+    record.pagerank = pagerank;
+    record.crawlImmediately = getCrawlImmediately();
+    record.crawlOnce = getCrawlOnce();
+    record.scoring = getScoring();
+    if (hasAcl) {
+      record.acl = acl.toAcl();
+    }
+    int meta = 0;
+    for (int i = 0; i < metadataCount; i++) {
+      Metadata metadata = new Metadata();
+      metadata.overwriteAcls = getOverwriteAcls(i);
+      for (; meta < metaCount && metaMetadata[meta] == i; meta++) {
+        Meta element = new Meta();
+        element.name = metaNames[meta];
+        element.content = metaContents[meta];
+        element.encoding = getMetaEncoding(meta);
+        metadata.getMeta().add(element);
+      }
+      record.getMetadata().add(metadata);
+    }
+    for (int i = 0; i < contentCount; i++) {
+      Content content = new Content();
+      content.encoding = getContentEncoding(i);
+      content.value = getContent(i).toString();
+      record.getContent().add(content);
+    }
+    return record;
+  }
+}
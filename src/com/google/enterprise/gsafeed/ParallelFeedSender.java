@@ -0,0 +1,360 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends feeds and group definitions to the GSA over several
+ * connections at once. Up to a given number of uploads are in flight
+ * at a time. Feeds for the same data source, and groups for the same
+ * group source, are sent one at a time in the order they were
+ * submitted; a failed upload does not stop the later ones. Each
+ * submission returns a future that completes when the GSA has
+ * replied, and fails with the exception the {@link GsaFeedFileSender}
+ * method would have thrown, or with a {@link
+ * RejectedExecutionException} if the executor would not run it.
+ *
+ * <p>Example:
+ *
+ * <pre>
+ * ParallelFeedSender parallel = new ParallelFeedSender(sender, 4);
+ * List&lt;Future&lt;Void&gt;&gt; results = new ArrayList&lt;Future&lt;Void&gt;&gt;();
+ * for (File chunk : chunks) {
+ *   results.add(parallel.sendGsaFeed("docs", "incremental", chunk, true));
+ * }
+ * parallel.shutdown();
+ * for (Future&lt;Void&gt; result : results) {
+ *   result.get();
+ * }
+ * </pre>
+ */
+public class ParallelFeedSender {
+  private static final Logger log
+      = Logger.getLogger(ParallelFeedSender.class.getName());
+
+  private final GsaFeedFileSender sender;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int maxInFlight;
+
+  // Guarded by this. A source is ready if it has pending uploads and
+  // none in flight.
+  private final Map<String, LinkedList<Upload>> pending =
+      new HashMap<String, LinkedList<Upload>>();
+  private final Set<String> busy = new HashSet<String>();
+  private final LinkedList<String> ready = new LinkedList<String>();
+  private int inFlight;
+  private int queued;
+  private boolean shutdown;
+
+  /**
+   * Creates a sender that uses its own pool of {@code maxInFlight}
+   * threads. The threads are stopped by {@link #shutdown}.
+   */
+  public ParallelFeedSender(GsaFeedFileSender sender, int maxInFlight) {
+    this(sender, Executors.newFixedThreadPool(maxInFlight,
+        new SenderThreadFactory()), maxInFlight, true);
+  }
+
+  /**
+   * Creates a sender that runs uploads on the given executor, which
+   * must be able to run {@code maxInFlight} tasks at once. The
+   * executor is not shut down by {@link #shutdown}.
+   */
+  public ParallelFeedSender(GsaFeedFileSender sender, Executor executor,
+      int maxInFlight) {
+    this(sender, executor, maxInFlight, false);
+  }
+
+  private ParallelFeedSender(GsaFeedFileSender sender, Executor executor,
+      int maxInFlight, boolean ownsExecutor) {
+    if (sender == null || executor == null) {
+      throw new NullPointerException();
+    }
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+    this.sender = sender;
+    this.executor = executor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Queues XML with provided datasource name and feedtype.
+   *
+   * @see GsaFeedFileSender#sendGsaFeed(String, String, String, boolean)
+   */
+  public Future<Void> sendGsaFeed(final String datasource,
+      final String feedtype, final String xmlString,
+      final boolean useCompression) {
+    return submit(feedKey(datasource), new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sender.sendGsaFeed(datasource, feedtype, xmlString, useCompression);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Queues the XML in the file with provided datasource name and
+   * feedtype.
+   *
+   * @see GsaFeedFileSender#sendGsaFeed(String, String, File, boolean)
+   */
+  public Future<Void> sendGsaFeed(final String datasource,
+      final String feedtype, final File xmlFile,
+      final boolean useCompression) {
+    return submit(feedKey(datasource), new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sender.sendGsaFeed(datasource, feedtype, xmlFile, useCompression);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Queues the feed, using the datasource name and feedtype in its
+   * header. The feed must not be modified until it has been sent.
+   *
+   * @see GsaFeedFileSender#sendGsaFeed(Gsafeed, boolean)
+   * @throws IllegalArgumentException if the feed has no header
+   */
+  public Future<Void> sendGsaFeed(final Gsafeed feed,
+      final boolean useCompression) {
+    if (feed.getHeader() == null) {
+      throw new IllegalArgumentException("Feed has no header");
+    }
+    return submit(feedKey(feed.getHeader().getDatasource()),
+        new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            sender.sendGsaFeed(feed, useCompression);
+            return null;
+          }
+        });
+  }
+
+  /**
+   * Queues XML with provided groupsource name.
+   *
+   * @see GsaFeedFileSender#sendGroups(String, String, String, boolean)
+   */
+  public Future<Void> sendGroups(final String groupsource,
+      final String feedtype, final String xmlString,
+      final boolean useCompression) {
+    return submit(groupsKey(groupsource), new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sender.sendGroups(groupsource, feedtype, xmlString, useCompression);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Queues the XML in the file with provided groupsource name.
+   *
+   * @see GsaFeedFileSender#sendGroups(String, String, File, boolean)
+   */
+  public Future<Void> sendGroups(final String groupsource,
+      final String feedtype, final File xmlFile,
+      final boolean useCompression) {
+    return submit(groupsKey(groupsource), new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sender.sendGroups(groupsource, feedtype, xmlFile, useCompression);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Queues the groups with provided groupsource name. The groups must
+   * not be modified until they have been sent.
+   *
+   * @see GsaFeedFileSender#sendGroups(String, String, Xmlgroups, boolean)
+   */
+  public Future<Void> sendGroups(final String groupsource,
+      final String feedtype, final Xmlgroups groups,
+      final boolean useCompression) {
+    return submit(groupsKey(groupsource), new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          sender.sendGroups(groupsource, feedtype, groups, useCompression);
+          return null;
+        }
+      });
+  }
+
+  /**
+   * Stops accepting new uploads. Queued uploads are still sent, after
+   * which the sender's own threads, if any, are stopped.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    if (queued == 0 && inFlight == 0 && ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Waits for all uploads to finish after {@link #shutdown}.
+   *
+   * @return true if all uploads finished, or false if the timeout
+   *     elapsed first
+   */
+  public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (queued > 0 || inFlight > 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /** Creates daemon threads, so that a sender never keeps a VM alive. */
+  private static class SenderThreadFactory implements ThreadFactory {
+    private static final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable,
+          "gsafeed-sender-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /** A queued upload, which fails without running if it is rejected. */
+  private static class Upload extends FutureTask<Void> {
+    Upload(Callable<Void> callable) {
+      super(callable);
+    }
+
+    void reject(RejectedExecutionException e) {
+      setException(e);
+    }
+  }
+
+  private static String feedKey(String datasource) {
+    return "xmlfeed/" + datasource;
+  }
+
+  private static String groupsKey(String groupsource) {
+    return "xmlgroups/" + groupsource;
+  }
+
+  private synchronized Future<Void> submit(String key, Callable<Void> upload) {
+    if (shutdown) {
+      throw new RejectedExecutionException("The sender has been shut down");
+    }
+    Upload task = new Upload(upload);
+    LinkedList<Upload> tasks = pending.get(key);
+    if (tasks == null) {
+      tasks = new LinkedList<Upload>();
+      pending.put(key, tasks);
+      if (!busy.contains(key)) {
+        ready.add(key);
+      }
+    }
+    tasks.add(task);
+    queued++;
+    schedule();
+    return task;
+  }
+
+  /**
+   * Starts the next uploads of ready sources, up to the limit, and
+   * wakes up waiters when no uploads are left.
+   */
+  private void schedule() {
+    while (inFlight < maxInFlight && !ready.isEmpty()) {
+      final String key = ready.removeFirst();
+      LinkedList<Upload> tasks = pending.get(key);
+      final Upload task = tasks.removeFirst();
+      if (tasks.isEmpty()) {
+        pending.remove(key);
+      }
+      queued--;
+      busy.add(key);
+      inFlight++;
+      Runnable runnable = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              task.run();
+            } finally {
+              finished(key);
+            }
+          }
+        };
+      try {
+        executor.execute(runnable);
+      } catch (RejectedExecutionException e) {
+        // Undone here rather than by finished(), which would call
+        // back into this loop once for each rejected upload.
+        log.log(Level.WARNING, "Executor rejected upload for " + key, e);
+        busy.remove(key);
+        inFlight--;
+        if (pending.containsKey(key)) {
+          ready.add(key);
+        }
+        task.reject(e);
+      }
+    }
+    if (queued == 0 && inFlight == 0) {
+      if (shutdown && ownedExecutor != null) {
+        ownedExecutor.shutdown();
+      }
+      notifyAll();
+    }
+  }
+
+  private synchronized void finished(String key) {
+    busy.remove(key);
+    inFlight--;
+    if (pending.containsKey(key)) {
+      ready.add(key);
+    }
+    schedule();
+  }
+}
@@ -0,0 +1,626 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * A file of the records sent to the GSA, used to tell which records
+ * have changed since they were last sent. For each url it keeps the
+ * SHA-1 fingerprint of the record, which covers its attributes, acl,
+ * metadata and decoded content, and its last-modified date. Content
+ * that is re-encoded, or spilled to a file when the feed is read, has
+ * the same fingerprint, so it is not seen as changed. Example:
+ *
+ * <pre>
+ * RecordStateIndex index = new RecordStateIndex(file, 1000000);
+ * try {
+ *   if (!index.isUnchanged(record)) {
+ *     ...
+ *   }
+ * } finally {
+ *   index.close();
+ * }
+ * </pre>
+ *
+ * <p>{@link IncrementalFeedBuilder} uses an index to write only the
+ * changed records of a feed, and updates it once the feed is sent.
+ *
+ * <p>The records are kept in an open-addressed hash table of
+ * fixed-size slots, mapped into memory, so a lookup reads a slot or
+ * two without reading the rest of the table. Urls are stored as
+ * 128-bit digests. The table is doubled when it is three-quarters
+ * full; give the expected number of records when creating the index
+ * to avoid that. Changes are written to the table by {@link #flush}
+ * and {@link #close}. If the process stops before then, some changes
+ * may be lost, and those records are seen as changed the next time.
+ *
+ * <p>The table is not kept in the index file itself, but in a file
+ * next to it named for its generation, such as {@code state.1} for an
+ * index file {@code state}; the index file only records the current
+ * generation. Doubling the table copies it into the next generation,
+ * so that a file is never replaced while it is mapped, which Windows
+ * does not allow. The old generation is deleted once it is unmapped,
+ * or when the index is next opened.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class RecordStateIndex implements Closeable {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** "GSARSI01", at the start of the index file. */
+  private static final long MAGIC = 0x4753415253493031L;
+  private static final int INDEX_FILE_SIZE = 16;
+
+  /** "GSARST01", at the start of a table file. */
+  private static final long TABLE_MAGIC = 0x4753415253543031L;
+  private static final int HEADER_SIZE = 64;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int SLOT_SIZE_OFFSET = 8;
+  private static final int CLEAN_OFFSET = 12;
+  private static final int CAPACITY_OFFSET = 16;
+  private static final int SIZE_OFFSET = 24;
+
+  // A slot holds a used flag, the url digest, the fingerprint, and
+  // the last-modified time, padded to a multiple of 8 bytes.
+  private static final int SLOT_SIZE = 48;
+  private static final int USED_OFFSET = 0;
+  private static final int KEY_OFFSET = 4;
+  private static final int FINGERPRINT_OFFSET = 20;
+  private static final int LAST_MODIFIED_OFFSET = 40;
+
+  /** Stored for a record without a last-modified date. */
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  private static final int MIN_CAPACITY = 16;
+  /** Each mapping covers 2^24 slots, or 768 MB. */
+  private static final int SEGMENT_BITS = 24;
+
+  /** The index file, or null for a table opened by {@link #grow}. */
+  private final File file;
+  private final int segmentBits;
+  private final MessageDigest digest;
+
+  private long generation;
+  private File tableFile;
+  private RandomAccessFile raf;
+  private MappedByteBuffer header;
+  private MappedByteBuffer[] segments;
+  private long capacity;
+  private long size;
+  private boolean dirty;
+
+  // The digest of the url last looked up.
+  private long key0;
+  private long key1;
+
+  /**
+   * Opens the index in the file, or creates an empty one if the file
+   * does not exist or is empty.
+   *
+   * @param file the index file
+   * @throws IOException if the file cannot be read or written, or is
+   *     not an index
+   */
+  public RecordStateIndex(File file) throws IOException {
+    this(file, 0, SEGMENT_BITS);
+  }
+
+  /**
+   * Opens the index in the file, or creates an empty one with room
+   * for the given number of records if the file does not exist or is
+   * empty.
+   *
+   * @param file the index file
+   * @param expectedRecords the number of records to make room for
+   * @throws IllegalArgumentException if expectedRecords is negative
+   * @throws IOException if the file cannot be read or written, or is
+   *     not an index
+   */
+  public RecordStateIndex(File file, long expectedRecords)
+      throws IOException {
+    this(file, expectedRecords, SEGMENT_BITS);
+  }
+
+  /** Allows tests to use smaller mappings. */
+  RecordStateIndex(File file, long expectedRecords, int segmentBits)
+      throws IOException {
+    if (file == null) {
+      throw new NullPointerException("file must not be null");
+    }
+    if (expectedRecords < 0) {
+      throw new IllegalArgumentException(
+          "expectedRecords must not be negative");
+    }
+    this.file = file;
+    this.segmentBits = segmentBits;
+    this.digest = newDigest();
+    if (!file.exists() || file.length() == 0) {
+      createTable(getTableFile(1), capacityFor(expectedRecords));
+      writeGeneration(1);
+    }
+    generation = readGeneration();
+    tableFile = getTableFile(generation);
+    deleteOtherGenerations();
+    open();
+  }
+
+  /** Opens a table file that is not yet part of an index. */
+  private RecordStateIndex(int segmentBits, File tableFile)
+      throws IOException {
+    this.file = null;
+    this.segmentBits = segmentBits;
+    this.digest = newDigest();
+    this.tableFile = tableFile;
+    open();
+  }
+
+  private static long capacityFor(long records) {
+    long capacity = MIN_CAPACITY;
+    while (capacity - capacity / 4 <= records) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  /** Creates an empty table file, replacing any file of that name. */
+  private static void createTable(File tableFile, long capacity)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(tableFile, "rw");
+    try {
+      raf.setLength(0);
+      raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+      raf.seek(0);
+      raf.writeLong(TABLE_MAGIC);
+      raf.writeInt(SLOT_SIZE);
+      raf.writeInt(1);
+      raf.writeLong(capacity);
+      raf.writeLong(0);
+      raf.getFD().sync();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Writes the current generation to the index file, in place. */
+  private void writeGeneration(long generation) throws IOException {
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.writeLong(MAGIC);
+      out.writeLong(generation);
+      out.setLength(INDEX_FILE_SIZE);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  private long readGeneration() throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      if (in.length() != INDEX_FILE_SIZE || in.readLong() != MAGIC) {
+        throw new IOException("Not a record state index: " + file);
+      }
+      long generation = in.readLong();
+      if (generation < 1) {
+        throw new IOException("Corrupt record state index: " + file);
+      }
+      return generation;
+    } finally {
+      in.close();
+    }
+  }
+
+  private File getTableFile(long generation) {
+    return new File(file.getPath() + "." + generation);
+  }
+
+  /**
+   * Deletes the tables of other generations: older ones that could
+   * not be deleted while they were mapped, and newer ones left behind
+   * if the process stopped while the table was being doubled.
+   */
+  private void deleteOtherGenerations() {
+    File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+    if (files == null) {
+      return;
+    }
+    String prefix = file.getName() + ".";
+    for (File other : files) {
+      String name = other.getName();
+      if (name.startsWith(prefix) && !other.equals(tableFile)
+          && name.substring(prefix.length()).matches("[0-9]+")) {
+        other.delete();
+      }
+    }
+  }
+
+  private void open() throws IOException {
+    raf = new RandomAccessFile(tableFile, "rw");
+    boolean opened = false;
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("Not a record state table: " + tableFile);
+      }
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      if (header.getLong(MAGIC_OFFSET) != TABLE_MAGIC
+          || header.getInt(SLOT_SIZE_OFFSET) != SLOT_SIZE) {
+        throw new IOException("Not a record state table: " + tableFile);
+      }
+      capacity = header.getLong(CAPACITY_OFFSET);
+      if (capacity < MIN_CAPACITY || (capacity & (capacity - 1)) != 0
+          || channel.size() != HEADER_SIZE + capacity * SLOT_SIZE) {
+        throw new IOException("Corrupt record state table: " + tableFile);
+      }
+      long segmentSlots = 1L << segmentBits;
+      segments = new MappedByteBuffer[
+          (int) ((capacity + segmentSlots - 1) >>> segmentBits)];
+      for (int i = 0; i < segments.length; i++) {
+        long slots = Math.min(segmentSlots, capacity - i * segmentSlots);
+        segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+            HEADER_SIZE + i * segmentSlots * SLOT_SIZE, slots * SLOT_SIZE);
+      }
+      size = header.getLong(SIZE_OFFSET);
+      if (header.getInt(CLEAN_OFFSET) != 1) {
+        // The size may not have been written; count the records.
+        size = 0;
+        for (long slot = 0; slot < capacity; slot++) {
+          if (isUsed(slot)) {
+            size++;
+          }
+        }
+        header.putLong(SIZE_OFFSET, size);
+      }
+      opened = true;
+    } finally {
+      if (!opened) {
+        raf.close();
+        raf = null;
+      }
+    }
+  }
+
+  /** Returns the number of records in the index. */
+  public long getSize() {
+    checkOpen();
+    return size;
+  }
+
+  /** Returns whether the index has a record with the url. */
+  public boolean contains(String url) {
+    checkOpen();
+    return find(url) >= 0;
+  }
+
+  /**
+   * Returns the last-modified date stored for the url, or null if
+   * the record had none or is not in the index.
+   */
+  public Date getLastModified(String url) {
+    checkOpen();
+    long slot = find(url);
+    if (slot < 0) {
+      return null;
+    }
+    long time = segment(slot).getLong(offset(slot) + LAST_MODIFIED_OFFSET);
+    return (time == NO_DATE) ? null : new Date(time);
+  }
+
+  /**
+   * Returns whether the index has a record with the url of the given
+   * record and the same fingerprint, meaning that the record need not
+   * be sent again.
+   *
+   * @throws IOException if the record's content cannot be read
+   */
+  public boolean isUnchanged(Record record) throws IOException {
+    checkOpen();
+    return isUnchanged(record.getUrl(), Fingerprint.of(record));
+  }
+
+  boolean isUnchanged(String url, byte[] fingerprint) {
+    long slot = find(url);
+    if (slot < 0) {
+      return false;
+    }
+    MappedByteBuffer segment = segment(slot);
+    int offset = offset(slot) + FINGERPRINT_OFFSET;
+    for (int i = 0; i < Fingerprint.LENGTH; i++) {
+      if (segment.get(offset + i) != fingerprint[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stores the fingerprint and last-modified date of the record,
+   * replacing any stored for its url.
+   *
+   * @throws IOException if the record's content cannot be read, or
+   *     the table cannot be grown
+   */
+  public void put(Record record) throws IOException {
+    checkOpen();
+    put(record.getUrl(), Fingerprint.of(record), record.getLastModified());
+  }
+
+  void put(String url, byte[] fingerprint, Date lastModified)
+      throws IOException {
+    long slot = find(url);
+    if (slot < 0) {
+      if (size + 1 > capacity - capacity / 4) {
+        grow();
+        slot = find(url);
+      }
+      slot = -slot - 1;
+      size++;
+    }
+    markDirty();
+    write(slot, key0, key1, fingerprint,
+        (lastModified == null) ? NO_DATE : lastModified.getTime());
+  }
+
+  /**
+   * Removes the record with the url, if there is one.
+   *
+   * @return whether there was a record with the url
+   */
+  public boolean remove(String url) {
+    checkOpen();
+    long slot = find(url);
+    if (slot < 0) {
+      return false;
+    }
+    markDirty();
+    // Move later records of the run back, so that none is left
+    // after an empty slot that it would be looked up past.
+    long mask = capacity - 1;
+    long next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (!isUsed(next)) {
+        break;
+      }
+      long home = home(segment(next).getLong(offset(next) + KEY_OFFSET));
+      boolean inPlace = (slot <= next)
+          ? (slot < home && home <= next)
+          : (slot < home || home <= next);
+      if (!inPlace) {
+        copy(next, slot);
+        slot = next;
+      }
+    }
+    clear(slot);
+    size--;
+    return true;
+  }
+
+  /**
+   * Writes all changes to the file.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  public void flush() throws IOException {
+    checkOpen();
+    if (!dirty) {
+      return;
+    }
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+    header.putLong(SIZE_OFFSET, size);
+    header.putInt(CLEAN_OFFSET, 1);
+    header.force();
+    dirty = false;
+  }
+
+  /** Writes all changes to the file and closes it. */
+  @Override
+  public void close() throws IOException {
+    if (raf == null) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      unmap();
+    }
+  }
+
+  private void unmap() throws IOException {
+    // The mappings are only released when they are garbage collected,
+    // so the table file may not be deletable until then.
+    header = null;
+    segments = null;
+    try {
+      raf.close();
+    } finally {
+      raf = null;
+    }
+  }
+
+  private void checkOpen() {
+    if (raf == null) {
+      throw new IllegalStateException("Index is closed");
+    }
+  }
+
+  private void markDirty() {
+    if (!dirty) {
+      header.putInt(CLEAN_OFFSET, 0);
+      header.force();
+      dirty = true;
+    }
+  }
+
+  /**
+   * Finds the slot holding the url, or if there is none returns
+   * {@code -(slot + 1)} for the empty slot where it would go.
+   */
+  private long find(String url) {
+    byte[] bytes = digest.digest(url.getBytes(UTF_8));
+    key0 = toLong(bytes, 0);
+    key1 = toLong(bytes, 8);
+    long mask = capacity - 1;
+    for (long slot = home(key0); ; slot = (slot + 1) & mask) {
+      MappedByteBuffer segment = segment(slot);
+      int offset = offset(slot);
+      if (segment.getInt(offset + USED_OFFSET) == 0) {
+        return -slot - 1;
+      }
+      if (segment.getLong(offset + KEY_OFFSET) == key0
+          && segment.getLong(offset + KEY_OFFSET + 8) == key1) {
+        return slot;
+      }
+    }
+  }
+
+  private long home(long key) {
+    // The digest is uniform, so its low bits will do.
+    return key & (capacity - 1);
+  }
+
+  private MappedByteBuffer segment(long slot) {
+    return segments[(int) (slot >>> segmentBits)];
+  }
+
+  private int offset(long slot) {
+    return (int) (slot & ((1L << segmentBits) - 1)) * SLOT_SIZE;
+  }
+
+  private boolean isUsed(long slot) {
+    return segment(slot).getInt(offset(slot) + USED_OFFSET) != 0;
+  }
+
+  private void write(long slot, long k0, long k1, byte[] fingerprint,
+      long lastModified) {
+    MappedByteBuffer segment = segment(slot);
+    int offset = offset(slot);
+    segment.putInt(offset + USED_OFFSET, 1);
+    segment.putLong(offset + KEY_OFFSET, k0);
+    segment.putLong(offset + KEY_OFFSET + 8, k1);
+    for (int i = 0; i < Fingerprint.LENGTH; i++) {
+      segment.put(offset + FINGERPRINT_OFFSET + i, fingerprint[i]);
+    }
+    segment.putLong(offset + LAST_MODIFIED_OFFSET, lastModified);
+  }
+
+  private void copy(long from, long to) {
+    MappedByteBuffer source = segment(from);
+    int sourceOffset = offset(from);
+    MappedByteBuffer target = segment(to);
+    int targetOffset = offset(to);
+    for (int i = 0; i < SLOT_SIZE; i += 8) {
+      target.putLong(targetOffset + i, source.getLong(sourceOffset + i));
+    }
+  }
+
+  private void clear(long slot) {
+    MappedByteBuffer segment = segment(slot);
+    int offset = offset(slot);
+    for (int i = 0; i < SLOT_SIZE; i += 8) {
+      segment.putLong(offset + i, 0);
+    }
+  }
+
+  /**
+   * Copies the records into the table of the next generation, with
+   * twice the capacity, and makes it the current one.
+   */
+  private void grow() throws IOException {
+    long nextGeneration = generation + 1;
+    File nextTable = getTableFile(nextGeneration);
+    createTable(nextTable, capacity * 2);
+    RecordStateIndex larger = new RecordStateIndex(segmentBits, nextTable);
+    byte[] fingerprint = new byte[Fingerprint.LENGTH];
+    boolean copied = false;
+    try {
+      larger.markDirty();
+      for (long slot = 0; slot < capacity; slot++) {
+        if (!isUsed(slot)) {
+          continue;
+        }
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        long k0 = segment.getLong(offset + KEY_OFFSET);
+        long k1 = segment.getLong(offset + KEY_OFFSET + 8);
+        for (int i = 0; i < fingerprint.length; i++) {
+          fingerprint[i] = segment.get(offset + FINGERPRINT_OFFSET + i);
+        }
+        long mask = larger.capacity - 1;
+        long target = larger.home(k0);
+        while (larger.isUsed(target)) {
+          target = (target + 1) & mask;
+        }
+        larger.write(target, k0, k1, fingerprint,
+            segment.getLong(offset + LAST_MODIFIED_OFFSET));
+      }
+      larger.size = size;
+      larger.close();
+      writeGeneration(nextGeneration);
+      copied = true;
+    } finally {
+      if (!copied) {
+        // This table is still the current one.
+        larger.close();
+        nextTable.delete();
+      }
+    }
+    File oldTable = tableFile;
+    generation = nextGeneration;
+    tableFile = nextTable;
+    unmap();
+    // Fails where a file cannot be deleted while it is mapped; it is
+    // then deleted when the index is next opened.
+    oldTable.delete();
+    dirty = false;
+    open();
+    markDirty();
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xff);
+    }
+    return value;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RecordStateIndex(" + file + ", size=" + size + ", capacity="
+        + capacity + ")";
+  }
+}
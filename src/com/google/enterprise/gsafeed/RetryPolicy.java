@@ -0,0 +1,147 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Controls how {@link GsaFeedFileSender} retries a message after a
+ * transient failure. The delay before retry {@code n} is {@code
+ * baseDelay * 2^(n - 1)}, capped at {@code maxDelay}, and then
+ * reduced by a random fraction of up to {@code jitter} so that
+ * senders that failed together do not retry together. Example:
+ *
+ * <pre>
+ * sender.setRetryPolicy(new RetryPolicy()
+ *     .setMaxAttempts(5)
+ *     .setBaseDelay(500)
+ *     .setMaxDelay(30000));
+ * </pre>
+ *
+ * <p>By default, every IOException is retried, as are the GSA replies
+ * "Internal Error" and HTTP 503 (Service Unavailable). Override the
+ * {@code isRetryable} methods to change that. Messages read from an
+ * InputStream are never retried, since they cannot be sent again.
+ */
+public class RetryPolicy {
+  private int maxAttempts = 1;
+  private long baseDelay = 1000;
+  private long maxDelay = 60000;
+  private double jitter = 0.5;
+
+  /** Returns the largest number of times a message is sent. */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Sets the largest number of times a message is sent, including
+   * the first attempt. The default is 1, which disables retries.
+   */
+  public RetryPolicy setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be positive");
+    }
+    this.maxAttempts = maxAttempts;
+    return this;
+  }
+
+  /** Returns the delay before the first retry, in milliseconds. */
+  public long getBaseDelay() {
+    return baseDelay;
+  }
+
+  /**
+   * Sets the delay before the first retry, in milliseconds. The
+   * default is 1000.
+   */
+  public RetryPolicy setBaseDelay(long baseDelay) {
+    if (baseDelay < 0) {
+      throw new IllegalArgumentException("baseDelay must not be negative");
+    }
+    this.baseDelay = baseDelay;
+    return this;
+  }
+
+  /** Returns the largest delay before a retry, in milliseconds. */
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  /**
+   * Sets the largest delay before a retry, in milliseconds. The
+   * default is 60000.
+   */
+  public RetryPolicy setMaxDelay(long maxDelay) {
+    if (maxDelay < 0) {
+      throw new IllegalArgumentException("maxDelay must not be negative");
+    }
+    this.maxDelay = maxDelay;
+    return this;
+  }
+
+  /** Returns the largest fraction by which a delay is reduced. */
+  public double getJitter() {
+    return jitter;
+  }
+
+  /**
+   * Sets the largest fraction, from 0 to 1, by which a delay is
+   * randomly reduced. The default is 0.5.
+   */
+  public RetryPolicy setJitter(double jitter) {
+    if (!(jitter >= 0 && jitter <= 1)) {
+      throw new IllegalArgumentException("jitter must be from 0 to 1");
+    }
+    this.jitter = jitter;
+    return this;
+  }
+
+  /**
+   * Returns whether a message that failed with the given exception
+   * should be sent again. Connection failures have already been
+   * wrapped with a descriptive message; the original exception is
+   * the cause.
+   */
+  public boolean isRetryable(IOException e) {
+    return true;
+  }
+
+  /**
+   * Returns whether a message that the GSA did not accept should be
+   * sent again.
+   *
+   * @param reply the body of the GSA's reply, or null if there was none
+   * @param responseCode the HTTP response code
+   */
+  public boolean isRetryable(String reply, int responseCode) {
+    return "Internal Error".equals(reply) || responseCode == 503;
+  }
+
+  /**
+   * Returns the delay before the given retry, in milliseconds.
+   *
+   * @param retry the number of the retry, starting from 1
+   */
+  long getDelay(int retry, Random random) {
+    long delay = baseDelay;
+    for (int i = 1; i < retry && delay < maxDelay; i++) {
+      delay *= 2;
+    }
+    delay = Math.min(delay, maxDelay);
+    return delay - (long) (delay * jitter * random.nextDouble());
+  }
+}
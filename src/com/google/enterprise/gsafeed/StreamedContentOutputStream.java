@@ -0,0 +1,248 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Replaces the bodies of {@link Content} elements that have a {@link
+ * ContentSource} with their encoded content while the feed is
+ * marshalled.
+ */
+/*
+ * Such a Content holds a unique marker as its value, which JAXB
+ * writes unchanged. A Marshaller.Listener records each Content as it
+ * is marshalled, and this stream replaces its marker with the
+ * content, read and encoded in blocks. Until a Content with a source
+ * has been seen, bytes are passed through without being examined.
+ */
+class StreamedContentOutputStream extends FilterOutputStream {
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final int BLOCK_SIZE = 8192;
+
+  /**
+   * The start of every marker. It includes a random part, so that
+   * ordinary text cannot be mistaken for a marker, and '{' does not
+   * occur again after the first byte.
+   */
+  private static final String MARKER_PREFIX = "{gsafeed-content-"
+      + Long.toHexString(new SecureRandom().nextLong() & Long.MAX_VALUE)
+      + "-";
+  private static final byte[] PREFIX = MARKER_PREFIX.getBytes(US_ASCII);
+  private static final int MAX_ID_LENGTH = 19;
+  private static final AtomicLong nextId = new AtomicLong();
+
+  /** The Contents with sources marshalled so far, by marker. */
+  private final Map<String, Content> contents = new HashMap<String, Content>();
+  /** The number of bytes of PREFIX matched and held back. */
+  private int matched;
+  /** The digits of a marker id, after PREFIX has been matched. */
+  private final StringBuilder id = new StringBuilder();
+
+  private final Marshaller.Listener listener = new Marshaller.Listener() {
+      @Override
+      public void beforeMarshal(Object source) {
+        if (source instanceof Content) {
+          Content content = (Content) source;
+          if (content.getSource() != null) {
+            contents.put(content.value, content);
+          }
+        }
+      }
+    };
+
+  StreamedContentOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /** Returns a new marker, to be used as the value of a Content. */
+  static String newMarker() {
+    return MARKER_PREFIX + nextId.getAndIncrement() + "}";
+  }
+
+  /**
+   * Marshals the element to the stream, writing the content of any
+   * Content elements with a source.
+   */
+  static void marshal(Marshaller marshaller, Object element,
+      OutputStream out) throws IOException, JAXBException {
+    StreamedContentOutputStream stream = new StreamedContentOutputStream(out);
+    marshaller.setListener(stream.listener);
+    try {
+      marshaller.marshal(element, stream);
+    } finally {
+      marshaller.setListener(null);
+    }
+    stream.finish();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (contents.isEmpty()) {
+      out.write(b, off, len);
+      return;
+    }
+    int end = off + len;
+    // Bytes from start to i have not been written or held back.
+    int start = off;
+    for (int i = off; i < end; i++) {
+      byte c = b[i];
+      if (matched == 0) {
+        if (c == PREFIX[0]) {
+          out.write(b, start, i - start);
+          matched = 1;
+          start = i + 1;
+        }
+      } else if (matched < PREFIX.length) {
+        if (c == PREFIX[matched]) {
+          matched++;
+          start = i + 1;
+        } else {
+          // Not a marker; write the held bytes and look at c again.
+          releaseHeld();
+          start = i;
+          i--;
+        }
+      } else if (c >= '0' && c <= '9' && id.length() < MAX_ID_LENGTH) {
+        id.append((char) c);
+        start = i + 1;
+      } else if (c == '}' && id.length() > 0) {
+        Content content = contents.get(MARKER_PREFIX + id + "}");
+        if (content == null) {
+          releaseHeld();
+          start = i;
+          i--;
+        } else {
+          matched = 0;
+          id.setLength(0);
+          writeContent(content);
+          start = i + 1;
+        }
+      } else {
+        releaseHeld();
+        start = i;
+        i--;
+      }
+    }
+    out.write(b, start, end - start);
+  }
+
+  /** Writes the bytes held back as a possible marker. */
+  private void releaseHeld() throws IOException {
+    out.write(PREFIX, 0, matched);
+    out.write(id.toString().getBytes(US_ASCII));
+    matched = 0;
+    id.setLength(0);
+  }
+
+  private void writeContent(Content content) throws IOException {
+    Content.Encoding encoding = content.getEncoding();
+    if (encoding == null) {
+      writeText(content);
+      return;
+    }
+    Base64OutputStream base64 = new Base64OutputStream(out);
+    OutputStream encoder = base64;
+    Deflater deflater = null;
+    if (encoding == Content.Encoding.BASE64_COMPRESSED) {
+      deflater = new Deflater();
+      encoder = new DeflaterOutputStream(base64, deflater, BLOCK_SIZE);
+    }
+    try {
+      InputStream in = content.getSource().openStream();
+      try {
+        byte[] block = new byte[BLOCK_SIZE];
+        int count;
+        while ((count = in.read(block)) != -1) {
+          encoder.write(block, 0, count);
+        }
+      } finally {
+        in.close();
+      }
+      if (deflater != null) {
+        ((DeflaterOutputStream) encoder).finish();
+      }
+      base64.finish();
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Writes UTF-8 text from the source, escaping the characters that
+   * are special in XML. They are all ASCII, so they cannot be part of
+   * a multi-byte sequence.
+   */
+  private void writeText(Content content) throws IOException {
+    InputStream in = content.getSource().openStream();
+    try {
+      byte[] block = new byte[BLOCK_SIZE];
+      int count;
+      while ((count = in.read(block)) != -1) {
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+          String escaped;
+          switch (block[i]) {
+            case '&':
+              escaped = "&amp;";
+              break;
+            case '<':
+              escaped = "&lt;";
+              break;
+            case '>':
+              escaped = "&gt;";
+              break;
+            default:
+              continue;
+          }
+          out.write(block, start, i - start);
+          out.write(escaped.getBytes(US_ASCII));
+          start = i + 1;
+        }
+        out.write(block, start, count - start);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Writes any bytes held back at the end of the output. */
+  void finish() throws IOException {
+    if (matched > 0) {
+      releaseHeld();
+    }
+    out.flush();
+  }
+}
+
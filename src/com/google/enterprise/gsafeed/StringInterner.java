@@ -0,0 +1,124 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replaces strings with an equal string seen earlier, so that values
+ * repeated throughout a feed share one instance. Unlike {@link
+ * String#intern}, the number of strings kept is bounded: each string
+ * has one slot, chosen by its hash code, and a new string replaces
+ * whatever was in its slot. Values that recur often stay in the table,
+ * and values seen only once are soon dropped.
+ *
+ * <p>An interner is thread-safe, and may be shared by several
+ * helpers.
+ *
+ * @see GsafeedHelper#setStringInterner
+ * @see XmlgroupsHelper#setStringInterner
+ */
+public class StringInterner {
+  /*
+   * Strings are immutable, so a thread that reads a slot written by
+   * another sees a complete string; a lost update only costs a miss.
+   */
+  private final String[] table;
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Creates an interner that holds up to 4096 strings. */
+  public StringInterner() {
+    this(4096);
+  }
+
+  /**
+   * Creates an interner that holds up to the given number of strings,
+   * rounded up to a power of two.
+   *
+   * @param capacity the number of strings held
+   */
+  public StringInterner(int capacity) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException(
+          "capacity must be from 1 to 2^30: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    table = new String[(size < capacity) ? size << 1 : size];
+  }
+
+  /**
+   * Returns a string equal to the given one, which is the same
+   * instance as earlier results for equal strings while it stays in
+   * the table.
+   *
+   * @param value a string, or null
+   * @return the interned string, or null if value is null
+   */
+  public String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    lookups.incrementAndGet();
+    int hash = value.hashCode();
+    // Spread the high bits, since only the low bits pick the slot.
+    int index = (hash ^ (hash >>> 16)) & (table.length - 1);
+    String current = table[index];
+    if (value.equals(current)) {
+      hits.incrementAndGet();
+      return current;
+    }
+    table[index] = value;
+    return value;
+  }
+
+  /** Returns the number of strings held, at most the capacity. */
+  public int getCapacity() {
+    return table.length;
+  }
+
+  /** Returns the number of non-null strings passed to intern. */
+  public long getLookups() {
+    return lookups.get();
+  }
+
+  /** Returns the number of lookups that found an equal string. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the fraction of lookups that found an equal string, or 0
+   * if there have been none.
+   */
+  public double getHitRate() {
+    // Read hits first, so they never outnumber the lookups.
+    long hitCount = hits.get();
+    long total = lookups.get();
+    return (total == 0) ? 0 : (double) hitCount / total;
+  }
+
+  /** Resets the lookup and hit counts. The strings are kept. */
+  public void resetStatistics() {
+    lookups.set(0);
+    hits.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "StringInterner(capacity=" + table.length
+        + ", lookups=" + getLookups() + ", hits=" + getHits() + ")";
+  }
+}
@@ -0,0 +1,345 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Members;
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.xml.bind.JAXBException;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Compares two snapshots of a groups directory and writes a groups
+ * feed holding only the groups whose members changed, to be sent
+ * with the "incremental" feedtype. Example:
+ *
+ * <pre>
+ * XmlgroupsDiff.Summary summary = new XmlgroupsDiff(helper)
+ *     .diff(oldFeed, newFeed, out);
+ * </pre>
+ *
+ * <p>Groups are matched by principal, and a group has changed if its
+ * set of members has; the order of members, repeated members, and
+ * the way members are split among several memberships of one group
+ * are not compared. Each new or changed group is written as one
+ * membership with all of its members. A groups feed has no way to
+ * delete a group, or to write one with no members, so a group with
+ * no members is treated as if it were not in its snapshot, and groups
+ * that are no longer in the new snapshot are only listed in the
+ * {@link Summary}. If no group is new or changed, nothing is written,
+ * since a groups feed must hold at least one membership; see {@link
+ * Summary#isEmpty}.
+ *
+ * <p>The snapshots are compared as {@link GroupGraph}s, which can be
+ * built from feeds as they are read. The groups are compared in
+ * parallel if an executor is set with {@link #setExecutor}.
+ */
+public class XmlgroupsDiff {
+  /** The default number of nodes compared by one task. */
+  private static final int CHUNK = 16384;
+
+  private static final byte NOT_GROUP = 0;
+  private static final byte UNCHANGED = 1;
+  private static final byte CHANGED = 2;
+  private static final byte ADDED = 3;
+
+  private final XmlgroupsHelper helper;
+  private ExecutorService executor;
+  private int chunkSize = CHUNK;
+
+  /**
+   * @param helper the helper used to read feeds and write the result
+   */
+  public XmlgroupsDiff(XmlgroupsHelper helper) {
+    if (helper == null) {
+      throw new NullPointerException("helper must not be null");
+    }
+    this.helper = helper;
+  }
+
+  /**
+   * Sets the executor to compare groups on, or null to compare them
+   * in the calling thread, which is the default. The executor is not
+   * shut down.
+   *
+   * @param executor the executor, or null
+   * @return this object
+   */
+  public XmlgroupsDiff setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * Sets the number of nodes compared by one task, so that small
+   * graphs can be compared in several tasks.
+   */
+  XmlgroupsDiff setChunkSize(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be positive");
+    }
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  /**
+   * Reads both feeds, without validation, into graphs one membership
+   * at a time, and writes the groups that changed, if any. The
+   * streams are not closed.
+   *
+   * @param oldFeed the groups feed that was last sent
+   * @param newFeed the groups feed to send
+   * @param out the stream to write the incremental feed to
+   * @return the groups of each kind
+   */
+  public Summary diff(InputStream oldFeed, InputStream newFeed,
+      OutputStream out) throws IOException, JAXBException,
+      ParserConfigurationException, SAXException, InterruptedException {
+    return diff(read(oldFeed), read(newFeed), out);
+  }
+
+  private GroupGraph read(InputStream feed) throws IOException,
+      JAXBException, ParserConfigurationException, SAXException {
+    final GroupGraph.Builder builder = new GroupGraph.Builder();
+    helper.unmarshalWithoutDtd(feed, new XmlgroupsHandler() {
+        @Override
+        public void membership(Membership membership) {
+          builder.add(membership);
+        }
+      });
+    return builder.build();
+  }
+
+  /**
+   * Writes the groups that are new or changed in the new graph, if
+   * any. The stream is not closed.
+   *
+   * @param oldGraph the groups that were last sent
+   * @param newGraph the groups to send
+   * @param out the stream to write the incremental feed to
+   * @return the groups of each kind
+   * @throws InterruptedException if interrupted while waiting for the
+   *     executor
+   */
+  public Summary diff(final GroupGraph oldGraph, final GroupGraph newGraph,
+      OutputStream out) throws IOException, JAXBException,
+      InterruptedException {
+    final int[] newToOld = newGraph.mapTo(oldGraph);
+    int[] oldToNew = oldGraph.mapTo(newGraph);
+    final byte[] status = new byte[newGraph.getPrincipalCount()];
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int start = 0; start < status.length; start += chunkSize) {
+      final int from = start;
+      final int to = Math.min(start + chunkSize, status.length);
+      tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int node = from; node < to; node++) {
+              status[node] = compare(oldGraph, newGraph, newToOld, node);
+            }
+            return null;
+          }
+        });
+    }
+    run(tasks);
+
+    Summary summary = new Summary();
+    // The writer is only created for the first membership, so that
+    // nothing is written if there are none.
+    FeedWriter writer = null;
+    for (int node = 0; node < status.length; node++) {
+      switch (status[node]) {
+        case UNCHANGED:
+          summary.unchanged++;
+          continue;
+        case CHANGED:
+          summary.changed++;
+          break;
+        case ADDED:
+          summary.added++;
+          break;
+        default:
+          continue;
+      }
+      if (writer == null) {
+        writer = new FeedWriter(helper, out, new Xmlgroups(), "xmlgroups");
+      }
+      writer.writeElement(membership(newGraph, node));
+    }
+    if (writer != null) {
+      writer.finish();
+    }
+    for (int node = 0; node < oldToNew.length; node++) {
+      if (hasMembers(oldGraph, node)
+          && (oldToNew[node] == -1 || !hasMembers(newGraph, oldToNew[node]))) {
+        summary.removed.add(oldGraph.getPrincipal(node));
+      }
+    }
+    return summary;
+  }
+
+  /** Returns whether the node is a group with at least one member. */
+  private static boolean hasMembers(GroupGraph graph, int node) {
+    return graph.isGroup(node) && graph.getMembers(node).length > 0;
+  }
+
+  private void run(List<Callable<Void>> tasks) throws InterruptedException {
+    if (executor == null || tasks.size() < 2) {
+      for (Callable<Void> task : tasks) {
+        try {
+          task.call();
+        } catch (Exception e) {
+          // The tasks throw no checked exceptions.
+          throw (RuntimeException) e;
+        }
+      }
+      return;
+    }
+    for (Future<Void> future : executor.invokeAll(tasks)) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
+  /** Returns the status of a node of the new graph. */
+  private static byte compare(GroupGraph oldGraph, GroupGraph newGraph,
+      int[] newToOld, int node) {
+    if (!newGraph.isGroup(node)) {
+      return NOT_GROUP;
+    }
+    int[] members = newGraph.getMembers(node);
+    if (members.length == 0) {
+      return NOT_GROUP;
+    }
+    int oldNode = newToOld[node];
+    if (oldNode == -1 || !hasMembers(oldGraph, oldNode)) {
+      return ADDED;
+    }
+    for (int i = 0; i < members.length; i++) {
+      members[i] = newToOld[members[i]];
+      if (members[i] == -1) {
+        return CHANGED;
+      }
+    }
+    int[] oldMembers = oldGraph.getMembers(oldNode);
+    return sameSet(members, oldMembers) ? UNCHANGED : CHANGED;
+  }
+
+  /** Returns whether the arrays hold the same values, sorting both. */
+  private static boolean sameSet(int[] a, int[] b) {
+    Arrays.sort(a);
+    Arrays.sort(b);
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] != b[j]) {
+        return false;
+      }
+      int value = a[i];
+      while (i < a.length && a[i] == value) {
+        i++;
+      }
+      while (j < b.length && b[j] == value) {
+        j++;
+      }
+    }
+    return i == a.length && j == b.length;
+  }
+
+  /** Creates one membership with all the members of the group. */
+  private static Membership membership(GroupGraph graph, int node) {
+    Members list = new Members();
+    List<Principal> principals = list.getPrincipal();
+    for (int member : graph.getMembers(node)) {
+      principals.add(graph.getPrincipal(member));
+    }
+    return new Membership()
+        .setPrincipal(graph.getPrincipal(node))
+        .setMembers(list);
+  }
+
+  /** The groups of each kind found by a diff. */
+  public static final class Summary {
+    private long added;
+    private long changed;
+    private long unchanged;
+    private final List<Principal> removed = new ArrayList<Principal>();
+
+    Summary() {
+    }
+
+    /** Returns the number of groups only in the new snapshot. */
+    public long getAdded() {
+      return added;
+    }
+
+    /** Returns the number of groups whose members changed. */
+    public long getChanged() {
+      return changed;
+    }
+
+    /** Returns the number of groups whose members are the same. */
+    public long getUnchanged() {
+      return unchanged;
+    }
+
+    /**
+     * Returns whether no group is new or changed, in which case
+     * nothing was written, and there is no feed to send.
+     */
+    public boolean isEmpty() {
+      return added == 0 && changed == 0;
+    }
+
+    /**
+     * Returns the groups that are only in the old snapshot, or that
+     * no longer have members, which the incremental feed cannot
+     * remove.
+     */
+    public List<Principal> getRemoved() {
+      return removed;
+    }
+
+    @Override
+    public String toString() {
+      return "Summary(added=" + added + ", changed=" + changed
+          + ", unchanged=" + unchanged + ", removed=" + removed.size() + ")";
+    }
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import com.google.enterprise.gsafeed.groups.Membership;
+
+import java.io.IOException;
+
+/**
+ * Receives the memberships of a groups feed, in document order, as
+ * they are read by {@link XmlgroupsHelper#unmarshalWithDtd(
+ * java.io.InputStream, XmlgroupsHandler)} or {@link
+ * XmlgroupsHelper#unmarshalWithoutDtd(java.io.InputStream,
+ * XmlgroupsHandler)}.
+ */
+public interface XmlgroupsHandler {
+  /**
+   * Receives a membership, with its principal and members.
+   *
+   * @param membership the membership
+   * @throws IOException if the membership cannot be handled
+   */
+  void membership(Membership membership) throws IOException;
+}
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.gsafeed;
 
+import com.google.enterprise.gsafeed.groups.Membership;
 import com.google.enterprise.gsafeed.groups.Xmlgroups;
 
 import org.xml.sax.ErrorHandler;
@@ -39,6 +40,19 @@ public class XmlgroupsHelper extends FeedHelper {
     super(Xmlgroups.class, "xmlgroups", "/groupsfeed.dtd");
   }
 
+  /**
+   * Creates the JAXB context used for groups feeds, if it hasn't been
+   * created yet. The context is shared by all helper instances and
+   * is otherwise created by the first constructor call; calling this
+   * early, for example from a background thread at startup, moves
+   * that cost out of the first request.
+   *
+   * @throws JAXBException if the context cannot be created
+   */
+  public static void warmUp() throws JAXBException {
+    getJaxbContext(Xmlgroups.class);
+  }
+
   public void setErrorHandler(ErrorHandler errorHandler) {
     this.errorHandler = errorHandler;
   }
@@ -47,6 +61,29 @@ public class XmlgroupsHelper extends FeedHelper {
     this.validationEventHandler = eventHandler;
   }
 
+  /**
+   * Whether to keep a SAX parser, unmarshaller and marshaller in
+   * each thread for reuse by later calls, rather than creating new
+   * ones each time. The default is true.
+   */
+  public void setReuseParsers(boolean reuseParsers) {
+    this.reuseParsers = reuseParsers;
+  }
+
+  /**
+   * Passes values that repeat throughout a feed, such as member
+   * names and namespaces, through the given interner while a feed is
+   * read, so that equal values share one String. This reduces the
+   * memory held by large feeds, at a small cost in time. The
+   * interner's statistics report how many values were shared. The
+   * default is null, which does not intern values.
+   *
+   * @param interner the interner, or null
+   */
+  public void setStringInterner(StringInterner interner) {
+    this.stringInterner = interner;
+  }
+
   /**
    * Use the DTD to check for errors in the feed being read.
    */
@@ -101,6 +138,60 @@ public class XmlgroupsHelper extends FeedHelper {
     return unmarshalWithoutDtd(new ByteArrayInputStream(xml.getBytes(UTF_8)));
   }
 
+  /**
+   * Use the DTD to check for errors in the feed being read. Each
+   * membership is passed to the handler as soon as it is read, rather
+   * than building the whole feed in memory.
+   */
+  public void unmarshalWithDtd(URL url, XmlgroupsHandler handler)
+      throws JAXBException, IOException, ParserConfigurationException,
+      SAXException {
+    InputStream inputStream = url.openStream();
+    try {
+      unmarshalWithDtd(inputStream, handler);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Use the DTD to check for errors in the feed being read. Each
+   * membership is passed to the handler as soon as it is read, rather
+   * than building the whole feed in memory.
+   */
+  public void unmarshalWithDtd(InputStream inputStream,
+      XmlgroupsHandler handler) throws JAXBException, IOException,
+      ParserConfigurationException, SAXException {
+    unmarshal(inputStream, Validation.TRUE, new XmlgroupsSplitter(handler));
+  }
+
+  /**
+   * Avoid reading the DTD. No validation will happen. Each membership
+   * is passed to the handler as soon as it is read, rather than
+   * building the whole feed in memory.
+   */
+  public void unmarshalWithoutDtd(URL url, XmlgroupsHandler handler)
+      throws JAXBException, IOException, ParserConfigurationException,
+      SAXException {
+    InputStream inputStream = url.openStream();
+    try {
+      unmarshalWithoutDtd(inputStream, handler);
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Avoid reading the DTD. No validation will happen. Each membership
+   * is passed to the handler as soon as it is read, rather than
+   * building the whole feed in memory.
+   */
+  public void unmarshalWithoutDtd(InputStream inputStream,
+      XmlgroupsHandler handler) throws JAXBException, IOException,
+      ParserConfigurationException, SAXException {
+    unmarshal(inputStream, Validation.FALSE, new XmlgroupsSplitter(handler));
+  }
+
   /**
    * Write the feed to the given stream.
    */
@@ -108,4 +199,33 @@ public class XmlgroupsHelper extends FeedHelper {
       throws IOException, JAXBException {
     super.marshal(feed, out);
   }
+
+  /** Splits membership elements out of a groups feed. */
+  private static class XmlgroupsSplitter implements Splitter {
+    private final XmlgroupsHandler handler;
+
+    XmlgroupsSplitter(XmlgroupsHandler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public Split split(String parent, String name) {
+      if ("xmlgroups".equals(parent) && "membership".equals(name)) {
+        return Split.ELEMENT;
+      }
+      return Split.NONE;
+    }
+
+    @Override
+    public void handle(Object element) throws IOException {
+      if (element instanceof Membership) {
+        handler.membership((Membership) element);
+      }
+    }
+
+    @Override
+    public void end(Object element) {
+      // There are no START_TAG elements.
+    }
+  }
 }
@@ -0,0 +1,186 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test AclView.
+ */
+public class AclViewTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private GsafeedHelper helper;
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new GsafeedHelper();
+  }
+
+  private static Acl createAcl() {
+    Acl acl = new Acl()
+        .setUrl("http://example.com/a?b=1&c=\"2\"")
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+        .setInheritFrom("http://example.com/");
+    acl.getPrincipal().add(new Principal()
+        .setScope(Principal.Scope.USER)
+        .setAccess(Principal.Access.PERMIT)
+        .setNamespace("Default")
+        .setCaseSensitivityType(
+            Principal.CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE)
+        .setPrincipalType(Principal.PrincipalType.UNQUALIFIED)
+        .setvalue("alice"));
+    acl.getPrincipal().add(new Principal()
+        .setScope(Principal.Scope.GROUP)
+        .setAccess(Principal.Access.DENY)
+        .setNamespace("Default")
+        .setvalue("a&b <group>\t\r\n'\"é😀"));
+    acl.getPrincipal().add(new Principal()
+        .setScope(Principal.Scope.USER)
+        .setAccess(Principal.Access.PERMIT)
+        .setNamespace("ns \"&<>'\t\r\n")
+        .setCaseSensitivityType(
+            Principal.CaseSensitivityType.EVERYTHING_CASE_SENSITIVE)
+        .setvalue(""));
+    acl.getPrincipal().add(new Principal());
+    return acl;
+  }
+
+  /** Writes a feed with the acls, as Acls or as views. */
+  private String write(List<Acl> acls, boolean views) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GsafeedWriter writer = new GsafeedWriter(helper, out, null);
+    writer.startGroup(new Group());
+    for (Acl acl : acls) {
+      if (views) {
+        writer.write(AclView.fromAcl(acl));
+      } else {
+        writer.write(acl);
+      }
+    }
+    writer.endGroup();
+    writer.finish();
+    return out.toString("UTF-8");
+  }
+
+  private String marshal(Acl acl) throws Exception {
+    List<Acl> acls = new ArrayList<Acl>();
+    acls.add(acl);
+    return write(acls, false);
+  }
+
+  @Test
+  public void testAccessors() {
+    Acl acl = createAcl();
+    AclView view = AclView.fromAcl(acl);
+    assertEquals(acl.getUrl(), view.getUrl());
+    assertEquals(acl.getInheritanceType(), view.getInheritanceType());
+    assertEquals(acl.getInheritFrom(), view.getInheritFrom());
+    assertEquals(4, view.size());
+    for (int i = 0; i < view.size(); i++) {
+      Principal principal = acl.getPrincipal().get(i);
+      assertEquals(principal.getScope(), view.getScope(i));
+      assertEquals(principal.getAccess(), view.getAccess(i));
+      assertEquals(principal.getNamespace(), view.getNamespace(i));
+      assertEquals(principal.getCaseSensitivityType(),
+          view.getCaseSensitivityType(i));
+      assertEquals(principal.getPrincipalType(), view.getPrincipalType(i));
+      assertEquals(principal.getvalue(), view.getName(i));
+    }
+    assertNull(view.getScope(3));
+    assertNull(view.getName(3));
+  }
+
+  @Test
+  public void testSharedStrings() {
+    Acl acl = createAcl();
+    acl.getPrincipal().get(1).setNamespace(new String("Default"));
+    AclView view = AclView.fromAcl(acl);
+    assertSame(view.getNamespace(0), view.getNamespace(1));
+  }
+
+  @Test
+  public void testInterner() {
+    StringInterner interner = new StringInterner();
+    AclView first = AclView.fromAcl(createAcl(), interner);
+    Acl acl = createAcl();
+    acl.getPrincipal().get(0).setvalue(new String("alice"));
+    AclView second = AclView.fromAcl(acl, interner);
+    assertSame(first.getName(0), second.getName(0));
+    assertSame(first.getUrl(), second.getUrl());
+  }
+
+  @Test
+  public void testToAcl() throws Exception {
+    Acl acl = createAcl();
+    assertEquals(marshal(acl), marshal(AclView.fromAcl(acl).toAcl()));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    Acl acl = new Acl();
+    AclView view = AclView.fromAcl(acl);
+    assertEquals(0, view.size());
+    assertNull(view.getUrl());
+    assertEquals(marshal(acl), marshal(view.toAcl()));
+  }
+
+  @Test
+  public void testGetPrincipalOutOfRange() {
+    thrown.expect(IndexOutOfBoundsException.class);
+    AclView.fromAcl(createAcl()).getPrincipal(4);
+  }
+
+  @Test
+  public void testWriteSameAsAcl() throws Exception {
+    List<Acl> acls = new ArrayList<Acl>();
+    acls.add(createAcl());
+    acls.add(new Acl().setUrl("http://example.com/empty"));
+    acls.add(new Acl());
+    assertEquals(write(acls, false), write(acls, true));
+  }
+
+  @Test
+  public void testWriteGeneratedSameAsAcl() throws Exception {
+    Gsafeed feed = new FeedGenerator(3)
+        .setRecords(200)
+        .setAclFraction(1)
+        .setPrincipals(0, 30)
+        .createGsafeed();
+    List<Acl> acls = new ArrayList<Acl>();
+    for (Group group : feed.getGroup()) {
+      for (Object element : group.getAclOrRecord()) {
+        if (element instanceof Acl) {
+          acls.add((Acl) element);
+        } else {
+          acls.add(((Record) element).getAcl());
+        }
+      }
+    }
+    assertEquals(write(acls, false), write(acls, true));
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Test Base64Decoder.
+ */
+public class Base64DecoderTest {
+  private static byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] decode(String text, int chunkSize) {
+    Base64Decoder decoder = new Base64Decoder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    char[] chars = text.toCharArray();
+    byte[] buffer = new byte[Base64Decoder.maxDecodedLength(chunkSize)];
+    for (int i = 0; i < chars.length; i += chunkSize) {
+      int len = Math.min(chunkSize, chars.length - i);
+      out.write(buffer, 0, decoder.decode(chars, i, len, buffer, 0));
+    }
+    out.write(buffer, 0, decoder.finish(buffer, 0));
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testDecodeInChunks() {
+    for (int length = 0; length < 20; length++) {
+      byte[] expected = bytes(length);
+      String text = DatatypeConverter.printBase64Binary(expected);
+      for (int chunkSize = 1; chunkSize < 8; chunkSize++) {
+        assertArrayEquals(text + " / " + chunkSize,
+            expected, decode(text, chunkSize));
+      }
+    }
+  }
+
+  @Test
+  public void testDecodeWithoutPadding() {
+    assertArrayEquals(new byte[] { 'a' }, decode("YQ", 4));
+    assertArrayEquals(new byte[] { 'a', 'b' }, decode("YWI", 4));
+  }
+
+  @Test
+  public void testDecodeIgnoresOtherCharacters() {
+    byte[] expected = bytes(100);
+    String text = DatatypeConverter.printBase64Binary(expected)
+        .replaceAll("(.{10})", "$1\r\n ");
+    assertArrayEquals(expected, decode(text, 16));
+    assertArrayEquals(expected, DatatypeConverter.parseBase64Binary(text));
+  }
+
+  @Test
+  public void testDecodingInputStream() throws IOException {
+    byte[] expected = bytes(10000);
+    InputStream in = new Base64Decoder.DecodingInputStream(
+        DatatypeConverter.printBase64Binary(expected));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(in.read());
+    byte[] buffer = new byte[777];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    assertArrayEquals(expected, out.toByteArray());
+    assertEquals(-1, in.read());
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Test Base64OutputStream.
+ */
+public class Base64OutputStreamTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static String encode(byte[] bytes, int writeSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Base64OutputStream base64 = new Base64OutputStream(out);
+    for (int i = 0; i < bytes.length; i += writeSize) {
+      base64.write(bytes, i, Math.min(writeSize, bytes.length - i));
+    }
+    base64.finish();
+    return out.toString("US-ASCII");
+  }
+
+  @Test
+  public void testShortInputs() throws Exception {
+    Random random = new Random(1);
+    for (int length = 0; length < 10; length++) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      assertEquals(DatatypeConverter.printBase64Binary(bytes),
+          encode(bytes, Math.max(length, 1)));
+    }
+  }
+
+  @Test
+  public void testWriteSizes() throws Exception {
+    byte[] bytes = new byte[10000];
+    new Random(2).nextBytes(bytes);
+    String expected = DatatypeConverter.printBase64Binary(bytes);
+    for (int writeSize : new int[] { 1, 2, 3, 4, 5, 1000, 10000 }) {
+      assertEquals("write size " + writeSize, expected,
+          encode(bytes, writeSize));
+    }
+  }
+
+  @Test
+  public void testWriteByte() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Base64OutputStream base64 = new Base64OutputStream(out);
+    base64.write('a');
+    base64.write('b');
+    base64.finish();
+    assertEquals("YWI=", out.toString("US-ASCII"));
+  }
+
+  @Test
+  public void testWriteAfterFinish() throws Exception {
+    Base64OutputStream base64 =
+        new Base64OutputStream(new ByteArrayOutputStream());
+    base64.finish();
+    thrown.expect(IOException.class);
+    base64.write(1);
+  }
+}
@@ -16,6 +16,8 @@ package com.google.enterprise.gsafeed;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -23,6 +25,19 @@ import org.junit.rules.ExpectedException;
 import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.diff.Diff;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import javax.xml.bind.DatatypeConverter;
+
 /**
  * Test Content.
  */
@@ -111,6 +126,203 @@ public class ContentTest {
     assertEquals(null, Content.Encoding.fromString(null));
   }
 
+  @Test
+  public void testSourceBase64Binary() throws Exception {
+    byte[] bytes = randomBytes(100000);
+    Content streamed = new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setSource(source(bytes));
+    Content inMemory = new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setvalue(DatatypeConverter.printBase64Binary(bytes));
+    assertEquals(marshal(feedWith(inMemory)), marshal(feedWith(streamed)));
+  }
+
+  @Test
+  public void testSourceBase64Compressed() throws Exception {
+    byte[] bytes = new byte[100000];
+    Arrays.fill(bytes, (byte) 'a');
+    Content streamed = new Content()
+        .setEncoding(Content.Encoding.BASE64_COMPRESSED)
+        .setSource(source(bytes));
+    Gsafeed feed = new GsafeedHelper().unmarshalWithDtd(
+        marshal(feedWith(streamed)));
+    Record record = (Record) feed.getGroup().get(0).getAclOrRecord().get(0);
+    Content content = record.getContent().get(0);
+    assertEquals(Content.Encoding.BASE64_COMPRESSED, content.getEncoding());
+    byte[] compressed = DatatypeConverter.parseBase64Binary(content.getvalue());
+    assertTrue(compressed.length < 1000);
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    byte[] inflated = new byte[bytes.length + 1];
+    assertEquals(bytes.length, inflater.inflate(inflated));
+    assertTrue(inflater.finished());
+    inflater.end();
+  }
+
+  @Test
+  public void testSourceFromFile() throws Exception {
+    byte[] bytes = randomBytes(5000);
+    File file = File.createTempFile("content", ".bin");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(bytes);
+      out.close();
+      Content content = new Content()
+          .setEncoding(Content.Encoding.BASE64_BINARY)
+          .setSource(ContentSource.fromFile(file));
+      assertTrue(marshal(feedWith(content)).contains(
+          DatatypeConverter.printBase64Binary(bytes)));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testSourceWithGsafeedWriter() throws Exception {
+    byte[] bytes = randomBytes(20000);
+    Content streamed = new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setSource(source(bytes));
+    Content inMemory = new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setvalue(DatatypeConverter.printBase64Binary(bytes));
+    assertEquals(writeRecord(recordWith(inMemory)),
+        writeRecord(recordWith(streamed)));
+  }
+
+  @Test
+  public void testSourceDoesNotChangeOtherText() throws Exception {
+    String marker = StreamedContentOutputStream.newMarker();
+    // Text that starts like a marker, and a marker of another Content.
+    String text = marker.substring(0, 10) + " " + marker + " {";
+    Record record = recordWith(new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setSource(source(new byte[] { 1, 2, 3 })));
+    record.getContent().add(new Content().setvalue(text));
+    String xml = marshal(feedWith(record));
+    assertTrue(xml, xml.contains(">AQID</content>"));
+    assertTrue(xml, xml.contains(">" + text + "</content>"));
+  }
+
+  @Test
+  public void testSourceValue() throws Exception {
+    Content content = new Content().setSource(source(new byte[0]));
+    assertNull(content.getvalue());
+    content.setvalue("text");
+    assertNull(content.getSource());
+    assertEquals("text", content.getvalue());
+  }
+
+  @Test
+  public void testSourceText() throws Exception {
+    String text = "caf\u00e9 & <b>bold</b>";
+    Content streamed = new Content().setSource(source(text.getBytes("UTF-8")));
+    Content inMemory = new Content().setvalue(text);
+    assertEquals(marshal(feedWith(inMemory)), marshal(feedWith(streamed)));
+  }
+
+  @Test
+  public void testOpenDecodedStreamBase64Binary() throws Exception {
+    byte[] bytes = randomBytes(10000);
+    Content content = new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setvalue(DatatypeConverter.printBase64Binary(bytes));
+    assertTrue(Arrays.equals(bytes, read(content)));
+  }
+
+  @Test
+  public void testOpenDecodedStreamBase64Compressed() throws Exception {
+    byte[] bytes = new byte[10000];
+    Arrays.fill(bytes, (byte) 'z');
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+    deflater.write(bytes);
+    deflater.close();
+    Content content = new Content()
+        .setEncoding(Content.Encoding.BASE64_COMPRESSED)
+        .setvalue(DatatypeConverter.printBase64Binary(
+            compressed.toByteArray()));
+    assertTrue(Arrays.equals(bytes, read(content)));
+  }
+
+  @Test
+  public void testOpenDecodedStreamText() throws Exception {
+    assertEquals("caf\u00e9", new String(
+        read(new Content().setvalue("caf\u00e9")), "UTF-8"));
+    assertEquals(0, read(new Content()).length);
+  }
+
+  @Test
+  public void testOpenDecodedStreamSource() throws Exception {
+    byte[] bytes = randomBytes(100);
+    Content content = new Content()
+        .setEncoding(Content.Encoding.BASE64_COMPRESSED)
+        .setSource(source(bytes));
+    assertTrue(Arrays.equals(bytes, read(content)));
+  }
+
+  private static byte[] read(Content content) throws IOException {
+    InputStream in = content.openDecodedStream();
+    try {
+      return IOHelper.readInputStreamToByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static ContentSource source(final byte[] bytes) {
+    return new ContentSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return new ByteArrayInputStream(bytes);
+      }
+    };
+  }
+
+  private static Record recordWith(Content content) {
+    Record record = new Record()
+        .setUrl("http://example.com/doc")
+        .setMimetype("application/octet-stream")
+        .setLastModified(new Date(1234567890000L));
+    record.getContent().add(content);
+    return record;
+  }
+
+  private static Gsafeed feedWith(Content content) {
+    return feedWith(recordWith(content));
+  }
+
+  private static Gsafeed feedWith(Record record) {
+    Group group = new Group();
+    group.getAclOrRecord().add(record);
+    Gsafeed feed = new Gsafeed().setHeader(
+        new Header().setDatasource("test").setFeedtype("incremental"));
+    feed.getGroup().add(group);
+    return feed;
+  }
+
+  private static String marshal(Gsafeed feed) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new GsafeedHelper().marshal(feed, out);
+    return out.toString("UTF-8");
+  }
+
+  private static String writeRecord(Record record) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GsafeedWriter writer = new GsafeedWriter(new GsafeedHelper(), out, null);
+    writer.startGroup(new Group());
+    writer.write(record);
+    writer.finish();
+    return out.toString("UTF-8");
+  }
+
   private void assertNoDiffs(String expected, Object actual) {
     Diff diff = DiffBuilder.compare(expected).withTest(actual)
         .checkForSimilar().build();
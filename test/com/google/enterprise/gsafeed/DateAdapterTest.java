@@ -0,0 +1,135 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Test DateAdapter.
+ */
+public class DateAdapterTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final DateAdapter adapter = new DateAdapter();
+
+  private static DateFormat simpleDateFormat() {
+    DateFormat df = new SimpleDateFormat(DateAdapter.FORMAT, Locale.ENGLISH);
+    df.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return df;
+  }
+
+  private void assertSameAsSimpleDateFormat(String value) throws Exception {
+    Date expected;
+    try {
+      expected = simpleDateFormat().parse(value);
+    } catch (ParseException e) {
+      thrown.expect(ParseException.class);
+      thrown.expectMessage(e.getMessage());
+      adapter.unmarshal(value);
+      return;
+    }
+    assertEquals(value, expected, adapter.unmarshal(value));
+  }
+
+  @Test
+  public void testNull() throws Exception {
+    assertNull(adapter.marshal(null));
+    assertNull(adapter.unmarshal(null));
+  }
+
+  @Test
+  public void testMarshalSameAsSimpleDateFormat() throws Exception {
+    DateFormat df = simpleDateFormat();
+    Random random = new Random(0);
+    // Out to year 10000 and back to before the Gregorian cutover.
+    long range = 260000000000000L;
+    for (int i = 0; i < 20000; i++) {
+      Date date = new Date((long) ((random.nextDouble() - 0.1) * range));
+      assertEquals(df.format(date), adapter.marshal(date));
+    }
+    long[] edges = { 0, -1, 999, 1000, -1000, -1001,
+        -11676096000000L, -11676096000001L,
+        253402300799999L, 253402300800000L,
+        951782400000L, 951868800000L, 4107542400000L };
+    for (long millis : edges) {
+      Date date = new Date(millis);
+      assertEquals(df.format(date), adapter.marshal(date));
+    }
+  }
+
+  @Test
+  public void testUnmarshalSameAsSimpleDateFormat() throws Exception {
+    DateFormat df = simpleDateFormat();
+    Random random = new Random(0);
+    long range = 260000000000000L;
+    for (int i = 0; i < 20000; i++) {
+      Date date = new Date((long) ((random.nextDouble() - 0.1) * range));
+      String value = df.format(date);
+      assertEquals(value, df.parse(value), adapter.unmarshal(value));
+    }
+  }
+
+  @Test
+  public void testUnmarshalUnusualForms() throws Exception {
+    String[] values = {
+        "Tue, 06 Nov 2007 12:45:26 GMT",
+        "tue, 06 nov 2007 12:45:26 gmt",
+        "Wed, 06 Nov 2007 12:45:26 GMT",
+        "Tue, 6 Nov 2007 12:45:26 GMT",
+        "Tue, 06 Nov 2007 12:45:26 PST",
+        "Tue, 06 Nov 2007 12:45:26 +0100",
+        "Tue, 06 Nov 2007 12:45:26 GMT trailing",
+        "Fri, 31 Nov 2007 12:45:26 GMT",
+        "Wed, 07 Nov 2007 24:00:00 GMT",
+        "Tue, 06 Nov 2007 12:45:60 GMT",
+        "Thu, 29 Feb 2001 00:00:00 GMT",
+        "Sat, 01 Jan 1000 00:00:00 GMT",
+        "Tue, 29 Feb 2000 00:00:00 GMT",
+    };
+    for (String value : values) {
+      assertSameAsSimpleDateFormat(value);
+    }
+  }
+
+  @Test
+  public void testUnmarshalInvalid() throws Exception {
+    assertSameAsSimpleDateFormat("Nov 6, 2007");
+  }
+
+  @Test
+  public void testUnmarshalReturnsNewDate() throws Exception {
+    String value = "Tue, 06 Nov 2007 12:45:26 GMT";
+    Date first = adapter.unmarshal(value);
+    first.setTime(0);
+    Date second = adapter.unmarshal(value);
+    assertNotSame(first, second);
+    assertEquals(value, adapter.marshal(second));
+  }
+}
@@ -0,0 +1,340 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test FeedDiff.
+ */
+public class FeedDiffTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private GsafeedHelper helper;
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new GsafeedHelper();
+  }
+
+  private static String feed(String records) {
+    return "<?xml version='1.0' encoding='utf-8'?>"
+        + "<!DOCTYPE gsafeed PUBLIC '-//Google//DTD GSA Feeds//EN' ''>"
+        + "<gsafeed>"
+        + "  <header>"
+        + "    <datasource>sample</datasource>"
+        + "    <feedtype>full</feedtype>"
+        + "  </header>"
+        + "  <group>" + records + "</group>"
+        + "</gsafeed>";
+  }
+
+  private static String record(String url, String content) {
+    return "<record url='" + url + "' mimetype='text/plain'>"
+        + "<content>" + content + "</content></record>";
+  }
+
+  private FeedDiff.Summary diff(String oldFeed, String newFeed,
+      ByteArrayOutputStream out) throws Exception {
+    return new FeedDiff(helper)
+        .setPartitions(4)
+        .setTempDirectory(testFolder.getRoot())
+        .diff(new ByteArrayInputStream(oldFeed.getBytes(UTF_8)),
+            new ByteArrayInputStream(newFeed.getBytes(UTF_8)), out);
+  }
+
+  /** Returns the records of the feed by url. */
+  private static Map<String, Record> records(Gsafeed feed) {
+    Map<String, Record> records = new HashMap<String, Record>();
+    for (Group group : feed.getGroup()) {
+      for (Object element : group.getAclOrRecord()) {
+        if (element instanceof Record) {
+          records.put(((Record) element).getUrl(), (Record) element);
+        }
+      }
+    }
+    return records;
+  }
+
+  @Test
+  public void testSetPartitionsInvalid() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new FeedDiff(helper).setPartitions(0);
+  }
+
+  @Test
+  public void testDiff() throws Exception {
+    String oldFeed = feed(record("http://example.com/same", "same")
+        + record("http://example.com/changed", "before")
+        + record("http://example.com/deleted", "gone"));
+    String newFeed = feed(record("http://example.com/same", "same")
+        + record("http://example.com/changed", "after")
+        + record("http://example.com/added", "new"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedDiff.Summary summary = diff(oldFeed, newFeed, out);
+    assertEquals(1, summary.getAdded());
+    assertEquals(1, summary.getChanged());
+    assertEquals(1, summary.getDeleted());
+    assertEquals(1, summary.getUnchanged());
+
+    Gsafeed result = helper.unmarshalWithDtd(out.toString("UTF-8"));
+    assertEquals("sample", result.getHeader().getDatasource());
+    assertEquals("incremental", result.getHeader().getFeedtype());
+    assertEquals(1, result.getGroup().size());
+    Map<String, Record> records = records(result);
+    assertEquals(3, records.size());
+    assertEquals("after", records.get("http://example.com/changed")
+        .getContent().get(0).getvalue());
+    assertNull(records.get("http://example.com/changed").getAction());
+    assertEquals("new", records.get("http://example.com/added")
+        .getContent().get(0).getvalue());
+    Record deleted = records.get("http://example.com/deleted");
+    assertEquals(Record.Action.DELETE, deleted.getAction());
+    assertEquals("text/plain", deleted.getMimetype());
+    assertTrue(deleted.getContent().isEmpty());
+    assertEquals(0, testFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void testNoChanges() throws Exception {
+    String feed = feed(record("http://example.com/a", "a")
+        + record("http://example.com/b", "b"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedDiff.Summary summary = diff(feed, feed, out);
+    assertEquals(2, summary.getUnchanged());
+    assertEquals(0, summary.getAdded() + summary.getChanged()
+        + summary.getDeleted());
+    Gsafeed result = helper.unmarshalWithDtd(out.toString("UTF-8"));
+    assertTrue(records(result).isEmpty());
+  }
+
+  @Test
+  public void testLastDuplicateCounts() throws Exception {
+    String oldFeed = feed(record("http://example.com/a", "a")
+        + record("http://example.com/b", "b"));
+    String newFeed = feed(record("http://example.com/a", "first")
+        + record("http://example.com/b", "b")
+        + record("http://example.com/a", "a")
+        + record("http://example.com/b", "last"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedDiff.Summary summary = diff(oldFeed, newFeed, out);
+    assertEquals(1, summary.getUnchanged());
+    assertEquals(1, summary.getChanged());
+    assertEquals(0, summary.getAdded() + summary.getDeleted());
+    Gsafeed result = helper.unmarshalWithDtd(out.toString("UTF-8"));
+    assertEquals(1, result.getGroup().get(0).getAclOrRecord().size());
+    assertEquals("last", records(result).get("http://example.com/b")
+        .getContent().get(0).getvalue());
+  }
+
+  @Test
+  public void testLastDuplicateDeletes() throws Exception {
+    String oldFeed = feed(record("http://example.com/a", "a"));
+    String newFeed = feed(record("http://example.com/a", "a")
+        + "<record url='http://example.com/a' action='delete'"
+        + " mimetype='text/plain'/>"
+        + "<record url='http://example.com/b' action='delete'"
+        + " mimetype='text/plain'/>"
+        + record("http://example.com/b", "b"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedDiff.Summary summary = diff(oldFeed, newFeed, out);
+    assertEquals(1, summary.getDeleted());
+    assertEquals(1, summary.getAdded());
+    assertEquals(0, summary.getUnchanged() + summary.getChanged());
+    Map<String, Record> records =
+        records(helper.unmarshalWithDtd(out.toString("UTF-8")));
+    assertEquals(Record.Action.DELETE,
+        records.get("http://example.com/a").getAction());
+    assertNull(records.get("http://example.com/b").getAction());
+  }
+
+  @Test
+  public void testEncodingIgnored() throws Exception {
+    String oldFeed = feed(record("http://example.com/a", "hello"));
+    String newFeed = feed("<record url='http://example.com/a'"
+        + " mimetype='text/plain'><content encoding='base64binary'>"
+        + "aGVsbG8=</content></record>");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(1, diff(oldFeed, newFeed, out).getUnchanged());
+  }
+
+  @Test
+  public void testAttributesCompared() throws Exception {
+    String oldFeed = feed(record("http://example.com/a", "a"));
+    String newFeed = feed("<record url='http://example.com/a'"
+        + " mimetype='text/html'><content>a</content></record>");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(1, diff(oldFeed, newFeed, out).getChanged());
+  }
+
+  @Test
+  public void testGroupAttributes() throws Exception {
+    String oldFeed = feed(record("http://example.com/a", "a")
+        + record("http://example.com/b", "b"));
+    String newFeed = "<?xml version='1.0' encoding='utf-8'?>"
+        + "<gsafeed>"
+        + "  <header>"
+        + "    <datasource>sample</datasource>"
+        + "    <feedtype>full</feedtype>"
+        + "  </header>"
+        + "  <group feedrank='5'>" + record("http://example.com/a", "a")
+        + "  </group>"
+        + "  <group action='delete'>" + record("http://example.com/b", "b")
+        + "  </group>"
+        + "</gsafeed>";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedDiff.Summary summary = diff(oldFeed, newFeed, out);
+    assertEquals(1, summary.getChanged());
+    assertEquals(1, summary.getDeleted());
+    Map<String, Record> records =
+        records(helper.unmarshalWithDtd(out.toString("UTF-8")));
+    assertEquals("5", records.get("http://example.com/a").getFeedrank());
+    assertEquals(Record.Action.DELETE,
+        records.get("http://example.com/b").getAction());
+  }
+
+  @Test
+  public void testAcls() throws Exception {
+    String oldFeed = feed("<acl url='http://example.com/same'>"
+        + "<principal scope='user' access='permit'>alice</principal></acl>"
+        + "<acl url='http://example.com/changed'>"
+        + "<principal scope='user' access='permit'>alice</principal></acl>"
+        + "<acl url='http://example.com/dropped'/>");
+    String newFeed = feed("<acl url='http://example.com/same'>"
+        + "<principal scope='user' access='permit'>alice</principal></acl>"
+        + "<acl url='http://example.com/changed'>"
+        + "<principal scope='user' access='deny'>alice</principal></acl>");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    diff(oldFeed, newFeed, out);
+    Gsafeed result = helper.unmarshalWithDtd(out.toString("UTF-8"));
+    List<Object> elements = result.getGroup().get(0).getAclOrRecord();
+    assertEquals(1, elements.size());
+    Acl acl = (Acl) elements.get(0);
+    assertEquals("http://example.com/changed", acl.getUrl());
+    assertEquals(Principal.Access.DENY, acl.getPrincipal().get(0).getAccess());
+  }
+
+  @Test
+  public void testGeneratedFeeds() throws Exception {
+    FeedGenerator generator = new FeedGenerator(17)
+        .setRecords(400)
+        .setRecordsPerGroup(30)
+        .setContentFraction(0.7)
+        .setContentSize(10, 500)
+        .setContentEncodingFractions(0.3, 0.3)
+        .setAclFraction(0.5);
+    ByteArrayOutputStream oldOut = new ByteArrayOutputStream();
+    generator.writeGsafeed(helper, oldOut);
+
+    // Drop every seventh record, change every fifth, and add some.
+    Gsafeed newFeed = generator.createGsafeed();
+    int index = 0;
+    int expectedDeleted = 0;
+    int expectedChanged = 0;
+    for (Group group : newFeed.getGroup()) {
+      for (Iterator<Object> it = group.getAclOrRecord().iterator();
+          it.hasNext(); ) {
+        Object element = it.next();
+        if (!(element instanceof Record)) {
+          continue;
+        }
+        Record record = (Record) element;
+        if (index % 7 == 0) {
+          it.remove();
+          expectedDeleted++;
+        } else if (index % 5 == 0) {
+          record.getContent().clear();
+          record.getContent().add(new Content().setvalue("changed"));
+          expectedChanged++;
+        }
+        index++;
+      }
+    }
+    Group added = new Group();
+    for (int i = 0; i < 25; i++) {
+      added.getAclOrRecord().add(new Record()
+          .setUrl("http://example.com/added/" + i)
+          .setMimetype("text/plain"));
+    }
+    newFeed.getGroup().add(added);
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    helper.marshal(newFeed, newOut);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FeedDiff.Summary summary = new FeedDiff(helper)
+        .setPartitions(7)
+        .setTempDirectory(testFolder.getRoot())
+        .diff(new ByteArrayInputStream(oldOut.toByteArray()),
+            new ByteArrayInputStream(newOut.toByteArray()), out);
+    assertEquals(25, summary.getAdded());
+    assertEquals(expectedChanged, summary.getChanged());
+    assertEquals(expectedDeleted, summary.getDeleted());
+    assertEquals(index - expectedDeleted - expectedChanged,
+        summary.getUnchanged());
+
+    // Applying the diff to the old feed gives the new one.
+    // Compare what was written, since dates lose their milliseconds.
+    Map<String, String> state = fingerprints(records(
+        helper.unmarshalWithDtd(oldOut.toString("UTF-8"))));
+    Map<String, Record> changes =
+        records(helper.unmarshalWithDtd(out.toString("UTF-8")));
+    for (Record record : changes.values()) {
+      if (record.getAction() == Record.Action.DELETE) {
+        assertTrue(state.remove(record.getUrl()) != null);
+      } else {
+        state.put(record.getUrl(), hex(Fingerprint.of(record)));
+      }
+    }
+    assertEquals(fingerprints(records(
+        helper.unmarshalWithDtd(newOut.toString("UTF-8")))), state);
+    assertEquals(0, testFolder.getRoot().list().length);
+  }
+
+  private static Map<String, String> fingerprints(Map<String, Record> records)
+      throws Exception {
+    Map<String, String> fingerprints = new HashMap<String, String>();
+    for (Record record : records.values()) {
+      fingerprints.put(record.getUrl(), hex(Fingerprint.of(record)));
+    }
+    return fingerprints;
+  }
+
+  private static String hex(byte[] bytes) {
+    return new BigInteger(1, bytes).toString(16);
+  }
+}
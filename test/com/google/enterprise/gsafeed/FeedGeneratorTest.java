@@ -0,0 +1,213 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Test FeedGenerator.
+ */
+public class FeedGeneratorTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private GsafeedHelper gsafeedHelper;
+  private XmlgroupsHelper xmlgroupsHelper;
+
+  @Before
+  public void setUp() throws Exception {
+    gsafeedHelper = new GsafeedHelper();
+    xmlgroupsHelper = new XmlgroupsHelper();
+  }
+
+  private byte[] writeGsafeed(FeedGenerator generator) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.writeGsafeed(gsafeedHelper, out);
+    return out.toByteArray();
+  }
+
+  private byte[] writeXmlgroups(FeedGenerator generator) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.writeXmlgroups(xmlgroupsHelper, out);
+    return out.toByteArray();
+  }
+
+  private static FeedGenerator mixedGenerator(long seed) {
+    return new FeedGenerator(seed)
+        .setRecords(50)
+        .setRecordsPerGroup(20)
+        .setContentFraction(0.5)
+        .setContentSize(10, 200)
+        .setContentEncodingFractions(0.3, 0.3);
+  }
+
+  @Test
+  public void testSameSeed() throws Exception {
+    assertTrue(Arrays.equals(writeGsafeed(mixedGenerator(7)),
+        writeGsafeed(mixedGenerator(7))));
+    assertTrue(Arrays.equals(writeXmlgroups(new FeedGenerator(7)),
+        writeXmlgroups(new FeedGenerator(7))));
+  }
+
+  @Test
+  public void testDifferentSeed() throws Exception {
+    assertFalse(Arrays.equals(writeGsafeed(mixedGenerator(7)),
+        writeGsafeed(mixedGenerator(8))));
+  }
+
+  @Test
+  public void testWriteMatchesCreate() throws Exception {
+    FeedGenerator generator = mixedGenerator(3);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    gsafeedHelper.marshal(generator.createGsafeed(), out);
+    assertEquals(out.toString("UTF-8"),
+        new String(writeGsafeed(generator), "UTF-8"));
+
+    out.reset();
+    xmlgroupsHelper.marshal(generator.createXmlgroups(), out);
+    assertEquals(out.toString("UTF-8"),
+        new String(writeXmlgroups(generator), "UTF-8"));
+  }
+
+  @Test
+  public void testGsafeedShape() throws Exception {
+    FeedGenerator generator = new FeedGenerator(1)
+        .setDatasource("test")
+        .setRecords(25)
+        .setRecordsPerGroup(10)
+        .setMetas(2, 2)
+        .setAclFraction(1)
+        .setPrincipals(3, 3);
+    Gsafeed feed = gsafeedHelper.unmarshalWithDtd(
+        new String(writeGsafeed(generator), "UTF-8"));
+    assertEquals("test", feed.getHeader().getDatasource());
+    assertEquals("incremental", feed.getHeader().getFeedtype());
+    assertEquals(3, feed.getGroup().size());
+    assertEquals(10, feed.getGroup().get(0).getAclOrRecord().size());
+    assertEquals(5, feed.getGroup().get(2).getAclOrRecord().size());
+    Record record = (Record) feed.getGroup().get(2).getAclOrRecord().get(4);
+    assertEquals("http://example.com/doc/24", record.getUrl());
+    assertEquals(3, record.getAcl().getPrincipal().size());
+    assertEquals(2, record.getMetadata().get(0).getMeta().size());
+    assertTrue(record.getContent().isEmpty());
+  }
+
+  @Test
+  public void testNoAclsOrMetas() throws Exception {
+    Gsafeed feed = new FeedGenerator(1)
+        .setRecords(5)
+        .setMetas(0, 0)
+        .setAclFraction(0)
+        .createGsafeed();
+    for (Object aclOrRecord : feed.getGroup().get(0).getAclOrRecord()) {
+      Record record = (Record) aclOrRecord;
+      assertNull(record.getAcl());
+      assertTrue(record.getMetadata().isEmpty());
+    }
+  }
+
+  @Test
+  public void testContentEncodings() throws Exception {
+    Gsafeed feed = new FeedGenerator(5)
+        .setRecords(60)
+        .setContentFraction(1)
+        .setContentSize(100, 100)
+        .setContentEncodingFractions(0.4, 0.4)
+        .createGsafeed();
+    int[] counts = new int[3];
+    for (Object aclOrRecord : feed.getGroup().get(0).getAclOrRecord()) {
+      Content content = ((Record) aclOrRecord).getContent().get(0);
+      byte[] bytes;
+      if (content.getEncoding() == null) {
+        counts[0]++;
+        bytes = content.getvalue().getBytes("UTF-8");
+      } else if (content.getEncoding() == Content.Encoding.BASE64_BINARY) {
+        counts[1]++;
+        bytes = DatatypeConverter.parseBase64Binary(content.getvalue());
+      } else {
+        counts[2]++;
+        Inflater inflater = new Inflater();
+        inflater.setInput(
+            DatatypeConverter.parseBase64Binary(content.getvalue()));
+        bytes = new byte[200];
+        bytes = Arrays.copyOf(bytes, inflater.inflate(bytes));
+        assertTrue(inflater.finished());
+        inflater.end();
+      }
+      assertEquals(100, bytes.length);
+    }
+    assertTrue(counts[0] > 0);
+    assertTrue(counts[1] > 0);
+    assertTrue(counts[2] > 0);
+  }
+
+  @Test
+  public void testXmlgroupsShape() throws Exception {
+    FeedGenerator generator = new FeedGenerator(2)
+        .setGroups(30)
+        .setMembers(4, 4)
+        .setNestedGroupFraction(0.5);
+    Xmlgroups groups = xmlgroupsHelper.unmarshalWithDtd(
+        new String(writeXmlgroups(generator), "UTF-8"));
+    assertEquals(30, groups.getMembership().size());
+    int nested = 0;
+    for (int i = 0; i < 30; i++) {
+      Membership membership = groups.getMembership().get(i);
+      assertEquals("group" + i, membership.getPrincipal().getvalue());
+      assertEquals(4, membership.getMembers().getPrincipal().size());
+      for (com.google.enterprise.gsafeed.groups.Principal member
+          : membership.getMembers().getPrincipal()) {
+        assertNotNull(member.getvalue());
+        if (member.getScope()
+            == com.google.enterprise.gsafeed.groups.Principal.Scope.GROUP) {
+          // Nested groups have higher numbers, so there are no cycles.
+          int number = Integer.parseInt(member.getvalue().substring(5));
+          assertTrue(number > i && number < 30);
+          nested++;
+        }
+      }
+    }
+    assertTrue(nested > 0);
+  }
+
+  @Test
+  public void testInvalidRange() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new FeedGenerator(0).setMetas(3, 2);
+  }
+
+  @Test
+  public void testInvalidEncodingFractions() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new FeedGenerator(0).setContentEncodingFractions(0.6, 0.6);
+  }
+}
@@ -0,0 +1,319 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test FeedSplitter.
+ */
+public class FeedSplitterTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private HttpServer server;
+  private RecordingHandler handler;
+  private GsaFeedFileSender sender;
+  private GsafeedHelper helper;
+
+  /**
+   * Keeps the XML documents of all the feeds sent, after replying
+   * with an internal error to the first {@code failures} requests.
+   */
+  private static class RecordingHandler implements HttpHandler {
+    final List<String> feeds = new ArrayList<String>();
+    final List<String> contentEncodings = new ArrayList<String>();
+    int failures;
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      if (failures > 0) {
+        failures--;
+        IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+        byte[] response = "Internal Error".getBytes(UTF_8);
+        ex.sendResponseHeaders(200, response.length);
+        ex.getResponseBody().write(response);
+        ex.close();
+        return;
+      }
+      String encoding = ex.getRequestHeaders().getFirst("Content-Encoding");
+      InputStream in = ex.getRequestBody();
+      if ("gzip".equals(encoding)) {
+        in = new GZIPInputStream(in);
+      }
+      String message =
+          new String(IOHelper.readInputStreamToByteArray(in), UTF_8);
+      String start = "Content-Type: text/xml\r\n\r\n";
+      feeds.add(message.substring(message.indexOf(start) + start.length(),
+          message.lastIndexOf("\r\n--<<--\r\n")));
+      contentEncodings.add(encoding);
+      byte[] response = "Success".getBytes(UTF_8);
+      ex.sendResponseHeaders(200, response.length);
+      ex.getResponseBody().write(response);
+      ex.close();
+    }
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+    // Tests trigger logs; remove those messages from test output.
+    Logger.getLogger(GsaFeedFileSender.class.getName()).setLevel(Level.SEVERE);
+    Logger.getLogger(FeedSplitter.class.getName()).setLevel(Level.SEVERE);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    int port = server.getAddress().getPort();
+    handler = new RecordingHandler();
+    server.createContext("/xmlfeed", handler);
+    server.start();
+    sender = new GsaFeedFileSender(
+        new URL("http://localhost:" + port + "/xmlfeed"),
+        new URL("http://localhost:" + port + "/xmlgroups"), UTF_8);
+    helper = new GsafeedHelper();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private String marshal(Gsafeed feed) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    helper.marshal(feed, out);
+    return out.toString("UTF-8");
+  }
+
+  private Gsafeed createFeed(int groups, int recordsPerGroup) {
+    Gsafeed feed = new Gsafeed().setHeader(
+        new Header().setDatasource("sample").setFeedtype("full"));
+    for (int i = 0; i < groups; i++) {
+      Group group = new Group()
+          .setFeedrank(String.valueOf(i))
+          .setAction(i % 2 == 0 ? Group.Action.ADD : Group.Action.DELETE);
+      for (int j = 0; j < recordsPerGroup; j++) {
+        group.getAclOrRecord().add(new Record()
+            .setUrl("http://example.com/" + i + "/" + j)
+            .setMimetype("text/plain"));
+      }
+      feed.getGroup().add(group);
+    }
+    return feed;
+  }
+
+  private List<Record> getRecords(Gsafeed feed) {
+    List<Record> records = new ArrayList<Record>();
+    for (Group group : feed.getGroup()) {
+      for (Object aclOrRecord : group.getAclOrRecord()) {
+        records.add((Record) aclOrRecord);
+      }
+    }
+    return records;
+  }
+
+  @Test
+  public void testSingleChunk() throws Exception {
+    Gsafeed feed = createFeed(2, 3);
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 100000, false);
+    splitter.send(feed);
+
+    assertEquals(1, splitter.getChunkCount());
+    feed.getHeader().setFeedtype("incremental");
+    assertEquals(1, handler.feeds.size());
+    assertEquals(marshal(feed), handler.feeds.get(0));
+  }
+
+  @Test
+  public void testManyChunks() throws Exception {
+    Gsafeed feed = createFeed(3, 50);
+    int maxBytes = 2000;
+    FeedSplitter splitter = new FeedSplitter(helper, sender, maxBytes, false);
+    splitter.send(feed);
+
+    assertTrue(splitter.getChunkCount() > 3);
+    assertEquals(splitter.getChunkCount(), handler.feeds.size());
+    List<String> urls = new ArrayList<String>();
+    for (String xml : handler.feeds) {
+      assertTrue(xml.getBytes(UTF_8).length <= maxBytes);
+      Gsafeed chunk = helper.unmarshalWithDtd(xml);
+      assertEquals("sample", chunk.getHeader().getDatasource());
+      assertEquals("incremental", chunk.getHeader().getFeedtype());
+      for (Group group : chunk.getGroup()) {
+        assertTrue(!group.getAclOrRecord().isEmpty());
+        for (Object aclOrRecord : group.getAclOrRecord()) {
+          String url = ((Record) aclOrRecord).getUrl();
+          urls.add(url);
+          // The group attributes are kept in every chunk.
+          int i = Integer.parseInt(url.split("/")[3]);
+          assertEquals(String.valueOf(i), group.getFeedrank());
+          assertEquals(i % 2 == 0 ? Group.Action.ADD : Group.Action.DELETE,
+              group.getAction());
+        }
+      }
+    }
+    List<String> expected = new ArrayList<String>();
+    for (Record record : getRecords(feed)) {
+      expected.add(record.getUrl());
+    }
+    assertEquals(expected, urls);
+  }
+
+  @Test
+  public void testRetryChunk() throws Exception {
+    Gsafeed feed = createFeed(1, 50);
+    handler.failures = 1;
+    sender.setRetryPolicy(
+        new RetryPolicy().setMaxAttempts(2).setBaseDelay(1));
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 2000, true);
+    splitter.send(feed);
+
+    assertTrue(splitter.getChunkCount() > 1);
+    assertEquals(1, sender.getRetryCount());
+    assertEquals(splitter.getChunkCount(), handler.feeds.size());
+    List<String> urls = new ArrayList<String>();
+    for (String xml : handler.feeds) {
+      for (Record record : getRecords(helper.unmarshalWithDtd(xml))) {
+        urls.add(record.getUrl());
+      }
+    }
+    List<String> expected = new ArrayList<String>();
+    for (Record record : getRecords(feed)) {
+      expected.add(record.getUrl());
+    }
+    assertEquals(expected, urls);
+  }
+
+  @Test
+  public void testExactSize() throws Exception {
+    Gsafeed feed = createFeed(1, 2);
+    feed.getHeader().setFeedtype("incremental");
+    int size = marshal(feed).getBytes(UTF_8).length;
+    FeedSplitter splitter = new FeedSplitter(helper, sender, size, false);
+    splitter.send(feed);
+    assertEquals(1, splitter.getChunkCount());
+
+    splitter = new FeedSplitter(helper, sender, size - 1, false);
+    splitter.send(feed);
+    assertEquals(2, splitter.getChunkCount());
+  }
+
+  @Test
+  public void testLargeRecord() throws Exception {
+    Gsafeed feed = createFeed(1, 3);
+    Record large = (Record) feed.getGroup().get(0).getAclOrRecord().get(1);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append("text ");
+    }
+    large.getContent().add(new Content().setvalue(text.toString()));
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 1000, false);
+    splitter.send(feed);
+
+    assertEquals(3, handler.feeds.size());
+    assertEquals(getRecords(feed).get(1).getUrl(), getRecords(
+        helper.unmarshalWithDtd(handler.feeds.get(1))).get(0).getUrl());
+  }
+
+  @Test
+  public void testCompressedChunks() throws Exception {
+    Gsafeed feed = createFeed(2, 20);
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 1000, true);
+    splitter.send(feed);
+
+    assertTrue(handler.feeds.size() > 1);
+    for (String encoding : handler.contentEncodings) {
+      assertEquals("gzip", encoding);
+    }
+  }
+
+  @Test
+  public void testStreaming() throws Exception {
+    URL url = FeedSplitterTest.class.getResource("/full.xml");
+    Gsafeed feed = helper.unmarshalWithDtd(url);
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 1200, false);
+    helper.unmarshalWithDtd(url, splitter);
+    splitter.finish();
+
+    assertTrue(handler.feeds.size() > 1);
+    List<Record> records = new ArrayList<Record>();
+    for (String xml : handler.feeds) {
+      records.addAll(getRecords(helper.unmarshalWithDtd(xml)));
+    }
+    List<Record> expected = getRecords(feed);
+    assertEquals(expected.size(), records.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getUrl(), records.get(i).getUrl());
+    }
+  }
+
+  @Test
+  public void testMetadataAndUrlFeedtypeKept() throws Exception {
+    Gsafeed feed = createFeed(1, 1);
+    feed.getHeader().setFeedtype("metadata-and-url");
+    new FeedSplitter(helper, sender, 100000, false).send(feed);
+
+    assertEquals("metadata-and-url", helper.unmarshalWithDtd(
+        handler.feeds.get(0)).getHeader().getFeedtype());
+  }
+
+  @Test
+  public void testEmptyFeed() throws Exception {
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 1000, false);
+    splitter.send(createFeed(2, 0));
+    assertEquals(0, splitter.getChunkCount());
+    assertEquals(0, handler.feeds.size());
+  }
+
+  @Test
+  public void testNoHeader() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new FeedSplitter(helper, sender, 1000, false).send(new Gsafeed());
+  }
+
+  @Test
+  public void testRecordOutsideGroup() throws Exception {
+    FeedSplitter splitter = new FeedSplitter(helper, sender, 1000, false);
+    splitter.header(new Header().setDatasource("sample"));
+    thrown.expect(IllegalStateException.class);
+    splitter.record(new Record().setUrl("http://example.com/"));
+  }
+}
@@ -0,0 +1,290 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Test FeedSpoolSender.
+ */
+public class FeedSpoolSenderTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private HttpServer server;
+  private GsaFeedFileSender sender;
+  private File directory;
+  private FeedSpool spool;
+
+  @BeforeClass
+  public static void setUpClass() {
+    Logger.getLogger(GsaFeedFileSender.class.getName()).setLevel(Level.SEVERE);
+    Logger.getLogger(FeedSpoolSender.class.getName()).setLevel(Level.OFF);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.start();
+    int port = server.getAddress().getPort();
+    sender = new GsaFeedFileSender(
+        new URL("http://localhost:" + port + "/xmlfeed"),
+        new URL("http://localhost:" + port + "/xmlgroups"), UTF_8);
+    directory = testFolder.newFolder("spool");
+    spool = new FeedSpool(directory).setCompression(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop(0);
+    spool.close();
+  }
+
+  /** Records the data parameter of each message, and replies in turn. */
+  private static class RecordingHandler implements HttpHandler {
+    private final String[] replies;
+    final List<String> requests = new ArrayList<String>();
+
+    RecordingHandler(String... replies) {
+      this.replies = replies;
+    }
+
+    @Override
+    public synchronized void handle(HttpExchange ex) throws IOException {
+      String request = new String(
+          IOHelper.readInputStreamToByteArray(ex.getRequestBody()), UTF_8);
+      int start = request.indexOf("name=\"data\"");
+      start = request.indexOf("\r\n\r\n", start) + 4;
+      requests.add(request.substring(start, request.indexOf("\r\n", start)));
+      int i = requests.size() - 1;
+      byte[] bytes =
+          ((i < replies.length) ? replies[i] : "Success").getBytes(UTF_8);
+      ex.sendResponseHeaders(200, bytes.length);
+      ex.getResponseBody().write(bytes);
+      ex.close();
+    }
+  }
+
+  /** Waits for the sender to acknowledge every feed. */
+  private void awaitEmpty() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (spool.getPendingCount() > 0) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testDrain() throws Exception {
+    RecordingHandler feeds = new RecordingHandler();
+    RecordingHandler groups = new RecordingHandler();
+    server.createContext("/xmlfeed", feeds);
+    server.createContext("/xmlgroups", groups);
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    spool.addGroups("people", "full", "<b/>".getBytes(UTF_8));
+    spool.addGsaFeed("docs", "incremental", "<c/>".getBytes(UTF_8));
+
+    FeedSpoolSender spoolSender = new FeedSpoolSender(spool, sender);
+    assertEquals(3, spoolSender.drain());
+    assertEquals(0, spool.getPendingCount());
+    assertEquals("[<a/>, <c/>]", feeds.requests.toString());
+    assertEquals("[<b/>]", groups.requests.toString());
+  }
+
+  @Test
+  public void testDrainStopsAtFailure() throws Exception {
+    server.createContext("/xmlfeed",
+        new RecordingHandler("Error - Unauthorized Request"));
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    try {
+      new FeedSpoolSender(spool, sender).drain();
+      fail();
+    } catch (IllegalStateException expected) {
+      // The GSA rejected the feed.
+    }
+    assertEquals(1, spool.getPendingCount());
+  }
+
+  @Test
+  public void testResumesAfterRestart() throws Exception {
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    spool.addGsaFeed("docs", "incremental", "<b/>".getBytes(UTF_8));
+    spool.close();
+
+    RecordingHandler handler = new RecordingHandler();
+    server.createContext("/xmlfeed", handler);
+    spool = new FeedSpool(directory);
+    FeedSpoolSender spoolSender = new FeedSpoolSender(spool, sender);
+    spoolSender.start();
+    try {
+      awaitEmpty();
+      spool.addGsaFeed("docs", "incremental", "<c/>".getBytes(UTF_8));
+      awaitEmpty();
+    } finally {
+      spoolSender.stop(10, TimeUnit.SECONDS);
+    }
+    assertEquals("[<a/>, <b/>, <c/>]", handler.requests.toString());
+  }
+
+  @Test
+  public void testRetriesAndRejects() throws Exception {
+    RecordingHandler handler = new RecordingHandler("Internal Error",
+        "Internal Error", "Error - Unauthorized Request");
+    server.createContext("/xmlfeed", handler);
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    spool.addGsaFeed("docs", "incremental", "<b/>".getBytes(UTF_8));
+    FeedSpoolSender spoolSender = new FeedSpoolSender(spool, sender)
+        .setRetryPolicy(new RetryPolicy().setMaxAttempts(2).setBaseDelay(1));
+    spoolSender.start();
+    try {
+      awaitEmpty();
+    } finally {
+      spoolSender.stop(10, TimeUnit.SECONDS);
+    }
+    assertEquals("[<a/>, <a/>, <b/>, <b/>]", handler.requests.toString());
+    assertEquals(1, spoolSender.getRejectedCount());
+    assertEquals(1, spoolSender.getSentCount());
+    assertEquals(0, spool.getPendingCount());
+    boolean found = false;
+    for (String name : directory.list()) {
+      found |= name.startsWith("failed-1-xmlfeed-docs");
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void testRetriesOpenFailure() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    server.createContext("/xmlfeed", handler);
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    spool.sync();
+    File segment = new File(directory, "segment-0000000001");
+    File moved = new File(directory, "moved");
+    assertTrue(segment.renameTo(moved));
+
+    FeedSpoolSender spoolSender = new FeedSpoolSender(spool, sender)
+        .setRetryPolicy(new RetryPolicy().setBaseDelay(1));
+    spoolSender.start();
+    try {
+      Thread.sleep(100);
+      assertEquals(1, spool.getPendingCount());
+      assertTrue(moved.renameTo(segment));
+      awaitEmpty();
+    } finally {
+      spoolSender.stop(10, TimeUnit.SECONDS);
+    }
+    assertEquals("[<a/>]", handler.requests.toString());
+    assertEquals(1, spoolSender.getSentCount());
+  }
+
+  @Test
+  public void testStopWhileGsaDoesNotReply() throws Exception {
+    final CountDownLatch received = new CountDownLatch(1);
+    final CountDownLatch reply = new CountDownLatch(1);
+    server.createContext("/xmlfeed", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+          IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+          received.countDown();
+          try {
+            reply.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          byte[] bytes = "Success".getBytes(UTF_8);
+          ex.sendResponseHeaders(200, bytes.length);
+          ex.getResponseBody().write(bytes);
+          ex.close();
+        }
+      });
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    spool.addGsaFeed("docs", "incremental", "<b/>".getBytes(UTF_8));
+    FeedSpoolSender spoolSender = new FeedSpoolSender(spool, sender);
+    spoolSender.start();
+    try {
+      assertTrue(received.await(10, TimeUnit.SECONDS));
+      long start = System.nanoTime();
+      assertFalse(spoolSender.stop(100, TimeUnit.MILLISECONDS));
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+      try {
+        spoolSender.start();
+        fail("Expected an IllegalStateException");
+      } catch (IllegalStateException e) {
+        // The thread is still sending.
+      }
+    } finally {
+      reply.countDown();
+    }
+    assertTrue(spoolSender.stop(10, TimeUnit.SECONDS));
+    // The feed being sent was accepted, and no other was sent.
+    assertEquals(1, spoolSender.getSentCount());
+    assertEquals(1, spool.getPendingCount());
+  }
+
+  @Test
+  public void testBugIsNotRejection() throws Exception {
+    GsaFeedFileSender broken = new GsaFeedFileSender(
+        new URL("http://localhost/xmlfeed"),
+        new URL("http://localhost/xmlgroups"), UTF_8) {
+      @Override
+      public void sendGsaFeed(String datasource, String feedtype,
+          InputStream xmlStream, long length, boolean useCompression) {
+        throw new NullPointerException();
+      }
+    };
+    spool.addGsaFeed("docs", "incremental", "<a/>".getBytes(UTF_8));
+    FeedSpoolSender spoolSender = new FeedSpoolSender(spool, broken)
+        .setRetryPolicy(new RetryPolicy().setMaxAttempts(1));
+    spoolSender.start();
+    Thread.sleep(100);
+    assertTrue(spoolSender.stop(10, TimeUnit.SECONDS));
+    assertEquals(0, spoolSender.getRejectedCount());
+    assertEquals(1, spool.getPendingCount());
+    for (String name : directory.list()) {
+      assertFalse(name, name.startsWith("failed-"));
+    }
+  }
+}
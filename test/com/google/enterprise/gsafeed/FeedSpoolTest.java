@@ -0,0 +1,338 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test FeedSpool.
+ */
+public class FeedSpoolTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File(testFolder.getRoot(), "spool");
+  }
+
+  private static String read(FeedSpool spool, FeedSpool.Entry entry)
+      throws Exception {
+    InputStream in = spool.open(entry);
+    try {
+      return IOHelper.readInputStreamToString(in, UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String read(File file) throws Exception {
+    InputStream in = new FileInputStream(file);
+    try {
+      return IOHelper.readInputStreamToString(in, UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] xml(int i) {
+    return ("<feed" + i + "/>").getBytes(UTF_8);
+  }
+
+  /** Returns the names of the segment files in the directory. */
+  private List<String> segments() {
+    List<String> names = new ArrayList<String>();
+    for (String name : directory.list()) {
+      if (name.startsWith("segment-")) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  @Test
+  public void testSetSyncBatchSizeInvalid() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    try {
+      thrown.expect(IllegalArgumentException.class);
+      spool.setSyncBatchSize(0);
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testAddAndAcknowledge() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    try {
+      assertNull(spool.peek());
+      long first = spool.addGsaFeed("docs", "incremental", xml(1));
+      long second = spool.addGroups("people", "full", xml(2));
+      assertTrue(second > first);
+      assertEquals(2, spool.getPendingCount());
+
+      FeedSpool.Entry entry = spool.awaitNext();
+      assertEquals(first, entry.getId());
+      assertFalse(entry.isGroups());
+      assertEquals("docs", entry.getSource());
+      assertEquals("incremental", entry.getFeedtype());
+      assertEquals(xml(1).length, entry.getXmlLength());
+      assertEquals("<feed1/>", read(spool, entry));
+      spool.acknowledge(entry);
+      spool.acknowledge(entry);
+
+      entry = spool.peek();
+      assertTrue(entry.isGroups());
+      assertEquals("<feed2/>", read(spool, entry));
+      spool.acknowledge(entry);
+      assertEquals(0, spool.getPendingCount());
+      assertNull(spool.peek());
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testOpenAcknowledged() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    try {
+      spool.addGsaFeed("docs", "incremental", xml(1));
+      FeedSpool.Entry entry = spool.peek();
+      spool.acknowledge(entry);
+      thrown.expect(IllegalArgumentException.class);
+      spool.open(entry);
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testRecover() throws Exception {
+    FeedSpool spool = new FeedSpool(directory).setCompression(true);
+    for (int i = 0; i < 10; i++) {
+      spool.addGsaFeed("docs", "incremental", xml(i));
+    }
+    for (int i = 0; i < 4; i++) {
+      spool.acknowledge(spool.peek());
+    }
+    spool.close();
+
+    spool = new FeedSpool(directory);
+    try {
+      assertEquals(6, spool.getPendingCount());
+      for (int i = 4; i < 10; i++) {
+        FeedSpool.Entry entry = spool.peek();
+        assertEquals("<feed" + i + "/>", read(spool, entry));
+        spool.acknowledge(entry);
+      }
+      long id = spool.addGsaFeed("docs", "incremental", xml(10));
+      assertTrue(id > 10);
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testRecoverAfterCrash() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    spool.addGsaFeed("docs", "incremental", xml(1));
+    spool.addGsaFeed("docs", "incremental", xml(2));
+    spool.sync();
+    // Not closed, as if the process had stopped; the last record of
+    // the manifest was only partly written.
+    RandomAccessFile manifest =
+        new RandomAccessFile(new File(directory, "manifest"), "rw");
+    try {
+      manifest.setLength(manifest.length() - 3);
+    } finally {
+      manifest.close();
+    }
+
+    FeedSpool recovered = new FeedSpool(directory);
+    try {
+      assertEquals(1, recovered.getPendingCount());
+      assertEquals("<feed1/>", read(recovered, recovered.peek()));
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  public void testRecoverWhileReplacingManifest() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    spool.addGsaFeed("docs", "incremental", xml(1));
+    spool.addGsaFeed("docs", "incremental", xml(2));
+    spool.close();
+    // As if the process stopped in compact(), after deleting the old
+    // manifest and before renaming the new one.
+    File manifest = new File(directory, "manifest");
+    assertTrue(manifest.renameTo(new File(directory, "manifest.tmp")));
+
+    FeedSpool recovered = new FeedSpool(directory);
+    try {
+      assertEquals(2, recovered.getPendingCount());
+      assertEquals("<feed1/>", read(recovered, recovered.peek()));
+      // The segment holding the feeds was kept, with a new, empty one.
+      assertEquals(2, segments().size());
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  public void testDataNotWritten() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    spool.addGsaFeed("docs", "incremental", xml(1));
+    spool.addGsaFeed("docs", "incremental", xml(2));
+    spool.sync();
+    // The manifest reached the disk, but the data of the second feed
+    // did not.
+    File segment = new File(directory, segments().get(0));
+    RandomAccessFile data = new RandomAccessFile(segment, "rw");
+    try {
+      data.seek(data.length() - 2);
+      data.write('X');
+    } finally {
+      data.close();
+    }
+
+    FeedSpool recovered = new FeedSpool(directory);
+    try {
+      assertEquals(1, recovered.getPendingCount());
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  public void testSegmentsDeleted() throws Exception {
+    FeedSpool spool = new FeedSpool(directory)
+        .setSegmentSize(20)
+        .setSyncBatchSize(3);
+    try {
+      for (int i = 0; i < 10; i++) {
+        spool.addGsaFeed("docs", "incremental", xml(i));
+      }
+      assertEquals(4, segments().size());
+      for (int i = 0; i < 9; i++) {
+        spool.acknowledge(spool.peek());
+      }
+      assertEquals(1, segments().size());
+    } finally {
+      spool.close();
+    }
+    spool = new FeedSpool(directory);
+    try {
+      assertEquals(1, spool.getPendingCount());
+      assertEquals("<feed9/>", read(spool, spool.peek()));
+      // The old segment and a new, empty one.
+      assertEquals(2, segments().size());
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testReject() throws Exception {
+    FeedSpool spool = new FeedSpool(directory).setCompression(true);
+    try {
+      spool.addGsaFeed("docs", "incremental", xml(1));
+      File failed = spool.reject(spool.peek());
+      assertEquals(0, spool.getPendingCount());
+      assertTrue(failed.getName().endsWith(".xml.gz"));
+      InputStream in = new GZIPInputStream(new FileInputStream(failed));
+      try {
+        assertEquals("<feed1/>", IOHelper.readInputStreamToString(in, UTF_8));
+      } finally {
+        in.close();
+      }
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testIdsIncreaseAfterRestart() throws Exception {
+    long last = 0;
+    for (int i = 0; i < 3; i++) {
+      FeedSpool spool = new FeedSpool(directory);
+      try {
+        long id = spool.addGsaFeed("docs", "incremental", xml(i));
+        assertTrue(id > last);
+        last = id;
+        spool.acknowledge(spool.peek());
+      } finally {
+        spool.close();
+      }
+    }
+  }
+
+  @Test
+  public void testRejectDoesNotOverwrite() throws Exception {
+    assertTrue(directory.mkdirs());
+    File earlier = new File(directory, "failed-1-xmlfeed-docs.xml");
+    FileOutputStream out = new FileOutputStream(earlier);
+    out.write(xml(0));
+    out.close();
+
+    FeedSpool spool = new FeedSpool(directory);
+    try {
+      spool.addGsaFeed("docs", "incremental", xml(1));
+      spool.addGsaFeed("docs", "incremental", xml(2));
+      File failed = spool.reject(spool.peek());
+      assertFalse(failed.equals(earlier));
+      assertEquals("<feed0/>", read(earlier));
+      assertEquals("<feed1/>", read(failed));
+      assertFalse(failed.equals(spool.reject(spool.peek())));
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testClosed() throws Exception {
+    FeedSpool spool = new FeedSpool(directory);
+    spool.close();
+    spool.close();
+    thrown.expect(IllegalStateException.class);
+    spool.awaitNext();
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Test Fingerprint.
+ */
+public class FingerprintTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  /** Returns text longer than any buffer used to read content. */
+  static String largeText() {
+    Random random = new Random(0);
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 100000) {
+      text.append((char) ('a' + random.nextInt(26)));
+    }
+    return text.toString();
+  }
+
+  static Content text(String text) {
+    return new Content().setvalue(text);
+  }
+
+  static Content base64Binary(String text) {
+    return new Content()
+        .setEncoding(Content.Encoding.BASE64_BINARY)
+        .setvalue(DatatypeConverter.printBase64Binary(text.getBytes(UTF_8)));
+  }
+
+  static Content base64Compressed(String text) throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+    deflater.write(text.getBytes(UTF_8));
+    deflater.close();
+    return new Content()
+        .setEncoding(Content.Encoding.BASE64_COMPRESSED)
+        .setvalue(DatatypeConverter.printBase64Binary(
+            compressed.toByteArray()));
+  }
+
+  static Record recordWith(Content... contents) {
+    Record record = new Record()
+        .setUrl("http://example.com/doc")
+        .setMimetype("text/plain")
+        .setLastModified(new Date(1234567890000L));
+    record.getContent().addAll(Arrays.asList(contents));
+    return record;
+  }
+
+  /**
+   * Marshals and unmarshals the record, spilling its content to files
+   * if spill is true.
+   */
+  static Record roundTrip(Record record, boolean spill, File directory)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GsafeedHelper helper = new GsafeedHelper();
+    GsafeedWriter writer = new GsafeedWriter(helper, out, null);
+    writer.startGroup(new Group());
+    writer.write(record);
+    writer.endGroup();
+    writer.finish();
+    if (spill) {
+      helper.setContentSpillThreshold(100);
+      helper.setContentSpillDirectory(directory);
+    }
+    Gsafeed feed = helper.unmarshalWithoutDtd(
+        new ByteArrayInputStream(out.toByteArray()));
+    Record result = (Record) feed.getGroup().get(0).getAclOrRecord().get(0);
+    assertEquals(spill, result.getContent().get(0).getSource() != null);
+    return result;
+  }
+
+  @Test
+  public void testSameForEachEncoding() throws Exception {
+    String text = largeText();
+    byte[] expected = Fingerprint.of(recordWith(text(text)));
+    assertArrayEquals(expected,
+        Fingerprint.of(recordWith(base64Binary(text))));
+    assertArrayEquals(expected,
+        Fingerprint.of(recordWith(base64Compressed(text))));
+  }
+
+  @Test
+  public void testSameWhenSpilled() throws Exception {
+    String text = largeText();
+    byte[] expected = Fingerprint.of(recordWith(text(text)));
+    File directory = testFolder.newFolder();
+    for (Content content : new Content[] {
+        text(text), base64Binary(text), base64Compressed(text) }) {
+      for (boolean spill : new boolean[] {false, true}) {
+        Record record = roundTrip(recordWith(content), spill, directory);
+        assertArrayEquals(content.getEncoding() + ", spill=" + spill,
+            expected, Fingerprint.of(record));
+      }
+    }
+  }
+
+  @Test
+  public void testContentBoundaries() throws Exception {
+    byte[] one = Fingerprint.of(recordWith(text("ab"), text("c")));
+    byte[] two = Fingerprint.of(recordWith(text("a"), text("bc")));
+    byte[] three = Fingerprint.of(recordWith(text("abc")));
+    assertFalse(Arrays.equals(one, two));
+    assertFalse(Arrays.equals(one, three));
+    assertTrue(Arrays.equals(one,
+        Fingerprint.of(recordWith(text("ab"), base64Binary("c")))));
+  }
+}
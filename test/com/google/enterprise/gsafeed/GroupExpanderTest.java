@@ -0,0 +1,265 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static com.google.enterprise.gsafeed.GroupGraphTest.group;
+import static com.google.enterprise.gsafeed.GroupGraphTest.membership;
+import static com.google.enterprise.gsafeed.GroupGraphTest.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test GroupExpander.
+ */
+public class GroupExpanderTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static List<String> names(List<Principal> principals) {
+    List<String> names = new ArrayList<String>();
+    for (Principal principal : principals) {
+      names.add(principal.getvalue());
+    }
+    return names;
+  }
+
+  private static Xmlgroups generate(int groups, int users) {
+    return new FeedGenerator(11)
+        .setGroups(groups)
+        .setUsers(users)
+        .setMembers(0, 20)
+        .setNestedGroupFraction(0.2)
+        .createXmlgroups();
+  }
+
+  /** Computes the groups of the principal by a plain search. */
+  private static Set<String> search(Xmlgroups feed, String name) {
+    Set<String> found = new HashSet<String>();
+    List<String> pending = new ArrayList<String>();
+    pending.add(name);
+    while (!pending.isEmpty()) {
+      String member = pending.remove(pending.size() - 1);
+      for (Membership membership : feed.getMembership()) {
+        String group = membership.getPrincipal().getvalue();
+        if (found.contains(group)) {
+          continue;
+        }
+        for (Principal principal : membership.getMembers().getPrincipal()) {
+          if (principal.getvalue().equals(member)) {
+            found.add(group);
+            pending.add(group);
+            break;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  @Test
+  public void testNestedGroups() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("all"), group("eng"), group("sales")))
+        .add(membership(group("eng"), user("alice"), group("web")))
+        .add(membership(group("web"), user("bob"), user("alice")));
+    assertEquals(Arrays.asList("all", "eng", "web"),
+        names(expander.getGroups(user("alice"))));
+    assertEquals(Arrays.asList("all", "eng", "web"),
+        names(expander.getGroups(user("bob"))));
+    assertEquals(Arrays.asList("all", "eng"),
+        names(expander.getGroups(group("web"))));
+    assertEquals(Arrays.asList(),
+        names(expander.getGroups(group("all"))));
+    assertTrue(expander.isMember(user("bob"), group("all")));
+    assertFalse(expander.isMember(user("bob"), group("sales")));
+    assertTrue(expander.getCycles().isEmpty());
+  }
+
+  @Test
+  public void testPrincipalsCompared() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("eng"), user("alice")));
+    assertEquals(Arrays.asList("eng"),
+        names(expander.getGroups(user("alice").setNamespace("Default"))));
+    assertEquals(Arrays.asList(),
+        names(expander.getGroups(group("alice"))));
+    assertEquals(Arrays.asList(),
+        names(expander.getGroups(user("alice").setNamespace("other"))));
+    assertFalse(expander.isMember(user("alice"), group("web")));
+  }
+
+  @Test
+  public void testGroupsCopied() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("eng").setNamespace("ns"), user("alice")));
+    Principal group = expander.getGroups(user("alice")).get(0);
+    assertEquals("ns", group.getNamespace());
+    assertEquals(Principal.Scope.GROUP, group.getScope());
+    group.setvalue("changed");
+    assertEquals(Arrays.asList("eng"),
+        names(expander.getGroups(user("alice"))));
+  }
+
+  @Test
+  public void testCycle() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("a"), group("b"), user("alice")))
+        .add(membership(group("b"), group("c")))
+        .add(membership(group("c"), group("a"), user("bob")))
+        .add(membership(group("top"), group("c")))
+        .add(membership(group("self"), group("self"), user("carol")));
+    assertEquals(Arrays.asList("a", "b", "c", "top"),
+        names(expander.getGroups(user("alice"))));
+    assertEquals(Arrays.asList("a", "b", "c", "top"),
+        names(expander.getGroups(group("b"))));
+    assertEquals(Arrays.asList("a", "b", "c", "top"),
+        names(expander.getGroups(user("bob"))));
+    assertEquals(Arrays.asList("self"),
+        names(expander.getGroups(user("carol"))));
+    assertEquals(Arrays.asList("self"),
+        names(expander.getGroups(group("self"))));
+    List<List<Principal>> cycles = expander.getCycles();
+    assertEquals(2, cycles.size());
+    Set<List<String>> actual = new HashSet<List<String>>();
+    for (List<Principal> cycle : cycles) {
+      actual.add(names(cycle));
+    }
+    assertTrue(actual.contains(Arrays.asList("a", "b", "c")));
+    assertTrue(actual.contains(Arrays.asList("self")));
+  }
+
+  @Test
+  public void testSetMembers() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("eng"), group("web"), group("db")))
+        .add(membership(group("web"), user("alice")))
+        .add(membership(group("db"), user("bob")))
+        .add(membership(group("sales"), user("carol")));
+    expander.expandAll();
+    assertEquals(7, expander.getExpandedCount());
+
+    expander.setMembers(membership(group("web"), user("bob")));
+    // Only web's old and new members need expanding again.
+    assertEquals(5, expander.getExpandedCount());
+    assertEquals(Arrays.asList(), names(expander.getGroups(user("alice"))));
+    assertEquals(Arrays.asList("eng", "web", "db"),
+        names(expander.getGroups(user("bob"))));
+
+    expander.setMembers(membership(group("sales"), group("eng")));
+    assertEquals(Arrays.asList("eng", "web", "db", "sales"),
+        names(expander.getGroups(user("bob"))));
+    assertEquals(Arrays.asList(), names(expander.getGroups(user("carol"))));
+
+    expander.setMembers(new Membership().setPrincipal(group("eng")));
+    assertEquals(Arrays.asList("web", "db"),
+        names(expander.getGroups(user("bob"))));
+    assertEquals(Arrays.asList(),
+        names(expander.getGroups(group("db"))));
+  }
+
+  @Test
+  public void testSetMembersBreaksCycle() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("a"), group("b")))
+        .add(membership(group("b"), group("a"), user("alice")));
+    assertEquals(Arrays.asList("a", "b"),
+        names(expander.getGroups(user("alice"))));
+    assertEquals(1, expander.getCycles().size());
+    expander.setMembers(membership(group("a")));
+    assertEquals(Arrays.asList("b"),
+        names(expander.getGroups(user("alice"))));
+    assertEquals(Arrays.asList("b"), names(expander.getGroups(group("a"))));
+    assertTrue(expander.getCycles().isEmpty());
+  }
+
+  @Test
+  public void testAddMembershipAgain() {
+    GroupExpander expander = new GroupExpander()
+        .add(membership(group("eng"), user("alice")));
+    assertEquals(Arrays.asList(), names(expander.getGroups(group("eng"))));
+    expander.add(membership(group("all"), group("eng")));
+    expander.add(membership(group("eng"), user("bob"), user("alice")));
+    assertEquals(Arrays.asList("eng", "all"),
+        names(expander.getGroups(user("alice"))));
+    assertEquals(Arrays.asList("eng", "all"),
+        names(expander.getGroups(user("bob"))));
+  }
+
+  @Test
+  public void testNoPrincipal() {
+    thrown.expect(IllegalArgumentException.class);
+    new GroupExpander().add(new Membership());
+  }
+
+  @Test
+  public void testMatchesSearch() {
+    Xmlgroups feed = generate(100, 100);
+    GroupExpander expander = new GroupExpander(feed);
+    Set<String> checked = new HashSet<String>();
+    for (Membership membership : feed.getMembership()) {
+      for (Principal member : membership.getMembers().getPrincipal()) {
+        if (checked.add(member.getvalue())) {
+          assertEquals(member.getvalue(),
+              search(feed, member.getvalue()),
+              new HashSet<String>(names(expander.getGroups(member))));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testExpandAllParallel() throws Exception {
+    Xmlgroups feed = generate(2000, 3000);
+    GroupExpander serial = new GroupExpander(feed);
+    GroupExpander parallel =
+        new GroupExpander(GroupGraph.fromXmlgroups(feed));
+    assertEquals(serial.getPrincipalCount(), parallel.getPrincipalCount());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      parallel.expandAll(executor);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(parallel.getPrincipalCount(),
+        parallel.getExpandedCount());
+    for (Membership membership : feed.getMembership()) {
+      Principal group = membership.getPrincipal();
+      assertEquals(names(serial.getGroups(group)),
+          names(parallel.getGroups(group)));
+      for (Principal member : membership.getMembers().getPrincipal()) {
+        assertEquals(names(serial.getGroups(member)),
+            names(parallel.getGroups(member)));
+      }
+    }
+    assertEquals(serial.getCycles().size(), parallel.getCycles().size());
+  }
+}
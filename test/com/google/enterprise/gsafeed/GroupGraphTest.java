@@ -0,0 +1,194 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.gsafeed.groups.Members;
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test GroupGraph.
+ */
+public class GroupGraphTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  static Principal user(String name) {
+    return new Principal().setScope(Principal.Scope.USER).setvalue(name);
+  }
+
+  static Principal group(String name) {
+    return new Principal().setScope(Principal.Scope.GROUP).setvalue(name);
+  }
+
+  static Membership membership(Principal group,
+      Principal... members) {
+    Members list = new Members();
+    list.getPrincipal().addAll(Arrays.asList(members));
+    return new Membership().setPrincipal(group).setMembers(list);
+  }
+
+  private static Xmlgroups generate() {
+    return new FeedGenerator(5)
+        .setGroups(300)
+        .setUsers(200)
+        .setMembers(0, 20)
+        .setNestedGroupFraction(0.3)
+        .createXmlgroups();
+  }
+
+  @Test
+  public void testLookups() {
+    GroupGraph graph = new GroupGraph.Builder()
+        .add(membership(group("eng"), user("alice"), group("web")))
+        .add(membership(group("web"), user("bob"), user("alice")))
+        .build();
+    assertEquals(4, graph.getPrincipalCount());
+    assertEquals(2, graph.getMembershipCount());
+    assertEquals(4, graph.getEdgeCount());
+    int eng = graph.indexOf(group("eng"));
+    int web = graph.indexOf(group("web"));
+    int alice = graph.indexOf(user("alice"));
+    int bob = graph.indexOf(user("bob"));
+    assertEquals("alice", graph.getName(alice));
+    assertEquals(Principal.Scope.USER, graph.getScope(alice));
+    assertEquals("Default", graph.getNamespace(alice));
+    assertArrayEquals(new int[] { alice, web }, graph.getMembers(eng));
+    assertArrayEquals(new int[] { bob, alice }, graph.getMembers(web));
+    assertArrayEquals(new int[0], graph.getMembers(alice));
+    int[] parents = { eng, web };
+    Arrays.sort(parents);
+    assertArrayEquals(parents, graph.getParents(alice));
+    assertArrayEquals(new int[] { eng }, graph.getParents(web));
+    assertTrue(graph.isMember(web, bob));
+    assertFalse(graph.isMember(eng, bob));
+    assertTrue(graph.isGroup(web));
+    assertFalse(graph.isGroup(alice));
+  }
+
+  @Test
+  public void testIndexOfDistinguishesAttributes() {
+    GroupGraph graph = new GroupGraph.Builder()
+        .add(membership(group("eng"), user("eng"),
+            user("eng").setNamespace("other"),
+            user("eng").setCaseSensitivityType(
+                Principal.CaseSensitivityType.EVERYTHING_CASE_INSENSITIVE)))
+        .build();
+    assertEquals(4, graph.getPrincipalCount());
+    assertEquals(-1, graph.indexOf(user("nobody")));
+    assertEquals(-1, graph.indexOf(user("eng").setNamespace("missing")));
+    assertEquals(graph.indexOf(user("eng")),
+        graph.indexOf(user("eng").setNamespace("Default")));
+    assertEquals(3, graph.getMembers(graph.indexOf(group("eng"))).length);
+  }
+
+  @Test
+  public void testSeveralMembershipsForOneGroup() {
+    GroupGraph graph = new GroupGraph.Builder()
+        .add(membership(group("eng"), user("alice")))
+        .add(membership(group("web"), user("carol")))
+        .add(membership(group("eng"), user("bob"), user("alice")))
+        .build();
+    int eng = graph.indexOf(group("eng"));
+    int alice = graph.indexOf(user("alice"));
+    int bob = graph.indexOf(user("bob"));
+    assertArrayEquals(new int[] { alice, bob, alice }, graph.getMembers(eng));
+    assertArrayEquals(new int[] { eng, eng }, graph.getParents(alice));
+    assertArrayEquals(new int[] { bob, alice },
+        graph.getMembershipMembers(2));
+    assertEquals(eng, graph.getGroup(2));
+  }
+
+  @Test
+  public void testMembershipWithoutPrincipal() {
+    thrown.expect(IllegalArgumentException.class);
+    new GroupGraph.Builder().add(new Membership());
+  }
+
+  @Test
+  public void testMatchesXmlgroups() {
+    Xmlgroups feed = generate();
+    GroupGraph graph = GroupGraph.fromXmlgroups(feed);
+    List<Membership> memberships = feed.getMembership();
+    assertEquals(memberships.size(), graph.getMembershipCount());
+    int edges = 0;
+    for (int m = 0; m < memberships.size(); m++) {
+      Membership membership = memberships.get(m);
+      int group = graph.indexOf(membership.getPrincipal());
+      assertEquals(group, graph.getGroup(m));
+      List<Principal> principals = membership.getMembers().getPrincipal();
+      int[] members = graph.getMembers(group);
+      assertEquals(principals.size(), members.length);
+      for (int i = 0; i < members.length; i++) {
+        int member = graph.indexOf(principals.get(i));
+        assertEquals(member, members[i]);
+        assertTrue(graph.isMember(group, member));
+        assertTrue(Arrays.binarySearch(graph.getParents(member), group) >= 0);
+      }
+      edges += members.length;
+    }
+    assertEquals(edges, graph.getEdgeCount());
+  }
+
+  @Test
+  public void testParentsMatchMembers() {
+    GroupGraph graph = GroupGraph.fromXmlgroups(generate());
+    List<String> fromMembers = new ArrayList<String>();
+    List<String> fromParents = new ArrayList<String>();
+    for (int node = 0; node < graph.getPrincipalCount(); node++) {
+      for (int member : graph.getMembers(node)) {
+        fromMembers.add(node + ">" + member);
+      }
+      for (int parent : graph.getParents(node)) {
+        fromParents.add(parent + ">" + node);
+      }
+    }
+    java.util.Collections.sort(fromMembers);
+    java.util.Collections.sort(fromParents);
+    assertEquals(fromMembers, fromParents);
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    Xmlgroups feed = generate();
+    XmlgroupsHelper helper = new XmlgroupsHelper();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    helper.marshal(feed, expected);
+
+    GroupGraph graph = GroupGraph.fromXmlgroups(feed);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    graph.write(helper, written);
+    assertEquals(expected.toString("UTF-8"), written.toString("UTF-8"));
+
+    ByteArrayOutputStream marshalled = new ByteArrayOutputStream();
+    helper.marshal(graph.toXmlgroups(), marshalled);
+    assertEquals(expected.toString("UTF-8"), marshalled.toString("UTF-8"));
+  }
+}
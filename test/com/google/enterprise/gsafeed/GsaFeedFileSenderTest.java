@@ -15,6 +15,10 @@
 package com.google.enterprise.gsafeed;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -28,14 +32,22 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -78,6 +90,9 @@ public class GsaFeedFileSenderTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
   private Charset charset = Charset.forName("UTF-8");
   private HttpServer server;
   private int port;
@@ -221,6 +236,200 @@ public class GsaFeedFileSenderTest {
     assertEquals(goldenResponse, response);
   }
 
+  private static String feedMessage(String datasource, String feedtype,
+      String payload) {
+    return "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"datasource\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + datasource + "\r\n"
+        + "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"feedtype\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + feedtype + "\r\n"
+        + "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"data\"\r\n"
+        + "Content-Type: text/xml\r\n"
+        + "\r\n"
+        + payload + "\r\n"
+        + "--<<--\r\n";
+  }
+
+  private File writeFile(String contents) throws IOException {
+    File file = testFolder.newFile();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes(charset));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @Test
+  public void testFeedSuccessFromFile() throws Exception {
+    final String payload = "<someXmlString>\u00e9</someXmlString>";
+    final String goldenResponse
+        = feedMessage("testDataSource", "full", payload);
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    sender.sendGsaFeed("testDataSource", "full", writeFile(payload), false);
+    assertEquals("POST", handler.getRequestMethod());
+    assertEquals(URI.create("/xmlfeed"), handler.getRequestUri());
+    assertEquals(String.valueOf(goldenResponse.getBytes(charset).length),
+        handler.getRequestHeaders().getFirst("Content-Length"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testFeedSuccessFromFileGzipped() throws Exception {
+    final String payload = "<someXmlString/>";
+    final String goldenResponse
+        = feedMessage("testDataSource", "full", payload);
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    sender.sendGsaFeed("testDataSource", "full", writeFile(payload), true);
+    assertEquals("gzip",
+        handler.getRequestHeaders().getFirst("Content-Encoding"));
+    InputStream uncompressed = new GZIPInputStream(
+        new ByteArrayInputStream(handler.getRequestBytes()));
+    assertEquals(goldenResponse, new String(
+        IOHelper.readInputStreamToByteArray(uncompressed), charset));
+  }
+
+  @Test
+  public void testFeedSuccessFromStream() throws Exception {
+    final String payload = "<someXmlString/>";
+    final String goldenResponse
+        = feedMessage("testDataSource", "incremental", payload);
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    byte[] bytes = payload.getBytes(charset);
+    sender.sendGsaFeed("testDataSource", "incremental",
+        new ByteArrayInputStream(bytes), bytes.length, false);
+    assertEquals(String.valueOf(goldenResponse.getBytes(charset).length),
+        handler.getRequestHeaders().getFirst("Content-Length"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testFeedSuccessFromStreamUnknownLength() throws Exception {
+    final String payload = "<someXmlString/>";
+    final String goldenResponse
+        = feedMessage("testDataSource", "incremental", payload);
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    // Compression is not used when the length is unknown.
+    sender.sendGsaFeed("testDataSource", "incremental",
+        new ByteArrayInputStream(payload.getBytes(charset)), -1, true);
+    assertEquals("chunked",
+        handler.getRequestHeaders().getFirst("Transfer-Encoding"));
+    assertEquals(null,
+        handler.getRequestHeaders().getFirst("Content-Encoding"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testFeedFromFileInvalidDataSource() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    sender.sendGsaFeed("bad#source", "full", writeFile("<xml/>"), false);
+  }
+
+  private static String marshal(Gsafeed feed) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new GsafeedHelper().marshal(feed, out);
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void testFeedSuccessFromGsafeed() throws Exception {
+    Gsafeed feed = new GsafeedHelper().unmarshalWithDtd(
+        GsaFeedFileSenderTest.class.getResource("/full.xml"));
+    final String goldenResponse = feedMessage(
+        feed.getHeader().getDatasource(), feed.getHeader().getFeedtype(),
+        marshal(feed));
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    sender.sendGsaFeed(feed, false);
+    assertEquals(URI.create("/xmlfeed"), handler.getRequestUri());
+    assertEquals("chunked",
+        handler.getRequestHeaders().getFirst("Transfer-Encoding"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testFeedSuccessFromGsafeedGzipped() throws Exception {
+    Gsafeed feed = new GsafeedHelper().unmarshalWithDtd(
+        GsaFeedFileSenderTest.class.getResource("/full.xml"));
+    final String goldenResponse = feedMessage(
+        feed.getHeader().getDatasource(), feed.getHeader().getFeedtype(),
+        marshal(feed));
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    sender.sendGsaFeed(feed, true);
+    assertEquals("gzip",
+        handler.getRequestHeaders().getFirst("Content-Encoding"));
+    InputStream uncompressed = new GZIPInputStream(
+        new ByteArrayInputStream(handler.getRequestBytes()));
+    assertEquals(goldenResponse, new String(
+        IOHelper.readInputStreamToByteArray(uncompressed), charset));
+  }
+
+  @Test
+  public void testFeedFromLargeGsafeedNotGzipped() throws Exception {
+    Gsafeed feed = new Gsafeed().setHeader(
+        new Header().setDatasource("testDataSource").setFeedtype("full"));
+    Group group = new Group();
+    for (int i = 0; i < 20000; i++) {
+      group.getAclOrRecord().add(new Record()
+          .setUrl("http://example.com/documents/" + i)
+          .setMimetype("text/plain"));
+    }
+    feed.getGroup().add(group);
+    final String goldenResponse
+        = feedMessage("testDataSource", "full", marshal(feed));
+    assertTrue(goldenResponse.length() > 1024 * 1024);
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlfeed", handler);
+
+    sender.sendGsaFeed(feed, true);
+    assertEquals(null,
+        handler.getRequestHeaders().getFirst("Content-Encoding"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testFeedFromGsafeedWithoutHeader() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    sender.sendGsaFeed(new Gsafeed(), false);
+  }
+
+  @Test
+  public void testFeedFromGsafeedInvalidDataSource() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    sender.sendGsaFeed(new Gsafeed().setHeader(
+        new Header().setDatasource("bad#source").setFeedtype("full")), false);
+  }
+
   @Test
   public void testFeedInvalidDataSource() throws Exception {
     thrown.expect(IllegalArgumentException.class);
@@ -283,6 +492,202 @@ public class GsaFeedFileSenderTest {
     sender.sendGsaFeed("datasource", "metadata-and-url", "<payload/>", false);
   }
 
+  /** Replies with each of the given bodies in turn, then Success. */
+  private static class SequenceHandler implements HttpHandler {
+    private final String[] replies;
+    final List<String> requests = new ArrayList<String>();
+
+    SequenceHandler(String... replies) {
+      this.replies = replies;
+    }
+
+    @Override
+    public synchronized void handle(HttpExchange ex) throws IOException {
+      requests.add(new String(
+          IOHelper.readInputStreamToByteArray(ex.getRequestBody()), "UTF-8"));
+      int i = requests.size() - 1;
+      String reply = (i < replies.length) ? replies[i] : "Success";
+      if (reply == null) {
+        ex.close();
+        return;
+      }
+      byte[] bytes = reply.getBytes("UTF-8");
+      ex.sendResponseHeaders(reply.equals("Busy") ? 503 : 200, bytes.length);
+      ex.getResponseBody().write(bytes);
+      ex.close();
+    }
+  }
+
+  private static RetryPolicy fastRetries(int maxAttempts) {
+    return new RetryPolicy().setMaxAttempts(maxAttempts).setBaseDelay(1);
+  }
+
+  @Test
+  public void testRetryInternalError() throws Exception {
+    SequenceHandler handler
+        = new SequenceHandler("Internal Error", "Busy");
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(3));
+
+    sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+    assertEquals(3, handler.requests.size());
+    assertEquals(handler.requests.get(0), handler.requests.get(2));
+    assertEquals(2, sender.getRetryCount());
+    assertEquals(0, sender.getRetryFailureCount());
+  }
+
+  @Test
+  public void testRetryFile() throws Exception {
+    SequenceHandler handler = new SequenceHandler("Internal Error");
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(3));
+
+    sender.sendGsaFeed("datasource", "full", writeFile("<payload/>"), false);
+    assertEquals(2, handler.requests.size());
+    assertEquals(feedMessage("datasource", "full", "<payload/>"),
+        handler.requests.get(1));
+  }
+
+  @Test
+  public void testRetryMarshalledFeed() throws Exception {
+    SequenceHandler handler = new SequenceHandler("Internal Error");
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(3));
+    Gsafeed feed = new Gsafeed().setHeader(
+        new Header().setDatasource("sample").setFeedtype("full"));
+
+    sender.sendGsaFeed(feed, false);
+    assertEquals(2, handler.requests.size());
+    assertEquals(feedMessage("sample", "full", marshal(feed)),
+        handler.requests.get(1));
+  }
+
+  @Test
+  public void testRetryReadFailure() throws Exception {
+    SequenceHandler handler = new SequenceHandler(null, null);
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(3));
+
+    sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+    assertEquals(3, handler.requests.size());
+    assertEquals(2, sender.getRetryCount());
+  }
+
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    SequenceHandler handler = new SequenceHandler(
+        "Internal Error", "Internal Error", "Internal Error");
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(2));
+
+    try {
+      sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(2, handler.requests.size());
+    assertEquals(1, sender.getRetryCount());
+    assertEquals(1, sender.getRetryFailureCount());
+  }
+
+  @Test
+  public void testRetryConnectFailure() throws Exception {
+    server.stop(0);
+    server = null;
+    sender.setRetryPolicy(fastRetries(3));
+
+    try {
+      sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+    assertEquals(2, sender.getRetryCount());
+    assertEquals(1, sender.getRetryFailureCount());
+  }
+
+  @Test
+  public void testNoRetryByDefault() throws Exception {
+    SequenceHandler handler = new SequenceHandler("Internal Error");
+    server.createContext("/xmlfeed", handler);
+
+    try {
+      sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(1, handler.requests.size());
+    assertEquals(0, sender.getRetryCount());
+  }
+
+  @Test
+  public void testNoRetryForOtherReplies() throws Exception {
+    SequenceHandler handler
+        = new SequenceHandler("Error - Unauthorized Request");
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(3));
+
+    try {
+      sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(1, handler.requests.size());
+    assertEquals(0, sender.getRetryFailureCount());
+  }
+
+  @Test
+  public void testNoRetryFromStream() throws Exception {
+    SequenceHandler handler = new SequenceHandler("Internal Error");
+    server.createContext("/xmlfeed", handler);
+    sender.setRetryPolicy(fastRetries(3));
+
+    byte[] bytes = "<payload/>".getBytes(charset);
+    try {
+      sender.sendGsaFeed("datasource", "full",
+          new ByteArrayInputStream(bytes), bytes.length, false);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(1, handler.requests.size());
+  }
+
+  @Test
+  public void testCustomRetryableErrors() throws Exception {
+    SequenceHandler handler = new SequenceHandler("Some failure");
+    server.createContext("/xmlgroups", handler);
+    sender.setRetryPolicy(new RetryPolicy() {
+        @Override
+        public boolean isRetryable(String reply, int responseCode) {
+          return "Some failure".equals(reply);
+        }
+      }.setMaxAttempts(2).setBaseDelay(1));
+
+    sender.sendGroups("docspot", "full", "<payload/>", false);
+    assertEquals(2, handler.requests.size());
+  }
+
+  @Test
+  public void testCustomTransport() throws Exception {
+    final List<String> requests = new ArrayList<String>();
+    sender.setTransport(new FeedTransport() {
+        @Override
+        public Response post(URL url, Map<String, String> headers,
+            long contentLength, RequestBody body) throws IOException {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          body.writeTo(out);
+          assertEquals(out.size(), contentLength);
+          requests.add(url.getPath() + " " + headers.get("Content-Type")
+              + "\n" + out.toString("UTF-8"));
+          return new Response(200, "Success".getBytes("UTF-8"));
+        }
+      });
+
+    sender.sendGsaFeed("datasource", "full", "<payload/>", false);
+    assertEquals(1, requests.size());
+    assertEquals("/xmlfeed multipart/form-data; boundary=<<\n"
+        + feedMessage("datasource", "full", "<payload/>"), requests.get(0));
+  }
+
   @Test
   public void testGroupsSuccess_Incremental() throws Exception {
     final String payload = "<someXmlString/>";
@@ -316,6 +721,93 @@ public class GsaFeedFileSenderTest {
         new String(handler.getRequestBytes(), charset));
   }
 
+  @Test
+  public void testGroupsSuccessFromFile() throws Exception {
+    final String payload = "<someXmlString/>";
+    final String groupsource = "docspot";
+    final String goldenResponse
+        = "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"replace\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + groupsource + "\r\n"
+        + "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"data\"\r\n"
+        + "Content-Type: text/xml\r\n"
+        + "\r\n"
+        + payload + "\r\n"
+        + "--<<--\r\n";
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlgroups", handler);
+    sender.sendGroups(groupsource, "replace", writeFile(payload), false);
+    assertEquals(URI.create("/xmlgroups"), handler.getRequestUri());
+    assertEquals(String.valueOf(goldenResponse.getBytes(charset).length),
+        handler.getRequestHeaders().getFirst("Content-Length"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testGroupsSuccessFromStream_Cleanup() throws Exception {
+    final String groupsource = "docspot";
+    final String goldenResponse
+        = "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"cleanup\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + groupsource + "\r\n"
+        + "--<<--\r\n";
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlgroups", handler);
+    // The data is ignored for cleanup, so the length is known.
+    sender.sendGroups(groupsource, "cleanup",
+        new ByteArrayInputStream(new byte[0]), -1, false);
+    assertEquals(String.valueOf(goldenResponse.getBytes(charset).length),
+        handler.getRequestHeaders().getFirst("Content-Length"));
+    assertEquals(goldenResponse,
+        new String(handler.getRequestBytes(), charset));
+  }
+
+  @Test
+  public void testGroupsSuccessFromXmlgroups() throws Exception {
+    XmlgroupsHelper helper = new XmlgroupsHelper();
+    Xmlgroups groups = helper.unmarshalWithoutDtd(
+        GsaFeedFileSenderTest.class.getResource("/groupsfeed.xml"));
+    ByteArrayOutputStream marshalled = new ByteArrayOutputStream();
+    helper.marshal(groups, marshalled);
+    final String groupsource = "docspot";
+    final String goldenResponse
+        = "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"groupsource\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + groupsource + "\r\n"
+        + "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"feedtype\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + "full\r\n"
+        + "--<<\r\n"
+        + "Content-Disposition: form-data; name=\"data\"\r\n"
+        + "Content-Type: text/xml\r\n"
+        + "\r\n"
+        + marshalled.toString("UTF-8") + "\r\n"
+        + "--<<--\r\n";
+    MockHttpHandler handler
+        = new MockHttpHandler(200, "Success".getBytes(charset));
+    server.createContext("/xmlgroups", handler);
+    sender.sendGroups(groupsource, "full", groups, true);
+    assertEquals(URI.create("/xmlgroups"), handler.getRequestUri());
+    assertEquals("gzip",
+        handler.getRequestHeaders().getFirst("Content-Encoding"));
+    InputStream uncompressed = new GZIPInputStream(
+        new ByteArrayInputStream(handler.getRequestBytes()));
+    assertEquals(goldenResponse, new String(
+        IOHelper.readInputStreamToByteArray(uncompressed), charset));
+  }
+
   @Test
   public void testGroupsSuccess_Full() throws Exception {
     final String payload = "<someXmlString/>";
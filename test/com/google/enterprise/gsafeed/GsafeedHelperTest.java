@@ -14,8 +14,16 @@
 
 package com.google.enterprise.gsafeed;
 
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -24,15 +32,24 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.ValidationEvent;
+import javax.xml.bind.ValidationEventHandler;
 
 /**
  * Test GsafeedHelper.
@@ -274,10 +291,374 @@ public class GsafeedHelperTest {
     helper.unmarshalWithoutDtd(asStream(entityExpansionFeed));
   }
 
+  @Test
+  public void testStreamingWithDtd() throws Exception {
+    String feed =
+        "<?xml version='1.0' encoding='utf-8'?>"
+        + "<!DOCTYPE gsafeed PUBLIC '-//Google//DTD GSA Feeds//EN' ''>"
+        + "<gsafeed>"
+        + "  <header>"
+        + "    <datasource>sample</datasource>"
+        + "    <feedtype>incremental</feedtype>"
+        + "  </header>"
+        + "  <group action='delete' feedrank='10'>"
+        + "    <acl url='http://www.example.com/folder'>"
+        + "      <principal scope='user' access='permit'>alice</principal>"
+        + "    </acl>"
+        + "    <record url='http://www.example.com/hello01'"
+        + "      mimetype='text/plain'/>"
+        + "  </group>"
+        + "  <group>"
+        + "    <record url='http://www.example.com/hello02'"
+        + "      mimetype='text/plain'>"
+        + "      <content>This is hello02</content>"
+        + "    </record>"
+        + "  </group>"
+        + "</gsafeed>";
+    RecordingHandler handler = new RecordingHandler();
+    helper.unmarshalWithDtd(asStream(feed), handler);
+    assertEquals(Arrays.asList(
+        "header sample incremental",
+        "startGroup delete 10",
+        "acl http://www.example.com/folder [alice]",
+        "record http://www.example.com/hello01 []",
+        "endGroup delete 10",
+        "startGroup add null",
+        "record http://www.example.com/hello02 [This is hello02]",
+        "endGroup add null"),
+        handler.events);
+  }
+
+  @Test
+  public void testStreamingWithoutDtd() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    helper.unmarshalWithoutDtd(asStream(validFeed), handler);
+    assertEquals(Arrays.asList(
+        "header sample full",
+        "startGroup null null",
+        "record http://www.example.com/hello01 [This is hello01]",
+        "endGroup null null"),
+        handler.events);
+  }
+
+  @Test
+  public void testStreamingWithDtdInvalidDoc() throws Exception {
+    thrown.expect(SAXParseException.class);
+    thrown.expectMessage(
+        "Element type \"invalid-element\" must be declared.");
+    helper.unmarshalWithDtd(asStream(invalidFeed), new RecordingHandler());
+  }
+
+  @Test
+  public void testStreamingWithoutDtdInvalidDoc() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    helper.unmarshalWithoutDtd(asStream(invalidFeed), handler);
+    assertEquals("header sample full", handler.events.get(0));
+    assertEquals(4, handler.events.size());
+  }
+
+  @Test
+  public void testStreamingHandlerException() throws Exception {
+    final IOException expected = new IOException("stop");
+    RecordingHandler handler = new RecordingHandler() {
+        @Override
+        public void record(Record record) throws IOException {
+          throw expected;
+        }
+      };
+    try {
+      helper.unmarshalWithDtd(asStream(validFeed), handler);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertSame(expected, e);
+    }
+  }
+
+  @Test
+  public void testStreamingWithDtdEntityExpansion() throws Exception {
+    thrown.expect(SAXParseException.class);
+    thrown.expectMessage("JAXP00010001: The parser has encountered more "
+        + "than \"64000\" entity expansions in this document; "
+        + "this is the limit imposed by the JDK.");
+    helper.unmarshalWithDtd(asStream(entityExpansionFeed),
+        new RecordingHandler());
+  }
+
+  @Test
+  public void testReuseParsers() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertEquals("sample",
+          helper.unmarshalWithDtd(asStream(validFeed))
+          .getHeader().getDatasource());
+      assertEquals("sample",
+          helper.unmarshalWithoutDtd(asStream(validFeed))
+          .getHeader().getDatasource());
+    }
+  }
+
+  @Test
+  public void testReuseParsersAfterError() throws Exception {
+    try {
+      helper.unmarshalWithDtd(asStream(invalidFeed));
+      fail("Expected a SAXParseException");
+    } catch (SAXParseException expected) {
+    }
+    Gsafeed feed = helper.unmarshalWithDtd(asStream(validFeed));
+    assertEquals("This is hello01", getFirstRecordContent(feed));
+  }
+
+  @Test
+  public void testReuseParsersWithNewErrorHandler() throws Exception {
+    helper.unmarshalWithDtd(asStream(validFeed));
+    final List<SAXParseException> errors = new ArrayList<SAXParseException>();
+    helper.setErrorHandler(new ErrorHandler() {
+        @Override
+        public void warning(SAXParseException exception) {
+          errors.add(exception);
+        }
+
+        @Override
+        public void error(SAXParseException exception) {
+          errors.add(exception);
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception)
+            throws SAXException {
+          throw exception;
+        }
+      });
+    // The DTD requires the mimetype attribute.
+    Gsafeed feed = helper.unmarshalWithDtd(asStream(
+        validFeed.replace("mimetype='text/plain'", "")));
+    assertEquals("sample", feed.getHeader().getDatasource());
+    assertEquals(errors.toString(), 1, errors.size());
+  }
+
+  @Test
+  public void testReuseParsersWithNewValidationEventHandler()
+      throws Exception {
+    helper.unmarshalWithDtd(asStream(validFeed));
+    final List<ValidationEvent> events = new ArrayList<ValidationEvent>();
+    helper.setValidationEventHandler(new ValidationEventHandler() {
+        @Override
+        public boolean handleEvent(ValidationEvent event) {
+          events.add(event);
+          return true;
+        }
+      });
+    // Ignore the DTD error so the unknown element reaches the
+    // ValidationEventHandler.
+    helper.setErrorHandler(new DefaultHandler());
+    Gsafeed feed = helper.unmarshalWithDtd(asStream(invalidFeed));
+    assertEquals("sample", feed.getHeader().getDatasource());
+    assertEquals(1, events.size());
+  }
+
+  @Test
+  public void testDoNotReuseParsers() throws Exception {
+    helper.setReuseParsers(false);
+    testReuseParsersWithNewErrorHandler();
+  }
+
+  @Test
+  public void testReuseParsersReentrant() throws Exception {
+    final List<String> urls = new ArrayList<String>();
+    helper.unmarshalWithDtd(asStream(validFeed), new RecordingHandler() {
+        @Override
+        public void record(Record record) throws IOException {
+          try {
+            Gsafeed inner = helper.unmarshalWithDtd(asStream(validFeed));
+            urls.add(getFirstRecordContent(inner));
+          } catch (Exception e) {
+            throw new IOException(e);
+          }
+          urls.add(record.getUrl());
+        }
+      });
+    assertEquals(
+        Arrays.asList("This is hello01", "http://www.example.com/hello01"),
+        urls);
+  }
+
+  @Test
+  public void testSharedJaxbContext() throws Exception {
+    GsafeedHelper.warmUp();
+    JAXBContext context = FeedHelper.getJaxbContext(Gsafeed.class);
+    assertSame(context, FeedHelper.getJaxbContext(Record.class));
+    assertNotSame(context, FeedHelper.getJaxbContext(Xmlgroups.class));
+  }
+
+  @Test
+  public void testSetContentSpillThresholdInvalid() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    helper.setContentSpillThreshold(-2);
+  }
+
+  @Test
+  public void testContentSpill() throws Exception {
+    Gsafeed original = spillFeed().createGsafeed();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    helper.marshal(original, expected);
+
+    File directory = testFolder.newFolder();
+    helper.setContentSpillThreshold(100);
+    helper.setContentSpillDirectory(directory);
+    Gsafeed feed = helper.unmarshalWithoutDtd(
+        new ByteArrayInputStream(expected.toByteArray()));
+
+    List<Content> originalContent = getContent(original);
+    List<Content> spilledContent = getContent(feed);
+    assertEquals(originalContent.size(), spilledContent.size());
+    assertEquals(spilledContent.size(), directory.list().length);
+    for (int i = 0; i < spilledContent.size(); i++) {
+      Content content = spilledContent.get(i);
+      assertNull(content.getvalue());
+      assertNotNull(content.getSource());
+      assertArrayEquals(read(originalContent.get(i)), read(content));
+    }
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    helper.marshal(feed, actual);
+    assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+
+    for (Content content : spilledContent) {
+      content.deleteSpillFile();
+    }
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testContentSpillBelowThreshold() throws Exception {
+    File directory = testFolder.newFolder();
+    helper.setContentSpillThreshold(100);
+    helper.setContentSpillDirectory(directory);
+    Gsafeed feed = helper.unmarshalWithDtd(asStream(validFeed));
+    assertEquals("This is hello01", getFirstRecordContent(feed));
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testContentSpillWithHandler() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    spillFeed().writeGsafeed(helper, out);
+    File directory = testFolder.newFolder();
+    helper.setContentSpillThreshold(100);
+    helper.setContentSpillDirectory(directory);
+    final List<Content> contents = new ArrayList<Content>();
+    helper.unmarshalWithoutDtd(new ByteArrayInputStream(out.toByteArray()),
+        new RecordingHandler() {
+          @Override
+          public void record(Record record) throws IOException {
+            for (Content content : record.getContent()) {
+              assertNotNull(content.getSource());
+              contents.add(content);
+            }
+          }
+        });
+    assertEquals(contents.size(), directory.list().length);
+    assertTrue(contents.size() > 0);
+  }
+
+  @Test
+  public void testContentSpillFailure() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    helper.marshal(spillFeed().createGsafeed(), out);
+    String xml = out.toString("UTF-8");
+    String truncated = xml.substring(0, xml.lastIndexOf("</record>"));
+    File directory = testFolder.newFolder();
+    helper.setContentSpillThreshold(100);
+    helper.setContentSpillDirectory(directory);
+    try {
+      helper.unmarshalWithoutDtd(asStream(truncated));
+      fail("Expected an exception");
+    } catch (Exception e) {
+      // Expected.
+    }
+    assertEquals(0, directory.list().length);
+  }
+
+  private static class RecordingHandler implements GsafeedHandler {
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void header(Header header) throws IOException {
+      events.add("header " + header.getDatasource()
+          + " " + header.getFeedtype());
+    }
+
+    @Override
+    public void startGroup(Group group) throws IOException {
+      assertTrue(group.getAclOrRecord().isEmpty());
+      events.add("startGroup " + group.getAction()
+          + " " + group.getFeedrank());
+    }
+
+    @Override
+    public void acl(Acl acl) throws IOException {
+      List<String> principals = new ArrayList<String>();
+      for (Principal principal : acl.getPrincipal()) {
+        principals.add(principal.getvalue());
+      }
+      events.add("acl " + acl.getUrl() + " " + principals);
+    }
+
+    @Override
+    public void record(Record record) throws IOException {
+      List<String> content = new ArrayList<String>();
+      for (Content c : record.getContent()) {
+        content.add(c.getvalue());
+      }
+      events.add("record " + record.getUrl() + " " + content);
+    }
+
+    @Override
+    public void endGroup(Group group) throws IOException {
+      events.add("endGroup " + group.getAction()
+          + " " + group.getFeedrank());
+    }
+  }
+
   private InputStream asStream(String value) {
     return new ByteArrayInputStream(value.getBytes(UTF_8));
   }
 
+  /** Returns a feed where every record has content larger than 100. */
+  private static FeedGenerator spillFeed() {
+    return new FeedGenerator(7L)
+        .setRecords(12)
+        .setContentFraction(1.0)
+        .setContentSize(200, 5000)
+        .setContentEncodingFractions(0.4, 0.3);
+  }
+
+  private static List<Content> getContent(Gsafeed feed) {
+    List<Content> contents = new ArrayList<Content>();
+    for (Group group : feed.getGroup()) {
+      for (Object element : group.getAclOrRecord()) {
+        if (element instanceof Record) {
+          contents.addAll(((Record) element).getContent());
+        }
+      }
+    }
+    return contents;
+  }
+
+  private static byte[] read(Content content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    InputStream in = content.openDecodedStream();
+    try {
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
   private String getFirstRecordContent(Gsafeed feed) {
     List<Group> groups = feed.getGroup();
     assertTrue("Missing groups", groups.size() != 0);
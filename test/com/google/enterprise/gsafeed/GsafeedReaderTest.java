@@ -0,0 +1,249 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Test GsafeedReader.
+ */
+public class GsafeedReaderTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static GsafeedReader reader(String xml) throws Exception {
+    return new GsafeedReader(new ByteArrayInputStream(xml.getBytes(UTF_8)));
+  }
+
+  private static final String FEED =
+      "<?xml version='1.0' encoding='utf-8'?>"
+      + "<!DOCTYPE gsafeed PUBLIC '-//Google//DTD GSA Feeds//EN' ''>"
+      + "<gsafeed>"
+      + "  <header>"
+      + "    <datasource>sample</datasource>"
+      + "    <feedtype>incremental</feedtype>"
+      + "  </header>"
+      + "  <group action='delete' feedrank='3'>"
+      + "    <acl url='http://example.com/share'"
+      + "        inheritance-type='and-both-permit'>"
+      + "      <principal scope='group' access='permit'"
+      + "          namespace='ns'>readers</principal>"
+      + "    </acl>"
+      + "  </group>"
+      + "  <group>"
+      + "    <record url='http://example.com/a' mimetype='text/plain'"
+      + "        last-modified='Tue, 6 Nov 2007 12:45:26 GMT'"
+      + "        lock='true' crawl-once='0' scoring='web' action='bogus'>"
+      + "      <acl inherit-from='http://example.com/share'>"
+      + "        <principal scope='user' access='deny'>bob</principal>"
+      + "      </acl>"
+      + "      <metadata overwrite-acls='false'>"
+      + "        <meta name='author' content='alice'/>"
+      + "        <meta name='year' content='2007'/>"
+      + "      </metadata>"
+      + "      <metadata>"
+      + "        <meta name='dGl0bGU=' content='aGVsbG8='"
+      + "            encoding='base64binary'/>"
+      + "      </metadata>"
+      + "      <content>hello &amp; <![CDATA[<world>]]></content>"
+      + "      <content encoding='base64binary'>aGVsbG8=</content>"
+      + "    </record>"
+      + "    <record url='http://example.com/b' mimetype='text/html'/>"
+      + "  </group>"
+      + "</gsafeed>";
+
+  @Test
+  public void testRead() throws Exception {
+    GsafeedReader reader = reader(FEED);
+
+    assertEquals(GsafeedReader.Event.HEADER, reader.next());
+    assertEquals("sample", reader.getHeader().getDatasource());
+    assertEquals("incremental", reader.getHeader().getFeedtype());
+
+    assertEquals(GsafeedReader.Event.START_GROUP, reader.next());
+    assertEquals(Group.Action.DELETE, reader.getGroup().getAction());
+    assertEquals("3", reader.getGroup().getFeedrank());
+    assertEquals(GsafeedReader.Event.ACL, reader.next());
+    MutableAcl acl = reader.getAcl();
+    assertEquals("http://example.com/share", acl.getUrl());
+    assertEquals(Acl.InheritanceType.AND_BOTH_PERMIT,
+        acl.getInheritanceType());
+    assertEquals(1, acl.size());
+    assertEquals(Principal.Scope.GROUP, acl.getScope(0));
+    assertEquals(Principal.Access.PERMIT, acl.getAccess(0));
+    assertEquals("ns", acl.getNamespace(0));
+    assertEquals("readers", acl.getName(0));
+    assertEquals(GsafeedReader.Event.END_GROUP, reader.next());
+
+    assertEquals(GsafeedReader.Event.START_GROUP, reader.next());
+    assertNull(reader.getGroup().getAction());
+    assertEquals(GsafeedReader.Event.RECORD, reader.next());
+    MutableRecord record = reader.getRecord();
+    assertEquals("http://example.com/a", record.getUrl());
+    assertEquals("text/plain", record.getMimetype());
+    assertEquals(new DateAdapter().unmarshal("Tue, 6 Nov 2007 12:45:26 GMT"),
+        record.getLastModified());
+    assertEquals(Boolean.TRUE, record.getLock());
+    assertEquals(Boolean.FALSE, record.getCrawlOnce());
+    assertNull(record.getCrawlImmediately());
+    assertEquals(Record.Scoring.WEB, record.getScoring());
+    assertNull(record.getAction());
+
+    assertEquals("http://example.com/share",
+        record.getAcl().getInheritFrom());
+    assertEquals("Default", record.getAcl().getNamespace(0));
+    assertEquals("bob", record.getAcl().getName(0));
+
+    assertEquals(2, record.getMetadataCount());
+    assertEquals(Boolean.FALSE, record.getOverwriteAcls(0));
+    assertNull(record.getOverwriteAcls(1));
+    assertEquals(3, record.getMetaCount());
+    assertEquals("author", record.getMetaName(0));
+    assertEquals("2007", record.getMetaContent(1));
+    assertEquals(0, record.getMetaMetadata(1));
+    assertEquals(1, record.getMetaMetadata(2));
+    assertEquals(Meta.Encoding.BASE64_BINARY, record.getMetaEncoding(2));
+
+    assertEquals(2, record.getContentCount());
+    assertEquals("hello & <world>", record.getContent(0).toString());
+    assertNull(record.getContentEncoding(0));
+    assertEquals("aGVsbG8=", record.getContent(1).toString());
+    assertEquals(Content.Encoding.BASE64_BINARY,
+        record.getContentEncoding(1));
+
+    assertEquals(GsafeedReader.Event.RECORD, reader.next());
+    assertSame(record, reader.getRecord());
+    assertEquals("http://example.com/b", record.getUrl());
+    assertNull(record.getAcl());
+    assertNull(record.getLastModified());
+    assertEquals(0, record.getMetaCount());
+    assertEquals(0, record.getContentCount());
+    assertEquals(GsafeedReader.Event.END_GROUP, reader.next());
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void testSameAsUnmarshalled() throws Exception {
+    GsafeedHelper helper = new GsafeedHelper();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new FeedGenerator(42)
+        .setRecords(200)
+        .setRecordsPerGroup(30)
+        .setMetas(0, 20)
+        .setAclFraction(0.5)
+        .setContentFraction(0.5)
+        .setContentEncodingFractions(0.3, 0.3)
+        .writeGsafeed(helper, out);
+    byte[] xml = out.toByteArray();
+    Gsafeed feed = helper.unmarshalWithoutDtd(new ByteArrayInputStream(xml));
+
+    GsafeedReader reader = new GsafeedReader(new ByteArrayInputStream(xml));
+    assertEquals(GsafeedReader.Event.HEADER, reader.next());
+    assertEquals(feed.getHeader().getDatasource(),
+        reader.getHeader().getDatasource());
+    int records = 0;
+    for (Group group : feed.getGroup()) {
+      assertEquals(GsafeedReader.Event.START_GROUP, reader.next());
+      assertEquals(group.getAction(), reader.getGroup().getAction());
+      for (Object element : group.getAclOrRecord()) {
+        if (element instanceof Record) {
+          Record expected = (Record) element;
+          assertEquals(GsafeedReader.Event.RECORD, reader.next());
+          Record actual = reader.getRecord().toRecord();
+          assertEquals(expected.getUrl(), actual.getUrl());
+          assertArrayEquals(expected.getUrl(),
+              Fingerprint.of(expected), Fingerprint.of(actual));
+          records++;
+        } else {
+          assertEquals(GsafeedReader.Event.ACL, reader.next());
+          assertArrayEquals(Fingerprint.of((Acl) element),
+              Fingerprint.of(reader.getAcl().toAcl()));
+        }
+      }
+      assertEquals(GsafeedReader.Event.END_GROUP, reader.next());
+    }
+    assertNull(reader.next());
+    assertEquals(200, records);
+  }
+
+  @Test
+  public void testUnknownElementsSkipped() throws Exception {
+    GsafeedReader reader = reader("<gsafeed><extra><group/></extra>"
+        + "<group><extra><record url='x'/></extra>"
+        + "<record url='y'><extra><content>no</content></extra>"
+        + "<content>yes<b>bold</b></content></record></group></gsafeed>");
+    assertEquals(GsafeedReader.Event.START_GROUP, reader.next());
+    assertEquals(GsafeedReader.Event.RECORD, reader.next());
+    MutableRecord record = reader.getRecord();
+    assertEquals("y", record.getUrl());
+    assertEquals(1, record.getContentCount());
+    assertEquals("yes", record.getContent(0).toString());
+    assertEquals(GsafeedReader.Event.END_GROUP, reader.next());
+    assertNull(reader.next());
+  }
+
+  @Test
+  public void testToRecordKeepsValues() throws Exception {
+    GsafeedReader reader = reader(FEED);
+    Record record = null;
+    GsafeedReader.Event event;
+    while ((event = reader.next()) != null) {
+      if (event == GsafeedReader.Event.RECORD && record == null) {
+        record = reader.getRecord().toRecord();
+      }
+    }
+    assertEquals("http://example.com/a", record.getUrl());
+    assertTrue(record.getLastModified() instanceof Date);
+    assertEquals(2, record.getMetadata().size());
+    assertEquals(2, record.getMetadata().get(0).getMeta().size());
+    assertEquals("hello & <world>", record.getContent().get(0).getvalue());
+    assertEquals("bob", record.getAcl().getPrincipal().get(0).getvalue());
+  }
+
+  @Test
+  public void testIndexOutOfBounds() throws Exception {
+    GsafeedReader reader = reader(FEED);
+    while (reader.next() != GsafeedReader.Event.RECORD) {
+      // Skip to the first record.
+    }
+    thrown.expect(IndexOutOfBoundsException.class);
+    reader.getRecord().getMetaName(3);
+  }
+
+  @Test
+  public void testMalformed() throws Exception {
+    GsafeedReader reader = reader("<gsafeed><group><record url='x'>");
+    assertEquals(GsafeedReader.Event.START_GROUP, reader.next());
+    thrown.expect(XMLStreamException.class);
+    reader.next();
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+
+/**
+ * Test GsafeedWriter.
+ */
+public class GsafeedWriterTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private GsafeedHelper helper;
+  private Header header;
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new GsafeedHelper();
+    header = new Header().setDatasource("sample").setFeedtype("full");
+  }
+
+  @Test
+  public void testExampleFeed() throws Exception {
+    Gsafeed feed = helper.unmarshalWithDtd(
+        GsafeedWriterTest.class.getResource("/full.xml"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GsafeedWriter writer = new GsafeedWriter(helper, out, feed.getHeader());
+    for (Group group : feed.getGroup()) {
+      writer.startGroup(new Group()
+          .setAction(group.getAction())
+          .setFeedrank(group.getFeedrank())
+          .setPagerank(group.getPagerank()));
+      for (Object aclOrRecord : group.getAclOrRecord()) {
+        writer.write((Record) aclOrRecord);
+      }
+      writer.endGroup();
+    }
+    writer.finish();
+    assertEquals(marshal(feed), out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMixedGroups() throws Exception {
+    Acl acl = new Acl()
+        .setUrl("http://example.com/\"folder\"")
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES);
+    acl.getPrincipal().add(new Principal()
+        .setScope(Principal.Scope.USER)
+        .setAccess(Principal.Access.PERMIT)
+        .setvalue("alice"));
+    Record withContent = new Record()
+        .setUrl("http://example.com/doc>1")
+        .setMimetype("text/plain")
+        .setLastModified(new Date(1234567890000L));
+    withContent.getContent().add(new Content().setvalue("\n  text <b>\n  "));
+    withContent.getContent().add(new Content().setvalue(""));
+    Record withMetadata = new Record()
+        .setUrl("http://example.com/doc2")
+        .setMimetype("text/html")
+        .setAcl(acl);
+    Metadata metadata = new Metadata();
+    metadata.getMeta().add(new Meta().setName("author").setContent("bob"));
+    withMetadata.getMetadata().add(metadata);
+    Group full = new Group().setFeedrank("5");
+    full.getAclOrRecord().add(withMetadata);
+
+    Gsafeed feed = new Gsafeed().setHeader(header);
+    Group first = new Group().setAction(Group.Action.DELETE);
+    first.getAclOrRecord().add(acl);
+    first.getAclOrRecord().add(withContent);
+    feed.getGroup().add(first);
+    feed.getGroup().add(new Group().setPagerank("3"));
+    feed.getGroup().add(full);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GsafeedWriter writer = new GsafeedWriter(helper, out, header);
+    writer.startGroup(new Group().setAction(Group.Action.DELETE));
+    writer.write(acl);
+    writer.write(withContent);
+    writer.endGroup();
+    writer.startGroup(new Group().setPagerank("3"));
+    writer.endGroup();
+    writer.write(full);
+    writer.finish();
+    assertEquals(marshal(feed), out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testStartGroupWithRecords() throws Exception {
+    Group group = new Group();
+    group.getAclOrRecord().add(
+        new Record().setUrl("http://example.com/1").setMimetype("text/plain"));
+    Gsafeed feed = new Gsafeed().setHeader(header);
+    feed.getGroup().add(group);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GsafeedWriter writer = new GsafeedWriter(helper, out, header);
+    writer.startGroup(group);
+    writer.finish();
+    assertEquals(marshal(feed), out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testNoGroups() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new GsafeedWriter(helper, out, header).finish();
+    assertEquals(marshal(new Gsafeed().setHeader(header)),
+        out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testNoHeader() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new GsafeedWriter(helper, out, null).finish();
+    assertEquals(marshal(new Gsafeed()), out.toString("UTF-8"));
+  }
+
+  @Test
+  public void testRecordWithoutGroup() throws Exception {
+    GsafeedWriter writer =
+        new GsafeedWriter(helper, new ByteArrayOutputStream(), header);
+    thrown.expect(IllegalStateException.class);
+    writer.write(new Record());
+  }
+
+  @Test
+  public void testNestedGroup() throws Exception {
+    GsafeedWriter writer =
+        new GsafeedWriter(helper, new ByteArrayOutputStream(), header);
+    writer.startGroup(new Group());
+    thrown.expect(IllegalStateException.class);
+    writer.startGroup(new Group());
+  }
+
+  @Test
+  public void testWriteAfterFinish() throws Exception {
+    GsafeedWriter writer =
+        new GsafeedWriter(helper, new ByteArrayOutputStream(), header);
+    writer.finish();
+    thrown.expect(IllegalStateException.class);
+    writer.write(new Group());
+  }
+
+  private String marshal(Gsafeed feed) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    helper.marshal(feed, out);
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,223 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test HttpFeedTransport.
+ */
+public class HttpFeedTransportTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Map<String, String> HEADERS =
+      Collections.singletonMap("Content-Type", "text/plain");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private ExecutorService serverExecutor;
+  private HttpServer server;
+  private CountingHandler handler;
+  private URL url;
+
+  /** Records the client ports used, and replies with the request body. */
+  private static class CountingHandler implements HttpHandler {
+    final Set<Integer> clientPorts = new HashSet<Integer>();
+    final List<String> transferEncodings = new ArrayList<String>();
+    int responseCode = 200;
+    long delay;
+    int inProgress;
+    int maxInProgress;
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      synchronized (this) {
+        clientPorts.add(ex.getRemoteAddress().getPort());
+        transferEncodings.add(
+            ex.getRequestHeaders().getFirst("Transfer-Encoding"));
+        inProgress++;
+        maxInProgress = Math.max(maxInProgress, inProgress);
+      }
+      try {
+        byte[] body = IOHelper.readInputStreamToByteArray(ex.getRequestBody());
+        Thread.sleep(delay);
+        ex.sendResponseHeaders(responseCode, body.length);
+        ex.getResponseBody().write(body);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        synchronized (this) {
+          inProgress--;
+        }
+        ex.close();
+      }
+    }
+  }
+
+  private static FeedTransport.RequestBody body(final String text) {
+    return new FeedTransport.RequestBody() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        out.write(text.getBytes(UTF_8));
+      }
+    };
+  }
+
+  private static String post(FeedTransport transport, URL url, String text)
+      throws IOException {
+    FeedTransport.Response response = transport.post(url, HEADERS,
+        text.getBytes(UTF_8).length, body(text));
+    return new String(response.getBody(), UTF_8);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    handler = new CountingHandler();
+    server.createContext("/xmlfeed", handler);
+    server.start();
+    url = new URL("http://localhost:" + server.getAddress().getPort()
+        + "/xmlfeed");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testKeepAlive() throws Exception {
+    HttpFeedTransport transport = new HttpFeedTransport();
+    for (int i = 0; i < 5; i++) {
+      assertEquals("request " + i, post(transport, url, "request " + i));
+    }
+    assertEquals(1, handler.clientPorts.size());
+  }
+
+  @Test
+  public void testKeepAliveAfterErrorReply() throws Exception {
+    HttpFeedTransport transport = new HttpFeedTransport();
+    handler.responseCode = 500;
+    FeedTransport.Response response =
+        transport.post(url, HEADERS, 5, body("error"));
+    assertEquals(500, response.getResponseCode());
+    assertEquals("error", new String(response.getBody(), UTF_8));
+    handler.responseCode = 200;
+    assertEquals("ok", post(transport, url, "ok"));
+    assertEquals(1, handler.clientPorts.size());
+  }
+
+  @Test
+  public void testNoKeepAlive() throws Exception {
+    HttpFeedTransport transport = new HttpFeedTransport();
+    transport.setKeepAlive(false);
+    for (int i = 0; i < 5; i++) {
+      post(transport, url, "request " + i);
+    }
+    assertEquals(5, handler.clientPorts.size());
+  }
+
+  @Test
+  public void testMaxConnections() throws Exception {
+    final HttpFeedTransport transport = new HttpFeedTransport(2);
+    handler.delay = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(6);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 6; i++) {
+        final String text = "request " + i;
+        results.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+              return post(transport, url, text);
+            }
+          }));
+      }
+      for (int i = 0; i < 6; i++) {
+        assertEquals("request " + i, results.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(2, handler.maxInProgress);
+  }
+
+  @Test
+  public void testUnknownLength() throws Exception {
+    HttpFeedTransport transport = new HttpFeedTransport();
+    FeedTransport.Response response =
+        transport.post(url, HEADERS, -1, body("chunked"));
+    assertEquals("chunked", new String(response.getBody(), UTF_8));
+    assertEquals("chunked", handler.transferEncodings.get(0));
+  }
+
+  @Test
+  public void testKnownLength() throws Exception {
+    post(new HttpFeedTransport(), url, "fixed");
+    assertNull(handler.transferEncodings.get(0));
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+    HttpFeedTransport transport = new HttpFeedTransport();
+    transport.setReadTimeout(50);
+    handler.delay = 1000;
+    thrown.expect(SocketTimeoutException.class);
+    post(transport, url, "slow");
+  }
+
+  @Test
+  public void testInvalidMaxConnections() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new HttpFeedTransport(0);
+  }
+
+  @Test
+  public void testInvalidTimeout() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new HttpFeedTransport().setConnectTimeout(-1);
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Test IncrementalFeedBuilder.
+ */
+public class IncrementalFeedBuilderTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private GsafeedHelper helper;
+  private RecordStateIndex index;
+  private File feedFile;
+  private HttpServer server;
+  private GsaFeedFileSender sender;
+
+  @BeforeClass
+  public static void setUpClass() {
+    Logger.getLogger(GsaFeedFileSender.class.getName()).setLevel(Level.SEVERE);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new GsafeedHelper();
+    index = new RecordStateIndex(testFolder.newFile("state"));
+    feedFile = new File(testFolder.getRoot(), "feed.xml");
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.start();
+    int port = server.getAddress().getPort();
+    sender = new GsaFeedFileSender(
+        new URL("http://localhost:" + port + "/xmlfeed"),
+        new URL("http://localhost:" + port + "/xmlgroups"), UTF_8);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop(0);
+    index.close();
+  }
+
+  private static Header header() {
+    return new Header().setDatasource("sample").setFeedtype("incremental");
+  }
+
+  private static Record record(String url, String content) {
+    Record record = new Record()
+        .setUrl(url)
+        .setMimetype("text/plain")
+        .setLastModified(new Date(1000));
+    record.getContent().add(new Content().setvalue(content));
+    return record;
+  }
+
+  private IncrementalFeedBuilder newBuilder() throws Exception {
+    return new IncrementalFeedBuilder(index, helper, header(), feedFile);
+  }
+
+  /** Returns the records in the feed file. */
+  private List<Object> sentRecords() throws Exception {
+    return helper.unmarshalWithDtd(feedFile.toURI().toURL())
+        .getGroup().get(0).getAclOrRecord();
+  }
+
+  private void accept() {
+    server.createContext("/xmlfeed",
+        new MockHttpHandler(200, "Success".getBytes(UTF_8)));
+  }
+
+  @Test
+  public void testFullFeed() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new IncrementalFeedBuilder(index, helper,
+        header().setFeedtype("full"), feedFile);
+  }
+
+  @Test
+  public void testSkipsUnchanged() throws Exception {
+    accept();
+    IncrementalFeedBuilder builder = newBuilder();
+    assertTrue(builder.add(record("http://example.com/a", "a")));
+    assertTrue(builder.add(record("http://example.com/b", "b")));
+    // Repeated in the same feed.
+    assertFalse(builder.add(record("http://example.com/a", "a")));
+    builder.send(sender, false);
+    assertEquals(2, builder.getWrittenCount());
+    assertEquals(1, builder.getSkippedCount());
+    assertEquals(2, index.getSize());
+
+    builder = newBuilder();
+    assertFalse(builder.add(record("http://example.com/a", "a")));
+    assertTrue(builder.add(record("http://example.com/b", "changed")));
+    assertTrue(builder.add(record("http://example.com/c", "c")));
+    assertTrue(builder.add(new Record().setUrl("http://example.com/a")
+        .setMimetype("text/plain").setAction(Record.Action.DELETE)));
+    assertFalse(builder.add(new Record().setUrl("http://example.com/d")
+        .setMimetype("text/plain").setAction(Record.Action.DELETE)));
+    builder.send(sender, true);
+    assertEquals(3, sentRecords().size());
+    assertFalse(index.contains("http://example.com/a"));
+    assertTrue(index.isUnchanged(record("http://example.com/b", "changed")));
+    assertTrue(index.contains("http://example.com/c"));
+
+    thrown.expect(IllegalStateException.class);
+    builder.send(sender, false);
+  }
+
+  @Test
+  public void testSkipsReencoded() throws Exception {
+    accept();
+    String text = FingerprintTest.largeText();
+    IncrementalFeedBuilder builder = newBuilder();
+    assertTrue(builder.add(
+        FingerprintTest.recordWith(FingerprintTest.text(text))));
+    builder.send(sender, false);
+
+    builder = newBuilder();
+    assertFalse(builder.add(FingerprintTest.roundTrip(
+        FingerprintTest.recordWith(FingerprintTest.base64Compressed(text)),
+        true, testFolder.newFolder())));
+    assertEquals(1, builder.getSkippedCount());
+  }
+
+  @Test
+  public void testIndexUnchangedIfSendFails() throws Exception {
+    server.createContext("/xmlfeed", new MockHttpHandler(200,
+        "Error - Unauthorized Request".getBytes(UTF_8)));
+    IncrementalFeedBuilder builder = newBuilder();
+    builder.add(record("http://example.com/a", "a"));
+    try {
+      builder.send(sender, false);
+      fail();
+    } catch (IllegalStateException expected) {
+      // The GSA rejected the feed.
+    }
+    assertEquals(0, index.getSize());
+
+    server.removeContext("/xmlfeed");
+    accept();
+    builder.send(sender, false);
+    assertTrue(index.isUnchanged(record("http://example.com/a", "a")));
+  }
+
+  @Test
+  public void testAddAfterFinish() throws Exception {
+    IncrementalFeedBuilder builder = newBuilder();
+    builder.finish();
+    assertTrue(sentRecords().isEmpty());
+    thrown.expect(IllegalStateException.class);
+    builder.add(record("http://example.com/a", "a"));
+  }
+}
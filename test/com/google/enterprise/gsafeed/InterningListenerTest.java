@@ -0,0 +1,151 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Test interning strings while unmarshalling.
+ */
+public class InterningListenerTest {
+  private static final String GSAFEED =
+      "<gsafeed><header><datasource>test</datasource>"
+      + "<feedtype>incremental</feedtype></header><group>"
+      + "<acl url='http://example.com/1' inherit-from='http://example.com/'>"
+      + "<principal scope='user' access='permit' namespace='ns'>alice"
+      + "</principal></acl>"
+      + "<acl url='http://example.com/2' inherit-from='http://example.com/'>"
+      + "<principal scope='user' access='permit' namespace='ns'>alice"
+      + "</principal></acl>"
+      + "<record url='http://example.com/1' mimetype='text/plain'>"
+      + "<metadata><meta name='author' content='a'/></metadata></record>"
+      + "<record url='http://example.com/2' mimetype='text/plain'>"
+      + "<metadata><meta name='author' content='b'/></metadata></record>"
+      + "</group></gsafeed>";
+
+  private static Gsafeed unmarshal(GsafeedHelper helper) throws Exception {
+    return helper.unmarshalWithoutDtd(GSAFEED);
+  }
+
+  @Test
+  public void testGsafeed() throws Exception {
+    GsafeedHelper helper = new GsafeedHelper();
+    StringInterner interner = new StringInterner();
+    helper.setStringInterner(interner);
+    List<Object> elements = unmarshal(helper).getGroup().get(0)
+        .getAclOrRecord();
+    Acl acl1 = (Acl) elements.get(0);
+    Acl acl2 = (Acl) elements.get(1);
+    Record record1 = (Record) elements.get(2);
+    Record record2 = (Record) elements.get(3);
+    assertSame(acl1.getInheritFrom(), acl2.getInheritFrom());
+    assertSame(acl1.getPrincipal().get(0).getvalue(),
+        acl2.getPrincipal().get(0).getvalue());
+    assertSame(acl1.getPrincipal().get(0).getNamespace(),
+        acl2.getPrincipal().get(0).getNamespace());
+    assertSame(record1.getMimetype(), record2.getMimetype());
+    assertSame(
+        record1.getMetadata().get(0).getMeta().get(0).getName(),
+        record2.getMetadata().get(0).getMeta().get(0).getName());
+    assertEquals(10, interner.getLookups());
+    assertEquals(5, interner.getHits());
+  }
+
+  @Test
+  public void testGsafeedWithoutInterner() throws Exception {
+    List<Object> elements = unmarshal(new GsafeedHelper()).getGroup().get(0)
+        .getAclOrRecord();
+    assertNotSame(((Record) elements.get(2)).getMimetype(),
+        ((Record) elements.get(3)).getMimetype());
+  }
+
+  @Test
+  public void testGsafeedWithSpilling() throws Exception {
+    GsafeedHelper helper = new GsafeedHelper();
+    StringInterner interner = new StringInterner();
+    helper.setStringInterner(interner);
+    helper.setContentSpillThreshold(1);
+    Gsafeed feed = helper.unmarshalWithoutDtd(
+        "<gsafeed><header><datasource>test</datasource>"
+        + "<feedtype>incremental</feedtype></header><group>"
+        + "<record url='http://example.com/1' mimetype='text/plain'>"
+        + "<content>hello</content></record>"
+        + "<record url='http://example.com/2' mimetype='text/plain'/>"
+        + "</group></gsafeed>");
+    List<Object> elements = feed.getGroup().get(0).getAclOrRecord();
+    Record record1 = (Record) elements.get(0);
+    Record record2 = (Record) elements.get(1);
+    assertSame(record1.getMimetype(), record2.getMimetype());
+    Content content = record1.getContent().get(0);
+    assertTrue(content.getSource() != null);
+    content.deleteSpillFile();
+  }
+
+  @Test
+  public void testXmlgroups() throws Exception {
+    Xmlgroups groups = new FeedGenerator(0)
+        .setGroups(50)
+        .setUsers(10)
+        .setMembers(5, 5)
+        .createXmlgroups();
+    XmlgroupsHelper helper = new XmlgroupsHelper();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    helper.marshal(groups, out);
+    StringInterner interner = new StringInterner();
+    helper.setStringInterner(interner);
+    Xmlgroups feed = helper.unmarshalWithoutDtd(
+        new ByteArrayInputStream(out.toByteArray()));
+
+    com.google.enterprise.gsafeed.groups.Principal first = null;
+    for (Membership membership : feed.getMembership()) {
+      for (com.google.enterprise.gsafeed.groups.Principal member
+          : membership.getMembers().getPrincipal()) {
+        if (first == null) {
+          first = member;
+        } else if (first.getvalue().equals(member.getvalue())) {
+          assertSame(first.getvalue(), member.getvalue());
+        }
+      }
+    }
+    assertTrue(interner.getHitRate() > 0.5);
+  }
+
+  @Test
+  public void testXmlgroupsWithoutNamespace() throws Exception {
+    String xml = "<xmlgroups><membership>"
+        + "<principal scope='GROUP'>eng</principal>"
+        + "<members><principal scope='USER'>alice</principal></members>"
+        + "</membership></xmlgroups>";
+    XmlgroupsHelper helper = new XmlgroupsHelper();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    helper.marshal(helper.unmarshalWithoutDtd(xml), expected);
+    helper.setStringInterner(new StringInterner());
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    helper.marshal(helper.unmarshalWithoutDtd(xml), actual);
+    assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+  }
+}
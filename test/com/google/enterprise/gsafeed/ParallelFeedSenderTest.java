@@ -0,0 +1,348 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test ParallelFeedSender.
+ */
+public class ParallelFeedSenderTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Pattern DATASOURCE =
+      Pattern.compile("name=\"(?:datasource|groupsource)\"\r\n"
+          + "Content-Type: text/plain\r\n\r\n([^\r]*)");
+  private static final Pattern SEQUENCE = Pattern.compile("<seq n=\"(\\d+)\"");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private ExecutorService serverExecutor;
+  private HttpServer server;
+  private SlowHandler handler;
+  private GsaFeedFileSender sender;
+
+  /**
+   * Records the sources and sequence numbers of the uploads, and the
+   * largest number of uploads in progress at once.
+   */
+  private static class SlowHandler implements HttpHandler {
+    final List<String> uploads = new ArrayList<String>();
+    final Map<String, Integer> inProgressBySource =
+        new HashMap<String, Integer>();
+    int inProgress;
+    int maxInProgress;
+    boolean overlappingSource;
+    String failSource;
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      String message = new String(
+          IOHelper.readInputStreamToByteArray(ex.getRequestBody()), UTF_8);
+      Matcher source = DATASOURCE.matcher(message);
+      source.find();
+      Matcher sequence = SEQUENCE.matcher(message);
+      String number = sequence.find() ? sequence.group(1) : "-1";
+      String key = ex.getRequestURI().getPath() + "/" + source.group(1);
+      synchronized (this) {
+        inProgress++;
+        maxInProgress = Math.max(maxInProgress, inProgress);
+        Integer count = inProgressBySource.get(key);
+        if (count != null && count > 0) {
+          overlappingSource = true;
+        }
+        inProgressBySource.put(key, count == null ? 1 : count + 1);
+      }
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        inProgress--;
+        inProgressBySource.put(key, inProgressBySource.get(key) - 1);
+        uploads.add(key + " " + number);
+      }
+      byte[] response = (source.group(1).equals(failSource)
+          ? "Internal Error" : "Success")
+          .getBytes(UTF_8);
+      ex.sendResponseHeaders(200, response.length);
+      ex.getResponseBody().write(response);
+      ex.close();
+    }
+
+    synchronized List<Integer> getSequence(String source) {
+      List<Integer> sequence = new ArrayList<Integer>();
+      for (String upload : uploads) {
+        String[] parts = upload.split(" ");
+        if (parts[0].equals(source)) {
+          sequence.add(Integer.valueOf(parts[1]));
+        }
+      }
+      return sequence;
+    }
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+    // Tests trigger logs; remove those messages from test output.
+    Logger.getLogger(GsaFeedFileSender.class.getName()).setLevel(Level.SEVERE);
+    Logger.getLogger(ParallelFeedSender.class.getName())
+        .setLevel(Level.SEVERE);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    int port = server.getAddress().getPort();
+    handler = new SlowHandler();
+    server.createContext("/xmlfeed", handler);
+    server.createContext("/xmlgroups", handler);
+    server.start();
+    sender = new GsaFeedFileSender(
+        new URL("http://localhost:" + port + "/xmlfeed"),
+        new URL("http://localhost:" + port + "/xmlgroups"), UTF_8);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  private static String xml(int sequence) {
+    return "<seq n=\"" + sequence + "\"/>";
+  }
+
+  @Test
+  public void testAllSent() throws Exception {
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 4);
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 12; i++) {
+      results.add(parallel.sendGsaFeed("source" + (i % 5), "incremental",
+          xml(i), false));
+    }
+    parallel.shutdown();
+    assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+    for (Future<Void> result : results) {
+      assertTrue(result.isDone());
+      result.get();
+    }
+    assertEquals(12, handler.uploads.size());
+  }
+
+  @Test
+  public void testMaxInFlight() throws Exception {
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 3);
+    for (int i = 0; i < 12; i++) {
+      parallel.sendGsaFeed("source" + i, "incremental", xml(i), false);
+    }
+    parallel.shutdown();
+    assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(12, handler.uploads.size());
+    assertEquals(3, handler.maxInProgress);
+  }
+
+  @Test
+  public void testOrderPerSource() throws Exception {
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 4);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 10; i++) {
+      parallel.sendGsaFeed("a", "incremental", xml(i), false);
+      parallel.sendGsaFeed("b", "incremental", xml(i), false);
+      parallel.sendGroups("a", "incremental", xml(i), false);
+      expected.add(i);
+    }
+    parallel.shutdown();
+    assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(30, handler.uploads.size());
+    assertTrue(handler.maxInProgress > 1);
+    assertTrue(!handler.overlappingSource);
+    assertEquals(expected, handler.getSequence("/xmlfeed/a"));
+    assertEquals(expected, handler.getSequence("/xmlfeed/b"));
+    assertEquals(expected, handler.getSequence("/xmlgroups/a"));
+  }
+
+  @Test
+  public void testOneSourceIsSerial() throws Exception {
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 4);
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 8; i++) {
+      parallel.sendGsaFeed("a", "incremental", xml(i), false);
+      expected.add(i);
+    }
+    parallel.shutdown();
+    assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, handler.maxInProgress);
+    assertEquals(expected, handler.getSequence("/xmlfeed/a"));
+  }
+
+  @Test
+  public void testFailureReportedPerUpload() throws Exception {
+    handler.failSource = "bad";
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 2);
+    Future<Void> good = parallel.sendGsaFeed("good", "full", xml(0), false);
+    Future<Void> bad = parallel.sendGsaFeed("bad", "full", xml(1), false);
+    Future<Void> later = parallel.sendGsaFeed("bad", "full", xml(2), false);
+    Future<Void> invalid =
+        parallel.sendGsaFeed("bad#source", "full", xml(3), false);
+    parallel.shutdown();
+    assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+
+    good.get();
+    assertFailure(IllegalStateException.class, bad);
+    assertFailure(IllegalStateException.class, later);
+    assertFailure(IllegalArgumentException.class, invalid);
+    assertEquals(3, handler.uploads.size());
+  }
+
+  private static void assertFailure(Class<? extends Exception> expected,
+      Future<Void> result) throws InterruptedException {
+    try {
+      result.get();
+      fail("Expected " + expected.getName());
+    } catch (ExecutionException e) {
+      assertEquals(expected, e.getCause().getClass());
+    }
+  }
+
+  @Test
+  public void testGsafeed() throws Exception {
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 2);
+    Gsafeed feed = new Gsafeed().setHeader(
+        new Header().setDatasource("sample").setFeedtype("full"));
+    feed.getGroup().add(new Group());
+    parallel.sendGsaFeed(feed, false).get();
+    parallel.shutdown();
+    assertEquals(handler.uploads.toString(), 1, handler.uploads.size());
+    assertEquals("/xmlfeed/sample -1", handler.uploads.get(0));
+  }
+
+  @Test
+  public void testSharedExecutor() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      ParallelFeedSender parallel =
+          new ParallelFeedSender(sender, executor, 2);
+      parallel.sendGsaFeed("a", "full", xml(0), false);
+      parallel.sendGsaFeed("b", "full", xml(1), false);
+      parallel.shutdown();
+      assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+      assertEquals(2, handler.uploads.size());
+      // The executor was not shut down.
+      executor.submit(new Runnable() {
+          @Override
+          public void run() {
+          }
+        }).get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** Holds the tasks it accepts, until it starts rejecting them. */
+  private static class SaturatedExecutor implements Executor {
+    final List<Runnable> accepted = new ArrayList<Runnable>();
+    boolean rejecting;
+
+    @Override
+    public void execute(Runnable runnable) {
+      if (rejecting) {
+        throw new RejectedExecutionException("saturated");
+      }
+      accepted.add(runnable);
+    }
+  }
+
+  @Test
+  public void testRejectedUploadsFail() throws Exception {
+    SaturatedExecutor executor = new SaturatedExecutor();
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, executor, 1);
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 20000; i++) {
+      results.add(parallel.sendGsaFeed("a", "full", xml(i), false));
+    }
+    assertEquals(1, executor.accepted.size());
+
+    // Finishing the first upload rejects all of the queued ones.
+    executor.rejecting = true;
+    executor.accepted.get(0).run();
+    parallel.shutdown();
+    assertTrue(parallel.awaitTermination(10, TimeUnit.SECONDS));
+    results.get(0).get();
+    for (Future<Void> result : results.subList(1, results.size())) {
+      try {
+        result.get();
+        fail("Expected an ExecutionException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+
+    // An upload rejected when it is queued fails the same way.
+    parallel = new ParallelFeedSender(sender, executor, 1);
+    thrown.expect(ExecutionException.class);
+    parallel.sendGsaFeed("a", "full", xml(0), false).get();
+  }
+
+  @Test
+  public void testSendAfterShutdown() throws Exception {
+    ParallelFeedSender parallel = new ParallelFeedSender(sender, 2);
+    parallel.shutdown();
+    thrown.expect(RejectedExecutionException.class);
+    parallel.sendGsaFeed("a", "full", xml(0), false);
+  }
+
+  @Test
+  public void testInvalidMaxInFlight() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new ParallelFeedSender(sender, Executors.newCachedThreadPool(), 0);
+  }
+}
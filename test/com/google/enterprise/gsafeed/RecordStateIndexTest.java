@@ -0,0 +1,254 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test RecordStateIndex.
+ */
+public class RecordStateIndexTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = new File(testFolder.getRoot(), "state");
+  }
+
+  private static Record record(String url, String content) {
+    Record record = new Record()
+        .setUrl(url)
+        .setMimetype("text/plain")
+        .setLastModified(new Date(1000));
+    record.getContent().add(new Content().setvalue(content));
+    return record;
+  }
+
+  @Test
+  public void testNegativeExpectedRecords() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new RecordStateIndex(file, -1);
+  }
+
+  @Test
+  public void testNotAnIndex() throws Exception {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[100]);
+    out.close();
+    thrown.expect(IOException.class);
+    new RecordStateIndex(file);
+  }
+
+  @Test
+  public void testPutAndRemove() throws Exception {
+    RecordStateIndex index = new RecordStateIndex(file);
+    try {
+      Record record = record("http://example.com/a", "a");
+      assertFalse(index.contains("http://example.com/a"));
+      assertFalse(index.isUnchanged(record));
+      index.put(record);
+      assertEquals(1, index.getSize());
+      assertTrue(index.isUnchanged(record));
+      assertEquals(new Date(1000),
+          index.getLastModified("http://example.com/a"));
+      assertFalse(index.isUnchanged(record("http://example.com/a", "b")));
+      assertFalse(index.isUnchanged(record("http://example.com/b", "a")));
+
+      index.put(record.setLastModified(null));
+      assertEquals(1, index.getSize());
+      assertNull(index.getLastModified("http://example.com/a"));
+      assertTrue(index.remove("http://example.com/a"));
+      assertFalse(index.remove("http://example.com/a"));
+      assertEquals(0, index.getSize());
+    } finally {
+      index.close();
+    }
+  }
+
+  @Test
+  public void testUnchangedWhenReencodedOrSpilled() throws Exception {
+    String text = FingerprintTest.largeText();
+    RecordStateIndex index = new RecordStateIndex(file);
+    try {
+      index.put(FingerprintTest.recordWith(FingerprintTest.text(text)));
+      File directory = testFolder.newFolder();
+      for (Content content : new Content[] {
+          FingerprintTest.text(text),
+          FingerprintTest.base64Binary(text),
+          FingerprintTest.base64Compressed(text) }) {
+        Record record = FingerprintTest.recordWith(content);
+        assertTrue(index.isUnchanged(record));
+        assertTrue(index.isUnchanged(
+            FingerprintTest.roundTrip(record, true, directory)));
+      }
+      assertFalse(index.isUnchanged(FingerprintTest.recordWith(
+          FingerprintTest.text(text + "!"))));
+    } finally {
+      index.close();
+    }
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    RecordStateIndex index = new RecordStateIndex(file);
+    index.put(record("http://example.com/a", "a"));
+    index.put(record("http://example.com/b", "b"));
+    index.close();
+
+    index = new RecordStateIndex(file);
+    try {
+      assertEquals(2, index.getSize());
+      assertTrue(index.isUnchanged(record("http://example.com/a", "a")));
+      assertTrue(index.isUnchanged(record("http://example.com/b", "b")));
+    } finally {
+      index.close();
+    }
+  }
+
+  @Test
+  public void testSizeCountedIfNotClosed() throws Exception {
+    RecordStateIndex index = new RecordStateIndex(file);
+    index.flush();
+    index.put(record("http://example.com/a", "a"));
+    // Write the slot but leave the header marked as being changed,
+    // as if the process had stopped.
+    index.put(record("http://example.com/b", "b"));
+    RandomAccessFile raf =
+        new RandomAccessFile(new File(file.getPath() + ".1"), "r");
+    try {
+      raf.seek(12);
+      assertEquals(0, raf.readInt());
+    } finally {
+      raf.close();
+    }
+
+    RecordStateIndex reopened = new RecordStateIndex(file);
+    try {
+      assertEquals(2, reopened.getSize());
+    } finally {
+      reopened.close();
+      index.close();
+    }
+  }
+
+  @Test
+  public void testClosed() throws Exception {
+    RecordStateIndex index = new RecordStateIndex(file);
+    index.close();
+    index.close();
+    thrown.expect(IllegalStateException.class);
+    index.contains("http://example.com/a");
+  }
+
+  @Test
+  public void testRandomOperations() throws Exception {
+    // Small mappings, so that runs cross them and wrap around.
+    RecordStateIndex index = new RecordStateIndex(file, 0, 3);
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    Random random = new Random(5);
+    byte[] fingerprint = new byte[Fingerprint.LENGTH];
+    try {
+      for (int i = 0; i < 20000; i++) {
+        String url = "http://example.com/" + random.nextInt(3000);
+        int value = random.nextInt(1000);
+        if (random.nextInt(3) == 0) {
+          assertEquals(url, expected.remove(url) != null, index.remove(url));
+        } else {
+          fingerprint[0] = (byte) value;
+          fingerprint[1] = (byte) (value >> 8);
+          index.put(url, fingerprint, new Date(value));
+          expected.put(url, value);
+        }
+        if (i % 5000 == 0) {
+          index.close();
+          index = new RecordStateIndex(file, 0, 3);
+        }
+      }
+      assertEquals(expected.size(), index.getSize());
+      for (int i = 0; i < 3000; i++) {
+        String url = "http://example.com/" + i;
+        Integer value = expected.get(url);
+        assertEquals(url, value != null, index.contains(url));
+        if (value != null) {
+          assertEquals(new Date(value), index.getLastModified(url));
+          fingerprint[0] = (byte) (int) value;
+          fingerprint[1] = (byte) (value >> 8);
+          assertTrue(url, index.isUnchanged(url, fingerprint));
+        }
+      }
+    } finally {
+      index.close();
+    }
+    assertEquals(2, testFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void testGrowKeepsOneGeneration() throws Exception {
+    RecordStateIndex index = new RecordStateIndex(file);
+    try {
+      for (int i = 0; i < 100; i++) {
+        index.put(record("http://example.com/" + i, "x"));
+      }
+    } finally {
+      index.close();
+    }
+    File table = new File(file.getPath() + ".5");
+    assertTrue(table.exists());
+    assertEquals(2, testFolder.getRoot().list().length);
+
+    // As if the old table could not be deleted while it was mapped,
+    // and a newer one was left behind while the table was doubled.
+    File old = new File(file.getPath() + ".4");
+    File newer = new File(file.getPath() + ".6");
+    FileOutputStream out = new FileOutputStream(old);
+    out.write(new byte[100]);
+    out.close();
+    out = new FileOutputStream(newer);
+    out.close();
+    index = new RecordStateIndex(file);
+    try {
+      assertFalse(old.exists());
+      assertFalse(newer.exists());
+      assertEquals(100, index.getSize());
+      assertTrue(index.isUnchanged(record("http://example.com/99", "x")));
+    } finally {
+      index.close();
+    }
+  }
+}
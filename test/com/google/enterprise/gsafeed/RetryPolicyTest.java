@@ -0,0 +1,104 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Test RetryPolicy.
+ */
+public class RetryPolicyTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testDefaults() {
+    RetryPolicy policy = new RetryPolicy();
+    assertEquals(1, policy.getMaxAttempts());
+    assertEquals(1000, policy.getBaseDelay());
+    assertEquals(60000, policy.getMaxDelay());
+    assertEquals(0.5, policy.getJitter(), 0);
+  }
+
+  @Test
+  public void testExponentialDelay() {
+    RetryPolicy policy = new RetryPolicy()
+        .setBaseDelay(100).setMaxDelay(1000).setJitter(0);
+    Random random = new Random();
+    assertEquals(100, policy.getDelay(1, random));
+    assertEquals(200, policy.getDelay(2, random));
+    assertEquals(400, policy.getDelay(3, random));
+    assertEquals(800, policy.getDelay(4, random));
+    assertEquals(1000, policy.getDelay(5, random));
+    assertEquals(1000, policy.getDelay(500, random));
+  }
+
+  @Test
+  public void testJitter() {
+    RetryPolicy policy = new RetryPolicy()
+        .setBaseDelay(1000).setMaxDelay(1000).setJitter(0.25);
+    Random random = new Random(42);
+    boolean varied = false;
+    for (int i = 0; i < 100; i++) {
+      long delay = policy.getDelay(1, random);
+      assertTrue(delay > 750 && delay <= 1000);
+      varied |= delay != 1000;
+    }
+    assertTrue(varied);
+  }
+
+  @Test
+  public void testRetryableByDefault() {
+    RetryPolicy policy = new RetryPolicy();
+    assertTrue(policy.isRetryable(new IOException()));
+    assertTrue(policy.isRetryable("Internal Error", 200));
+    assertTrue(policy.isRetryable(null, 503));
+    assertFalse(policy.isRetryable("Error - Unauthorized Request", 200));
+    assertFalse(policy.isRetryable(null, 500));
+  }
+
+  @Test
+  public void testInvalidMaxAttempts() {
+    thrown.expect(IllegalArgumentException.class);
+    new RetryPolicy().setMaxAttempts(0);
+  }
+
+  @Test
+  public void testInvalidBaseDelay() {
+    thrown.expect(IllegalArgumentException.class);
+    new RetryPolicy().setBaseDelay(-1);
+  }
+
+  @Test
+  public void testInvalidMaxDelay() {
+    thrown.expect(IllegalArgumentException.class);
+    new RetryPolicy().setMaxDelay(-1);
+  }
+
+  @Test
+  public void testInvalidJitter() {
+    thrown.expect(IllegalArgumentException.class);
+    new RetryPolicy().setJitter(1.5);
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test StringInterner.
+ */
+public class StringInternerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testCapacity() {
+    assertEquals(4096, new StringInterner().getCapacity());
+    assertEquals(1, new StringInterner(1).getCapacity());
+    assertEquals(64, new StringInterner(64).getCapacity());
+    assertEquals(128, new StringInterner(65).getCapacity());
+  }
+
+  @Test
+  public void testCapacityInvalid() {
+    thrown.expect(IllegalArgumentException.class);
+    new StringInterner(0);
+  }
+
+  @Test
+  public void testIntern() {
+    StringInterner interner = new StringInterner();
+    String first = new String("text/html");
+    String second = new String("text/html");
+    assertSame(first, interner.intern(first));
+    assertSame(first, interner.intern(second));
+    assertEquals(2, interner.getLookups());
+    assertEquals(1, interner.getHits());
+    assertEquals(0.5, interner.getHitRate(), 0.0);
+  }
+
+  @Test
+  public void testInternNull() {
+    StringInterner interner = new StringInterner();
+    assertNull(interner.intern(null));
+    assertEquals(0, interner.getLookups());
+    assertEquals(0.0, interner.getHitRate(), 0.0);
+  }
+
+  @Test
+  public void testBounded() {
+    StringInterner interner = new StringInterner(1);
+    String first = new String("a");
+    interner.intern(first);
+    interner.intern("b");
+    String again = new String("a");
+    assertSame(again, interner.intern(again));
+    assertNotSame(first, again);
+    assertEquals(0, interner.getHits());
+  }
+
+  @Test
+  public void testResetStatistics() {
+    StringInterner interner = new StringInterner();
+    String first = new String("x");
+    interner.intern(first);
+    interner.resetStatistics();
+    assertSame(first, interner.intern(new String("x")));
+    assertEquals(1, interner.getLookups());
+    assertEquals(1, interner.getHits());
+  }
+}
@@ -0,0 +1,228 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static com.google.enterprise.gsafeed.GroupGraphTest.group;
+import static com.google.enterprise.gsafeed.GroupGraphTest.membership;
+import static com.google.enterprise.gsafeed.GroupGraphTest.user;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test XmlgroupsDiff.
+ */
+public class XmlgroupsDiffTest {
+  private XmlgroupsHelper helper;
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new XmlgroupsHelper();
+  }
+
+  private static Xmlgroups feed(Membership... memberships) {
+    Xmlgroups feed = new Xmlgroups();
+    feed.getMembership().addAll(Arrays.asList(memberships));
+    return feed;
+  }
+
+  /** Returns each membership's group and member names. */
+  private static List<String> describe(Xmlgroups feed) {
+    List<String> result = new ArrayList<String>();
+    for (Membership membership : feed.getMembership()) {
+      List<String> names = new ArrayList<String>();
+      for (Principal member : membership.getMembers().getPrincipal()) {
+        names.add(member.getvalue());
+      }
+      result.add(membership.getPrincipal().getvalue() + " " + names);
+    }
+    return result;
+  }
+
+  private static List<String> names(List<Principal> principals) {
+    List<String> names = new ArrayList<String>();
+    for (Principal principal : principals) {
+      names.add(principal.getvalue());
+    }
+    return names;
+  }
+
+  @Test
+  public void testDiff() throws Exception {
+    Xmlgroups oldFeed = feed(
+        membership(group("same"), user("alice"), user("bob")),
+        membership(group("reordered"), user("alice"), user("bob")),
+        membership(group("changed"), user("alice")),
+        membership(group("removed"), user("alice")));
+    Xmlgroups newFeed = feed(
+        membership(group("same"), user("alice"), user("bob")),
+        membership(group("reordered"), user("bob")),
+        membership(group("changed"), group("same"), user("carol")),
+        membership(group("reordered"), user("alice"), user("bob")),
+        membership(group("added"), user("alice")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlgroupsDiff.Summary summary = new XmlgroupsDiff(helper).diff(
+        GroupGraph.fromXmlgroups(oldFeed), GroupGraph.fromXmlgroups(newFeed),
+        out);
+    assertEquals(1, summary.getAdded());
+    assertEquals(1, summary.getChanged());
+    assertEquals(2, summary.getUnchanged());
+    assertEquals(Arrays.asList("removed"), names(summary.getRemoved()));
+    assertFalse(summary.isEmpty());
+
+    Xmlgroups result = helper.unmarshalWithDtd(out.toString("UTF-8"));
+    assertEquals(Arrays.asList(
+        "changed [same, carol]",
+        "added [alice]"),
+        describe(result));
+  }
+
+  @Test
+  public void testPrincipalsCompared() throws Exception {
+    Xmlgroups oldFeed = feed(
+        membership(group("eng"), user("alice")),
+        membership(group("web"), user("alice")));
+    Xmlgroups newFeed = feed(
+        membership(group("eng"), group("alice")),
+        membership(group("web").setNamespace("Default"),
+            user("alice").setNamespace("Default")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlgroupsDiff.Summary summary = new XmlgroupsDiff(helper).diff(
+        GroupGraph.fromXmlgroups(oldFeed), GroupGraph.fromXmlgroups(newFeed),
+        out);
+    assertEquals(1, summary.getChanged());
+    assertEquals(1, summary.getUnchanged());
+    assertEquals(Arrays.asList("eng [alice]"),
+        describe(helper.unmarshalWithDtd(out.toString("UTF-8"))));
+  }
+
+  @Test
+  public void testNoChanges() throws Exception {
+    Xmlgroups feed = feed(membership(group("eng"), user("alice")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlgroupsDiff.Summary summary = new XmlgroupsDiff(helper).diff(
+        GroupGraph.fromXmlgroups(feed), GroupGraph.fromXmlgroups(feed), out);
+    assertEquals(1, summary.getUnchanged());
+    assertEquals(0, summary.getAdded() + summary.getChanged());
+    assertTrue(summary.getRemoved().isEmpty());
+    assertTrue(summary.isEmpty());
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testGroupsWithoutMembers() throws Exception {
+    Xmlgroups oldFeed = feed(
+        membership(group("emptied"), user("alice")),
+        membership(group("filled")),
+        membership(group("eng"), user("alice")));
+    Xmlgroups newFeed = feed(
+        membership(group("emptied")),
+        membership(group("filled"), user("alice")),
+        membership(group("eng"), user("alice")),
+        membership(group("none")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlgroupsDiff.Summary summary = new XmlgroupsDiff(helper).diff(
+        GroupGraph.fromXmlgroups(oldFeed), GroupGraph.fromXmlgroups(newFeed),
+        out);
+    assertEquals(1, summary.getAdded());
+    assertEquals(0, summary.getChanged());
+    assertEquals(1, summary.getUnchanged());
+    assertEquals(Arrays.asList("emptied"), names(summary.getRemoved()));
+    assertEquals(Arrays.asList("filled [alice]"),
+        describe(helper.unmarshalWithDtd(out.toString("UTF-8"))));
+  }
+
+  @Test
+  public void testOnlyGroupsWithoutMembersChanged() throws Exception {
+    Xmlgroups oldFeed = feed(membership(group("eng"), user("alice")));
+    Xmlgroups newFeed = feed(membership(group("eng")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlgroupsDiff.Summary summary = new XmlgroupsDiff(helper).diff(
+        GroupGraph.fromXmlgroups(oldFeed), GroupGraph.fromXmlgroups(newFeed),
+        out);
+    assertTrue(summary.isEmpty());
+    assertEquals(Arrays.asList("eng"), names(summary.getRemoved()));
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testStreamsInParallel() throws Exception {
+    int groups = 1000;
+    FeedGenerator generator = new FeedGenerator(9)
+        .setGroups(groups)
+        .setUsers(1000)
+        .setMembers(1, 6)
+        .setNestedGroupFraction(0.2);
+    ByteArrayOutputStream oldOut = new ByteArrayOutputStream();
+    generator.writeXmlgroups(helper, oldOut);
+
+    // Change the members of every tenth group and drop every
+    // hundred-and-first.
+    Xmlgroups newFeed = generator.createXmlgroups();
+    Set<String> expected = new HashSet<String>();
+    List<Membership> memberships = newFeed.getMembership();
+    for (int i = memberships.size() - 1; i >= 0; i--) {
+      if (i % 101 == 0) {
+        memberships.remove(i);
+      } else if (i % 10 == 0) {
+        memberships.get(i).getMembers().getPrincipal().add(user("new"));
+        expected.add(memberships.get(i).getPrincipal().getvalue());
+      }
+    }
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    helper.marshal(newFeed, newOut);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlgroupsDiff.Summary summary;
+    try {
+      // Compare the nodes in several tasks.
+      summary = new XmlgroupsDiff(helper)
+          .setExecutor(executor)
+          .setChunkSize(128)
+          .diff(new ByteArrayInputStream(oldOut.toByteArray()),
+              new ByteArrayInputStream(newOut.toByteArray()), out);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(0, summary.getAdded());
+    assertEquals(expected.size(), summary.getChanged());
+    assertEquals(groups / 101 + 1, summary.getRemoved().size());
+    assertEquals(groups - summary.getRemoved().size() - expected.size(),
+        summary.getUnchanged());
+    Xmlgroups result = helper.unmarshalWithDtd(out.toString("UTF-8"));
+    assertEquals(expected.size(), result.getMembership().size());
+    for (Membership membership : result.getMembership()) {
+      assertTrue(expected.contains(membership.getPrincipal().getvalue()));
+    }
+  }
+}
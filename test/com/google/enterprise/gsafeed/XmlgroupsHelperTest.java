@@ -0,0 +1,224 @@
+// Copyright 2018 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.gsafeed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.gsafeed.groups.Membership;
+import com.google.enterprise.gsafeed.groups.Principal;
+import com.google.enterprise.gsafeed.groups.Xmlgroups;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test XmlgroupsHelper.
+ */
+public class XmlgroupsHelperTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String VALID_FEED =
+      "<?xml version='1.0' encoding='utf-8'?>"
+      + "<!DOCTYPE xmlgroups PUBLIC '-//Google//DTD GSA Feeds//EN' ''>"
+      + "<xmlgroups>"
+      + "  <membership source='ldap'>"
+      + "    <principal scope='GROUP'>eng</principal>"
+      + "    <members>"
+      + "      <principal scope='USER'>alice</principal>"
+      + "      <principal scope='GROUP' namespace='ns'>web</principal>"
+      + "    </members>"
+      + "  </membership>"
+      + "  <membership>"
+      + "    <principal scope='GROUP' namespace='ns'>web</principal>"
+      + "    <members>"
+      + "      <principal scope='USER'>bob</principal>"
+      + "    </members>"
+      + "  </membership>"
+      + "</xmlgroups>";
+
+  private static final String INVALID_FEED =
+      "<?xml version='1.0' encoding='utf-8'?>"
+      + "<!DOCTYPE xmlgroups PUBLIC '-//Google//DTD GSA Feeds//EN' ''>"
+      + "<xmlgroups>"
+      + "  <membership>"
+      + "    <principal scope='GROUP'>eng</principal>"
+      + "    <members>"
+      + "      <principal scope='USER'>alice</principal>"
+      + "    </members>"
+      + "  </membership>"
+      + "  <membership>"
+      + "    <principal scope='GROUP'>web</principal>"
+      + "  </membership>"                                           // <----
+      + "</xmlgroups>";
+
+  private XmlgroupsHelper helper;
+
+  @Before
+  public void setUp() throws Exception {
+    helper = new XmlgroupsHelper();
+  }
+
+  @Test
+  public void testStreamingWithDtd() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    helper.unmarshalWithDtd(asStream(VALID_FEED), handler);
+    assertEquals(Arrays.asList(
+        "ldap Default/eng [Default/alice, ns/web]",
+        "null ns/web [Default/bob]"),
+        handler.events);
+  }
+
+  @Test
+  public void testStreamingWithoutDtd() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    helper.unmarshalWithoutDtd(asStream(VALID_FEED), handler);
+    assertEquals(Arrays.asList(
+        "ldap Default/eng [Default/alice, ns/web]",
+        "null ns/web [Default/bob]"),
+        handler.events);
+  }
+
+  @Test
+  public void testStreamingWithDtdInvalidDoc() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    try {
+      helper.unmarshalWithDtd(asStream(INVALID_FEED), handler);
+      fail("Expected a SAXParseException");
+    } catch (SAXParseException e) {
+      // Expected.
+    }
+    // The memberships before the error were already handled.
+    assertEquals(Arrays.asList("null Default/eng [Default/alice]"),
+        handler.events);
+  }
+
+  @Test
+  public void testStreamingWithoutDtdInvalidDoc() throws Exception {
+    RecordingHandler handler = new RecordingHandler();
+    helper.unmarshalWithoutDtd(asStream(INVALID_FEED), handler);
+    assertEquals(Arrays.asList(
+        "null Default/eng [Default/alice]",
+        "null Default/web null"),
+        handler.events);
+  }
+
+  @Test
+  public void testStreamingHandlerException() throws Exception {
+    final IOException expected = new IOException("stop");
+    XmlgroupsHandler handler = new XmlgroupsHandler() {
+        @Override
+        public void membership(Membership membership) throws IOException {
+          throw expected;
+        }
+      };
+    try {
+      helper.unmarshalWithDtd(asStream(VALID_FEED), handler);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertSame(expected, e);
+    }
+  }
+
+  @Test
+  public void testStreamingMatchesUnmarshal() throws Exception {
+    FeedGenerator generator = new FeedGenerator(3)
+        .setGroups(500)
+        .setUsers(300)
+        .setMembers(1, 30)
+        .setNestedGroupFraction(0.2);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.writeXmlgroups(helper, out);
+    byte[] feed = out.toByteArray();
+
+    final GroupGraph.Builder builder = new GroupGraph.Builder();
+    final List<Membership> memberships = new ArrayList<Membership>();
+    helper.unmarshalWithDtd(new ByteArrayInputStream(feed),
+        new XmlgroupsHandler() {
+          @Override
+          public void membership(Membership membership) {
+            memberships.add(membership);
+            builder.add(membership);
+          }
+        });
+    Xmlgroups expected =
+        helper.unmarshalWithDtd(new ByteArrayInputStream(feed));
+    Xmlgroups streamed = new Xmlgroups();
+    streamed.getMembership().addAll(memberships);
+    assertEquals(marshal(expected), marshal(streamed));
+    assertEquals(marshal(GroupGraph.fromXmlgroups(expected).toXmlgroups()),
+        marshal(builder.build().toXmlgroups()));
+  }
+
+  @Test
+  public void testStreamingWithInterner() throws Exception {
+    StringInterner interner = new StringInterner();
+    helper.setStringInterner(interner);
+    final List<Membership> memberships = new ArrayList<Membership>();
+    helper.unmarshalWithoutDtd(asStream(VALID_FEED),
+        new XmlgroupsHandler() {
+          @Override
+          public void membership(Membership membership) {
+            memberships.add(membership);
+          }
+        });
+    assertSame(
+        memberships.get(0).getMembers().getPrincipal().get(1).getvalue(),
+        memberships.get(1).getPrincipal().getvalue());
+  }
+
+  private String marshal(Xmlgroups feed) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    helper.marshal(feed, out);
+    return out.toString("UTF-8");
+  }
+
+  private static InputStream asStream(String value) {
+    return new ByteArrayInputStream(value.getBytes(UTF_8));
+  }
+
+  private static class RecordingHandler implements XmlgroupsHandler {
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void membership(Membership membership) throws IOException {
+      String members = null;
+      if (membership.getMembers() != null) {
+        List<String> names = new ArrayList<String>();
+        for (Principal principal : membership.getMembers().getPrincipal()) {
+          names.add(name(principal));
+        }
+        members = names.toString();
+      }
+      events.add(membership.getSource() + " "
+          + name(membership.getPrincipal()) + " " + members);
+    }
+
+    private static String name(Principal principal) {
+      return principal.getNamespace() + "/" + principal.getvalue();
+    }
+  }
+}